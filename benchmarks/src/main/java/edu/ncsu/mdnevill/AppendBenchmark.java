@@ -0,0 +1,157 @@
+package edu.ncsu.mdnevill;
+
+import edu.ncsu.mdnevill.bitmap.BitmapEngine;
+import edu.ncsu.mdnevill.bitmap.JavaFastBit;
+import org.apache.commons.io.FileUtils;
+import org.mapdb.DB;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Mitchell Neville
+ * Compares appending new rows to loaded databases against rebuilding them with the
+ * new rows included. Before each invocation the first rows of the CSV file are loaded
+ * into a FastBit partition with saved indexes and into the MapDB trees; the append
+ * benchmarks then add the next appendRows rows in place, while the rebuild benchmarks
+ * load all rows into fresh databases, as initializeDb does. Divide appendRows by the
+ * reported time for append throughput.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AppendBenchmark {
+    @Param({"data/booksWithPrices.csv"})
+    public String csv;
+
+    // Rows loaded before appending
+    @Param({"10000", "50000"})
+    public int rows;
+
+    // Rows appended to them
+    @Param({"1000", "10000"})
+    public int appendRows;
+
+    @Param({"<binning none/><encoding equality/>"})
+    public String indexOptions;
+
+    @Param({"file"})
+    public String store;
+
+    // Columns of the loaded and the appended rows
+    private int[] baseYears, baseIds, addedYears, addedIds, allYears, allIds;
+    private double[] basePrices, addedPrices, allPrices;
+    private Book[] baseBooks, addedBooks, allBooks;
+
+    private File fbDir;
+    private BitmapEngine fb;
+    private File dbFile;
+    private DB db;
+    private MapDbBookRepository repo;
+
+    @Setup(Level.Trial)
+    public void loadCsv() throws IOException
+    {
+        BooksCsvLoader.Result data = new BooksCsvLoader(new File(csv)).load(rows + appendRows, true);
+        if(data.size() < rows + appendRows){
+            throw new IllegalArgumentException(csv + " has only " + data.size() + " rows");
+        }
+        allYears = data.years;
+        allIds = data.ids;
+        allPrices = data.prices;
+        allBooks = data.books;
+        baseYears = Arrays.copyOfRange(allYears, 0, rows);
+        baseIds = Arrays.copyOfRange(allIds, 0, rows);
+        basePrices = Arrays.copyOfRange(allPrices, 0, rows);
+        baseBooks = Arrays.copyOfRange(allBooks, 0, rows);
+        addedYears = Arrays.copyOfRange(allYears, rows, rows + appendRows);
+        addedIds = Arrays.copyOfRange(allIds, rows, rows + appendRows);
+        addedPrices = Arrays.copyOfRange(allPrices, rows, rows + appendRows);
+        addedBooks = Arrays.copyOfRange(allBooks, rows, rows + appendRows);
+    }
+
+    @Setup(Level.Invocation)
+    public void loadBase() throws IOException
+    {
+        fbDir = File.createTempFile("fastbit", "");
+        fbDir.delete();
+        fb = new JavaFastBit(indexOptions);
+        write(baseYears, baseIds, basePrices);
+        fb.build_indexes(fbDir.getPath(), indexOptions);
+
+        dbFile = File.createTempFile("mapdb", "db");
+        db = BooksState.newDb(store, dbFile);
+        repo = new MapDbBookRepository(db);
+        repo.bulkLoad(Arrays.asList(baseBooks).iterator());
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteBase() throws IOException
+    {
+        db.close();
+        dbFile.delete();
+        new File(dbFile.getPath() + ".p").delete();
+        new File(dbFile.getPath() + ".t").delete();
+        FileUtils.deleteDirectory(fbDir);
+    }
+
+    /**
+     * Write columns to the partition
+     */
+    private void write(int[] years, int[] ids, double[] prices)
+    {
+        fb.add_ints("year", years);
+        fb.add_ints("id", ids);
+        fb.add_doubles("price", prices);
+        fb.write_buffer(fbDir.getPath());
+    }
+
+    @Benchmark
+    public int bitmapAppend()
+    {
+        write(addedYears, addedIds, addedPrices);
+        return fb.number_of_rows(fbDir.getPath());
+    }
+
+    @Benchmark
+    public int bitmapRebuild() throws IOException
+    {
+        FileUtils.deleteDirectory(fbDir);
+        fb = new JavaFastBit(indexOptions);
+        write(allYears, allIds, allPrices);
+        fb.build_indexes(fbDir.getPath(), indexOptions);
+        return fb.number_of_rows(fbDir.getPath());
+    }
+
+    @Benchmark
+    public int mapDbAppend()
+    {
+        repo.append(Arrays.asList(addedBooks).iterator());
+        return repo.size();
+    }
+
+    @Benchmark
+    public int mapDbRebuild()
+    {
+        repo.bulkLoad(Arrays.asList(allBooks).iterator());
+        return repo.size();
+    }
+}
@@ -0,0 +1,141 @@
+package edu.ncsu.mdnevill;
+
+import edu.ncsu.mdnevill.bitmap.BitmapEngine;
+import edu.ncsu.mdnevill.bitmap.JavaFastBit;
+import edu.ncsu.mdnevill.bitmap.QuerySession;
+import edu.ncsu.mdnevill.bitmap.ResultCache;
+import edu.ncsu.mdnevill.bitmap.WhereClauseException;
+import edu.ncsu.mdnevill.bitmap.WhereParser;
+import org.apache.commons.io.FileUtils;
+import org.mapdb.DB;
+import org.mapdb.DBMaker;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * @author Mitchell Neville
+ * JMH fixture holding the books dataset loaded into both the MapDB B-Tree and the
+ * bitmap engine. The dataset is loaded once per trial, so every fork measures
+ * queries against warm, fully built indexes.
+ */
+@State(Scope.Benchmark)
+public class BooksState {
+    // CSV file to load, relative to the working directory
+    @Param({"data/booksWithPrices.csv"})
+    public String csv;
+
+    // Number of rows to load, or -1 for the whole file
+    @Param({"1000", "10000", "-1"})
+    public int rows;
+
+    // FastBit indexing options for the bitmap engine
+    @Param({"<binning none/><encoding equality/>"})
+    public String indexOptions;
+
+    // Result cache in front of both indexes: none, lru or lfu
+    @Param({"none"})
+    public String cache;
+
+    // MapDB store: file, mmap (memory-mapped file), memory (heap) or direct
+    // (off-heap memory)
+    @Param({"file"})
+    public String store;
+
+    // Split of the bitmap rows into partitions: none, rows:N or column:width
+    @Param({"none"})
+    public String partitions;
+
+    // Keep Roaring bitmap postings in the MapDB repository for the BookQuery benchmarks
+    @Param({"false"})
+    public boolean postings;
+
+    BitmapEngine fb;
+    MapDbBookRepository bTreeRepo;
+    String fbDir;
+    // The mixed query, year = ? and price >= ?, prepared on App's session
+    QuerySession.Prepared preparedMixed;
+    // QueryBenchmark.COMBINED as a BookQuery
+    BookQuery combined;
+    // Statistics of the loaded columns, so results can be read against the data
+    // they ran on; initializeDb also prints them with the setup output
+    Map<String, ColumnStatistics> columnStats;
+
+    private File tmpDir;
+
+    @Setup(Level.Trial)
+    public void load() throws IOException, WhereClauseException
+    {
+        tmpDir = File.createTempFile("bench", "");
+        tmpDir.delete();
+        tmpDir.mkdirs();
+
+        App.fb_dir = new File(tmpDir, "fastbit").getPath();
+        App.dbFile = new File(tmpDir, "mapdb");
+        App.db = newDb(store, App.dbFile);
+        App.bTreeRepo = new MapDbBookRepository(App.db);
+        App.resultCache = cache.equals("none") ? null : new ResultCache(cache, 64L << 20);
+        App.bTreeRepo.setResultCache(App.resultCache);
+        App.fbPartitions = partitions;
+        App.initializeDb(csv, rows, indexOptions);
+        App.fb.build_indexes(App.fb_dir, indexOptions);
+
+        fb = App.fb;
+        bTreeRepo = App.bTreeRepo;
+        fbDir = App.fb_dir;
+        columnStats = App.columnStats;
+        if(fb instanceof JavaFastBit){
+            // Index sizes, to weigh against the query times of these options
+            for(String col : new String[]{"year", "price"}){
+                System.out.println("Index of " + col + ": " + ((JavaFastBit) fb).get_index_size(fbDir, col) + " bytes");
+            }
+        }
+        preparedMixed = App.fbSession.prepare("year = ? and price >= ?");
+        combined = BookQuery.where(WhereParser.parse(QueryBenchmark.COMBINED));
+        if(postings){
+            bTreeRepo.enablePostings();
+        }
+    }
+
+    /**
+     * Open a MapDB store of the given kind
+     * @param store file, mmap, memory or direct
+     * @param file File backing the file and mmap stores
+     * @return
+     */
+    static DB newDb(String store, File file)
+    {
+        DBMaker<?> maker;
+        if(store.equals("file")){
+            maker = DBMaker.newFileDB(file);
+        }
+        else if(store.equals("mmap")){
+            maker = DBMaker.newFileDB(file).mmapFileEnable();
+        }
+        else if(store.equals("memory")){
+            maker = DBMaker.newMemoryDB();
+        }
+        else if(store.equals("direct")){
+            maker = DBMaker.newMemoryDirectDB();
+        }
+        else{
+            throw new IllegalArgumentException("Unknown MapDB store: " + store);
+        }
+        return maker.closeOnJvmShutdown().make();
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws IOException
+    {
+        App.fbSession.close();
+        App.db.close();
+        FileUtils.deleteDirectory(tmpDir);
+    }
+}
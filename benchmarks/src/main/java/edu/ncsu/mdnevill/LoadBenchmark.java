@@ -0,0 +1,86 @@
+package edu.ncsu.mdnevill;
+
+import org.mapdb.DB;
+import org.mapdb.DBMaker;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Mitchell Neville
+ * Compares building the MapDB trees one row at a time with add against the
+ * sorted bulk load. Each invocation loads every row into a fresh database; divide
+ * the row count by the reported time for insert throughput.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LoadBenchmark {
+    @Param({"data/booksWithPrices.csv"})
+    public String csv;
+
+    @Param({"10000", "-1"})
+    public int rows;
+
+    private BooksCsvLoader.Result data;
+    private File dbFile;
+    private DB db;
+    private MapDbBookRepository repo;
+
+    @Setup(Level.Trial)
+    public void loadCsv() throws IOException
+    {
+        data = new BooksCsvLoader(new File(csv)).load(rows, true);
+    }
+
+    @Setup(Level.Invocation)
+    public void openDb() throws IOException
+    {
+        dbFile = File.createTempFile("mapdb", "db");
+        db = DBMaker.newFileDB(dbFile)
+                .closeOnJvmShutdown()
+                .deleteFilesAfterClose()
+                .make();
+        repo = new MapDbBookRepository(db);
+    }
+
+    @TearDown(Level.Invocation)
+    public void closeDb()
+    {
+        db.close();
+    }
+
+    @Benchmark
+    public int perRow()
+    {
+        for(int i = 0; i < data.size(); i++){
+            repo.add(data.books[i], data.ids[i]);
+        }
+        return repo.size();
+    }
+
+    @Benchmark
+    public int bulkLoad()
+    {
+        repo.bulkLoad(Arrays.asList(data.books).iterator());
+        return repo.size();
+    }
+}
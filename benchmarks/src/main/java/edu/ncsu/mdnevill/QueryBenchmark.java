@@ -0,0 +1,220 @@
+package edu.ncsu.mdnevill;
+
+import edu.ncsu.mdnevill.bitmap.BitmapEngine;
+import edu.ncsu.mdnevill.bitmap.QuerySession;
+import edu.ncsu.mdnevill.bitmap.ResultCursor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Mitchell Neville
+ * JMH version of the equality, range and mixed queries run by {@link App}, for both
+ * the bitmap engine and the MapDB B-Tree. The bTreeIds benchmarks answer the same
+ * queries from the secondary indexes alone, returning ids as the bitmap side does,
+ * while the bTree ones fetch every Book. The RangeAnd benchmarks combine a year range
+ * with a price range, an AND of two bitmap ranges against one scan of the composite
+ * (year, price, id) index. The Limit benchmarks read the first rows of
+ * the range query through the batched cursors and stop. bitmapPreparedMixed runs the
+ * mixed query prepared once with ? parameters, binding the values on each run instead
+ * of parsing the WHERE clause. The Combined benchmarks OR two conditions, one with a
+ * NOT, answered on the MapDB side as a {@link BookQuery}: from Roaring bitmap postings
+ * with -p postings=true, else from the secondary indexes. The TopK benchmarks get the
+ * TOP most expensive books of a decade, ORDER BY price DESC LIMIT TOP, without reading
+ * the rest of the decade's rows. Each benchmark is reported as average
+ * time, sampled time (for p50/p99 percentiles) and throughput.
+ *
+ * Run from the directory containing data/, for example:
+ * java -jar target/benchmarks.jar QueryBenchmark -p rows=1000,10000
+ */
+@BenchmarkMode({Mode.AverageTime, Mode.SampleTime, Mode.Throughput})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class QueryBenchmark {
+    // Rows read by the Limit benchmarks, and the cursor batch size
+    static final int LIMIT = 100;
+    static final int BATCH = 64;
+    // Rows returned by the TopK benchmarks
+    static final int TOP = 10;
+    // Query of the Combined benchmarks
+    static final String COMBINED = "(year >= 1990 and year < 2000 and price >= 50.00 and price < 100.00)"
+            + " or (year = 2000 and not price < 100.00)";
+
+    /**
+     * Build a query on the bitmap engine, failing rather than timing a query that
+     * could not be built
+     */
+    private static BitmapEngine.QueryHandle build(BooksState s, String where)
+    {
+        BitmapEngine.QueryHandle h = s.fb.build_query(null, s.fbDir, where);
+        if(h == null){
+            throw new IllegalStateException("Could not build query: " + where);
+        }
+        return h;
+    }
+
+    /**
+     * Run a query on the bitmap engine and fetch the id column, as App does
+     */
+    private static int[] bitmapQuery(BooksState s, String where)
+    {
+        BitmapEngine.QueryHandle h = build(s, where);
+        s.fb.get_result_size(h);
+        int[] ids = s.fb.get_qualified_ints(h, "id");
+        s.fb.destroy_query(h);
+        return ids;
+    }
+
+    @Benchmark
+    public int[] bitmapEquality(BooksState s)
+    {
+        return bitmapQuery(s, "year = 2000");
+    }
+
+    @Benchmark
+    public int[] bitmapRange(BooksState s)
+    {
+        return bitmapQuery(s, "year >= 2000");
+    }
+
+    @Benchmark
+    public int[] bitmapMixed(BooksState s)
+    {
+        return bitmapQuery(s, "year = 2000 and price >= 100.00");
+    }
+
+    @Benchmark
+    public int[] bitmapPreparedMixed(BooksState s)
+    {
+        QuerySession.Query q = s.preparedMixed.execute(2000, 100.00);
+        try{
+            q.size();
+            return q.ints("id");
+        }
+        finally{
+            q.close();
+        }
+    }
+
+    @Benchmark
+    public int[] bitmapRangeAnd(BooksState s)
+    {
+        return bitmapQuery(s, "year >= 1990 and year < 2000 and price >= 50.00 and price < 100.00");
+    }
+
+    @Benchmark
+    public Collection<Book> bTreeEquality(BooksState s)
+    {
+        return s.bTreeRepo.getByYear(2000);
+    }
+
+    @Benchmark
+    public Collection<Book> bTreeRange(BooksState s)
+    {
+        return s.bTreeRepo.getByYear(2000, true, 3000, false);
+    }
+
+    @Benchmark
+    public Collection<Book> bTreeMixed(BooksState s)
+    {
+        return s.bTreeRepo.getByYearAndPrice(2000, 100.00, true);
+    }
+
+    @Benchmark
+    public int[] bTreeIdsEquality(BooksState s)
+    {
+        return s.bTreeRepo.getIdsByYear(2000);
+    }
+
+    @Benchmark
+    public int[] bTreeIdsRange(BooksState s)
+    {
+        return s.bTreeRepo.getIdsByYear(2000, true, 3000, false);
+    }
+
+    @Benchmark
+    public int[] bTreeIdsMixed(BooksState s)
+    {
+        return s.bTreeRepo.getIdsByYearAndPrice(2000, 100.00, true);
+    }
+
+    @Benchmark
+    public Collection<Book> bTreeRangeAnd(BooksState s)
+    {
+        return s.bTreeRepo.getByYearAndPrice(1990, true, 2000, false, 50.00, true, 100.00, false);
+    }
+
+    @Benchmark
+    public int[] bTreeIdsRangeAnd(BooksState s)
+    {
+        return s.bTreeRepo.getIdsByYearAndPrice(1990, true, 2000, false, 50.00, true, 100.00, false);
+    }
+
+    @Benchmark
+    public int bitmapRangeLimit(BooksState s)
+    {
+        BitmapEngine.QueryHandle h = build(s, "year >= 2000");
+        ResultCursor c = s.fb.open_cursor(h, BATCH, LIMIT);
+        int[] ids = new int[BATCH];
+        int sum = 0;
+        int n;
+        while((n = c.next_batch()) > 0){
+            c.get_batch_ints("id", ids);
+            for(int i = 0; i < n; i++){
+                sum += ids[i];
+            }
+        }
+        s.fb.destroy_query(h);
+        return sum;
+    }
+
+    @Benchmark
+    public int bTreeRangeLimit(BooksState s)
+    {
+        BookCursor c = s.bTreeRepo.cursorByYear(2000, true, 3000, false, BATCH, LIMIT);
+        int sum = 0;
+        while(c.hasNext()){
+            sum += c.next().hashCode();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public int[] bitmapCombined(BooksState s)
+    {
+        return bitmapQuery(s, COMBINED);
+    }
+
+    @Benchmark
+    public int[] bTreeIdsCombined(BooksState s)
+    {
+        return s.bTreeRepo.getIds(s.combined);
+    }
+
+    @Benchmark
+    public int[] bitmapTopK(BooksState s)
+    {
+        BitmapEngine.QueryHandle h = build(s, "year >= 1990 and year < 2000");
+        ResultCursor c = s.fb.open_sorted_cursor(h, "price", true, TOP, TOP);
+        int[] ids = new int[TOP];
+        c.next_batch();
+        c.get_batch_ints("id", ids);
+        s.fb.destroy_query(h);
+        return ids;
+    }
+
+    @Benchmark
+    public int[] bTreeIdsTopK(BooksState s)
+    {
+        return s.bTreeRepo.getIdsByYearOrderByPrice(1990, true, 2000, false, true, TOP);
+    }
+}
@@ -0,0 +1,97 @@
+package edu.ncsu.mdnevill;
+
+import org.mapdb.DB;
+import org.mapdb.DBMaker;
+import org.mapdb.Serializer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Mitchell Neville
+ * Compares MapDB's default POJO serialization of Book values with
+ * {@link BookSerializer}: the latency of fetching one book by id and of a query
+ * that fetches every book of a year. The size of the database files is printed
+ * once the data is loaded.
+ */
+@BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SerializerBenchmark {
+    @Param({"data/booksWithPrices.csv"})
+    public String csv;
+
+    @Param({"-1"})
+    public int rows;
+
+    // "default" for MapDB's default serializer, "binary" for BookSerializer
+    @Param({"default", "binary"})
+    public String serializer;
+
+    private File dbFile;
+    private DB db;
+    private MapDbBookRepository repo;
+    // Number of books; BTreeMap.size() walks the whole tree, so it is read once
+    private int size;
+    private int next;
+
+    @Setup(Level.Trial)
+    @SuppressWarnings("unchecked")
+    public void load() throws IOException
+    {
+        BooksCsvLoader.Result data = new BooksCsvLoader(new File(csv)).load(rows, true);
+        dbFile = File.createTempFile("mapdb", "db");
+        db = DBMaker.newFileDB(dbFile)
+                .closeOnJvmShutdown()
+                .deleteFilesAfterClose()
+                .make();
+        Serializer<Book> s = serializer.equals("binary")
+                ? new BookSerializer()
+                : (Serializer<Book>) db.getDefaultSerializer();
+        repo = new MapDbBookRepository(db, s);
+        repo.bulkLoad(Arrays.asList(data.books).iterator());
+        db.commit();
+        size = repo.size();
+        long bytes = dbFile.length() + new File(dbFile.getPath() + ".p").length();
+        System.out.println();
+        System.out.println(serializer + " serializer: " + size + " books in " + bytes + " bytes");
+    }
+
+    @TearDown(Level.Trial)
+    public void close()
+    {
+        db.close();
+    }
+
+    @Benchmark
+    public Book fetchById()
+    {
+        next = next % size + 1;
+        return repo.get(next);
+    }
+
+    @Benchmark
+    public Collection<Book> fetchByYear()
+    {
+        return repo.getByYear(2000);
+    }
+}
@@ -0,0 +1,113 @@
+package edu.ncsu.mdnevill;
+
+import gov.lbl.fastbit.FastBitStringReader;
+import gov.lbl.fastbit.FastBitStringReaderException;
+import gov.lbl.fastbit.FastBitStringWriter;
+import gov.lbl.fastbit.FastBitStringWriterException;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Mitchell Neville
+ * Fetches every row of a text column written with {@link FastBitStringWriter},
+ * comparing FastBitStringReader's original path, which maps the data file once per
+ * string, with the shared mapping of getMappedStrings. The column holds book-title
+ * sized strings; the default of 1M rows makes every fetch a 1M-hit result.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StringReaderBenchmark {
+    static final String COLUMN = "title";
+    static final String CHARSET = "UTF-8";
+
+    @Param({"1000000"})
+    public int rows;
+
+    private File dir;
+    private FastBitStringReader reader;
+    private FileChannel data;
+    // Row ids and the matching string offsets, as FastBit would return them for a query selecting every row
+    private int[] rowIds;
+    private long[] offsets;
+
+    @Setup(Level.Trial)
+    public void write() throws IOException, FastBitStringWriterException
+    {
+        dir = File.createTempFile("strings", "dir");
+        dir.delete();
+        dir.mkdirs();
+        Random r = new Random(42);
+        String[] titles = new String[rows];
+        for(int i = 0; i < rows; i++){
+            StringBuilder sb = new StringBuilder("Title ").append(i);
+            int words = 1 + r.nextInt(6);
+            for(int w = 0; w < words; w++){
+                sb.append(' ').append(Integer.toString(r.nextInt(1 << 20), 36));
+            }
+            titles[i] = sb.toString();
+        }
+        new FastBitStringWriter().addText(dir.getPath(), COLUMN, titles, CHARSET);
+
+        rowIds = new int[rows];
+        offsets = new long[rows];
+        RandomAccessFile sp = new RandomAccessFile(new File(dir, COLUMN + ".sp"), "r");
+        try{
+            LongBuffer starts = sp.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, sp.length())
+                    .order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+            for(int i = 0; i < rows; i++){
+                rowIds[i] = i;
+                offsets[i] = starts.get(i);
+            }
+        }
+        finally{
+            sp.close();
+        }
+        data = new RandomAccessFile(new File(dir, COLUMN), "r").getChannel();
+        reader = new FastBitStringReader();
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() throws IOException
+    {
+        data.close();
+        reader.releaseMappings();
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Benchmark
+    public String[] perStringMapping() throws FastBitStringReaderException
+    {
+        return reader.getStrings(data, offsets, CHARSET);
+    }
+
+    @Benchmark
+    public String[] sharedMapping() throws FastBitStringReaderException
+    {
+        return reader.getMappedStrings(dir.getPath(), COLUMN, rowIds, CHARSET);
+    }
+}
@@ -0,0 +1,166 @@
+package edu.ncsu.mdnevill;
+
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.format.ResultFormatFactory;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * @author Mitchell Neville
+ * Runs the JMH benchmarks over a matrix of dataset sizes, FastBit indexing options and
+ * MapDB stores in one go, so a whole cardinality sweep no longer means editing App and
+ * recompiling. Every combination of the rows, indexOptions, store, cache and
+ * partitions lists is one cell, loaded once by {@link BooksState} and measured with
+ * the configured warmup and measurement iterations. The results of every cell are
+ * written both as CSV and as JSON, each row carrying the parameters of its cell,
+ * ready for plotting.
+ *
+ * The settings are read from an optional properties file, then from key=value
+ * arguments, which take precedence:
+ * java -cp target/benchmarks.jar edu.ncsu.mdnevill.SweepDriver sweep.properties rows=1000,-1
+ *
+ * Lists are separated by commas, except indexOptions, whose entries are separated by |
+ * since FastBit options may themselves contain commas.
+ */
+public class SweepDriver {
+    // Settings and their defaults
+    static final String[][] DEFAULTS = {
+            {"benchmarks", "QueryBenchmark"},
+            {"csv", "data/booksWithPrices.csv"},
+            {"rows", "1000,10000,-1"},
+            {"indexOptions", "<binning none/><encoding equality/>"},
+            {"store", "file"},
+            {"cache", "none"},
+            // Splits of the bitmap rows into partitions: none, rows:N or column:width
+            {"partitions", "none"},
+            // Benchmark modes (avgt, sample, thrpt, ss), or empty for each benchmark's own
+            {"mode", ""},
+            {"warmupIterations", "5"},
+            {"warmupSeconds", "1"},
+            {"iterations", "10"},
+            {"seconds", "1"},
+            {"forks", "1"},
+            // Extra arguments for the forked JVMs, separated by spaces
+            {"jvmArgs", ""},
+            // Results go to <output>.csv and <output>.json
+            {"output", "sweep"}
+    };
+
+    public static void main(String[] args) throws IOException, RunnerException
+    {
+        Properties settings = new Properties();
+        for(String[] d : DEFAULTS){
+            settings.setProperty(d[0], d[1]);
+        }
+        for(String arg : args){
+            int eq = arg.indexOf('=');
+            if(eq < 0){
+                InputStream in = new FileInputStream(arg);
+                try{
+                    settings.load(in);
+                }
+                finally{
+                    in.close();
+                }
+            }
+        }
+        for(String arg : args){
+            int eq = arg.indexOf('=');
+            if(eq >= 0){
+                settings.setProperty(arg.substring(0, eq).trim(), arg.substring(eq + 1));
+            }
+        }
+
+        ChainedOptionsBuilder opts;
+        try{
+            opts = options(settings);
+        }
+        catch(IllegalArgumentException e){
+            System.out.println(e.getMessage());
+            return;
+        }
+        Collection<RunResult> results = new Runner(opts.build()).run();
+
+        String output = settings.getProperty("output");
+        ResultFormatFactory.getInstance(ResultFormatType.CSV, output + ".csv").writeOut(results);
+        ResultFormatFactory.getInstance(ResultFormatType.JSON, output + ".json").writeOut(results);
+        System.out.println("Wrote " + results.size() + " results to " + output + ".csv and " + output + ".json");
+    }
+
+    /**
+     * Translate the settings into JMH options
+     * @param settings
+     * @return
+     * @throws IllegalArgumentException If a setting is not valid
+     */
+    static ChainedOptionsBuilder options(Properties settings)
+    {
+        ChainedOptionsBuilder opts = new OptionsBuilder()
+                .param("csv", settings.getProperty("csv").trim())
+                .param("rows", split(settings.getProperty("rows"), ","))
+                .param("indexOptions", split(settings.getProperty("indexOptions"), "\\|"))
+                .param("store", split(settings.getProperty("store"), ","))
+                .param("cache", split(settings.getProperty("cache"), ","))
+                .param("partitions", split(settings.getProperty("partitions"), ","))
+                .warmupIterations(integer(settings, "warmupIterations"))
+                .warmupTime(TimeValue.seconds(integer(settings, "warmupSeconds")))
+                .measurementIterations(integer(settings, "iterations"))
+                .measurementTime(TimeValue.seconds(integer(settings, "seconds")))
+                .forks(integer(settings, "forks"));
+        for(String b : split(settings.getProperty("benchmarks"), ",")){
+            opts.include(b);
+        }
+        for(String m : split(settings.getProperty("mode"), ",")){
+            opts.mode(Mode.deepValueOf(m));
+        }
+        String[] jvmArgs = split(settings.getProperty("jvmArgs"), " ");
+        if(jvmArgs.length > 0){
+            opts.jvmArgsAppend(jvmArgs);
+        }
+        // Check the store names before any cell spends time loading
+        for(String s : split(settings.getProperty("store"), ",")){
+            if(!s.equals("file") && !s.equals("mmap") && !s.equals("memory") && !s.equals("direct")){
+                throw new IllegalArgumentException("Unknown MapDB store: " + s);
+            }
+        }
+        return opts;
+    }
+
+    /**
+     * Split a list setting, dropping empty entries
+     */
+    private static String[] split(String value, String separator)
+    {
+        List<String> ret = new ArrayList<String>();
+        for(String s : value.split(separator)){
+            if(!s.trim().isEmpty()){
+                ret.add(s.trim());
+            }
+        }
+        return ret.toArray(new String[ret.size()]);
+    }
+
+    private static int integer(Properties settings, String key)
+    {
+        String value = settings.getProperty(key).trim();
+        try{
+            return Integer.parseInt(value);
+        }
+        catch(NumberFormatException e){
+            throw new IllegalArgumentException("Setting " + key + " is not a number: " + value);
+        }
+    }
+}
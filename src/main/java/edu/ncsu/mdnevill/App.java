@@ -1,7 +1,6 @@
 package edu.ncsu.mdnevill;
 
 import org.apache.commons.io.LineIterator;
-import org.apache.commons.lang3.ArrayUtils;
 import org.mapdb.*;
 
 import java.io.*;
@@ -12,8 +11,17 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import java.util.concurrent.ConcurrentNavigableMap;
-import gov.lbl.fastbit.*;
+import edu.ncsu.mdnevill.bitmap.BitmapEngine;
+import edu.ncsu.mdnevill.bitmap.InstrumentedBitmapEngine;
+import edu.ncsu.mdnevill.bitmap.JavaFastBit;
+import edu.ncsu.mdnevill.bitmap.NativeFastBitEngine;
+import edu.ncsu.mdnevill.bitmap.QueryMetrics;
+import edu.ncsu.mdnevill.bitmap.QuerySession;
+import edu.ncsu.mdnevill.bitmap.ResultCache;
+import edu.ncsu.mdnevill.bitmap.ResultCursor;
+import edu.ncsu.mdnevill.bitmap.WhereClauseException;
 
 import javax.sound.sampled.Line;
 
@@ -31,10 +39,24 @@ public class App {
     static MapDbBookRepository bTreeRepo;
     // Book data
     static final String booksCsv = "data/booksWithPrices.csv";
-    // FastBit instance
-    static FastBit fb;
+    // FastBit instance, either the native JNI or the pure-Java engine
+    static BitmapEngine fb;
+    // Session running the FastBit queries, which destroys their handles
+    static QuerySession fbSession;
     // Directory to save FastBit indices
     static String fb_dir = "tmp";
+    // How the FastBit rows are split into partitions, from the bitmap.partitions
+    // system property: "none" for one partition, "rows:N" for N rows each, or
+    // "column:width" for ranges of a column's values, e.g. "year:10"
+    static String fbPartitions = System.getProperty("bitmap.partitions", "none");
+    // Cache of query results shared by both indexes, or null
+    static ResultCache resultCache;
+    // Latency histograms of the queries on both indexes, or null
+    static QueryMetrics queryMetrics;
+    // Statistics of the loaded columns by name
+    static Map<String, ColumnStatistics> columnStats;
+    // Name of the statistics file saved in the FastBit directory
+    static final String statsFile = "-stats.txt";
 
     /**
      * Build the databases and indices, then perform various queries to benchmark
@@ -50,7 +72,10 @@ public class App {
                 .closeOnJvmShutdown()
                 .make();
 
-        bTreeRepo = new MapDbBookRepository(db);
+        queryMetrics = newQueryMetrics();
+        bTreeRepo = queryMetrics == null ? new MapDbBookRepository(db) : new InstrumentedBookRepository(db, queryMetrics);
+        resultCache = newResultCache();
+        bTreeRepo.setResultCache(resultCache);
 
         // Initialize the databases with a dataset. The data/booksWithPrices.csv dataset
         // contains over 70,000 rows. This method call should be changed to change the
@@ -62,6 +87,21 @@ public class App {
         booksByYearEqualityQuery();
         booksByYearRangeQuery();
         booksByYearAndPriceRangeQuery();
+        preparedQueries();
+        postingQueries();
+        topQueries();
+        plannedQueries();
+        fbSession.close();
+
+        if(resultCache != null){
+            System.out.println();
+            System.out.println(resultCache);
+        }
+        if(queryMetrics != null){
+            queryMetrics.stopSnapshots();
+            System.out.println();
+            System.out.println(queryMetrics.snapshot(false));
+        }
     }
 
     /**
@@ -77,10 +117,18 @@ public class App {
         long start = 0;
         long end = 0;
         start = System.currentTimeMillis();
-        // Perform FastBit query
-        FastBit.QueryHandle h = fb.build_query(null, fb_dir, "year = 2000");
-        int numHits = fb.get_result_size(h);
-        int ids[] = fb.get_qualified_ints(h, "id");
+        // Perform FastBit query; closing it destroys its handle
+        int numHits = -1;
+        QuerySession.Query q = fbSession.query("year = 2000");
+        if(q != null){
+            try{
+                numHits = q.size();
+                int ids[] = q.ints("id");
+            }
+            finally{
+                q.close();
+            }
+        }
         end = System.currentTimeMillis();
         System.out.println("FastBit got " + numHits + " hits in " + (end - start) + " milliseconds");
 
@@ -90,6 +138,13 @@ public class App {
         Collection<Book> books = bTreeRepo.getByYear(2000);
         end = System.currentTimeMillis();
         System.out.println("MapDb got " + books.size() + " hits in " + (end - start) + " milliseconds");
+
+        // Perform the same query on the MapDb secondary indexes, fetching ids only
+        System.out.println("MapDb id-only execution:");
+        start = System.currentTimeMillis();
+        int bTreeIds[] = bTreeRepo.getIdsByYear(2000);
+        end = System.currentTimeMillis();
+        System.out.println("MapDb got " + bTreeIds.length + " hits in " + (end - start) + " milliseconds");
     }
 
     /**
@@ -105,10 +160,18 @@ public class App {
         long start = 0;
         long end = 0;
         start = System.currentTimeMillis();
-        // Perform FastBit query
-        FastBit.QueryHandle h = fb.build_query(null, fb_dir, "year >= 2000");
-        int numHits = fb.get_result_size(h);
-        int ids[] = fb.get_qualified_ints(h, "id");
+        // Perform FastBit query; closing it destroys its handle
+        int numHits = -1;
+        QuerySession.Query q = fbSession.query("year >= 2000");
+        if(q != null){
+            try{
+                numHits = q.size();
+                int ids[] = q.ints("id");
+            }
+            finally{
+                q.close();
+            }
+        }
         end = System.currentTimeMillis();
         System.out.println("FastBit got " + numHits + " hits in " + (end - start) + " milliseconds");
 
@@ -118,6 +181,13 @@ public class App {
         Collection<Book> books = bTreeRepo.getByYear(2000, true, 3000, false);
         end = System.currentTimeMillis();
         System.out.println("MapDb got " + books.size() + " hits in " + (end - start) + " milliseconds");
+
+        // Perform the same query on the MapDb secondary indexes, fetching ids only
+        System.out.println("MapDb id-only execution:");
+        start = System.currentTimeMillis();
+        int bTreeIds[] = bTreeRepo.getIdsByYear(2000, true, 3000, false);
+        end = System.currentTimeMillis();
+        System.out.println("MapDb got " + bTreeIds.length + " hits in " + (end - start) + " milliseconds");
     }
 
     /**
@@ -133,10 +203,18 @@ public class App {
         long start = 0;
         long end = 0;
         start = System.currentTimeMillis();
-        // Perform FastBit query
-        FastBit.QueryHandle h = fb.build_query(null, fb_dir, "year = 2000 and price >= 100.00");
-        int numHits = fb.get_result_size(h);
-        int ids[] = fb.get_qualified_ints(h, "id");
+        // Perform FastBit query; closing it destroys its handle
+        int numHits = -1;
+        QuerySession.Query q = fbSession.query("year = 2000 and price >= 100.00");
+        if(q != null){
+            try{
+                numHits = q.size();
+                int ids[] = q.ints("id");
+            }
+            finally{
+                q.close();
+            }
+        }
         end = System.currentTimeMillis();
         System.out.println("FastBit got " + numHits + " hits in " + (end - start) + " milliseconds");
 
@@ -146,10 +224,158 @@ public class App {
         Collection<Book> books = bTreeRepo.getByYearAndPrice(2000, 100.00, true);
         end = System.currentTimeMillis();
         System.out.println("MapDb got " + books.size() + " hits in " + (end - start) + " milliseconds");
+
+        // Perform the same query on the MapDb secondary indexes, fetching ids only
+        System.out.println("MapDb id-only execution:");
+        start = System.currentTimeMillis();
+        int bTreeIds[] = bTreeRepo.getIdsByYearAndPrice(2000, 100.00, true);
+        end = System.currentTimeMillis();
+        System.out.println("MapDb got " + bTreeIds.length + " hits in " + (end - start) + " milliseconds");
     }
 
     /**
-     * Randomly generate prices between $0.00 and $200.00 for each row of the books.csv file
+     * Run the mixed query for every year from 1950 to 2009, a thousand times over,
+     * first parsing its WHERE clause on every run and then as a prepared query that
+     * is parsed once and only has its values bound on each run
+     */
+    public static void preparedQueries()
+    {
+        System.out.println();
+        System.out.println("Executing the mixed query 60000 times, parsed each time and prepared...");
+        int hits = 0;
+        long start = System.currentTimeMillis();
+        for(int i = 0; i < 60000; i++){
+            QuerySession.Query q = fbSession.query("year = " + (1950 + i % 60) + " and price >= 100.00");
+            if(q != null){
+                hits += q.size();
+                q.close();
+            }
+        }
+        long end = System.currentTimeMillis();
+        System.out.println("FastBit got " + hits + " hits in " + (end - start) + " milliseconds");
+
+        QuerySession.Prepared prepared;
+        try{
+            prepared = fbSession.prepare("year = ? and price >= ?");
+        }
+        catch(WhereClauseException e){
+            System.out.println(e.getMessage());
+            return;
+        }
+        hits = 0;
+        start = System.currentTimeMillis();
+        for(int i = 0; i < 60000; i++){
+            QuerySession.Query q = prepared.execute(1950 + i % 60, 100.00);
+            if(q != null){
+                hits += q.size();
+                q.close();
+            }
+        }
+        end = System.currentTimeMillis();
+        System.out.println("Prepared FastBit query got " + hits + " hits in " + (end - start) + " milliseconds");
+    }
+
+    /**
+     * Run a query combining year, price and author conditions with and, or and not
+     * on the MapDb secondary indexes, then enable postings and run it again on them
+     */
+    public static void postingQueries()
+    {
+        Book first = bTreeRepo.get(1);
+        if(first == null){
+            return;
+        }
+        BookQuery query = BookQuery.year(2000).and(BookQuery.price(100.00, true, Double.POSITIVE_INFINITY, true))
+                .or(BookQuery.years(1990, true, 2000, false).and(BookQuery.price(10.00, true, 190.00, false).not()))
+                .or(BookQuery.author(first.author));
+        System.out.println();
+        System.out.println("Executing " + query + " on MapDb...");
+        long start = System.currentTimeMillis();
+        int ids[] = bTreeRepo.getIds(query);
+        long end = System.currentTimeMillis();
+        System.out.println("MapDb secondary indexes got " + ids.length + " hits in " + (end - start) + " milliseconds");
+
+        start = System.currentTimeMillis();
+        bTreeRepo.enablePostings();
+        end = System.currentTimeMillis();
+        System.out.println("MapDb postings built in " + (end - start) + " milliseconds");
+        start = System.currentTimeMillis();
+        ids = bTreeRepo.getIds(query);
+        end = System.currentTimeMillis();
+        System.out.println("MapDb postings got " + ids.length + " hits in " + (end - start) + " milliseconds");
+    }
+
+    /**
+     * Get the ten most expensive books of a year from FastBit and MapDB. The query is
+     * supposed to be similar to the SQL statement
+     * 'SELECT * FROM Books WHERE year = 2000 ORDER BY price DESC LIMIT 10'
+     */
+    public static void topQueries()
+    {
+        System.out.println();
+        System.out.println("Executing top-k query on books by year and price for FastBit and MapDb B-Tree...");
+        System.out.println("Query: 'SELECT * FROM Books WHERE year = 2000 ORDER BY price DESC LIMIT 10'");
+        System.out.println("FastBit execution:");
+        long start = System.currentTimeMillis();
+        int numHits = -1;
+        double top = Double.NaN;
+        QuerySession.Query q = fbSession.query("year = 2000");
+        if(q != null){
+            try{
+                ResultCursor cursor = q.sortedCursor("price", true, 10, 10);
+                if(cursor != null){
+                    numHits = cursor.next_batch();
+                    double prices[] = new double[10];
+                    if(numHits > 0 && cursor.get_batch_doubles("price", prices) > 0){
+                        top = prices[0];
+                    }
+                }
+            }
+            finally{
+                q.close();
+            }
+        }
+        long end = System.currentTimeMillis();
+        System.out.println("FastBit got " + numHits + " hits, the first at " + top + ", in " + (end - start)
+                + " milliseconds");
+
+        System.out.println("MapDb execution:");
+        start = System.currentTimeMillis();
+        List<Book> books = bTreeRepo.getMostExpensive(2000, 10);
+        end = System.currentTimeMillis();
+        System.out.println("MapDb got " + books.size() + " hits, the first at "
+                + (books.isEmpty() ? Double.NaN : books.get(0).price) + ", in " + (end - start) + " milliseconds");
+    }
+
+    /**
+     * Let the query planner choose between the bitmap and B-Tree indexes for queries
+     * of varying selectivity, printing each plan with its estimated and actual cost.
+     * The planner reads the bitmap indexes directly, so it needs the pure-Java engine
+     * with a single partition.
+     */
+    public static void plannedQueries()
+    {
+        BitmapEngine engine = fb instanceof InstrumentedBitmapEngine ? ((InstrumentedBitmapEngine) fb).getEngine() : fb;
+        if(!(engine instanceof JavaFastBit) || ((JavaFastBit) engine).is_table(fb_dir)){
+            return;
+        }
+        System.out.println();
+        System.out.println("Executing planned queries...");
+        QueryPlanner planner = new QueryPlanner((JavaFastBit) engine, fb_dir, bTreeRepo);
+        planner.setStatistics(columnStats);
+        planner.query("year = 2000");
+        planner.query("year >= 2000");
+        planner.query("price > 199.00");
+        planner.query("year = 2000 and price >= 100.00");
+        planner.query("year >= 1990 and year < 2000 and price >= 50.00 and price < 100.00");
+        planner.query("year >= 1950 and price between 10.00 and 10.50");
+        planner.query("year = 2000 or price > 199.00");
+    }
+
+    /**
+     * Randomly generate prices between $0.00 and $200.00 for each row of the books.csv file.
+     * Each line is written as soon as it is read, so files of any size can be priced;
+     * to generate larger synthetic files, see {@link BooksGenerator}.
      * @param csvFile
      */
     public static void addPrice(String csvFile)
@@ -158,9 +384,10 @@ public class App {
         Random r = new Random(100);
         File outFile = new File("data/booksWithPrices.csv");
         LineIterator it = null;
-        Collection<String> lines = new ArrayList<String>();
+        Writer out = null;
         try{
             it = FileUtils.lineIterator(inFile, "UTF-8");
+            out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(outFile), "UTF-8"), 1 << 16);
 
             while(it.hasNext()){
                 StringBuilder sb = new StringBuilder();
@@ -173,25 +400,108 @@ public class App {
                 sb.append(line);
                 sb.append(";\"")
                         .append(price)
-                        .append("\"");
-                lines.add(sb.toString());
+                        .append("\"")
+                        .append(IOUtils.LINE_SEPARATOR);
+                out.write(sb.toString());
             }
-            System.out.println("Initialized db with " + bTreeRepo.size() + " records");
+            out.close();
+            out = null;
         }
         catch(IOException e){
             System.out.println(e.getMessage());
         }
         finally{
             LineIterator.closeQuietly(it);
+            IOUtils.closeQuietly(out);
         }
-        try
-        {
-            FileUtils.writeLines(outFile, lines);
+    }
+
+    /**
+     * Create the bitmap engine selected by the bitmap.engine system property. The
+     * default, "java", is the pure-Java engine and runs on any host; "native" uses the
+     * FastBit JNI and requires libfastbitjni.so on LD_LIBRARY_PATH.
+     * @param options FastBit indexing options
+     * @return
+     */
+    static BitmapEngine newBitmapEngine(String options)
+    {
+        BitmapEngine engine;
+        if("native".equalsIgnoreCase(System.getProperty("bitmap.engine", "java"))){
+            engine = new NativeFastBitEngine(options);
         }
-        catch(IOException e)
-        {
-            System.out.println(e.getMessage());
+        else{
+            engine = new JavaFastBit(options, resultCache);
+        }
+        return queryMetrics == null ? engine : new InstrumentedBitmapEngine(engine, queryMetrics, "bitmap");
+    }
+
+    /**
+     * Split the FastBit directory into partitions as set by fbPartitions, before any
+     * rows are written. Only the pure-Java engine supports partitioned tables.
+     */
+    static void createPartitionedTable()
+    {
+        if(fbPartitions.equalsIgnoreCase("none")){
+            return;
+        }
+        BitmapEngine engine = fb instanceof InstrumentedBitmapEngine ? ((InstrumentedBitmapEngine) fb).getEngine() : fb;
+        if(!(engine instanceof JavaFastBit)){
+            System.out.println("Only the pure-Java bitmap engine splits rows into partitions");
+            return;
+        }
+        ((JavaFastBit) engine).create_table(fb_dir, fbPartitions);
+    }
+
+    /**
+     * Open a session for the FastBit queries, closing the last one. If the query.leaks
+     * system property is "trace", leaked query handles are reported with the stack
+     * of the code that opened them.
+     * @return
+     */
+    static QuerySession newQuerySession()
+    {
+        if(fbSession != null){
+            fbSession.close();
+        }
+        QuerySession session = new QuerySession(fb, fb_dir);
+        session.setLeakTracing(System.getProperty("query.leaks", "").equalsIgnoreCase("trace"));
+        return session;
+    }
+
+    /**
+     * Create the query metrics selected by the query.metrics system property: "on"
+     * to time every query on both indexes and print the latency histograms at the
+     * end, or "none", the default. If query.metrics.seconds is set, a snapshot of
+     * the calls made since the last one is also printed that often.
+     * @return The metrics, or null
+     */
+    static QueryMetrics newQueryMetrics()
+    {
+        if(System.getProperty("query.metrics", "none").equalsIgnoreCase("none")){
+            return null;
+        }
+        QueryMetrics metrics = new QueryMetrics();
+        long seconds = Long.parseLong(System.getProperty("query.metrics.seconds", "0"));
+        if(seconds > 0){
+            metrics.startSnapshots(seconds, System.out, true);
+        }
+        return metrics;
+    }
+
+    /**
+     * Create the result cache selected by the result.cache system property: "lru" or
+     * "lfu" for the eviction policy, or "none", the default, for no cache. Its size is
+     * set in megabytes by result.cache.mb. Only the pure-Java bitmap engine uses it.
+     * @return The cache, or null
+     */
+    static ResultCache newResultCache()
+    {
+        String policy = System.getProperty("result.cache", "none");
+        if(policy.equalsIgnoreCase("none")){
+            return null;
         }
+        long mb = Long.parseLong(System.getProperty("result.cache.mb", "64"));
+        return new ResultCache(policy, mb << 20);
     }
 
     /**
@@ -201,6 +511,25 @@ public class App {
      * @param length
      */
     public static void initializeDb(String csvFile, int length)
+    {
+        // Change the FastBit options here according to
+        // https://sdm.lbl.gov/~kewu/fastbit/doc/indexSpec.html
+        // Basic options for no binning and equality encoding: <binning none/><encoding equality/>
+        // Binning with a specific number: <binning nbins=2000/>
+        // Range encoding: <encoding range/>
+        // The pure-Java engine also takes equal-weight bins, <encoding interval/> and
+        // options for single columns, e.g. <binning none/>; price:<binning nbins=2000/><encoding range/>
+        initializeDb(csvFile, length, "<binning none/><encoding equality/>");
+    }
+
+    /**
+     * Initialize the databases using the CSV files, indicating how many rows
+     * to use and the FastBit indexing options
+     * @param csvFile
+     * @param length Number of rows, or -1 for the whole file
+     * @param indexOptions FastBit indexing options
+     */
+    public static void initializeDb(String csvFile, int length, String indexOptions)
     {
         File f = new File(fb_dir);
         if(f.exists() && f.isDirectory())
@@ -212,66 +541,94 @@ public class App {
                 System.out.println(e.getMessage());
             }
         }
-        // Change the FastBit options here according to
-        // https://sdm.lbl.gov/~kewu/fastbit/doc/indexSpec.html
-        // Basic options for no binning and equality encoding: <binning none/><encoding equality/>
-        // Binning with a specific number: <binning nbins=2000/>
-        // Range encoding: <encoding range/>
-        fb = new FastBit("<binning none/><encoding equality/>");
+        fb = newBitmapEngine(indexOptions);
+        fbSession = newQuerySession();
         fb.purge_indexes(fb_dir);
+        createPartitionedTable();
         bTreeRepo.clear();
 
-        boolean getAll = false;
-        if(length == -1){
-            getAll = true;
+        // Read the CSV file into column arrays and create a new Book for each line.
+        // The loader parses the memory-mapped file on all cores.
+        BooksCsvLoader.Result data;
+        try{
+            data = new BooksCsvLoader(new File(csvFile)).load(length, true);
+        }
+        catch(IOException e){
+            System.out.println(e.getMessage());
+            return;
         }
-        ArrayList<Integer> fbYears = new ArrayList<Integer>();
-        ArrayList<Integer> fbIds = new ArrayList<Integer>();
-        ArrayList<Double> fbPrices = new ArrayList<Double>();
+        // Bulk load the books into the MapDB B-Tree. The loader numbers rows from 1,
+        // the same ids bulkLoad assigns.
+        long start = System.currentTimeMillis();
+        bTreeRepo.bulkLoad(Arrays.asList(data.books).iterator());
+        long end = System.currentTimeMillis();
+        System.out.println();
+        System.out.println("Initialized db with " + bTreeRepo.size() + " records");
+        System.out.println("MapDb bulk load took " + (end - start) + " milliseconds ("
+                + (data.size() * 1000L / Math.max(1, end - start)) + " rows per second)");
 
-        File inFile = new File(csvFile);
-        LineIterator it = null;
-        // Read the CSV file and create a new Book for each line. 
+        // Add the FastBit indices and write them
+        fb.add_ints("year", data.years);
+        fb.add_ints("id", data.ids);
+        fb.add_doubles("price", data.prices);
+        fb.write_buffer(fb_dir);
+
+        // Save the column statistics gathered by the loader next to both databases
+        columnStats = data.statistics;
         try{
-            it = FileUtils.lineIterator(inFile, "UTF-8");
+            ColumnStatistics.write(columnStats.values(), new File(dbFile.getPath() + ".stats"));
+            ColumnStatistics.write(columnStats.values(), new File(fb_dir, statsFile));
+        }
+        catch(IOException e){
+            System.out.println(e.getMessage());
+        }
+        for(ColumnStatistics stats : columnStats.values()){
+            System.out.println(stats);
+        }
+    }
 
-            int count = 0;
-            while(it.hasNext() && (count < length || getAll)){
-                count++;
-                String line = it.nextLine();
-                String[] tokens = line.split("\";\"");
-
-                int year = Integer.parseInt(tokens[3]);
-                double price = Double.parseDouble(tokens[8].substring(0, tokens[8].length() - 1));
-                String isbn = tokens[0].substring(1);
-                fbYears.add(year);
-                fbIds.add(count);
-                fbPrices.add(price);
-                Book b = new Book(tokens[1],
-                        tokens[2],
-                        tokens[0].substring(1),
-                        tokens[4],
-                        year,
-                        price);
-                // Add the book to the MapDB B-Tree
-                bTreeRepo.add(b, count);
-            }
-            System.out.println();
-            System.out.println("Initialized db with " + bTreeRepo.size() + " records");
+    /**
+     * Append the rows of a CSV file to both databases after the rows already loaded.
+     * The MapDB trees and the FastBit partition with its indexes are extended in
+     * place, so the time taken depends on the rows appended rather than on those
+     * already there. Ids continue from the last one in use on both sides.
+     * @param csvFile
+     * @param length Number of rows, or -1 for the whole file
+     */
+    public static void appendDb(String csvFile, int length)
+    {
+        BooksCsvLoader.Result data;
+        try{
+            data = new BooksCsvLoader(new File(csvFile)).load(length, true);
         }
         catch(IOException e){
             System.out.println(e.getMessage());
+            return;
         }
-        finally{
-            LineIterator.closeQuietly(it);
+        long start = System.currentTimeMillis();
+        int first = bTreeRepo.append(Arrays.asList(data.books).iterator());
+        long end = System.currentTimeMillis();
+        System.out.println();
+        System.out.println("Appended " + data.size() + " records to db, now " + bTreeRepo.size());
+        System.out.println("MapDb append took " + (end - start) + " milliseconds");
+
+        // The loader numbers rows from 1; shift them to the ids MapDB assigned
+        int[] ids = new int[data.size()];
+        for(int i = 0; i < ids.length; i++){
+            ids[i] = data.ids[i] + first - 1;
         }
-        // Add the FastBit indices and write them
-        int[] years = ArrayUtils.toPrimitive(fbYears.toArray(new Integer[0]));
-        int[] ids = ArrayUtils.toPrimitive(fbIds.toArray(new Integer[0]));
-        double[] prices = ArrayUtils.toPrimitive(fbPrices.toArray(new Double[0]));
-        fb.add_ints("year", years);
+        start = System.currentTimeMillis();
+        fb.add_ints("year", data.years);
         fb.add_ints("id", ids);
-        fb.add_doubles("price", prices);
+        fb.add_doubles("price", data.prices);
         fb.write_buffer(fb_dir);
+        end = System.currentTimeMillis();
+        System.out.println("FastBit append took " + (end - start) + " milliseconds");
+
+        // The saved statistics no longer describe the data; the planner counts from
+        // the indexes until the next full load
+        columnStats = null;
+        FileUtils.deleteQuietly(new File(dbFile.getPath() + ".stats"));
+        FileUtils.deleteQuietly(new File(fb_dir, statsFile));
     }
 }
@@ -0,0 +1,138 @@
+package edu.ncsu.mdnevill;
+
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * @author Mitchell Neville
+ * A lazy cursor over the books matched by a query on {@link MapDbBookRepository}.
+ * Ids are pulled from a secondary index a batch at a time and only that batch of
+ * books is looked up and held, so reading a result of any size needs memory for one
+ * batch. The cursor stops after its limit, and a caller can stop reading at any point.
+ *
+ * A cursor opened by the repository reads each batch under the repository's shared
+ * lock, so it sees the adds made since it was opened. A bulkLoad or clear replaces
+ * the trees it reads; after one, the cursor throws ConcurrentModificationException
+ * instead of ending early.
+ */
+public class BookCursor implements Iterator<Book> {
+    // Ids of the matching books, read lazily from the index
+    private final Iterator<Integer> ids;
+    // Where the books are looked up
+    private final Map<Integer, Book> books;
+    // Repository the cursor was opened on, or null
+    private final MapDbBookRepository repo;
+    // Generation of the repository's trees when the cursor was opened
+    private final int generation;
+    // The current batch
+    private final Book[] batch;
+    // Books that may still be read under the limit
+    private int remaining;
+    // Books in the current batch, and the position of the next one
+    private int count;
+    private int pos;
+
+    /**
+     * Create a cursor
+     * @param ids Ids of the matching books
+     * @param books Map from id to book
+     * @param batchSize Number of books looked up at a time
+     * @param limit Maximum number of books to return, or -1 for all
+     */
+    public BookCursor(Iterator<Integer> ids, Map<Integer, Book> books, int batchSize, int limit)
+    {
+        this(ids, books, null, 0, batchSize, limit);
+    }
+
+    /**
+     * Create a cursor over the trees of a repository, which must be called under its
+     * shared lock
+     * @param ids Ids of the matching books
+     * @param repo
+     * @param batchSize Number of books looked up at a time
+     * @param limit Maximum number of books to return, or -1 for all
+     */
+    BookCursor(Iterator<Integer> ids, MapDbBookRepository repo, int batchSize, int limit)
+    {
+        this(ids, repo.bTree, repo, repo.generation, batchSize, limit);
+    }
+
+    private BookCursor(Iterator<Integer> ids, Map<Integer, Book> books, MapDbBookRepository repo, int generation,
+                       int batchSize, int limit)
+    {
+        if(batchSize <= 0){
+            throw new IllegalArgumentException("Batch size must be positive: " + batchSize);
+        }
+        this.ids = ids;
+        this.books = books;
+        this.repo = repo;
+        this.generation = generation;
+        this.batch = new Book[batchSize];
+        this.remaining = limit < 0 ? Integer.MAX_VALUE : limit;
+    }
+
+    @Override
+    public boolean hasNext()
+    {
+        if(pos < count){
+            return true;
+        }
+        return fill() > 0;
+    }
+
+    @Override
+    public Book next()
+    {
+        if(!hasNext()){
+            throw new NoSuchElementException();
+        }
+        Book b = batch[pos];
+        batch[pos++] = null;
+        return b;
+    }
+
+    @Override
+    public void remove()
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Look up the next batch of books, under the repository's shared lock if there is one
+     * @return Number of books in the batch
+     * @throws ConcurrentModificationException If the repository's trees were replaced
+     */
+    private int fill()
+    {
+        if(repo == null){
+            return read();
+        }
+        repo.lock.readLock().lock();
+        try{
+            if(repo.generation != generation){
+                throw new ConcurrentModificationException("Books were bulk loaded or cleared while the cursor was open");
+            }
+            return read();
+        }
+        finally{
+            repo.lock.readLock().unlock();
+        }
+    }
+
+    private int read()
+    {
+        count = 0;
+        pos = 0;
+        while(count < batch.length && remaining > 0 && ids.hasNext()){
+            Book b = books.get(ids.next());
+            // A book removed since the index was read is skipped
+            if(b != null){
+                batch[count++] = b;
+                remaining--;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,307 @@
+package edu.ncsu.mdnevill;
+
+import edu.ncsu.mdnevill.bitmap.Predicate;
+import edu.ncsu.mdnevill.bitmap.QueryMetrics;
+import edu.ncsu.mdnevill.bitmap.RoaringBitmap;
+
+/**
+ * @author Mitchell Neville
+ * A query on the books of a {@link MapDbBookRepository}, combining conditions on
+ * year, price and author with and, or and not:
+ * <pre>
+ * BookQuery q = BookQuery.year(2000).and(BookQuery.price(100, true, 200, false))
+ *         .or(BookQuery.author("Tolkien").and(BookQuery.year(1954).not()));
+ * int[] ids = repo.getIds(q);
+ * </pre>
+ * Each condition is answered with a {@link RoaringBitmap} of ids, from the
+ * repository's postings if it has them or else from its secondary index, and the
+ * bitmaps are combined a container at a time before any book is read from the
+ * B-Tree. A not under an and is answered as and-not of the other side, so only a
+ * not standing alone needs the ids of every book.
+ */
+public abstract class BookQuery {
+
+    /**
+     * Find the ids of the books of a repository matching the query. The caller holds
+     * the repository's lock.
+     * @param repo
+     * @return
+     */
+    abstract RoaringBitmap evaluate(MapDbBookRepository repo);
+
+    /**
+     * Get the query with ? in place of its values, for recording its latency
+     * @return
+     */
+    public abstract String shape();
+
+    /**
+     * Books published in a year
+     * @param year
+     * @return
+     */
+    public static BookQuery year(int year)
+    {
+        return years(year, true, year, true);
+    }
+
+    /**
+     * Books published in a range of years
+     * @param start Start year, or Integer.MIN_VALUE
+     * @param startInc Is the start year inclusive?
+     * @param end End year, or Integer.MAX_VALUE
+     * @param endInc Is the end year inclusive?
+     * @return
+     */
+    public static BookQuery years(int start, boolean startInc, int end, boolean endInc)
+    {
+        return new Range("year", start, startInc, end, endInc);
+    }
+
+    /**
+     * Books in a range of prices
+     * @param start Start price, or Double.NEGATIVE_INFINITY
+     * @param startInc Is the start price inclusive?
+     * @param end End price, or Double.POSITIVE_INFINITY
+     * @param endInc Is the end price inclusive?
+     * @return
+     */
+    public static BookQuery price(double start, boolean startInc, double end, boolean endInc)
+    {
+        return new Range("price", start, startInc, end, endInc);
+    }
+
+    /**
+     * Books by an author
+     * @param author
+     * @return
+     */
+    public static BookQuery author(String author)
+    {
+        return new Author(author);
+    }
+
+    /**
+     * Convert a parsed WHERE clause on year and price
+     * @param where
+     * @return
+     * @throws IllegalArgumentException If the clause has parameters or other columns
+     */
+    public static BookQuery where(Predicate where)
+    {
+        if(where.parameters() > 0){
+            throw new IllegalArgumentException("Parameters are not bound in " + where);
+        }
+        if(where instanceof Predicate.Range){
+            Predicate.Range r = (Predicate.Range) where;
+            if(!r.getColumn().equals("year") && !r.getColumn().equals("price")){
+                throw new IllegalArgumentException("Books cannot be queried by " + r.getColumn());
+            }
+            return new Range(r.getColumn(), r.getLow(), r.isLowInclusive(), r.getHigh(), r.isHighInclusive());
+        }
+        if(where instanceof Predicate.And){
+            Predicate.And and = (Predicate.And) where;
+            return where(and.getLeft()).and(where(and.getRight()));
+        }
+        if(where instanceof Predicate.Or){
+            Predicate.Or or = (Predicate.Or) where;
+            return where(or.getLeft()).or(where(or.getRight()));
+        }
+        return where(((Predicate.Not) where).getChild()).not();
+    }
+
+    /**
+     * Books matching both this query and another
+     * @param other
+     * @return
+     */
+    public BookQuery and(BookQuery other)
+    {
+        return new And(this, other);
+    }
+
+    /**
+     * Books matching this query or another
+     * @param other
+     * @return
+     */
+    public BookQuery or(BookQuery other)
+    {
+        return new Or(this, other);
+    }
+
+    /**
+     * Books not matching this query
+     * @return
+     */
+    public BookQuery not()
+    {
+        return this instanceof Not ? ((Not) this).child : new Not(this);
+    }
+
+    /**
+     * A range of years or prices. Its string is the same as the Predicate.Range's, so
+     * cached results are shared with the other queries of the repository.
+     */
+    static final class Range extends BookQuery {
+        final Predicate.Range range;
+
+        Range(String column, double low, boolean lowInc, double high, boolean highInc)
+        {
+            range = new Predicate.Range(column, low, lowInc, high, highInc);
+        }
+
+        @Override
+        RoaringBitmap evaluate(MapDbBookRepository repo)
+        {
+            if(range.getColumn().equals("year")){
+                // Only whole years are stored, so the bounds become inclusive ones
+                double low = range.isLowInclusive() ? Math.ceil(range.getLow()) : Math.floor(range.getLow()) + 1;
+                double high = range.isHighInclusive() ? Math.floor(range.getHigh()) : Math.ceil(range.getHigh()) - 1;
+                if(low > high || low > Integer.MAX_VALUE || high < Integer.MIN_VALUE){
+                    return new RoaringBitmap();
+                }
+                return repo.yearPostings((int) Math.max(low, Integer.MIN_VALUE),
+                        (int) Math.min(high, Integer.MAX_VALUE));
+            }
+            return repo.pricePostings(range.getLow(), range.isLowInclusive(),
+                    range.getHigh(), range.isHighInclusive());
+        }
+
+        @Override
+        public String shape()
+        {
+            return QueryMetrics.shape(range.getColumn(), range.getLow(), range.isLowInclusive(),
+                    range.getHigh(), range.isHighInclusive());
+        }
+
+        @Override
+        public String toString()
+        {
+            return range.toString();
+        }
+    }
+
+    static final class Author extends BookQuery {
+        final String author;
+
+        Author(String author)
+        {
+            this.author = author;
+        }
+
+        @Override
+        RoaringBitmap evaluate(MapDbBookRepository repo)
+        {
+            return repo.authorPostings(author);
+        }
+
+        @Override
+        public String shape()
+        {
+            return "author = ?";
+        }
+
+        @Override
+        public String toString()
+        {
+            return "author = '" + author.replace("'", "''") + "'";
+        }
+    }
+
+    static final class And extends BookQuery {
+        final BookQuery left;
+        final BookQuery right;
+
+        And(BookQuery left, BookQuery right)
+        {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        RoaringBitmap evaluate(MapDbBookRepository repo)
+        {
+            // A negated side is subtracted from the other instead of complemented
+            if(left instanceof Not && !(right instanceof Not)){
+                return new And(right, left).evaluate(repo);
+            }
+            RoaringBitmap ids = left.evaluate(repo);
+            if(ids.isEmpty()){
+                return ids;
+            }
+            if(right instanceof Not){
+                return ids.andNot(((Not) right).child.evaluate(repo));
+            }
+            return ids.and(right.evaluate(repo));
+        }
+
+        @Override
+        public String shape()
+        {
+            return "(" + left.shape() + " and " + right.shape() + ")";
+        }
+
+        @Override
+        public String toString()
+        {
+            return "(" + left + " and " + right + ")";
+        }
+    }
+
+    static final class Or extends BookQuery {
+        final BookQuery left;
+        final BookQuery right;
+
+        Or(BookQuery left, BookQuery right)
+        {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        RoaringBitmap evaluate(MapDbBookRepository repo)
+        {
+            return left.evaluate(repo).or(right.evaluate(repo));
+        }
+
+        @Override
+        public String shape()
+        {
+            return "(" + left.shape() + " or " + right.shape() + ")";
+        }
+
+        @Override
+        public String toString()
+        {
+            return "(" + left + " or " + right + ")";
+        }
+    }
+
+    static final class Not extends BookQuery {
+        final BookQuery child;
+
+        Not(BookQuery child)
+        {
+            this.child = child;
+        }
+
+        @Override
+        RoaringBitmap evaluate(MapDbBookRepository repo)
+        {
+            return repo.allPostings().andNot(child.evaluate(repo));
+        }
+
+        @Override
+        public String shape()
+        {
+            return "not " + child.shape();
+        }
+
+        @Override
+        public String toString()
+        {
+            return "not " + child;
+        }
+    }
+}
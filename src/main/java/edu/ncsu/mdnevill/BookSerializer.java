@@ -0,0 +1,135 @@
+package edu.ncsu.mdnevill;
+
+import org.mapdb.DataInput2;
+import org.mapdb.DataOutput2;
+import org.mapdb.Serializer;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+
+/**
+ * @author Mitchell Neville
+ * A compact binary MapDB serializer for Book values. Unlike default serialization
+ * it writes no class information, only the fields in a fixed order:
+ * <ul>
+ *     <li>title, author, isbn and publisher as length-prefixed UTF-8</li>
+ *     <li>year as a zigzag varint</li>
+ *     <li>price as a varint count of cents, or a raw double if it has more than two decimals</li>
+ * </ul>
+ * Lengths are written as varints holding length + 1, with 0 meaning null.
+ */
+public class BookSerializer implements Serializer<Book>, Serializable {
+    private static final long serialVersionUID = 1L;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    // Tag for a price that is not a whole number of cents
+    private static final long RAW_PRICE = 1;
+
+    @Override
+    public void serialize(DataOutput out, Book value) throws IOException
+    {
+        writeString(out, value.title);
+        writeString(out, value.author);
+        writeString(out, value.isbn);
+        writeString(out, value.publisher);
+        packZigzag(out, value.year);
+        writePrice(out, value.price);
+    }
+
+    @Override
+    public Book deserialize(DataInput in, int available) throws IOException
+    {
+        String title = readString(in);
+        String author = readString(in);
+        String isbn = readString(in);
+        String publisher = readString(in);
+        int year = unzigzag(DataInput2.unpackInt(in));
+        double price = readPrice(in);
+        return new Book(title, author, isbn, publisher, year, price);
+    }
+
+    @Override
+    public int fixedSize()
+    {
+        return -1;
+    }
+
+    /**
+     * Write a price as fixed-point cents (shifted left one bit), falling back to the
+     * raw double when that would lose precision
+     */
+    static void writePrice(DataOutput out, double price) throws IOException
+    {
+        double cents = Math.rint(price * 100);
+        if(cents / 100 == price && Math.abs(cents) < (1L << 60)){
+            DataOutput2.packLong(out, zigzag((long) cents) << 1);
+        }
+        else{
+            DataOutput2.packLong(out, RAW_PRICE);
+            out.writeDouble(price);
+        }
+    }
+
+    static double readPrice(DataInput in) throws IOException
+    {
+        long v = DataInput2.unpackLong(in);
+        if(v == RAW_PRICE){
+            return in.readDouble();
+        }
+        return unzigzag(v >>> 1) / 100.0;
+    }
+
+    static void writeString(DataOutput out, String s) throws IOException
+    {
+        if(s == null){
+            DataOutput2.packInt(out, 0);
+            return;
+        }
+        byte[] b = s.getBytes(UTF8);
+        DataOutput2.packInt(out, b.length + 1);
+        out.write(b);
+    }
+
+    static String readString(DataInput in) throws IOException
+    {
+        int len = DataInput2.unpackInt(in);
+        if(len == 0){
+            return null;
+        }
+        byte[] b = new byte[len - 1];
+        in.readFully(b);
+        return new String(b, UTF8);
+    }
+
+    /**
+     * Write an int as a zigzag varint. Ints far from 0 zigzag to negative ints, which
+     * packInt rejects when assertions are on, so the bits are packed as a long; the
+     * bytes are the same and read back with unpackInt.
+     */
+    static void packZigzag(DataOutput out, int v) throws IOException
+    {
+        DataOutput2.packLong(out, zigzag(v) & 0xFFFFFFFFL);
+    }
+
+    static int zigzag(int v)
+    {
+        return (v << 1) ^ (v >> 31);
+    }
+
+    static int unzigzag(int v)
+    {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    static long zigzag(long v)
+    {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    static long unzigzag(long v)
+    {
+        return (v >>> 1) ^ -(v & 1);
+    }
+}
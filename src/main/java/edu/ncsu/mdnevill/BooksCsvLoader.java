@@ -0,0 +1,439 @@
+package edu.ncsu.mdnevill;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * @author Mitchell Neville
+ * Loads the books CSV file ("isbn";"title";"author";"year";"publisher";...;"price")
+ * into primitive column arrays. The file is memory-mapped and split into chunks
+ * that start on line boundaries; the chunks are parsed in parallel by a byte-level
+ * tokenizer that fills growable int/double buffers directly, so no line Strings,
+ * regular expressions or boxed values are created. Book objects are only decoded
+ * when the caller asks for them. Statistics of each column are collected in the
+ * same pass.
+ */
+public class BooksCsvLoader {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    // Largest chunk handed to one worker; also keeps each mapping well under 2GB
+    private static final long MAX_CHUNK = 64L << 20;
+    // Number of fields in a row
+    private static final int FIELDS = 9;
+    private static final int ISBN = 0;
+    private static final int TITLE = 1;
+    private static final int AUTHOR = 2;
+    private static final int YEAR = 3;
+    private static final int PUBLISHER = 4;
+    private static final int PRICE = 8;
+
+    private final File file;
+    private final int threads;
+
+    /**
+     * Create a loader using one thread per core
+     * @param file
+     */
+    public BooksCsvLoader(File file)
+    {
+        this(file, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Create a loader
+     * @param file
+     * @param threads Number of parsing threads
+     */
+    public BooksCsvLoader(File file, int threads)
+    {
+        this.file = file;
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * The loaded columns. Ids are the 1-based line numbers, as App has always used.
+     */
+    public static class Result {
+        public final int[] ids;
+        public final int[] years;
+        public final double[] prices;
+        // Null unless the books were requested
+        public final Book[] books;
+        // Statistics of the id, year and price columns by name
+        public final Map<String, ColumnStatistics> statistics;
+
+        Result(int[] ids, int[] years, double[] prices, Book[] books, Map<String, ColumnStatistics> statistics)
+        {
+            this.ids = ids;
+            this.years = years;
+            this.prices = prices;
+            this.books = books;
+            this.statistics = statistics;
+        }
+
+        public int size()
+        {
+            return ids.length;
+        }
+    }
+
+    /**
+     * Load rows from the file
+     * @param length Number of rows to load, or -1 for all of them
+     * @param withBooks Also decode a Book for every row?
+     * @return
+     * @throws IOException
+     */
+    public Result load(int length, boolean withBooks) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        ExecutorService pool = null;
+        try{
+            FileChannel ch = raf.getChannel();
+            long end = length < 0 ? ch.size() : endOfLine(ch, length);
+            List<Long> bounds = chunkBounds(ch, end);
+
+            pool = Executors.newFixedThreadPool(threads);
+            List<Future<Chunk>> futures = new ArrayList<Future<Chunk>>();
+            for(int i = 0; i + 1 < bounds.size(); i++){
+                futures.add(pool.submit(new ChunkParser(ch, bounds.get(i), bounds.get(i + 1), withBooks)));
+            }
+            List<Chunk> chunks = new ArrayList<Chunk>();
+            int total = 0;
+            for(Future<Chunk> f : futures){
+                Chunk c = f.get();
+                chunks.add(c);
+                total += c.years.size();
+            }
+
+            // Merge the chunks, in file order, into exactly sized arrays
+            int[] ids = new int[total];
+            int[] years = new int[total];
+            double[] prices = new double[total];
+            Book[] books = withBooks ? new Book[total] : null;
+            ColumnStatistics.Collector yearStats = new ColumnStatistics.Collector("year", 0);
+            ColumnStatistics.Collector priceStats = new ColumnStatistics.Collector("price", 0);
+            int offset = 0;
+            for(Chunk c : chunks){
+                yearStats.merge(c.yearStats);
+                priceStats.merge(c.priceStats);
+                c.years.copyTo(years, offset);
+                c.prices.copyTo(prices, offset);
+                if(withBooks){
+                    for(int i = 0; i < c.books.size(); i++){
+                        books[offset + i] = c.books.get(i);
+                    }
+                }
+                offset += c.years.size();
+            }
+            ColumnStatistics.Collector idStats = new ColumnStatistics.Collector("id", 0);
+            for(int i = 0; i < total; i++){
+                ids[i] = i + 1;
+                idStats.add(ids[i]);
+            }
+            Map<String, ColumnStatistics> statistics = new LinkedHashMap<String, ColumnStatistics>();
+            statistics.put("id", idStats.finish());
+            statistics.put("year", yearStats.finish());
+            statistics.put("price", priceStats.finish());
+            return new Result(ids, years, prices, books, statistics);
+        }
+        catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading " + file);
+        }
+        catch(ExecutionException e){
+            if(e.getCause() instanceof IOException){
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause().getMessage());
+        }
+        finally{
+            if(pool != null){
+                pool.shutdownNow();
+            }
+            raf.close();
+        }
+    }
+
+    /**
+     * Find the offset just past the given number of lines
+     */
+    private static long endOfLine(FileChannel ch, int lines) throws IOException
+    {
+        long size = ch.size();
+        long pos = 0;
+        int found = 0;
+        while(pos < size && found < lines){
+            long n = Math.min(MAX_CHUNK, size - pos);
+            MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, pos, n);
+            for(int i = 0; i < n; i++){
+                if(buf.get(i) == '\n' && ++found == lines){
+                    return pos + i + 1;
+                }
+            }
+            pos += n;
+        }
+        return size;
+    }
+
+    /**
+     * Split [0, end) into chunks whose boundaries fall just after a newline
+     */
+    private List<Long> chunkBounds(FileChannel ch, long end) throws IOException
+    {
+        long chunk = Math.max(1, Math.min(MAX_CHUNK, end / threads + 1));
+        List<Long> bounds = new ArrayList<Long>();
+        bounds.add(0L);
+        long pos = chunk;
+        ByteBuffer scratch = ByteBuffer.allocate(4096);
+        while(pos < end){
+            // Move forward to the start of the next line
+            long p = pos;
+            boolean found = false;
+            while(!found && p < end){
+                scratch.clear();
+                int n = ch.read(scratch, p);
+                if(n <= 0){
+                    break;
+                }
+                for(int i = 0; i < n; i++){
+                    if(scratch.get(i) == '\n'){
+                        p += i + 1;
+                        found = true;
+                        break;
+                    }
+                }
+                if(!found){
+                    p += n;
+                }
+            }
+            if(p >= end){
+                break;
+            }
+            bounds.add(p);
+            pos = p + chunk;
+        }
+        bounds.add(end);
+        return bounds;
+    }
+
+    /**
+     * Parsed rows of one chunk
+     */
+    private static class Chunk {
+        final IntColumnBuffer years;
+        final DoubleColumnBuffer prices;
+        final List<Book> books;
+        final ColumnStatistics.Collector yearStats;
+        final ColumnStatistics.Collector priceStats;
+
+        Chunk(int capacity, boolean withBooks, long seed)
+        {
+            years = new IntColumnBuffer(capacity);
+            prices = new DoubleColumnBuffer(capacity);
+            books = withBooks ? new ArrayList<Book>(capacity) : null;
+            // Seeded by the chunk's offset, so the sample does not depend on thread timing
+            yearStats = new ColumnStatistics.Collector("year", seed);
+            priceStats = new ColumnStatistics.Collector("price", ~seed);
+        }
+    }
+
+    /**
+     * Parses the lines of one chunk straight from the mapped bytes
+     */
+    private static class ChunkParser implements Callable<Chunk> {
+        final FileChannel ch;
+        final long start;
+        final long end;
+        final boolean withBooks;
+        // Start and end offsets of each field of the current line
+        final int[] fieldStart = new int[FIELDS];
+        final int[] fieldEnd = new int[FIELDS];
+        byte[] scratch = new byte[256];
+
+        ChunkParser(FileChannel ch, long start, long end, boolean withBooks)
+        {
+            this.ch = ch;
+            this.start = start;
+            this.end = end;
+            this.withBooks = withBooks;
+        }
+
+        @Override
+        public Chunk call() throws IOException
+        {
+            int n = (int) (end - start);
+            MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, start, n);
+            // Rows in the books file are a little over 200 bytes
+            Chunk chunk = new Chunk(n / 200 + 16, withBooks, start);
+            int pos = 0;
+            while(pos < n){
+                int eol = pos;
+                while(eol < n && buf.get(eol) != '\n'){
+                    eol++;
+                }
+                int lineEnd = eol;
+                if(lineEnd > pos && buf.get(lineEnd - 1) == '\r'){
+                    lineEnd--;
+                }
+                if(lineEnd > pos){
+                    parseLine(buf, pos, lineEnd, chunk);
+                }
+                pos = eol + 1;
+            }
+            return chunk;
+        }
+
+        /**
+         * Split a line on the "\";\"" separators and parse the fields we need
+         */
+        private void parseLine(ByteBuffer buf, int from, int to, Chunk chunk) throws IOException
+        {
+            // Drop the opening and closing quotes
+            int s = buf.get(from) == '"' ? from + 1 : from;
+            int e = to > s && buf.get(to - 1) == '"' ? to - 1 : to;
+            int f = 0;
+            fieldStart[0] = s;
+            for(int i = s; i + 2 < e && f < FIELDS - 1; i++){
+                if(buf.get(i) == '"' && buf.get(i + 1) == ';' && buf.get(i + 2) == '"'){
+                    fieldEnd[f] = i;
+                    fieldStart[++f] = i + 3;
+                    i += 2;
+                }
+            }
+            if(f < FIELDS - 1){
+                throw new IOException("Malformed line at byte " + (start + from) + ": expected "
+                        + FIELDS + " fields but found " + (f + 1));
+            }
+            fieldEnd[f] = e;
+            // Anything after the price belongs to the price field, as with String.split
+            int priceEnd = fieldEnd[PRICE];
+            for(int i = fieldStart[PRICE]; i < priceEnd; i++){
+                if(buf.get(i) == '"'){
+                    priceEnd = i;
+                    break;
+                }
+            }
+
+            int year = parseInt(buf, fieldStart[YEAR], fieldEnd[YEAR], from);
+            double price = parseDouble(buf, fieldStart[PRICE], priceEnd, from);
+            chunk.years.add(year);
+            chunk.prices.add(price);
+            chunk.yearStats.add(year);
+            chunk.priceStats.add(price);
+            if(withBooks){
+                chunk.books.add(new Book(decode(buf, TITLE),
+                        decode(buf, AUTHOR),
+                        decode(buf, ISBN),
+                        decode(buf, PUBLISHER),
+                        year,
+                        price));
+            }
+        }
+
+        private String decode(ByteBuffer buf, int field)
+        {
+            int len = fieldEnd[field] - fieldStart[field];
+            if(len > scratch.length){
+                scratch = new byte[Math.max(len, scratch.length * 2)];
+            }
+            for(int i = 0; i < len; i++){
+                scratch[i] = buf.get(fieldStart[field] + i);
+            }
+            return new String(scratch, 0, len, UTF8);
+        }
+
+        private int parseInt(ByteBuffer buf, int from, int to, int line) throws IOException
+        {
+            boolean negative = from < to && buf.get(from) == '-';
+            int i = negative ? from + 1 : from;
+            if(i >= to){
+                throw malformed("year", line);
+            }
+            // Largest magnitude that fits in an int with this sign
+            long limit = negative ? -(long) Integer.MIN_VALUE : Integer.MAX_VALUE;
+            long v = 0;
+            for(; i < to; i++){
+                int d = buf.get(i) - '0';
+                if(d < 0 || d > 9){
+                    throw malformed("year", line);
+                }
+                v = v * 10 + d;
+                if(v > limit){
+                    throw malformed("year", line);
+                }
+            }
+            return (int) (negative ? -v : v);
+        }
+
+        /**
+         * Parse a plain decimal such as 123.45 as mantissa / 10^scale. Both operands are
+         * exact doubles, so the division rounds exactly as Double.parseDouble would.
+         * Anything else falls back to Double.parseDouble.
+         */
+        private double parseDouble(ByteBuffer buf, int from, int to, int line) throws IOException
+        {
+            long mantissa = 0;
+            int scale = -1;
+            int digits = 0;
+            boolean negative = from < to && buf.get(from) == '-';
+            for(int i = negative ? from + 1 : from; i < to; i++){
+                byte b = buf.get(i);
+                if(b == '.' && scale < 0){
+                    scale = 0;
+                }
+                else if(b >= '0' && b <= '9' && digits < 15){
+                    mantissa = mantissa * 10 + (b - '0');
+                    digits++;
+                    if(scale >= 0){
+                        scale++;
+                    }
+                }
+                else{
+                    return slowParseDouble(buf, from, to, line);
+                }
+            }
+            if(digits == 0){
+                throw malformed("price", line);
+            }
+            double v = scale <= 0 ? (double) mantissa : mantissa / POWERS_OF_TEN[scale];
+            return negative ? -v : v;
+        }
+
+        private double slowParseDouble(ByteBuffer buf, int from, int to, int line) throws IOException
+        {
+            StringBuilder sb = new StringBuilder(to - from);
+            for(int i = from; i < to; i++){
+                sb.append((char) buf.get(i));
+            }
+            try{
+                return Double.parseDouble(sb.toString());
+            }
+            catch(NumberFormatException e){
+                throw malformed("price", line);
+            }
+        }
+
+        private IOException malformed(String field, int line)
+        {
+            return new IOException("Malformed " + field + " in line at byte " + (start + line));
+        }
+    }
+
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15
+    };
+}
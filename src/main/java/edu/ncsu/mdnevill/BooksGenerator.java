@@ -0,0 +1,474 @@
+package edu.ncsu.mdnevill;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Properties;
+import java.util.Random;
+
+/**
+ * @author Mitchell Neville
+ * Generates synthetic books for tests far larger than the real dataset. Rows are
+ * produced one at a time from a seeded random source, so the same settings always give
+ * the same data, and either written in the books CSV format
+ * ("isbn";"title";"author";"year";"publisher";...;"price") or appended straight to
+ * column buffers. Nothing is kept per row, so memory use does not grow with the row
+ * count, and the CSV is formatted byte by byte into a fixed buffer.
+ *
+ * The year and price columns each follow a {@link Distribution} over a configurable
+ * number of distinct values, which is what decides how well each index does.
+ *
+ * java -cp ... edu.ncsu.mdnevill.BooksGenerator rows=100000000 year=zipf:1.1 priceDistinct=500 output=data/big.csv
+ */
+public class BooksGenerator {
+    // Settings of main and their defaults
+    static final String[][] DEFAULTS = {
+            {"rows", "1000000"},
+            {"seed", "100"},
+            {"output", "data/generatedBooks.csv"},
+            // uniform, zipf[:exponent] or clustered[:clusters]
+            {"year", "uniform"},
+            {"yearMin", "1900"},
+            {"yearMax", "2015"},
+            {"yearDistinct", "116"},
+            {"price", "uniform"},
+            {"priceMin", "0.00"},
+            {"priceMax", "199.99"},
+            {"priceDistinct", "20000"}
+    };
+    // Size of the CSV output buffer
+    private static final int BUFFER = 1 << 16;
+    // Longest row written, with room to spare
+    private static final int MAX_ROW = 512;
+    // Suffixes of the small, medium and large image URLs
+    private static final String[] IMAGE_SIZES = {"THUMBZZZ", "MZZZZZZZ", "LZZZZZZZ"};
+
+    /**
+     * How the values of one column are drawn: one of a number of distinct values,
+     * evenly spaced from min to max, chosen uniformly, by a Zipf law or around a few
+     * clusters. Values are longs, so a price column is drawn in cents.
+     */
+    public static class Distribution {
+        public static final String UNIFORM = "uniform";
+        public static final String ZIPF = "zipf";
+        public static final String CLUSTERED = "clustered";
+
+        final String kind;
+        final long min;
+        final long max;
+        final long distinct;
+        // Zipf exponent, or number of clusters
+        final double parameter;
+
+        // Zipf sampler constants
+        private double hIntegralX1;
+        private double hIntegralN;
+        private double sZipf;
+        // Zipf ranks are spread over the range by this multiplier, coprime to distinct
+        private long stride = 1;
+        // Cluster centers, as indexes of distinct values, and their spread
+        private long[] centers;
+        private double spread;
+
+        /**
+         * Create a distribution
+         * @param kind UNIFORM, ZIPF or CLUSTERED
+         * @param min Smallest value, at least 0 since rows are written without a sign
+         * @param max Largest value
+         * @param distinct Number of distinct values, at most max - min + 1
+         * @param parameter Zipf exponent (greater than 0), or number of clusters
+         * @param seed Seed placing the clusters
+         */
+        public Distribution(String kind, long min, long max, long distinct, double parameter, long seed)
+        {
+            if(min < 0){
+                throw new IllegalArgumentException("Values must not be negative: " + min);
+            }
+            if(max < min || distinct < 1){
+                throw new IllegalArgumentException("Empty range of values: " + min + " to " + max
+                        + " with " + distinct + " distinct values");
+            }
+            this.kind = kind;
+            this.min = min;
+            this.max = max;
+            this.distinct = Math.min(distinct, max - min + 1);
+            this.parameter = parameter;
+            if(kind.equals(ZIPF)){
+                if(parameter <= 0){
+                    throw new IllegalArgumentException("Zipf exponent must be positive: " + parameter);
+                }
+                hIntegralX1 = hIntegral(1.5) - 1;
+                hIntegralN = hIntegral(this.distinct + 0.5);
+                sZipf = 2 - hIntegralInverse(hIntegral(2.5) - h(2));
+                // So the most common values are scattered rather than all at the minimum
+                stride = Math.max(1, (long) (this.distinct * 0.618));
+                while(gcd(stride, this.distinct) != 1){
+                    stride++;
+                }
+            }
+            else if(kind.equals(CLUSTERED)){
+                int clusters = (int) parameter;
+                if(clusters < 1){
+                    throw new IllegalArgumentException("Number of clusters must be positive: " + parameter);
+                }
+                Random r = new Random(seed);
+                centers = new long[clusters];
+                for(int i = 0; i < clusters; i++){
+                    centers[i] = (long) (r.nextDouble() * this.distinct);
+                }
+                spread = Math.max(1.0, this.distinct / (clusters * 10.0));
+            }
+            else if(!kind.equals(UNIFORM)){
+                throw new IllegalArgumentException("Unknown distribution: " + kind);
+            }
+        }
+
+        /**
+         * Parse a distribution such as "uniform", "zipf:1.1" or "clustered:5". The Zipf
+         * exponent defaults to 1 and the number of clusters to 5.
+         * @param spec
+         * @param min
+         * @param max
+         * @param distinct
+         * @param seed
+         * @return
+         */
+        public static Distribution parse(String spec, long min, long max, long distinct, long seed)
+        {
+            String kind = spec.trim().toLowerCase();
+            double parameter = kind.startsWith(CLUSTERED) ? 5 : 1;
+            int colon = kind.indexOf(':');
+            if(colon >= 0){
+                try{
+                    parameter = Double.parseDouble(kind.substring(colon + 1));
+                }
+                catch(NumberFormatException e){
+                    throw new IllegalArgumentException("Bad distribution parameter: " + spec);
+                }
+                kind = kind.substring(0, colon);
+            }
+            return new Distribution(kind, min, max, distinct, parameter, seed);
+        }
+
+        /**
+         * Draw a value
+         * @param r
+         * @return
+         */
+        public long next(Random r)
+        {
+            long index;
+            if(kind.equals(ZIPF)){
+                index = ((zipfRank(r) - 1) * stride) % distinct;
+            }
+            else if(kind.equals(CLUSTERED)){
+                long center = centers[r.nextInt(centers.length)];
+                index = center + Math.round(r.nextGaussian() * spread);
+                index = Math.max(0, Math.min(distinct - 1, index));
+            }
+            else{
+                index = (long) (r.nextDouble() * distinct);
+            }
+            return value(index);
+        }
+
+        /**
+         * Get the value of an index between 0 and distinct - 1
+         */
+        long value(long index)
+        {
+            if(distinct == 1){
+                return min;
+            }
+            return min + Math.round((double) index * (max - min) / (distinct - 1));
+        }
+
+        /**
+         * Draw a rank from 1 to distinct, rank k with probability proportional to
+         * 1 / k^exponent, by rejection-inversion (Hoermann and Derflinger), which takes
+         * constant time and memory however many values there are
+         */
+        private long zipfRank(Random r)
+        {
+            while(true){
+                double u = hIntegralN + r.nextDouble() * (hIntegralX1 - hIntegralN);
+                double x = hIntegralInverse(u);
+                long k = (long) (x + 0.5);
+                if(k < 1){
+                    k = 1;
+                }
+                else if(k > distinct){
+                    k = distinct;
+                }
+                if(k - x <= sZipf || u >= hIntegral(k + 0.5) - h(k)){
+                    return k;
+                }
+            }
+        }
+
+        private double h(double x)
+        {
+            return Math.exp(-parameter * Math.log(x));
+        }
+
+        private double hIntegral(double x)
+        {
+            double logX = Math.log(x);
+            return helper2((1 - parameter) * logX) * logX;
+        }
+
+        private double hIntegralInverse(double x)
+        {
+            double t = Math.max(-1, x * (1 - parameter));
+            return Math.exp(helper1(t) * x);
+        }
+
+        // log(1 + x) / x, accurate near 0
+        private static double helper1(double x)
+        {
+            if(Math.abs(x) > 1e-8){
+                return Math.log1p(x) / x;
+            }
+            return 1 - x * (0.5 - x * (1.0 / 3 - 0.25 * x));
+        }
+
+        // (exp(x) - 1) / x, accurate near 0
+        private static double helper2(double x)
+        {
+            if(Math.abs(x) > 1e-8){
+                return Math.expm1(x) / x;
+            }
+            return 1 + x * 0.5 * (1 + x / 3 * (1 + 0.25 * x));
+        }
+
+        private static long gcd(long a, long b)
+        {
+            while(b != 0){
+                long t = a % b;
+                a = b;
+                b = t;
+            }
+            return a;
+        }
+
+        @Override
+        public String toString()
+        {
+            String p = kind.equals(UNIFORM) ? "" : ":" + parameter;
+            return kind + p + " over " + distinct + " values from " + min + " to " + max;
+        }
+    }
+
+    private final Distribution years;
+    // Prices in cents
+    private final Distribution prices;
+    private final Random yearRandom;
+    private final Random priceRandom;
+    // Number of rows generated so far
+    private long row;
+    private int year;
+    private double price;
+
+    /**
+     * Create a generator
+     * @param seed
+     * @param years Distribution of the year column
+     * @param prices Distribution of the price column, in cents
+     */
+    public BooksGenerator(long seed, Distribution years, Distribution prices)
+    {
+        this.years = years;
+        this.prices = prices;
+        // One source per column, so changing one distribution leaves the other column alone
+        yearRandom = new Random(seed);
+        priceRandom = new Random(seed * 31 + 17);
+    }
+
+    /**
+     * Generate the next row, whose values are then returned by getYear and getPrice
+     */
+    public void next()
+    {
+        year = (int) years.next(yearRandom);
+        price = prices.next(priceRandom) / 100.0;
+        row++;
+    }
+
+    /**
+     * Get the number of rows generated so far, which is also the id of the current row
+     * @return
+     */
+    public long getRow()
+    {
+        return row;
+    }
+
+    public int getYear()
+    {
+        return year;
+    }
+
+    public double getPrice()
+    {
+        return price;
+    }
+
+    /**
+     * Generate rows into column buffers
+     * @param rows
+     * @param yearBuffer
+     * @param priceBuffer
+     */
+    public void fill(int rows, IntColumnBuffer yearBuffer, DoubleColumnBuffer priceBuffer)
+    {
+        for(int i = 0; i < rows; i++){
+            next();
+            yearBuffer.add(year);
+            priceBuffer.add(price);
+        }
+    }
+
+    /**
+     * Generate rows as lines of the books CSV format
+     * @param rows
+     * @param out Not closed
+     * @throws IOException
+     */
+    public void write(long rows, OutputStream out) throws IOException
+    {
+        byte[] buf = new byte[BUFFER];
+        int pos = 0;
+        for(long i = 0; i < rows; i++){
+            next();
+            if(pos > BUFFER - MAX_ROW){
+                out.write(buf, 0, pos);
+                pos = 0;
+            }
+            // Row numbers from 0 are the ISBNs, as in the real file's first column
+            long n = row - 1;
+            buf[pos++] = '"';
+            pos = appendPadded(buf, pos, n, 10);
+            pos = append(buf, pos, "\";\"Title ");
+            pos = append(buf, pos, n);
+            pos = append(buf, pos, "\";\"Author ");
+            pos = append(buf, pos, n % 10007);
+            pos = append(buf, pos, "\";\"");
+            pos = append(buf, pos, year);
+            pos = append(buf, pos, "\";\"Publisher ");
+            pos = append(buf, pos, n % 1009);
+            pos = append(buf, pos, "\";\"");
+            for(String size : IMAGE_SIZES){
+                pos = append(buf, pos, "http://images.amazon.com/images/P/");
+                pos = appendPadded(buf, pos, n, 10);
+                pos = append(buf, pos, ".01.");
+                pos = append(buf, pos, size);
+                pos = append(buf, pos, ".jpg\";\"");
+            }
+            long cents = Math.round(price * 100);
+            pos = append(buf, pos, cents / 100);
+            buf[pos++] = '.';
+            pos = appendPadded(buf, pos, cents % 100, 2);
+            buf[pos++] = '"';
+            buf[pos++] = '\n';
+        }
+        out.write(buf, 0, pos);
+    }
+
+    /**
+     * Append ASCII text
+     */
+    private static int append(byte[] buf, int pos, String s)
+    {
+        for(int i = 0; i < s.length(); i++){
+            buf[pos++] = (byte) s.charAt(i);
+        }
+        return pos;
+    }
+
+    /**
+     * Append a non-negative number in decimal
+     */
+    private static int append(byte[] buf, int pos, long v)
+    {
+        int digits = 1;
+        for(long t = v / 10; t > 0; t /= 10){
+            digits++;
+        }
+        return appendPadded(buf, pos, v, digits);
+    }
+
+    /**
+     * Append the last digits of a non-negative number, padded with zeros
+     */
+    private static int appendPadded(byte[] buf, int pos, long v, int digits)
+    {
+        for(int i = digits - 1; i >= 0; i--){
+            buf[pos + i] = (byte) ('0' + v % 10);
+            v /= 10;
+        }
+        return pos + digits;
+    }
+
+    /**
+     * Write a synthetic books CSV file. Settings are given as key=value arguments;
+     * see DEFAULTS.
+     * @param args
+     */
+    public static void main(String[] args)
+    {
+        Properties settings = new Properties();
+        for(String[] d : DEFAULTS){
+            settings.setProperty(d[0], d[1]);
+        }
+        for(String arg : args){
+            int eq = arg.indexOf('=');
+            if(eq < 0){
+                System.out.println("Expected key=value: " + arg);
+                return;
+            }
+            settings.setProperty(arg.substring(0, eq).trim(), arg.substring(eq + 1).trim());
+        }
+
+        File outFile = new File(settings.getProperty("output"));
+        OutputStream out = null;
+        try{
+            long seed = Long.parseLong(settings.getProperty("seed"));
+            long rows = Long.parseLong(settings.getProperty("rows"));
+            Distribution years = Distribution.parse(settings.getProperty("year"),
+                    Long.parseLong(settings.getProperty("yearMin")),
+                    Long.parseLong(settings.getProperty("yearMax")),
+                    Long.parseLong(settings.getProperty("yearDistinct")), seed);
+            Distribution prices = Distribution.parse(settings.getProperty("price"),
+                    Math.round(Double.parseDouble(settings.getProperty("priceMin")) * 100),
+                    Math.round(Double.parseDouble(settings.getProperty("priceMax")) * 100),
+                    Long.parseLong(settings.getProperty("priceDistinct")), ~seed);
+
+            long start = System.nanoTime();
+            out = new FileOutputStream(outFile);
+            new BooksGenerator(seed, years, prices).write(rows, out);
+            out.close();
+            out = null;
+            long ms = (System.nanoTime() - start) / 1000000;
+            System.out.println("Wrote " + rows + " rows to " + outFile + " in " + ms + " ms");
+            System.out.println("Years: " + years);
+            System.out.println("Prices (cents): " + prices);
+        }
+        catch(IllegalArgumentException e){
+            System.out.println(e.getMessage());
+        }
+        catch(IOException e){
+            System.out.println(e.getMessage());
+        }
+        finally{
+            if(out != null){
+                try{
+                    out.close();
+                }
+                catch(IOException e){
+                    System.out.println(e.getMessage());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,510 @@
+package edu.ncsu.mdnevill;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * @author Mitchell Neville
+ * Statistics describing the values of one column: the row count, minimum and
+ * maximum, the number of distinct values, the most common values with their row
+ * counts, and an equi-depth histogram of the remaining values. They are gathered
+ * by a {@link Collector} while the column is loaded and saved next to the data in
+ * a text file laid out like a FastBit -part.txt file. The distinct count comes
+ * from a HyperLogLog sketch; the common values and histogram come from a uniform
+ * sample of the rows, as in a database ANALYZE, and are exact when the sample
+ * holds every row.
+ */
+public class ColumnStatistics {
+    // Rows sampled for the common values and histogram
+    static final int SAMPLE_SIZE = 10000;
+    // Most common values kept
+    static final int MAX_COMMON_VALUES = 100;
+    // Buckets in the histogram
+    static final int HISTOGRAM_BUCKETS = 100;
+    // Times a value must appear in a partial sample to be taken as common,
+    // so chance repeats of rare values are not
+    static final int MIN_COMMON_SAMPLES = 10;
+
+    private final String name;
+    private final long rows;
+    private final double min;
+    private final double max;
+    private final long distinct;
+    // Most common values, most frequent first, and their row counts
+    private final double[] commonValues;
+    private final long[] commonCounts;
+    // Bounds of the histogram buckets; bucket i runs from bounds[i] to bounds[i + 1]
+    private final double[] histogramBounds;
+    // Rows described by the histogram, split equally between its buckets
+    private final long histogramRows;
+
+    ColumnStatistics(String name, long rows, double min, double max, long distinct,
+                     double[] commonValues, long[] commonCounts, double[] histogramBounds, long histogramRows)
+    {
+        this.name = name;
+        this.rows = rows;
+        this.min = min;
+        this.max = max;
+        this.distinct = distinct;
+        this.commonValues = commonValues;
+        this.commonCounts = commonCounts;
+        this.histogramBounds = histogramBounds;
+        this.histogramRows = histogramRows;
+    }
+
+    /**
+     * Gathers the statistics of a column one value at a time. The sample keeps the
+     * rows with the smallest random priorities, so collectors for separate parts of
+     * a column can be merged into a uniform sample of the whole.
+     */
+    public static class Collector {
+        private final String name;
+        private final Random random;
+        private final HyperLogLog sketch = new HyperLogLog();
+        private long rows;
+        private double min = Double.POSITIVE_INFINITY;
+        private double max = Double.NEGATIVE_INFINITY;
+        // Max-heap on priority of the sampled values
+        private final double[] priorities = new double[SAMPLE_SIZE];
+        private final double[] values = new double[SAMPLE_SIZE];
+        private int sampled;
+
+        /**
+         * Create a collector
+         * @param name Column name
+         * @param seed Seed of the sample, so loads are repeatable
+         */
+        public Collector(String name, long seed)
+        {
+            this.name = name;
+            this.random = new Random(seed);
+        }
+
+        /**
+         * Add a value of the column
+         * @param v
+         */
+        public void add(double v)
+        {
+            rows++;
+            if(v < min){
+                min = v;
+            }
+            if(v > max){
+                max = v;
+            }
+            sketch.add(v);
+            offer(random.nextDouble(), v);
+        }
+
+        /**
+         * Add the values collected by another collector of the same column
+         * @param other
+         */
+        public void merge(Collector other)
+        {
+            rows += other.rows;
+            min = Math.min(min, other.min);
+            max = Math.max(max, other.max);
+            sketch.merge(other.sketch);
+            for(int i = 0; i < other.sampled; i++){
+                offer(other.priorities[i], other.values[i]);
+            }
+        }
+
+        private void offer(double priority, double v)
+        {
+            int i;
+            if(sampled < SAMPLE_SIZE){
+                // Sift up from the end
+                i = sampled++;
+                while(i > 0 && priorities[(i - 1) / 2] < priority){
+                    priorities[i] = priorities[(i - 1) / 2];
+                    values[i] = values[(i - 1) / 2];
+                    i = (i - 1) / 2;
+                }
+            }
+            else if(priority < priorities[0]){
+                // Replace the largest priority and sift down
+                i = 0;
+                while(true){
+                    int c = 2 * i + 1;
+                    if(c >= sampled){
+                        break;
+                    }
+                    if(c + 1 < sampled && priorities[c + 1] > priorities[c]){
+                        c++;
+                    }
+                    if(priorities[c] <= priority){
+                        break;
+                    }
+                    priorities[i] = priorities[c];
+                    values[i] = values[c];
+                    i = c;
+                }
+            }
+            else{
+                return;
+            }
+            priorities[i] = priority;
+            values[i] = v;
+        }
+
+        /**
+         * Compute the statistics of the values added
+         * @return
+         */
+        public ColumnStatistics finish()
+        {
+            if(rows == 0){
+                return new ColumnStatistics(name, 0, Double.NaN, Double.NaN, 0,
+                        new double[0], new long[0], new double[0], 0);
+            }
+            double[] sample = Arrays.copyOf(values, sampled);
+            Arrays.sort(sample);
+            boolean exact = sampled == rows;
+
+            // Run lengths of the sorted sample
+            List<double[]> runs = new ArrayList<double[]>();
+            for(int i = 0; i < sample.length; ){
+                int j = i;
+                while(j < sample.length && Double.compare(sample[j], sample[i]) == 0){
+                    j++;
+                }
+                runs.add(new double[] {sample[i], j - i});
+                i = j;
+            }
+            long distinct = exact ? runs.size() : Math.min(rows, Math.max(runs.size(), sketch.estimate()));
+
+            // Values sampled well above the average frequency are common. If every
+            // sampled value repeats, the sample has likely seen them all and they fit
+            // in the list, keep them all, so low-cardinality columns are described exactly.
+            boolean allRepeat = runs.size() <= MAX_COMMON_VALUES;
+            for(double[] run : runs){
+                allRepeat &= run[1] >= 2;
+            }
+            double threshold = allRepeat ? 0 : Math.max(exact ? 2 : MIN_COMMON_SAMPLES, 1.25 * sampled / distinct);
+            List<double[]> common = new ArrayList<double[]>();
+            for(double[] run : runs){
+                if(run[1] >= threshold){
+                    common.add(run);
+                }
+            }
+            Collections.sort(common, new Comparator<double[]>() {
+                @Override
+                public int compare(double[] a, double[] b) {
+                    return Double.compare(b[1], a[1]);
+                }
+            });
+            if(common.size() > MAX_COMMON_VALUES){
+                common = common.subList(0, MAX_COMMON_VALUES);
+            }
+            double[] commonValues = new double[common.size()];
+            long[] commonCounts = new long[common.size()];
+            long commonRows = 0;
+            for(int i = 0; i < commonValues.length; i++){
+                commonValues[i] = common.get(i)[0];
+                commonCounts[i] = Math.round(common.get(i)[1] * rows / sampled);
+                commonRows += commonCounts[i];
+            }
+
+            // The histogram covers the sampled values that are not common
+            double[] rest = new double[sample.length];
+            int n = 0;
+            for(double v : sample){
+                if(indexOf(commonValues, v) < 0){
+                    rest[n++] = v;
+                }
+            }
+            double[] bounds = new double[0];
+            if(n > 0){
+                int buckets = Math.min(HISTOGRAM_BUCKETS, n);
+                bounds = new double[buckets + 1];
+                for(int i = 0; i <= buckets; i++){
+                    bounds[i] = rest[(int) ((long) i * (n - 1) / buckets)];
+                }
+            }
+            return new ColumnStatistics(name, rows, min, max, distinct, commonValues, commonCounts,
+                    bounds, n > 0 ? Math.max(0, rows - commonRows) : 0);
+        }
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public long getRows()
+    {
+        return rows;
+    }
+
+    public double getMin()
+    {
+        return min;
+    }
+
+    public double getMax()
+    {
+        return max;
+    }
+
+    /**
+     * Get the estimated number of distinct values
+     * @return
+     */
+    public long getDistinct()
+    {
+        return distinct;
+    }
+
+    public double[] getCommonValues()
+    {
+        return commonValues.clone();
+    }
+
+    public long[] getCommonCounts()
+    {
+        return commonCounts.clone();
+    }
+
+    public double[] getHistogramBounds()
+    {
+        return histogramBounds.clone();
+    }
+
+    public long getHistogramRows()
+    {
+        return histogramRows;
+    }
+
+    /**
+     * Estimate the number of rows whose value lies in a range. Common values are
+     * counted exactly; the rest are estimated from the histogram, or for a single
+     * value as the average rows per uncommon distinct value.
+     * @param low Lower bound
+     * @param lowInc Is the lower bound inclusive?
+     * @param high Upper bound
+     * @param highInc Is the upper bound inclusive?
+     * @return
+     */
+    public double estimateRows(double low, boolean lowInc, double high, boolean highInc)
+    {
+        if(rows == 0 || low > high || (low == high && !(lowInc && highInc))){
+            return 0;
+        }
+        double est = 0;
+        for(int i = 0; i < commonValues.length; i++){
+            if(inRange(commonValues[i], low, lowInc, high, highInc)){
+                est += commonCounts[i];
+            }
+        }
+        if(low == high){
+            if(indexOf(commonValues, low) < 0 && low >= min && low <= max){
+                est += (double) histogramRows / Math.max(1, distinct - commonValues.length);
+            }
+            return Math.min(est, rows);
+        }
+        int buckets = histogramBounds.length - 1;
+        double covered = 0;
+        for(int i = 0; i < buckets; i++){
+            double a = histogramBounds[i];
+            double b = histogramBounds[i + 1];
+            if(b <= a){
+                // A bucket of one repeated value
+                covered += inRange(a, low, lowInc, high, highInc) ? 1 : 0;
+            }
+            else{
+                double overlap = (Math.min(high, b) - Math.max(low, a)) / (b - a);
+                covered += Math.max(0, Math.min(1, overlap));
+            }
+        }
+        if(buckets > 0){
+            est += histogramRows * covered / buckets;
+        }
+        return Math.min(est, rows);
+    }
+
+    private static boolean inRange(double v, double low, boolean lowInc, double high, boolean highInc)
+    {
+        return (lowInc ? v >= low : v > low) && (highInc ? v <= high : v < high);
+    }
+
+    private static int indexOf(double[] values, double v)
+    {
+        for(int i = 0; i < values.length; i++){
+            if(Double.compare(values[i], v) == 0){
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Write the statistics of several columns to a file
+     * @param stats
+     * @param file
+     * @throws IOException
+     */
+    public static void write(Collection<ColumnStatistics> stats, File file) throws IOException
+    {
+        PrintWriter out = new PrintWriter(new FileWriter(file));
+        try{
+            out.println("# column statistics written on " + new Date());
+            for(ColumnStatistics s : stats){
+                out.println();
+                out.println("Begin Column");
+                out.println("name = " + s.name);
+                out.println("rows = " + s.rows);
+                out.println("min = " + s.min);
+                out.println("max = " + s.max);
+                out.println("distinct = " + s.distinct);
+                out.println("common_values = " + join(s.commonValues));
+                out.println("common_counts = " + join(s.commonCounts));
+                out.println("histogram_bounds = " + join(s.histogramBounds));
+                out.println("histogram_rows = " + s.histogramRows);
+                out.println("End Column");
+            }
+        }
+        finally{
+            out.close();
+        }
+        if(out.checkError()){
+            throw new IOException("Unable to write " + file);
+        }
+    }
+
+    /**
+     * Read the statistics written by write
+     * @param file
+     * @return The statistics by column name, in the order they were written
+     * @throws IOException
+     */
+    public static Map<String, ColumnStatistics> read(File file) throws IOException
+    {
+        Map<String, ColumnStatistics> ret = new LinkedHashMap<String, ColumnStatistics>();
+        BufferedReader in = new BufferedReader(new FileReader(file));
+        try{
+            Map<String, String> fields = null;
+            String line;
+            while((line = in.readLine()) != null){
+                line = line.trim();
+                if(line.equalsIgnoreCase("Begin Column")){
+                    fields = new LinkedHashMap<String, String>();
+                    continue;
+                }
+                if(line.equalsIgnoreCase("End Column") && fields != null){
+                    ColumnStatistics s = fromFields(fields, file);
+                    ret.put(s.name, s);
+                    fields = null;
+                    continue;
+                }
+                int eq = line.indexOf('=');
+                if(fields != null && eq >= 0){
+                    fields.put(line.substring(0, eq).trim().toLowerCase(), line.substring(eq + 1).trim());
+                }
+            }
+        }
+        finally{
+            in.close();
+        }
+        return ret;
+    }
+
+    private static ColumnStatistics fromFields(Map<String, String> fields, File file) throws IOException
+    {
+        try{
+            double[] commonValues = parseDoubles(field(fields, "common_values", file));
+            long[] commonCounts = parseLongs(field(fields, "common_counts", file));
+            if(commonValues.length != commonCounts.length){
+                throw new IOException("Mismatched common values in " + file);
+            }
+            return new ColumnStatistics(field(fields, "name", file),
+                    Long.parseLong(field(fields, "rows", file)),
+                    Double.parseDouble(field(fields, "min", file)),
+                    Double.parseDouble(field(fields, "max", file)),
+                    Long.parseLong(field(fields, "distinct", file)),
+                    commonValues, commonCounts,
+                    parseDoubles(field(fields, "histogram_bounds", file)),
+                    Long.parseLong(field(fields, "histogram_rows", file)));
+        }
+        catch(NumberFormatException e){
+            throw new IOException("Malformed column statistics in " + file + ": " + e.getMessage());
+        }
+    }
+
+    private static String field(Map<String, String> fields, String key, File file) throws IOException
+    {
+        String value = fields.get(key);
+        if(value == null){
+            throw new IOException("No " + key + " in a column of " + file);
+        }
+        return value;
+    }
+
+    private static String join(double[] values)
+    {
+        StringBuilder sb = new StringBuilder();
+        for(double v : values){
+            sb.append(sb.length() == 0 ? "" : " ").append(v);
+        }
+        return sb.toString();
+    }
+
+    private static String join(long[] values)
+    {
+        StringBuilder sb = new StringBuilder();
+        for(long v : values){
+            sb.append(sb.length() == 0 ? "" : " ").append(v);
+        }
+        return sb.toString();
+    }
+
+    private static double[] parseDoubles(String s)
+    {
+        if(s.isEmpty()){
+            return new double[0];
+        }
+        String[] parts = s.split(" +");
+        double[] ret = new double[parts.length];
+        for(int i = 0; i < parts.length; i++){
+            ret[i] = Double.parseDouble(parts[i]);
+        }
+        return ret;
+    }
+
+    private static long[] parseLongs(String s)
+    {
+        if(s.isEmpty()){
+            return new long[0];
+        }
+        String[] parts = s.split(" +");
+        long[] ret = new long[parts.length];
+        for(int i = 0; i < parts.length; i++){
+            ret[i] = Long.parseLong(parts[i]);
+        }
+        return ret;
+    }
+
+    @Override
+    public String toString()
+    {
+        return name + ": " + rows + " rows from " + min + " to " + max + ", ~"
+                + distinct + " distinct, " + commonValues.length + " common values, "
+                + Math.max(0, histogramBounds.length - 1) + " histogram buckets";
+    }
+}
@@ -0,0 +1,84 @@
+package edu.ncsu.mdnevill;
+
+import java.util.Arrays;
+
+/**
+ * @author Mitchell Neville
+ * A growable buffer of primitive doubles, used to collect column values without
+ * boxing each one into a Double.
+ */
+public class DoubleColumnBuffer {
+    private double[] values;
+    private int size;
+
+    public DoubleColumnBuffer()
+    {
+        this(1024);
+    }
+
+    /**
+     * Create a buffer
+     * @param capacity Initial capacity
+     */
+    public DoubleColumnBuffer(int capacity)
+    {
+        this.values = new double[Math.max(capacity, 16)];
+    }
+
+    /**
+     * Append a value
+     * @param v
+     */
+    public void add(double v)
+    {
+        if(size == values.length){
+            values = Arrays.copyOf(values, values.length + (values.length >> 1));
+        }
+        values[size++] = v;
+    }
+
+    /**
+     * Get the value at an index
+     * @param i
+     * @return
+     */
+    public double get(int i)
+    {
+        if(i >= size){
+            throw new IndexOutOfBoundsException("Index " + i + " is not less than " + size);
+        }
+        return values[i];
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * Remove all values, keeping the allocated capacity
+     */
+    public void clear()
+    {
+        size = 0;
+    }
+
+    /**
+     * Copy the values into an array
+     * @param dest
+     * @param offset Index in dest of the first value
+     */
+    public void copyTo(double[] dest, int offset)
+    {
+        System.arraycopy(values, 0, dest, offset, size);
+    }
+
+    /**
+     * Get the values as an array of exactly size() elements
+     * @return
+     */
+    public double[] toArray()
+    {
+        return Arrays.copyOf(values, size);
+    }
+}
@@ -0,0 +1,255 @@
+package edu.ncsu.mdnevill;
+
+import edu.ncsu.mdnevill.bitmap.RoaringBitmap;
+import org.mapdb.BTreeKeySerializer;
+import org.mapdb.BTreeMap;
+import org.mapdb.DataInput2;
+import org.mapdb.DataOutput2;
+import org.mapdb.Fun;
+import org.mapdb.Serializer;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Comparator;
+
+/**
+ * @author Mitchell Neville
+ * Compact serializers for the keys of the secondary indexes. Index entries are
+ * (value, id) tuples; MapDB's tuple key serializer writes the value only when it
+ * differs from the previous key in the node, and the serializers here keep each
+ * written component small: varints for ids and years, and fixed-point cents for
+ * prices. The postings of the repository, which map each value to the ids having
+ * it, keep their ids as Roaring bitmaps.
+ *
+ * Every key serializer here also accepts a null key in the middle of a node. MapDB's
+ * data pump can leave one in a directory node it builds, after the null that stands
+ * for the node's open left edge, and the wrapped serializers cannot write it.
+ */
+public final class IndexKeySerializers {
+    private IndexKeySerializers()
+    {
+    }
+
+    /**
+     * Integers as zigzag varints, one byte for small ids
+     */
+    public static final Serializer<Integer> VARINT = new VarIntSerializer();
+
+    /**
+     * Prices as varint cents, in the same format as {@link BookSerializer}
+     */
+    public static final Serializer<Double> PRICE = new PriceSerializer();
+
+    /**
+     * Strings, possibly null, in the same format as {@link BookSerializer}
+     */
+    public static final Serializer<String> NULLABLE_STRING = new NullableStringSerializer();
+
+    /**
+     * Keys of the author index. Books without an author are indexed under null, so
+     * authors are compared with MapDB's null-safe comparator, as in the tuples.
+     */
+    @SuppressWarnings("unchecked")
+    public static final BTreeKeySerializer<Fun.Tuple2<String, Integer>> AUTHOR_ID = nullTolerant(
+            new BTreeKeySerializer.Tuple2KeySerializer<String, Integer>(Fun.COMPARATOR, NULLABLE_STRING, VARINT));
+
+    /**
+     * Keys of the year index. The comparators MapDB would fill in for nulls are given
+     * here, as it cannot reach the tuple serializers inside the wrapper.
+     */
+    @SuppressWarnings("unchecked")
+    public static final BTreeKeySerializer<Fun.Tuple2<Integer, Integer>> YEAR_ID = nullTolerant(
+            new BTreeKeySerializer.Tuple2KeySerializer<Integer, Integer>(BTreeMap.COMPARABLE_COMPARATOR, VARINT, VARINT));
+
+    /** Keys of the price index */
+    @SuppressWarnings("unchecked")
+    public static final BTreeKeySerializer<Fun.Tuple2<Double, Integer>> PRICE_ID = nullTolerant(
+            new BTreeKeySerializer.Tuple2KeySerializer<Double, Integer>(BTreeMap.COMPARABLE_COMPARATOR, PRICE, VARINT));
+
+    /** Keys of the covering (year, price, id) index */
+    @SuppressWarnings("unchecked")
+    public static final BTreeKeySerializer<Fun.Tuple3<Integer, Double, Integer>> YEAR_PRICE_ID = nullTolerant(
+            new BTreeKeySerializer.Tuple3KeySerializer<Integer, Double, Integer>(
+                    BTreeMap.COMPARABLE_COMPARATOR, BTreeMap.COMPARABLE_COMPARATOR, VARINT, PRICE, VARINT));
+
+    /** Keys of the year and price bin postings */
+    @SuppressWarnings("unchecked")
+    public static final BTreeKeySerializer<Integer> INT_KEY =
+            nullTolerant((BTreeKeySerializer) new BTreeKeySerializer.BasicKeySerializer(VARINT));
+
+    /** Keys of the price postings */
+    @SuppressWarnings("unchecked")
+    public static final BTreeKeySerializer<Double> PRICE_KEY =
+            nullTolerant((BTreeKeySerializer) new BTreeKeySerializer.BasicKeySerializer(PRICE));
+
+    /** Keys of the author postings */
+    public static final BTreeKeySerializer<String> STRING_KEY = nullTolerant(BTreeKeySerializer.STRING);
+
+    /** Values of the postings: the ids of the books having a key */
+    public static final Serializer<RoaringBitmap> POSTINGS = new PostingsSerializer();
+
+    private static <K> BTreeKeySerializer<K> nullTolerant(BTreeKeySerializer<K> keys)
+    {
+        return new NullTolerantKeySerializer<K>(keys);
+    }
+
+    /**
+     * Writes the positions of any null keys of a node, then the other keys with the
+     * wrapped serializer. A node without nulls costs one byte more.
+     */
+    static final class NullTolerantKeySerializer<K> extends BTreeKeySerializer<K> implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final BTreeKeySerializer<K> wrapped;
+
+        NullTolerantKeySerializer(BTreeKeySerializer<K> wrapped)
+        {
+            this.wrapped = wrapped;
+        }
+
+        @Override
+        public void serialize(DataOutput out, int start, int end, Object[] keys) throws IOException
+        {
+            int nulls = 0;
+            for(int i = start; i < end; i++){
+                if(keys[i] == null){
+                    nulls++;
+                }
+            }
+            DataOutput2.packInt(out, nulls);
+            if(nulls == 0){
+                wrapped.serialize(out, start, end, keys);
+                return;
+            }
+            Object[] present = new Object[keys.length - nulls];
+            int n = start;
+            for(int i = start; i < end; i++){
+                if(keys[i] == null){
+                    DataOutput2.packInt(out, i - start);
+                }
+                else{
+                    present[n++] = keys[i];
+                }
+            }
+            wrapped.serialize(out, start, n, present);
+        }
+
+        @Override
+        public Object[] deserialize(DataInput in, int start, int end, int size) throws IOException
+        {
+            int nulls = DataInput2.unpackInt(in);
+            if(nulls == 0){
+                return wrapped.deserialize(in, start, end, size);
+            }
+            boolean[] isNull = new boolean[end - start];
+            for(int i = 0; i < nulls; i++){
+                isNull[DataInput2.unpackInt(in)] = true;
+            }
+            Object[] present = wrapped.deserialize(in, start, end - nulls, size - nulls);
+            Object[] ret = new Object[size];
+            int n = start;
+            for(int i = start; i < end; i++){
+                if(!isNull[i - start]){
+                    ret[i] = present[n++];
+                }
+            }
+            return ret;
+        }
+
+        @Override
+        public Comparator<K> getComparator()
+        {
+            return wrapped.getComparator();
+        }
+    }
+
+    static final class VarIntSerializer implements Serializer<Integer>, Serializable {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public void serialize(DataOutput out, Integer value) throws IOException
+        {
+            BookSerializer.packZigzag(out, value);
+        }
+
+        @Override
+        public Integer deserialize(DataInput in, int available) throws IOException
+        {
+            return BookSerializer.unzigzag(DataInput2.unpackInt(in));
+        }
+
+        @Override
+        public int fixedSize()
+        {
+            return -1;
+        }
+    }
+
+    static final class NullableStringSerializer implements Serializer<String>, Serializable {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public void serialize(DataOutput out, String value) throws IOException
+        {
+            BookSerializer.writeString(out, value);
+        }
+
+        @Override
+        public String deserialize(DataInput in, int available) throws IOException
+        {
+            return BookSerializer.readString(in);
+        }
+
+        @Override
+        public int fixedSize()
+        {
+            return -1;
+        }
+    }
+
+    static final class PriceSerializer implements Serializer<Double>, Serializable {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public void serialize(DataOutput out, Double value) throws IOException
+        {
+            BookSerializer.writePrice(out, value);
+        }
+
+        @Override
+        public Double deserialize(DataInput in, int available) throws IOException
+        {
+            return BookSerializer.readPrice(in);
+        }
+
+        @Override
+        public int fixedSize()
+        {
+            return -1;
+        }
+    }
+
+    static final class PostingsSerializer implements Serializer<RoaringBitmap>, Serializable {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public void serialize(DataOutput out, RoaringBitmap value) throws IOException
+        {
+            value.write(out);
+        }
+
+        @Override
+        public RoaringBitmap deserialize(DataInput in, int available) throws IOException
+        {
+            return RoaringBitmap.read(in);
+        }
+
+        @Override
+        public int fixedSize()
+        {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,381 @@
+package edu.ncsu.mdnevill;
+
+import edu.ncsu.mdnevill.bitmap.QueryMetrics;
+import org.mapdb.DB;
+import org.mapdb.Serializer;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * @author Mitchell Neville
+ * A book repository timing every query method into a {@link QueryMetrics}, under
+ * the engine name "mapdb" and the same query shapes the instrumented bitmap engine
+ * uses, so both engines' distributions for a query line up. Overloads that only
+ * delegate to another query method are recorded once, by the method they call.
+ */
+public class InstrumentedBookRepository extends MapDbBookRepository {
+    private static final String ENGINE = "mapdb";
+    private static final String AUTHOR = "author = ?";
+
+    private final QueryMetrics metrics;
+
+    /**
+     * Create a new repository
+     * @param db MapDB DB object
+     * @param metrics Where to record the queries
+     */
+    public InstrumentedBookRepository(DB db, QueryMetrics metrics)
+    {
+        this(db, db, new BookSerializer(), metrics);
+    }
+
+    /**
+     * Create a new repository keeping its secondary indexes in a separate database
+     * @param db MapDB DB object for the books
+     * @param indexDb MapDB DB object for the secondary indexes
+     * @param valueSerializer Serializer for Book values
+     * @param metrics Where to record the queries
+     */
+    public InstrumentedBookRepository(DB db, DB indexDb, Serializer<Book> valueSerializer, QueryMetrics metrics)
+    {
+        super(db, indexDb, valueSerializer);
+        this.metrics = metrics;
+    }
+
+    /**
+     * Get the metrics the queries are recorded in
+     * @return
+     */
+    public QueryMetrics getMetrics()
+    {
+        return metrics;
+    }
+
+    /**
+     * Record a call. Callers pass the elapsed time as the first argument, so it is
+     * taken before the shape is built.
+     */
+    private void record(String operation, long nanos, String shape, long hits)
+    {
+        metrics.record(ENGINE, operation, shape, nanos, hits);
+    }
+
+    private static String yearAndPrice(int startYear, boolean startYearInc, int endYear, boolean endYearInc,
+                                       double startPrice, boolean startPriceInc,
+                                       double endPrice, boolean endPriceInc)
+    {
+        return "(" + QueryMetrics.shape("year", startYear, startYearInc, endYear, endYearInc) + " and "
+                + QueryMetrics.shape("price", startPrice, startPriceInc, endPrice, endPriceInc) + ")";
+    }
+
+    private static String orderByPrice(int start, boolean startInc, int end, boolean endInc, boolean descending)
+    {
+        return QueryMetrics.shape("year", start, startInc, end, endInc)
+                + (descending ? " order by price desc" : " order by price") + " limit ?";
+    }
+
+    @Override
+    public Book get(int id)
+    {
+        long begin = System.nanoTime();
+        Book ret = super.get(id);
+        record("get", System.nanoTime() - begin, "id = ?", ret == null ? 0 : 1);
+        return ret;
+    }
+
+    @Override
+    public Collection<Book> getByAuthor(String author)
+    {
+        long begin = System.nanoTime();
+        Collection<Book> ret = super.getByAuthor(author);
+        record("getByAuthor", System.nanoTime() - begin, AUTHOR, ret.size());
+        return ret;
+    }
+
+    @Override
+    public Collection<Book> getByYear(int start, boolean startInc, int end, boolean endInc)
+    {
+        long begin = System.nanoTime();
+        Collection<Book> ret = super.getByYear(start, startInc, end, endInc);
+        record("getByYear", System.nanoTime() - begin,
+                QueryMetrics.shape("year", start, startInc, end, endInc), ret.size());
+        return ret;
+    }
+
+    @Override
+    public Collection<Book> getByYear(int start, boolean startInc)
+    {
+        long begin = System.nanoTime();
+        Collection<Book> ret = super.getByYear(start, startInc);
+        record("getByYear", System.nanoTime() - begin,
+                QueryMetrics.shape("year", start, startInc, Double.POSITIVE_INFINITY, true), ret.size());
+        return ret;
+    }
+
+    @Override
+    public Collection<Book> getByYear(int year)
+    {
+        long begin = System.nanoTime();
+        Collection<Book> ret = super.getByYear(year);
+        record("getByYear", System.nanoTime() - begin,
+                QueryMetrics.shape("year", year, true, year, true), ret.size());
+        return ret;
+    }
+
+    @Override
+    public Collection<Book> getByYearAndPrice(int startYear, boolean startYearInc, int endYear, boolean endYearInc,
+                                              double startPrice, boolean startPriceInc,
+                                              double endPrice, boolean endPriceInc)
+    {
+        long begin = System.nanoTime();
+        Collection<Book> ret = super.getByYearAndPrice(startYear, startYearInc, endYear, endYearInc,
+                startPrice, startPriceInc, endPrice, endPriceInc);
+        record("getByYearAndPrice", System.nanoTime() - begin,
+                yearAndPrice(startYear, startYearInc, endYear, endYearInc,
+                        startPrice, startPriceInc, endPrice, endPriceInc), ret.size());
+        return ret;
+    }
+
+    @Override
+    public Collection<Book> getByPrice(double start, boolean startInc)
+    {
+        long begin = System.nanoTime();
+        Collection<Book> ret = super.getByPrice(start, startInc);
+        record("getByPrice", System.nanoTime() - begin,
+                QueryMetrics.shape("price", start, startInc, Double.POSITIVE_INFINITY, true), ret.size());
+        return ret;
+    }
+
+    @Override
+    public int[] getIdsByAuthor(String author)
+    {
+        long begin = System.nanoTime();
+        int[] ret = super.getIdsByAuthor(author);
+        record("getIdsByAuthor", System.nanoTime() - begin, AUTHOR, ret.length);
+        return ret;
+    }
+
+    @Override
+    public int[] getIdsByYear(int year)
+    {
+        long begin = System.nanoTime();
+        int[] ret = super.getIdsByYear(year);
+        record("getIdsByYear", System.nanoTime() - begin,
+                QueryMetrics.shape("year", year, true, year, true), ret.length);
+        return ret;
+    }
+
+    @Override
+    public int[] getIdsByYear(int start, boolean startInc, int end, boolean endInc)
+    {
+        long begin = System.nanoTime();
+        int[] ret = super.getIdsByYear(start, startInc, end, endInc);
+        record("getIdsByYear", System.nanoTime() - begin,
+                QueryMetrics.shape("year", start, startInc, end, endInc), ret.length);
+        return ret;
+    }
+
+    @Override
+    public int[] getIdsByYear(int start, boolean startInc)
+    {
+        long begin = System.nanoTime();
+        int[] ret = super.getIdsByYear(start, startInc);
+        record("getIdsByYear", System.nanoTime() - begin,
+                QueryMetrics.shape("year", start, startInc, Double.POSITIVE_INFINITY, true), ret.length);
+        return ret;
+    }
+
+    @Override
+    public int[] getIdsByPrice(double start, boolean startInc)
+    {
+        long begin = System.nanoTime();
+        int[] ret = super.getIdsByPrice(start, startInc);
+        record("getIdsByPrice", System.nanoTime() - begin,
+                QueryMetrics.shape("price", start, startInc, Double.POSITIVE_INFINITY, true), ret.length);
+        return ret;
+    }
+
+    @Override
+    public int[] getIdsByPrice(double start, boolean startInc, double end, boolean endInc)
+    {
+        long begin = System.nanoTime();
+        int[] ret = super.getIdsByPrice(start, startInc, end, endInc);
+        record("getIdsByPrice", System.nanoTime() - begin,
+                QueryMetrics.shape("price", start, startInc, end, endInc), ret.length);
+        return ret;
+    }
+
+    @Override
+    public int[] getIdsByYearAndPrice(int startYear, boolean startYearInc, int endYear, boolean endYearInc,
+                                      double startPrice, boolean startPriceInc,
+                                      double endPrice, boolean endPriceInc)
+    {
+        long begin = System.nanoTime();
+        int[] ret = super.getIdsByYearAndPrice(startYear, startYearInc, endYear, endYearInc,
+                startPrice, startPriceInc, endPrice, endPriceInc);
+        record("getIdsByYearAndPrice", System.nanoTime() - begin,
+                yearAndPrice(startYear, startYearInc, endYear, endYearInc,
+                        startPrice, startPriceInc, endPrice, endPriceInc), ret.length);
+        return ret;
+    }
+
+    @Override
+    public List<Book> getByYearOrderByPrice(int start, boolean startInc, int end, boolean endInc,
+                                            boolean descending, int limit)
+    {
+        long begin = System.nanoTime();
+        List<Book> ret = super.getByYearOrderByPrice(start, startInc, end, endInc, descending, limit);
+        record("getByYearOrderByPrice", System.nanoTime() - begin,
+                orderByPrice(start, startInc, end, endInc, descending), ret.size());
+        return ret;
+    }
+
+    @Override
+    public int[] getIdsByYearOrderByPrice(int start, boolean startInc, int end, boolean endInc,
+                                          boolean descending, int limit)
+    {
+        long begin = System.nanoTime();
+        int[] ret = super.getIdsByYearOrderByPrice(start, startInc, end, endInc, descending, limit);
+        record("getIdsByYearOrderByPrice", System.nanoTime() - begin,
+                orderByPrice(start, startInc, end, endInc, descending), ret.length);
+        return ret;
+    }
+
+    @Override
+    public int countByAuthor(String author)
+    {
+        long begin = System.nanoTime();
+        int ret = super.countByAuthor(author);
+        record("countByAuthor", System.nanoTime() - begin, AUTHOR, ret);
+        return ret;
+    }
+
+    @Override
+    public int countByYear(int year)
+    {
+        long begin = System.nanoTime();
+        int ret = super.countByYear(year);
+        record("countByYear", System.nanoTime() - begin, QueryMetrics.shape("year", year, true, year, true), ret);
+        return ret;
+    }
+
+    @Override
+    public int countByYear(int start, boolean startInc, int end, boolean endInc)
+    {
+        long begin = System.nanoTime();
+        int ret = super.countByYear(start, startInc, end, endInc);
+        record("countByYear", System.nanoTime() - begin,
+                QueryMetrics.shape("year", start, startInc, end, endInc), ret);
+        return ret;
+    }
+
+    @Override
+    public int countByPrice(double start, boolean startInc)
+    {
+        long begin = System.nanoTime();
+        int ret = super.countByPrice(start, startInc);
+        record("countByPrice", System.nanoTime() - begin,
+                QueryMetrics.shape("price", start, startInc, Double.POSITIVE_INFINITY, true), ret);
+        return ret;
+    }
+
+    @Override
+    public int countByYearAndPrice(int startYear, boolean startYearInc, int endYear, boolean endYearInc,
+                                   double startPrice, boolean startPriceInc,
+                                   double endPrice, boolean endPriceInc)
+    {
+        long begin = System.nanoTime();
+        int ret = super.countByYearAndPrice(startYear, startYearInc, endYear, endYearInc,
+                startPrice, startPriceInc, endPrice, endPriceInc);
+        record("countByYearAndPrice", System.nanoTime() - begin,
+                yearAndPrice(startYear, startYearInc, endYear, endYearInc,
+                        startPrice, startPriceInc, endPrice, endPriceInc), ret);
+        return ret;
+    }
+
+    @Override
+    public Collection<Book> get(BookQuery query)
+    {
+        long begin = System.nanoTime();
+        Collection<Book> ret = super.get(query);
+        record("get", System.nanoTime() - begin, query.shape(), ret.size());
+        return ret;
+    }
+
+    @Override
+    public int[] getIds(BookQuery query)
+    {
+        long begin = System.nanoTime();
+        int[] ret = super.getIds(query);
+        record("getIds", System.nanoTime() - begin, query.shape(), ret.length);
+        return ret;
+    }
+
+    @Override
+    public int count(BookQuery query)
+    {
+        long begin = System.nanoTime();
+        int ret = super.count(query);
+        record("count", System.nanoTime() - begin, query.shape(), ret);
+        return ret;
+    }
+
+    @Override
+    public BookCursor cursorByAuthor(String author, int batchSize, int limit)
+    {
+        long begin = System.nanoTime();
+        BookCursor ret = super.cursorByAuthor(author, batchSize, limit);
+        record("cursorByAuthor", System.nanoTime() - begin, AUTHOR, -1);
+        return ret;
+    }
+
+    @Override
+    public BookCursor cursorByYear(int year, int batchSize, int limit)
+    {
+        long begin = System.nanoTime();
+        BookCursor ret = super.cursorByYear(year, batchSize, limit);
+        record("cursorByYear", System.nanoTime() - begin, QueryMetrics.shape("year", year, true, year, true), -1);
+        return ret;
+    }
+
+    @Override
+    public BookCursor cursorByYear(int start, boolean startInc, int end, boolean endInc, int batchSize, int limit)
+    {
+        long begin = System.nanoTime();
+        BookCursor ret = super.cursorByYear(start, startInc, end, endInc, batchSize, limit);
+        record("cursorByYear", System.nanoTime() - begin,
+                QueryMetrics.shape("year", start, startInc, end, endInc), -1);
+        return ret;
+    }
+
+    @Override
+    public BookCursor cursorByYear(int start, boolean startInc, int batchSize, int limit)
+    {
+        long begin = System.nanoTime();
+        BookCursor ret = super.cursorByYear(start, startInc, batchSize, limit);
+        record("cursorByYear", System.nanoTime() - begin,
+                QueryMetrics.shape("year", start, startInc, Double.POSITIVE_INFINITY, true), -1);
+        return ret;
+    }
+
+    @Override
+    public BookCursor cursorByPrice(double start, boolean startInc, int batchSize, int limit)
+    {
+        long begin = System.nanoTime();
+        BookCursor ret = super.cursorByPrice(start, startInc, batchSize, limit);
+        record("cursorByPrice", System.nanoTime() - begin,
+                QueryMetrics.shape("price", start, startInc, Double.POSITIVE_INFINITY, true), -1);
+        return ret;
+    }
+
+    @Override
+    public BookCursor cursorByYearAndPrice(int year, double startPrice, boolean startPriceInc, int batchSize, int limit)
+    {
+        long begin = System.nanoTime();
+        BookCursor ret = super.cursorByYearAndPrice(year, startPrice, startPriceInc, batchSize, limit);
+        record("cursorByYearAndPrice", System.nanoTime() - begin,
+                yearAndPrice(year, true, year, true, startPrice, startPriceInc, Double.POSITIVE_INFINITY, true), -1);
+        return ret;
+    }
+}
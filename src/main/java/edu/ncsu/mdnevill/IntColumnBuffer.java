@@ -0,0 +1,84 @@
+package edu.ncsu.mdnevill;
+
+import java.util.Arrays;
+
+/**
+ * @author Mitchell Neville
+ * A growable buffer of primitive ints, used to collect column values without
+ * boxing each one into an Integer.
+ */
+public class IntColumnBuffer {
+    private int[] values;
+    private int size;
+
+    public IntColumnBuffer()
+    {
+        this(1024);
+    }
+
+    /**
+     * Create a buffer
+     * @param capacity Initial capacity
+     */
+    public IntColumnBuffer(int capacity)
+    {
+        this.values = new int[Math.max(capacity, 16)];
+    }
+
+    /**
+     * Append a value
+     * @param v
+     */
+    public void add(int v)
+    {
+        if(size == values.length){
+            values = Arrays.copyOf(values, values.length + (values.length >> 1));
+        }
+        values[size++] = v;
+    }
+
+    /**
+     * Get the value at an index
+     * @param i
+     * @return
+     */
+    public int get(int i)
+    {
+        if(i >= size){
+            throw new IndexOutOfBoundsException("Index " + i + " is not less than " + size);
+        }
+        return values[i];
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * Remove all values, keeping the allocated capacity
+     */
+    public void clear()
+    {
+        size = 0;
+    }
+
+    /**
+     * Copy the values into an array
+     * @param dest
+     * @param offset Index in dest of the first value
+     */
+    public void copyTo(int[] dest, int offset)
+    {
+        System.arraycopy(values, 0, dest, offset, size);
+    }
+
+    /**
+     * Get the values as an array of exactly size() elements
+     * @return
+     */
+    public int[] toArray()
+    {
+        return Arrays.copyOf(values, size);
+    }
+}
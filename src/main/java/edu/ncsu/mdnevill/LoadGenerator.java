@@ -0,0 +1,414 @@
+package edu.ncsu.mdnevill;
+
+import edu.ncsu.mdnevill.bitmap.BitmapEngine;
+import edu.ncsu.mdnevill.bitmap.LogLinearHistogram;
+import edu.ncsu.mdnevill.bitmap.QueryMetrics;
+import org.mapdb.DBMaker;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * @author Mitchell Neville
+ * Loads one engine with concurrent clients for a fixed time. Each client thread sends
+ * a random mix of the equality, range and mixed queries App runs, with random
+ * constants, and records how long each one took.
+ *
+ * In closed-loop mode each client sends its next query as soon as the last one
+ * returns, which measures the most the engine can do but hides stalls: while a query
+ * is stuck, the queries that would have queued up behind it are never sent. The
+ * report therefore also gives the latencies corrected for this coordinated omission,
+ * taking the mean service time as the interval at which each client meant to send.
+ * In open-loop mode the clients send at a fixed total rate whatever happens, and each
+ * query's response time is counted from when it was due to be sent, so time spent
+ * waiting behind a slow query is included.
+ *
+ * Settings are given as key=value arguments; see DEFAULTS:
+ * java -cp ... edu.ncsu.mdnevill.LoadGenerator threads=8 mode=open rate=20000 mix=equality:2,range:1
+ */
+public class LoadGenerator {
+    // Settings of main and their defaults
+    static final String[][] DEFAULTS = {
+            {"csv", "data/booksWithPrices.csv"},
+            {"rows", "-1"},
+            {"indexOptions", "<binning none/><encoding equality/>"},
+            // Engines to load in turn: bitmap, mapdb
+            {"engines", "bitmap,mapdb"},
+            {"threads", "4"},
+            // closed or open
+            {"mode", "closed"},
+            // Total queries per second sent in open-loop mode
+            {"rate", "1000"},
+            {"seconds", "10"},
+            // Seconds run before measuring, so the JIT has compiled the query paths
+            {"warmupSeconds", "2"},
+            // Relative weights of the query kinds
+            {"mix", "equality:1,range:1,mixed:1"},
+            {"seed", "100"}
+    };
+    public static final String CLOSED = "closed";
+    public static final String OPEN = "open";
+    // Query kinds, in the order of the weights
+    static final String[] KINDS = {"equality", "range", "mixed"};
+    static final int EQUALITY = 0;
+    static final int RANGE = 1;
+
+    private final String engine;
+    private final int threads;
+    private final String mode;
+    private final double rate;
+    private final long warmupNanos;
+    private final long durationNanos;
+    // Cumulative weights of the query kinds
+    private final double[] mix;
+    private final long seed;
+    // Ranges the query constants are drawn from
+    private final int minYear;
+    private final int maxYear;
+    private final double maxPrice;
+
+    // Time from starting a query to its result, by kind, with the total last
+    private final LogLinearHistogram[] service = new LogLinearHistogram[KINDS.length + 1];
+    // Time from when a query was due to be sent to its result, in open-loop mode
+    private final LogLinearHistogram[] response = new LogLinearHistogram[KINDS.length + 1];
+    // Rows returned, so the queries cannot be optimized away
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    // When measuring started, and when the last measured query finished
+    private long measureStart;
+    private final AtomicLong lastFinish = new AtomicLong();
+
+    /**
+     * Create a load generator for the databases App has loaded
+     * @param engine "bitmap" or "mapdb"
+     * @param threads Number of clients
+     * @param mode CLOSED or OPEN
+     * @param rate Total queries per second in open-loop mode
+     * @param warmupSeconds
+     * @param seconds Time measured
+     * @param mix Weights of the equality, range and mixed queries
+     * @param seed
+     */
+    public LoadGenerator(String engine, int threads, String mode, double rate, long warmupSeconds, long seconds,
+                         double[] mix, long seed)
+    {
+        if(!engine.equals("bitmap") && !engine.equals("mapdb")){
+            throw new IllegalArgumentException("Unknown engine: " + engine);
+        }
+        if(!mode.equals(CLOSED) && !mode.equals(OPEN)){
+            throw new IllegalArgumentException("Unknown mode: " + mode);
+        }
+        if(threads < 1 || seconds < 1 || (mode.equals(OPEN) && rate <= 0)){
+            throw new IllegalArgumentException("Threads, seconds and rate must be positive");
+        }
+        this.engine = engine;
+        this.threads = threads;
+        this.mode = mode;
+        this.rate = rate;
+        this.warmupNanos = warmupSeconds * 1000000000L;
+        this.durationNanos = seconds * 1000000000L;
+        this.mix = new double[KINDS.length];
+        double total = 0;
+        for(int i = 0; i < KINDS.length; i++){
+            total += mix[i];
+            this.mix[i] = total;
+        }
+        if(total <= 0){
+            throw new IllegalArgumentException("The query mix has no weight");
+        }
+        this.seed = seed;
+        ColumnStatistics years = App.columnStats.get("year");
+        ColumnStatistics prices = App.columnStats.get("price");
+        minYear = (int) years.getMin();
+        maxYear = (int) years.getMax();
+        maxPrice = prices.getMax();
+        for(int i = 0; i <= KINDS.length; i++){
+            service[i] = new LogLinearHistogram();
+            response[i] = new LogLinearHistogram();
+        }
+    }
+
+    /**
+     * Run the clients until the time is up, then print the report
+     * @throws InterruptedException
+     */
+    public void run() throws InterruptedException
+    {
+        final long start = System.nanoTime();
+        measureStart = start + warmupNanos;
+        final long end = measureStart + durationNanos;
+        List<Thread> clients = new ArrayList<Thread>();
+        for(int i = 0; i < threads; i++){
+            final int client = i;
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    runClient(client, start, end);
+                }
+            }, engine + "-client-" + i);
+            clients.add(t);
+            t.start();
+        }
+        for(Thread t : clients){
+            t.join();
+        }
+        System.out.println(report());
+    }
+
+    /**
+     * Send queries from one client until the end time
+     */
+    private void runClient(int client, long start, long end)
+    {
+        Random r = new Random(seed + client);
+        // Each client sends every threads-th query of the open-loop schedule
+        double interval = threads * 1e9 / rate;
+        long due;
+        long k = 0;
+        while(true){
+            long now = System.nanoTime();
+            if(mode.equals(OPEN)){
+                due = start + (long) (client * 1e9 / rate + k++ * interval);
+                if(due >= end){
+                    return;
+                }
+                while(now < due){
+                    LockSupport.parkNanos(due - now);
+                    now = System.nanoTime();
+                }
+            }
+            else{
+                if(now >= end){
+                    return;
+                }
+                due = now;
+            }
+            int kind = kind(r.nextDouble() * mix[mix.length - 1]);
+            int year = minYear + r.nextInt(maxYear - minYear + 1);
+            double price = Math.round(r.nextDouble() * maxPrice * 100) / 100.0;
+            String where = where(kind, year, price);
+
+            long begin = System.nanoTime();
+            int n = query(kind, year, price, where);
+            long finish = System.nanoTime();
+            if(n < 0){
+                errors.incrementAndGet();
+                continue;
+            }
+            hits.addAndGet(n);
+            if(due >= measureStart){
+                service[kind].record(finish - begin);
+                service[KINDS.length].record(finish - begin);
+                response[kind].record(finish - due);
+                response[KINDS.length].record(finish - due);
+                long last = lastFinish.get();
+                while(finish > last && !lastFinish.compareAndSet(last, finish)){
+                    last = lastFinish.get();
+                }
+            }
+        }
+    }
+
+    private int kind(double x)
+    {
+        for(int i = 0; i < mix.length; i++){
+            if(x < mix[i]){
+                return i;
+            }
+        }
+        return mix.length - 1;
+    }
+
+    /**
+     * Get the WHERE clause of a query for the bitmap engine, formatted before the clock
+     * starts
+     */
+    private String where(int kind, int year, double price)
+    {
+        if(!engine.equals("bitmap")){
+            return null;
+        }
+        if(kind == EQUALITY){
+            return "year = " + year;
+        }
+        if(kind == RANGE){
+            return "year >= " + year;
+        }
+        return "year = " + year + " and price >= " + String.format(Locale.US, "%.2f", price);
+    }
+
+    /**
+     * Run one query, returning the number of ids found or -1 on failure
+     */
+    private int query(int kind, int year, double price, String where)
+    {
+        if(engine.equals("bitmap")){
+            BitmapEngine.QueryHandle h = App.fb.build_query(null, App.fb_dir, where);
+            if(h == null){
+                return -1;
+            }
+            App.fb.get_result_size(h);
+            int[] ids = App.fb.get_qualified_ints(h, "id");
+            App.fb.destroy_query(h);
+            return ids == null ? -1 : ids.length;
+        }
+        if(kind == EQUALITY){
+            return App.bTreeRepo.getIdsByYear(year).length;
+        }
+        if(kind == RANGE){
+            return App.bTreeRepo.getIdsByYear(year, true).length;
+        }
+        return App.bTreeRepo.getIdsByYearAndPrice(year, price, true).length;
+    }
+
+    /**
+     * Get the time from the start of measuring to the end of the last measured query.
+     * Queries sent before the time was up may finish after it, so this can be longer
+     * than the time configured.
+     * @return Seconds, or 0 if no query was measured
+     */
+    double getElapsedSeconds()
+    {
+        long last = lastFinish.get();
+        return last > measureStart ? (last - measureStart) / 1e9 : 0;
+    }
+
+    /**
+     * Get the number of measured queries completed per second
+     * @return
+     */
+    double getThroughput()
+    {
+        double seconds = getElapsedSeconds();
+        return seconds > 0 ? service[KINDS.length].getCount() / seconds : 0;
+    }
+
+    /**
+     * Describe the measured queries. In open-loop mode the rate achieved is given
+     * next to the rate offered, as an engine that cannot keep up falls behind it.
+     * @return
+     */
+    public String report()
+    {
+        LogLinearHistogram all = service[KINDS.length];
+        StringBuilder sb = new StringBuilder();
+        sb.append(engine).append(' ').append(mode).append(" loop, ").append(threads).append(" clients");
+        sb.append(String.format(", %.1f s: %d queries, ", getElapsedSeconds(), all.getCount()));
+        if(mode.equals(OPEN)){
+            sb.append(String.format("offered %.1f queries/s, achieved ", rate));
+        }
+        sb.append(String.format("%.1f queries/s, %d rows, %d errors", getThroughput(), hits.get(), errors.get()));
+        // A closed-loop client means to send a query every mean service time
+        long interval = Math.round(all.getMean());
+        for(int i = 0; i <= KINDS.length; i++){
+            String name = i < KINDS.length ? KINDS[i] : "all";
+            if(service[i].getCount() == 0){
+                continue;
+            }
+            sb.append("\n  ").append(name).append(": ").append(service[i].getCount()).append(" queries, service ")
+                    .append(QueryMetrics.describeLatency(service[i]));
+            if(mode.equals(OPEN)){
+                sb.append("; response ").append(QueryMetrics.describeLatency(response[i]));
+            }
+            else{
+                sb.append("; corrected ").append(QueryMetrics.describeLatency(
+                        service[i].copyCorrectedForCoordinatedOmission(interval)));
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Parse a query mix such as "equality:2,range:1"; kinds left out get no weight
+     * @param spec
+     * @return Weights in the order of KINDS
+     */
+    static double[] parseMix(String spec)
+    {
+        double[] ret = new double[KINDS.length];
+        for(String part : spec.split(",")){
+            String[] kv = part.trim().split(":");
+            int kind = -1;
+            for(int i = 0; i < KINDS.length; i++){
+                if(KINDS[i].equals(kv[0].trim())){
+                    kind = i;
+                }
+            }
+            if(kind < 0){
+                throw new IllegalArgumentException("Unknown query kind: " + kv[0]);
+            }
+            ret[kind] = kv.length > 1 ? Double.parseDouble(kv[1].trim()) : 1;
+        }
+        return ret;
+    }
+
+    /**
+     * Load the databases, then load each engine in turn with concurrent clients.
+     * Settings are given as key=value arguments; see DEFAULTS.
+     * @param args
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public static void main(String[] args) throws IOException, InterruptedException
+    {
+        Properties settings = new Properties();
+        for(String[] d : DEFAULTS){
+            settings.setProperty(d[0], d[1]);
+        }
+        for(String arg : args){
+            int eq = arg.indexOf('=');
+            if(eq < 0){
+                System.out.println("Expected key=value: " + arg);
+                return;
+            }
+            settings.setProperty(arg.substring(0, eq).trim(), arg.substring(eq + 1).trim());
+        }
+
+        App.dbFile = File.createTempFile("mapdb", "db");
+        App.db = DBMaker.newFileDB(App.dbFile)
+                .closeOnJvmShutdown()
+                .deleteFilesAfterClose()
+                .make();
+        App.queryMetrics = App.newQueryMetrics();
+        App.bTreeRepo = App.queryMetrics == null ? new MapDbBookRepository(App.db)
+                : new InstrumentedBookRepository(App.db, App.queryMetrics);
+        App.resultCache = App.newResultCache();
+        App.bTreeRepo.setResultCache(App.resultCache);
+        String indexOptions = settings.getProperty("indexOptions");
+        App.initializeDb(settings.getProperty("csv"), Integer.parseInt(settings.getProperty("rows")), indexOptions);
+        if(App.columnStats == null){
+            return;
+        }
+        App.fb.build_indexes(App.fb_dir, indexOptions);
+
+        try{
+            for(String engine : settings.getProperty("engines").split(",")){
+                System.out.println();
+                new LoadGenerator(engine.trim(),
+                        Integer.parseInt(settings.getProperty("threads")),
+                        settings.getProperty("mode"),
+                        Double.parseDouble(settings.getProperty("rate")),
+                        Long.parseLong(settings.getProperty("warmupSeconds")),
+                        Long.parseLong(settings.getProperty("seconds")),
+                        parseMix(settings.getProperty("mix")),
+                        Long.parseLong(settings.getProperty("seed"))).run();
+            }
+        }
+        catch(IllegalArgumentException e){
+            System.out.println(e.getMessage());
+        }
+        if(App.queryMetrics != null){
+            App.queryMetrics.stopSnapshots();
+            System.out.println();
+            System.out.println(App.queryMetrics.snapshot(false));
+        }
+        App.db.close();
+    }
+}
@@ -1,28 +1,73 @@
 package edu.ncsu.mdnevill;
 
+import edu.ncsu.mdnevill.bitmap.Predicate;
+import edu.ncsu.mdnevill.bitmap.ResultCache;
+import edu.ncsu.mdnevill.bitmap.RoaringBitmap;
+import edu.ncsu.mdnevill.bitmap.WahBitVector;
 import org.mapdb.BTreeMap;
 import org.mapdb.Bind;
 import org.mapdb.DB;
 import org.mapdb.Fun;
+import org.mapdb.Serializer;
 
 import java.util.*;
-import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * @author Mitchell Neville
  * This class is a repository for interacting with a MapDB database of Book
  * objects.
+ *
+ * The repository may be shared by any number of threads. Queries hold a shared
+ * lock, so they run in parallel, while add, append, bulkLoad and clear hold it
+ * exclusively. Scans of MapDB trees are only weakly consistent, so a scan running
+ * beside an add could see a book's index entry both before and after it moved, or
+ * miss it; with the lock every query sees the books as they were between two
+ * changes. Cursors read the trees a batch at a time as they are iterated, each batch
+ * under the shared lock, so they see the adds made since they were opened. bulkLoad
+ * and clear replace the trees, and cursors opened before either throw
+ * ConcurrentModificationException when next read.
+ *
+ * With postings enabled, the repository also keeps, for each year, price and
+ * author, a Roaring bitmap of the ids having it. A {@link BookQuery} combining
+ * conditions on those columns is then answered by and-ing and or-ing the bitmaps,
+ * rather than by reading one secondary index entry per matching id.
  */
 public class MapDbBookRepository {
+    // MapDB database holding the trees
+    final DB db;
+    // MapDB database holding the secondary indexes
+    final DB indexDb;
+    // Serializer for the Book values stored in the trees
+    final Serializer<Book> valueSerializer;
     // MapDB's B-Tree Index implementation
     BTreeMap<Integer, Book> bTree;
-    BTreeMap<Fun.Tuple2<Integer, Double>, Book> subTree;
     // Used for querying Books by author
     NavigableSet<Fun.Tuple2<String, Integer>> bookByAuthor;
     // Used for querying Books by publishing year
     NavigableSet<Fun.Tuple2<Integer, Integer>> bookByYear;
     // Used for querying Books by price
     NavigableSet<Fun.Tuple2<Double, Integer>> bookByPrice;
+    // Composite index of (year, price, id), used for queries on both columns
+    NavigableSet<Fun.Tuple3<Integer, Double, Integer>> bookByYearAndPrice;
+    // Ids of the books with each year, price and author; null unless postings are enabled
+    BTreeMap<Integer, RoaringBitmap> postingsByYear;
+    BTreeMap<Double, RoaringBitmap> postingsByPrice;
+    // Ids of the books with a price in each bin of PRICE_BIN, so a wide range of prices
+    // reads one bitmap per bin rather than per price
+    BTreeMap<Integer, RoaringBitmap> postingsByPriceBin;
+    BTreeMap<String, RoaringBitmap> postingsByAuthor;
+    // Cache of id query results, or null
+    ResultCache cache;
+    // Name of this repository's results in the cache
+    final String cacheName = "mapdb:" + Integer.toHexString(System.identityHashCode(this));
+    // Shared by queries, and held exclusively by the methods changing the books
+    final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    // Number of times bulkLoad and clear have replaced the trees, so cursors opened
+    // on the old ones can tell; changed only under the exclusive lock
+    int generation;
+    // Width of the bins of the price postings, in dollars
+    static final double PRICE_BIN = 1.00;
 
     /**
      * Create a new repository
@@ -30,38 +75,393 @@ public class MapDbBookRepository {
      */
     public MapDbBookRepository(DB db)
     {
-        this.bTree = db.getTreeMap("books");
-        this.subTree = db.getTreeMap("booksByYearAndPrice");
+        this(db, new BookSerializer());
+    }
+
+    /**
+     * Create a new repository storing books with the given serializer. Trees that
+     * already exist in the database keep the serializer they were created with.
+     * @param db MapDB DB object
+     * @param valueSerializer Serializer for Book values
+     */
+    public MapDbBookRepository(DB db, Serializer<Book> valueSerializer)
+    {
+        this(db, db, valueSerializer);
+    }
+
+    /**
+     * Create a new repository keeping its secondary indexes in a separate database,
+     * such as one made with DBMaker.newMemoryDirectDB() to hold them off-heap, or a
+     * memory-mapped file.
+     * @param db MapDB DB object for the books
+     * @param indexDb MapDB DB object for the secondary indexes
+     * @param valueSerializer Serializer for Book values
+     */
+    public MapDbBookRepository(DB db, DB indexDb, Serializer<Book> valueSerializer)
+    {
+        this.db = db;
+        this.indexDb = indexDb;
+        this.valueSerializer = valueSerializer;
+        this.bTree = db.createTreeMap("books")
+                .valueSerializer(valueSerializer)
+                .makeOrGet();
         setMapDbBindings();
     }
 
     /**
-     * Set the bindings for performing queries on attributes
+     * Set the bindings for performing queries on attributes. The secondary indexes
+     * are MapDB tree sets, so they persist with the database; a reopened database
+     * reuses them as they are and only empty indexes are rebuilt from the B-Tree.
+     * Postings found in the database are reopened, and so stay enabled.
      */
     public void setMapDbBindings()
     {
-        bookByAuthor = new TreeSet<Fun.Tuple2<String, Integer>>();
-        Bind.secondaryKey(bTree, bookByAuthor, new Fun.Function2<String, Integer, Book>() {
-            @Override
-            public String run(Integer key, Book value) {
-                return value.author;
-            }
-        });
+        bookByAuthor = indexDb.createTreeSet("bookByAuthor")
+                .serializer(IndexKeySerializers.AUTHOR_ID)
+                .makeOrGet();
+        bookByYear = indexDb.createTreeSet("bookByYear")
+                .serializer(IndexKeySerializers.YEAR_ID)
+                .makeOrGet();
+        bookByPrice = indexDb.createTreeSet("bookByPrice")
+                .serializer(IndexKeySerializers.PRICE_ID)
+                .makeOrGet();
+        bookByYearAndPrice = indexDb.createTreeSet("bookByYearAndPrice")
+                .serializer(IndexKeySerializers.YEAR_PRICE_ID)
+                .makeOrGet();
+        if(postingsByYear != null || indexDb.exists("postingsByYear")){
+            openPostings();
+        }
+        bindSecondaryKeys();
+    }
 
-        bookByYear = new TreeSet<Fun.Tuple2<Integer, Integer>>();
+    /**
+     * Bind the secondary index sets to the B-Tree. Empty sets are filled from the
+     * B-Tree; sets that already hold entries are assumed to be up to date.
+     */
+    void bindSecondaryKeys()
+    {
+        bindAuthor();
         Bind.secondaryKey(bTree, bookByYear, new Fun.Function2<Integer, Integer, Book>(){
             @Override
             public Integer run(Integer key, Book value){
                 return value.year;
             }
         });
-        bookByPrice = new TreeSet<Fun.Tuple2<Double, Integer>>();
         Bind.secondaryKey(bTree, bookByPrice, new Fun.Function2<Double, Integer, Book>(){
             @Override
             public Double run(Integer key, Book value){
                 return value.price;
             }
         });
+        bindYearAndPrice();
+        if(postingsByYear != null){
+            bindPostings();
+        }
+    }
+
+    /**
+     * Bind the author index the same way Bind.secondaryKey binds the others. Books
+     * without an author are indexed under null, which Bind.secondaryKey cannot compare
+     * when such a book is overwritten.
+     */
+    private void bindAuthor()
+    {
+        final NavigableSet<Fun.Tuple2<String, Integer>> index = bookByAuthor;
+        if(index.isEmpty()){
+            for(Map.Entry<Integer, Book> e : bTree.entrySet()){
+                index.add(Fun.t2(e.getValue().author, e.getKey()));
+            }
+        }
+        bTree.modificationListenerAdd(new Bind.MapListener<Integer, Book>() {
+            @Override
+            public void update(Integer key, Book oldVal, Book newVal) {
+                if(oldVal != null && newVal != null && Fun.eq(oldVal.author, newVal.author)){
+                    return;
+                }
+                if(oldVal != null){
+                    index.remove(Fun.t2(oldVal.author, key));
+                }
+                if(newVal != null){
+                    index.add(Fun.t2(newVal.author, key));
+                }
+            }
+        });
+    }
+
+    /**
+     * Bind the covering index the same way Bind.secondaryKey binds the others, but
+     * with (year, price, id) keys
+     */
+    private void bindYearAndPrice()
+    {
+        final NavigableSet<Fun.Tuple3<Integer, Double, Integer>> index = bookByYearAndPrice;
+        if(index.isEmpty()){
+            for(Map.Entry<Integer, Book> e : bTree.entrySet()){
+                index.add(Fun.t3(e.getValue().year, e.getValue().price, e.getKey()));
+            }
+        }
+        bTree.modificationListenerAdd(new Bind.MapListener<Integer, Book>() {
+            @Override
+            public void update(Integer key, Book oldVal, Book newVal) {
+                if(oldVal != null){
+                    index.remove(Fun.t3(oldVal.year, oldVal.price, key));
+                }
+                if(newVal != null){
+                    index.add(Fun.t3(newVal.year, newVal.price, key));
+                }
+            }
+        });
+    }
+
+    /**
+     * Keep postings, so that a {@link BookQuery} is answered with set operations on
+     * bitmaps of ids. They are built from the B-Tree now, kept up to date by later
+     * changes, and persist with the index database. Enabling them again does nothing.
+     */
+    public void enablePostings()
+    {
+        lock.writeLock().lock();
+        try{
+            if(postingsByYear == null){
+                openPostings();
+                bindPostings();
+                invalidateCache();
+            }
+        }
+        finally{
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Are postings enabled?
+     * @return
+     */
+    public boolean hasPostings()
+    {
+        return postingsByYear != null;
+    }
+
+    /**
+     * Open or create the postings. Their bitmaps are kept outside the tree nodes, so
+     * updating one id rewrites only the bitmap of its key.
+     */
+    private void openPostings()
+    {
+        postingsByYear = indexDb.createTreeMap("postingsByYear")
+                .keySerializer(IndexKeySerializers.INT_KEY)
+                .valueSerializer(IndexKeySerializers.POSTINGS)
+                .valuesOutsideNodesEnable()
+                .makeOrGet();
+        postingsByPrice = indexDb.createTreeMap("postingsByPrice")
+                .keySerializer(IndexKeySerializers.PRICE_KEY)
+                .valueSerializer(IndexKeySerializers.POSTINGS)
+                .valuesOutsideNodesEnable()
+                .makeOrGet();
+        postingsByPriceBin = indexDb.createTreeMap("postingsByPriceBin")
+                .keySerializer(IndexKeySerializers.INT_KEY)
+                .valueSerializer(IndexKeySerializers.POSTINGS)
+                .valuesOutsideNodesEnable()
+                .makeOrGet();
+        postingsByAuthor = indexDb.createTreeMap("postingsByAuthor")
+                .keySerializer(IndexKeySerializers.STRING_KEY)
+                .valueSerializer(IndexKeySerializers.POSTINGS)
+                .valuesOutsideNodesEnable()
+                .makeOrGet();
+    }
+
+    /**
+     * Get the bin of the price postings holding a price. Prices whose bin number is
+     * beyond the int range, including infinite prices, are put in the first and last
+     * bins, as is NaN; those two bins are never read whole.
+     */
+    static int priceBin(double price)
+    {
+        if(Double.isNaN(price)){
+            return Integer.MAX_VALUE;
+        }
+        return (int) Math.floor(price / PRICE_BIN);
+    }
+
+    /**
+     * Bind the postings to the B-Tree, filling them from it first if they are empty
+     */
+    private void bindPostings()
+    {
+        if(postingsByYear.isEmpty() && !bTree.isEmpty()){
+            Postings p = new Postings();
+            for(Map.Entry<Integer, Book> e : bTree.entrySet()){
+                p.add(e.getKey(), e.getValue());
+            }
+            dropPostings();
+            pumpPostings(p);
+        }
+        bTree.modificationListenerAdd(new Bind.MapListener<Integer, Book>() {
+            @Override
+            public void update(Integer key, Book oldVal, Book newVal) {
+                // Dropped while the B-Tree is deleted entry by entry
+                if(postingsByYear == null){
+                    return;
+                }
+                movePosting(postingsByYear, oldVal == null ? null : oldVal.year,
+                        newVal == null ? null : newVal.year, key);
+                movePosting(postingsByPrice, oldVal == null ? null : oldVal.price,
+                        newVal == null ? null : newVal.price, key);
+                movePosting(postingsByPriceBin, oldVal == null ? null : priceBin(oldVal.price),
+                        newVal == null ? null : priceBin(newVal.price), key);
+                movePosting(postingsByAuthor, oldVal == null ? null : oldVal.author,
+                        newVal == null ? null : newVal.author, key);
+            }
+        });
+    }
+
+    /**
+     * Move an id from the bitmap of its old key to that of its new one. The bitmaps
+     * read from MapDB may be shared by its instance cache, so they are copied before
+     * being changed.
+     * @param postings
+     * @param oldKey Key before the change, or null
+     * @param newKey Key after the change, or null
+     * @param id
+     */
+    private static <K> void movePosting(BTreeMap<K, RoaringBitmap> postings, K oldKey, K newKey, int id)
+    {
+        if(oldKey != null && oldKey.equals(newKey)){
+            return;
+        }
+        if(oldKey != null){
+            RoaringBitmap ids = postings.get(oldKey);
+            if(ids != null && ids.contains(id)){
+                ids = ids.copy();
+                ids.remove(id);
+                if(ids.isEmpty()){
+                    postings.remove(oldKey);
+                }
+                else{
+                    postings.put(oldKey, ids);
+                }
+            }
+        }
+        if(newKey != null){
+            RoaringBitmap ids = postings.get(newKey);
+            ids = ids == null ? new RoaringBitmap() : ids.copy();
+            ids.add(id);
+            postings.put(newKey, ids);
+        }
+    }
+
+    /**
+     * Postings gathered in memory, to be written with the data pump
+     */
+    private static class Postings {
+        final TreeMap<Integer, RoaringBitmap> years = new TreeMap<Integer, RoaringBitmap>();
+        final TreeMap<Double, RoaringBitmap> prices = new TreeMap<Double, RoaringBitmap>();
+        final TreeMap<Integer, RoaringBitmap> priceBins = new TreeMap<Integer, RoaringBitmap>();
+        final TreeMap<String, RoaringBitmap> authors = new TreeMap<String, RoaringBitmap>();
+
+        /**
+         * Add a book; adding them in order of id is fastest
+         */
+        void add(int id, Book b)
+        {
+            add(years, b.year, id);
+            add(prices, b.price, id);
+            add(priceBins, priceBin(b.price), id);
+            if(b.author != null){
+                add(authors, b.author, id);
+            }
+        }
+
+        private static <K> void add(TreeMap<K, RoaringBitmap> postings, K key, int id)
+        {
+            RoaringBitmap ids = postings.get(key);
+            if(ids == null){
+                ids = new RoaringBitmap();
+                postings.put(key, ids);
+            }
+            ids.add(id);
+        }
+    }
+
+    /**
+     * Delete the postings, before deleting the B-Tree, so its listener does not
+     * update them for every book removed
+     * @return Whether postings were enabled
+     */
+    private boolean dropPostings()
+    {
+        if(postingsByYear == null){
+            return false;
+        }
+        postingsByYear = null;
+        postingsByPrice = null;
+        postingsByPriceBin = null;
+        postingsByAuthor = null;
+        indexDb.delete("postingsByYear");
+        indexDb.delete("postingsByPrice");
+        indexDb.delete("postingsByPriceBin");
+        indexDb.delete("postingsByAuthor");
+        return true;
+    }
+
+    /**
+     * Create the postings with the data pump, once they have been dropped
+     */
+    private void pumpPostings(Postings p)
+    {
+        postingsByYear = pumpPostings(indexDb.createTreeMap("postingsByYear")
+                .keySerializer(IndexKeySerializers.INT_KEY), p.years);
+        postingsByPrice = pumpPostings(indexDb.createTreeMap("postingsByPrice")
+                .keySerializer(IndexKeySerializers.PRICE_KEY), p.prices);
+        postingsByPriceBin = pumpPostings(indexDb.createTreeMap("postingsByPriceBin")
+                .keySerializer(IndexKeySerializers.INT_KEY), p.priceBins);
+        postingsByAuthor = pumpPostings(indexDb.createTreeMap("postingsByAuthor")
+                .keySerializer(IndexKeySerializers.STRING_KEY), p.authors);
+    }
+
+    private static <K> BTreeMap<K, RoaringBitmap> pumpPostings(DB.BTreeMapMaker maker, TreeMap<K, RoaringBitmap> postings)
+    {
+        maker.valueSerializer(IndexKeySerializers.POSTINGS)
+                .valuesOutsideNodesEnable();
+        if(!postings.isEmpty()){
+            // The pump requires its source in descending key order
+            List<Fun.Tuple2<K, RoaringBitmap>> entries = new ArrayList<Fun.Tuple2<K, RoaringBitmap>>(postings.size());
+            for(Map.Entry<K, RoaringBitmap> e : postings.entrySet()){
+                entries.add(Fun.t2(e.getKey(), e.getValue()));
+            }
+            maker.pumpSource(reversed(entries));
+        }
+        return maker.make();
+    }
+
+    /**
+     * Cache the results of the id-only and count queries. Cached results are kept as
+     * bitvectors of ids, so with a cache the ids come back in ascending order. They
+     * are dropped whenever add, append, bulkLoad or clear changes the books.
+     * @param cache Result cache, or null for none
+     */
+    public void setResultCache(ResultCache cache)
+    {
+        lock.writeLock().lock();
+        try{
+            if(this.cache != null){
+                this.cache.invalidate(cacheName);
+            }
+            this.cache = cache;
+        }
+        finally{
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Drop the cached results after a change to the books
+     */
+    private void invalidateCache()
+    {
+        if(cache != null){
+            cache.invalidate(cacheName);
+        }
     }
 
     /**
@@ -70,7 +470,13 @@ public class MapDbBookRepository {
      */
     public int size()
     {
-        return bTree.size();
+        lock.readLock().lock();
+        try{
+            return bTree.size();
+        }
+        finally{
+            lock.readLock().unlock();
+        }
     }
 
     /**
@@ -80,7 +486,13 @@ public class MapDbBookRepository {
      */
     public Book get(int id)
     {
-        return bTree.get(id);
+        lock.readLock().lock();
+        try{
+            return bTree.get(id);
+        }
+        finally{
+            lock.readLock().unlock();
+        }
     }
 
     /**
@@ -90,16 +502,177 @@ public class MapDbBookRepository {
      */
     public void add(Book b, int id)
     {
-        bTree.put(id, b);
-        subTree.put(Fun.t2(b.year, b.price), b);
+        lock.writeLock().lock();
+        try{
+            bTree.put(id, b);
+            invalidateCache();
+        }
+        finally{
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Replace the contents of the repository with the given books, assigning ids
+     * 1, 2, ... in iteration order. Instead of inserting row by row, every tree is
+     * built bottom-up with MapDB's data pump from presorted keys, including the
+     * secondary index sets, and the bindings are attached once the trees are complete.
+     * @param books
+     */
+    public void bulkLoad(Iterator<Book> books)
+    {
+        List<Fun.Tuple2<Integer, Book>> byId = new ArrayList<Fun.Tuple2<Integer, Book>>();
+        while(books.hasNext()){
+            byId.add(Fun.t2(byId.size() + 1, books.next()));
+        }
+
+        lock.writeLock().lock();
+        try{
+            pump(byId);
+        }
+        finally{
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Add the given books after the ones already in the repository, assigning ids
+     * that continue from the largest id in use, in iteration order. The books are
+     * inserted into the existing trees, the bindings updating the secondary indexes,
+     * so the cost depends on the number of books added rather than on the number
+     * already stored.
+     * @param books
+     * @return Id of the first book added
+     */
+    public int append(Iterator<Book> books)
+    {
+        lock.writeLock().lock();
+        try{
+            int first = bTree.isEmpty() ? 1 : bTree.lastKey() + 1;
+            int id = first;
+            while(books.hasNext()){
+                bTree.put(id++, books.next());
+            }
+            invalidateCache();
+            return first;
+        }
+        finally{
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Replace every tree with one built by the data pump from the books by id
+     */
+    private void pump(List<Fun.Tuple2<Integer, Book>> byId)
+    {
+        boolean postings = dropPostings();
+        generation++;
+        // The pump requires its source in descending key order
+        db.delete("books");
+        bTree = db.createTreeMap("books")
+                .valueSerializer(valueSerializer)
+                .pumpSource(reversed(byId))
+                .make();
+
+        List<Fun.Tuple2<String, Integer>> authors = new ArrayList<Fun.Tuple2<String, Integer>>(byId.size());
+        List<Fun.Tuple2<Integer, Integer>> years = new ArrayList<Fun.Tuple2<Integer, Integer>>(byId.size());
+        List<Fun.Tuple2<Double, Integer>> prices = new ArrayList<Fun.Tuple2<Double, Integer>>(byId.size());
+        List<Fun.Tuple3<Integer, Double, Integer>> yearsAndPrices =
+                new ArrayList<Fun.Tuple3<Integer, Double, Integer>>(byId.size());
+        for(Fun.Tuple2<Integer, Book> e : byId){
+            authors.add(Fun.t2(e.b.author, e.a));
+            years.add(Fun.t2(e.b.year, e.a));
+            prices.add(Fun.t2(e.b.price, e.a));
+            yearsAndPrices.add(Fun.t3(e.b.year, e.b.price, e.a));
+        }
+        Collections.sort(authors);
+        Collections.sort(years);
+        Collections.sort(prices);
+        Collections.sort(yearsAndPrices);
+        indexDb.delete("bookByAuthor");
+        indexDb.delete("bookByYear");
+        indexDb.delete("bookByPrice");
+        indexDb.delete("bookByYearAndPrice");
+        bookByAuthor = indexDb.createTreeSet("bookByAuthor")
+                .serializer(IndexKeySerializers.AUTHOR_ID)
+                .pumpSource(reversed(authors))
+                .make();
+        bookByYear = indexDb.createTreeSet("bookByYear")
+                .serializer(IndexKeySerializers.YEAR_ID)
+                .pumpSource(reversed(years))
+                .make();
+        bookByPrice = indexDb.createTreeSet("bookByPrice")
+                .serializer(IndexKeySerializers.PRICE_ID)
+                .pumpSource(reversed(prices))
+                .make();
+        bookByYearAndPrice = indexDb.createTreeSet("bookByYearAndPrice")
+                .serializer(IndexKeySerializers.YEAR_PRICE_ID)
+                .pumpSource(reversed(yearsAndPrices))
+                .make();
+        if(postings){
+            Postings p = new Postings();
+            for(Fun.Tuple2<Integer, Book> e : byId){
+                p.add(e.a, e.b);
+            }
+            pumpPostings(p);
+        }
+        bindSecondaryKeys();
+        invalidateCache();
+    }
+
+    /**
+     * Iterate over a list from the last element to the first
+     */
+    private static <T> Iterator<T> reversed(final List<T> list)
+    {
+        return new Iterator<T>() {
+            int i = list.size();
+
+            @Override
+            public boolean hasNext() {
+                return i > 0;
+            }
+
+            @Override
+            public T next() {
+                return list.get(--i);
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
     }
 
     /**
-     * Clear the B-Tree
+     * Remove every book. The B-Tree and the secondary indexes are dropped and
+     * recreated empty rather than emptied entry by entry.
      */
     public void clear()
     {
-        bTree.clear();
+        lock.writeLock().lock();
+        try{
+            boolean postings = dropPostings();
+            generation++;
+            db.delete("books");
+            bTree = db.createTreeMap("books")
+                    .valueSerializer(valueSerializer)
+                    .make();
+            indexDb.delete("bookByAuthor");
+            indexDb.delete("bookByYear");
+            indexDb.delete("bookByPrice");
+            indexDb.delete("bookByYearAndPrice");
+            if(postings){
+                openPostings();
+            }
+            setMapDbBindings();
+            invalidateCache();
+        }
+        finally{
+            lock.writeLock().unlock();
+        }
     }
 
     /**
@@ -109,13 +682,19 @@ public class MapDbBookRepository {
      */
     public Collection<Book> getByAuthor(String author)
     {
-        Collection<Book> ret = new ArrayList<Book>();
+        lock.readLock().lock();
+        try{
+            Collection<Book> ret = new ArrayList<Book>();
 
-        Iterable<Integer> ids = Fun.filter(bookByAuthor, author);
-        for(Integer id : ids){
-            ret.add(bTree.get(id));
+            Iterable<Integer> ids = Fun.filter(bookByAuthor, author);
+            for(Integer id : ids){
+                ret.add(bTree.get(id));
+            }
+            return ret;
+        }
+        finally{
+            lock.readLock().unlock();
         }
-        return ret;
     }
 
     /**
@@ -128,15 +707,18 @@ public class MapDbBookRepository {
      */
     public Collection<Book> getByYear(int start, boolean startInc, int end, boolean endInc)
     {
-        Collection<Book> ret = new ArrayList<Book>();
-        NavigableSet<Fun.Tuple2<Integer, Integer>> s;
-
-        Iterable<Integer> ids = Fun.filter(bookByYear, start, startInc, end, endInc);
+        lock.readLock().lock();
+        try{
+            Collection<Book> ret = new ArrayList<Book>();
 
-        for(Integer id : ids){
-            ret.add(bTree.get(id));
+            for(Fun.Tuple2<Integer, Integer> item : byYear(start, startInc, end, endInc)){
+                ret.add(bTree.get(item.b));
+            }
+            return ret;
+        }
+        finally{
+            lock.readLock().unlock();
         }
-        return ret;
     }
 
     /**
@@ -147,17 +729,20 @@ public class MapDbBookRepository {
      */
     public Collection<Book> getByYear(int start, boolean startInc)
     {
-        Collection<Book> ret = new ArrayList<Book>();
-        NavigableSet<Fun.Tuple2<Integer, Integer>> s;
-        s = bookByYear.tailSet(new Fun.Tuple2<Integer, Integer>(start, null), startInc);
+        lock.readLock().lock();
+        try{
+            Collection<Book> ret = new ArrayList<Book>();
 
+            for(Fun.Tuple2<Integer, Integer> item : yearsFrom(start, startInc))
+            {
+                ret.add(bTree.get(item.b));
+            }
 
-        for(Fun.Tuple2<Integer, Integer> item : s)
-        {
-            ret.add(bTree.get(item.b));
+            return ret;
+        }
+        finally{
+            lock.readLock().unlock();
         }
-
-        return ret;
     }
 
     /**
@@ -167,15 +752,21 @@ public class MapDbBookRepository {
      */
     public Collection<Book> getByYear(int year)
     {
-        Collection<Book> ret = new ArrayList<Book>();
-        NavigableSet<Fun.Tuple2<Integer, Integer>> s;
+        lock.readLock().lock();
+        try{
+            Collection<Book> ret = new ArrayList<Book>();
+            NavigableSet<Fun.Tuple2<Integer, Integer>> s;
 
-        Iterable<Integer> ids = Fun.filter(bookByYear, year);
+            Iterable<Integer> ids = Fun.filter(bookByYear, year);
 
-        for(Integer id : ids){
-            ret.add(bTree.get(id));
+            for(Integer id : ids){
+                ret.add(bTree.get(id));
+            }
+            return ret;
+        }
+        finally{
+            lock.readLock().unlock();
         }
-        return ret;
     }
 
     /**
@@ -187,15 +778,39 @@ public class MapDbBookRepository {
      */
     public Collection<Book> getByYearAndPrice(int year, double startPrice, boolean startPriceInc)
     {
-        Collection<Book> ret = new ArrayList<Book>();
-        ConcurrentNavigableMap<Fun.Tuple2<Integer, Double>, Book> sub = subTree.subMap(Fun.t2(year, startPrice), Fun.t2(year, Fun.<Double>HI()));
+        return getByYearAndPrice(year, true, year, true, startPrice, startPriceInc, Double.POSITIVE_INFINITY, true);
+    }
 
-        for(Book b : sub.values())
-        {
-            ret.add(b);
+    /**
+     * Get all books published in a range of years whose price is in a range, from
+     * the composite (year, price, id) index
+     * @param startYear Start year
+     * @param startYearInc Is the start year inclusive?
+     * @param endYear End year
+     * @param endYearInc Is the end year inclusive?
+     * @param startPrice Start price
+     * @param startPriceInc Is the start price inclusive?
+     * @param endPrice End price, or Double.POSITIVE_INFINITY
+     * @param endPriceInc Is the end price inclusive?
+     * @return
+     */
+    public Collection<Book> getByYearAndPrice(int startYear, boolean startYearInc, int endYear, boolean endYearInc,
+                                              double startPrice, boolean startPriceInc,
+                                              double endPrice, boolean endPriceInc)
+    {
+        lock.readLock().lock();
+        try{
+            Collection<Book> ret = new ArrayList<Book>();
+            Iterator<Integer> ids = new CompositeScan(startYear, startYearInc, endYear, endYearInc,
+                    startPrice, startPriceInc, endPrice, endPriceInc);
+            while(ids.hasNext()){
+                ret.add(bTree.get(ids.next()));
+            }
+            return ret;
+        }
+        finally{
+            lock.readLock().unlock();
         }
-
-        return ret;
     }
 
     /**
@@ -206,19 +821,1028 @@ public class MapDbBookRepository {
      */
     public Collection<Book> getByPrice(double start, boolean startInc)
     {
-        Collection<Book> ret = new ArrayList<Book>();
-        NavigableSet<Fun.Tuple2<Double, Integer>> s;
+        lock.readLock().lock();
+        try{
+            Collection<Book> ret = new ArrayList<Book>();
 
-        s = bookByPrice.tailSet(new Fun.Tuple2<Double, Integer>(start, null), startInc);
+            for(Fun.Tuple2<Double, Integer> item : byPrice(start, startInc))
+            {
+                ret.add(bTree.get(item.b));
+            }
 
-        for(Fun.Tuple2<Double, Integer> item : s)
-        {
-            ret.add(bTree.get(item.b));
+            return ret;
+        }
+        finally{
+            lock.readLock().unlock();
         }
+    }
 
-        return ret;
+    /**
+     * Get the ids of the books by an author. Like the other id-only queries this
+     * reads only the secondary index and never touches the B-Tree, and returns the
+     * ids in increasing order.
+     * @param author
+     * @return
+     */
+    public int[] getIdsByAuthor(String author)
+    {
+        lock.readLock().lock();
+        try{
+            String key = authorKey(author);
+            WahBitVector cached = cached(key);
+            return cached != null ? cached.toArray() : cache(key, ids(byAuthor(author)));
+        }
+        finally{
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Get the ids of the books published in a specific year
+     * @param year
+     * @return
+     */
+    public int[] getIdsByYear(int year)
+    {
+        lock.readLock().lock();
+        try{
+            String key = yearKey(year, true, year, true);
+            WahBitVector cached = cached(key);
+            return cached != null ? cached.toArray() : cache(key, ids(byYear(year, true, year, true)));
+        }
+        finally{
+            lock.readLock().unlock();
+        }
     }
 
+    /**
+     * Get the ids of the books published in a range of years
+     * @param start Start year
+     * @param startInc Is the start year inclusive?
+     * @param end End year
+     * @param endInc Is the end year inclusive?
+     * @return
+     */
+    public int[] getIdsByYear(int start, boolean startInc, int end, boolean endInc)
+    {
+        lock.readLock().lock();
+        try{
+            String key = yearKey(start, startInc, end, endInc);
+            WahBitVector cached = cached(key);
+            return cached != null ? cached.toArray() : cache(key, ids(byYear(start, startInc, end, endInc)));
+        }
+        finally{
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Get the ids of the books published after a certain year
+     * @param start Start year
+     * @param startInc Is the start year inclusive?
+     * @return
+     */
+    public int[] getIdsByYear(int start, boolean startInc)
+    {
+        lock.readLock().lock();
+        try{
+            String key = yearKey(start, startInc, Double.POSITIVE_INFINITY, true);
+            WahBitVector cached = cached(key);
+            return cached != null ? cached.toArray() : cache(key, ids(yearsFrom(start, startInc)));
+        }
+        finally{
+            lock.readLock().unlock();
+        }
+    }
 
+    /**
+     * Get the ids of the books over a certain price
+     * @param start Start price
+     * @param startInc Is the start price inclusive?
+     * @return
+     */
+    public int[] getIdsByPrice(double start, boolean startInc)
+    {
+        lock.readLock().lock();
+        try{
+            String key = priceKey(start, startInc);
+            WahBitVector cached = cached(key);
+            return cached != null ? cached.toArray() : cache(key, ids(byPrice(start, startInc)));
+        }
+        finally{
+            lock.readLock().unlock();
+        }
+    }
 
+    /**
+     * Get the ids of the books whose price is in a range
+     * @param start Start price
+     * @param startInc Is the start price inclusive?
+     * @param end End price, or Double.POSITIVE_INFINITY
+     * @param endInc Is the end price inclusive?
+     * @return
+     */
+    public int[] getIdsByPrice(double start, boolean startInc, double end, boolean endInc)
+    {
+        lock.readLock().lock();
+        try{
+            String key = priceKey(start, startInc, end, endInc);
+            WahBitVector cached = cached(key);
+            return cached != null ? cached.toArray() : cache(key, ids(byPrice(start, startInc, end, endInc)));
+        }
+        finally{
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Get the ids of the books published in a certain year that are over a certain
+     * price
+     * @param year Publishing year
+     * @param startPrice Start price
+     * @param startPriceInc Is the start price inclusive?
+     * @return
+     */
+    public int[] getIdsByYearAndPrice(int year, double startPrice, boolean startPriceInc)
+    {
+        return getIdsByYearAndPrice(year, true, year, true, startPrice, startPriceInc, Double.POSITIVE_INFINITY, true);
+    }
+
+    /**
+     * Get the ids of the books published in a range of years whose price is in a
+     * range. The composite index covers both columns, so the B-Tree is not read.
+     * @param startYear Start year
+     * @param startYearInc Is the start year inclusive?
+     * @param endYear End year
+     * @param endYearInc Is the end year inclusive?
+     * @param startPrice Start price
+     * @param startPriceInc Is the start price inclusive?
+     * @param endPrice End price, or Double.POSITIVE_INFINITY
+     * @param endPriceInc Is the end price inclusive?
+     * @return
+     */
+    public int[] getIdsByYearAndPrice(int startYear, boolean startYearInc, int endYear, boolean endYearInc,
+                                      double startPrice, boolean startPriceInc,
+                                      double endPrice, boolean endPriceInc)
+    {
+        lock.readLock().lock();
+        try{
+            String key = yearAndPriceKey(startYear, startYearInc, endYear, endYearInc,
+                    startPrice, startPriceInc, endPrice, endPriceInc);
+            WahBitVector cached = cached(key);
+            if(cached != null){
+                return cached.toArray();
+            }
+            IntColumnBuffer ret = new IntColumnBuffer();
+            Iterator<Integer> ids = new CompositeScan(startYear, startYearInc, endYear, endYearInc,
+                    startPrice, startPriceInc, endPrice, endPriceInc);
+            while(ids.hasNext()){
+                ret.add(ids.next());
+            }
+            return cache(key, ret.toArray());
+        }
+        finally{
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Count the books by an author
+     * @param author
+     * @return
+     */
+    public int countByAuthor(String author)
+    {
+        lock.readLock().lock();
+        try{
+            WahBitVector cached = cached(authorKey(author));
+            return cached != null ? cached.cardinality() : byAuthor(author).size();
+        }
+        finally{
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Count the books published in a specific year
+     * @param year
+     * @return
+     */
+    public int countByYear(int year)
+    {
+        lock.readLock().lock();
+        try{
+            WahBitVector cached = cached(yearKey(year, true, year, true));
+            return cached != null ? cached.cardinality() : byYear(year, true, year, true).size();
+        }
+        finally{
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Count the books published in a range of years
+     * @param start Start year
+     * @param startInc Is the start year inclusive?
+     * @param end End year
+     * @param endInc Is the end year inclusive?
+     * @return
+     */
+    public int countByYear(int start, boolean startInc, int end, boolean endInc)
+    {
+        lock.readLock().lock();
+        try{
+            WahBitVector cached = cached(yearKey(start, startInc, end, endInc));
+            return cached != null ? cached.cardinality() : byYear(start, startInc, end, endInc).size();
+        }
+        finally{
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Count the books over a certain price
+     * @param start Start price
+     * @param startInc Is the start price inclusive?
+     * @return
+     */
+    public int countByPrice(double start, boolean startInc)
+    {
+        lock.readLock().lock();
+        try{
+            WahBitVector cached = cached(priceKey(start, startInc));
+            return cached != null ? cached.cardinality() : byPrice(start, startInc).size();
+        }
+        finally{
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Count the books published in a certain year that are over a certain price
+     * @param year Publishing year
+     * @param startPrice Start price
+     * @param startPriceInc Is the start price inclusive?
+     * @return
+     */
+    public int countByYearAndPrice(int year, double startPrice, boolean startPriceInc)
+    {
+        return countByYearAndPrice(year, true, year, true, startPrice, startPriceInc, Double.POSITIVE_INFINITY, true);
+    }
+
+    /**
+     * Count the books published in a range of years whose price is in a range
+     * @param startYear Start year
+     * @param startYearInc Is the start year inclusive?
+     * @param endYear End year
+     * @param endYearInc Is the end year inclusive?
+     * @param startPrice Start price
+     * @param startPriceInc Is the start price inclusive?
+     * @param endPrice End price, or Double.POSITIVE_INFINITY
+     * @param endPriceInc Is the end price inclusive?
+     * @return
+     */
+    public int countByYearAndPrice(int startYear, boolean startYearInc, int endYear, boolean endYearInc,
+                                   double startPrice, boolean startPriceInc,
+                                   double endPrice, boolean endPriceInc)
+    {
+        lock.readLock().lock();
+        try{
+            WahBitVector cached = cached(yearAndPriceKey(startYear, startYearInc, endYear, endYearInc,
+                    startPrice, startPriceInc, endPrice, endPriceInc));
+            if(cached != null){
+                return cached.cardinality();
+            }
+            int count = 0;
+            Iterator<Integer> ids = new CompositeScan(startYear, startYearInc, endYear, endYearInc,
+                    startPrice, startPriceInc, endPrice, endPriceInc);
+            while(ids.hasNext()){
+                ids.next();
+                count++;
+            }
+            return count;
+        }
+        finally{
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Open a cursor over the books by an author. Books are looked up batchSize at a
+     * time as the cursor is read, instead of being collected up front.
+     * @param author
+     * @param batchSize Number of books looked up at a time
+     * @param limit Maximum number of books, or -1 for all
+     * @return
+     */
+    public BookCursor cursorByAuthor(String author, int batchSize, int limit)
+    {
+        lock.readLock().lock();
+        try{
+            return new BookCursor(idsOf(byAuthor(author)), this, batchSize, limit);
+        }
+        finally{
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Open a cursor over the books published in a specific year
+     * @param year
+     * @param batchSize Number of books looked up at a time
+     * @param limit Maximum number of books, or -1 for all
+     * @return
+     */
+    public BookCursor cursorByYear(int year, int batchSize, int limit)
+    {
+        lock.readLock().lock();
+        try{
+            return new BookCursor(idsOf(byYear(year, true, year, true)), this, batchSize, limit);
+        }
+        finally{
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Open a cursor over the books published in a range of years
+     * @param start Start year
+     * @param startInc Is the start year inclusive?
+     * @param end End year
+     * @param endInc Is the end year inclusive?
+     * @param batchSize Number of books looked up at a time
+     * @param limit Maximum number of books, or -1 for all
+     * @return
+     */
+    public BookCursor cursorByYear(int start, boolean startInc, int end, boolean endInc, int batchSize, int limit)
+    {
+        lock.readLock().lock();
+        try{
+            return new BookCursor(idsOf(byYear(start, startInc, end, endInc)), this, batchSize, limit);
+        }
+        finally{
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Open a cursor over the books published after a certain year
+     * @param start Start year
+     * @param startInc Is the start year inclusive?
+     * @param batchSize Number of books looked up at a time
+     * @param limit Maximum number of books, or -1 for all
+     * @return
+     */
+    public BookCursor cursorByYear(int start, boolean startInc, int batchSize, int limit)
+    {
+        lock.readLock().lock();
+        try{
+            return new BookCursor(idsOf(yearsFrom(start, startInc)), this, batchSize, limit);
+        }
+        finally{
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Open a cursor over the books over a certain price
+     * @param start Start price
+     * @param startInc Is the start price inclusive?
+     * @param batchSize Number of books looked up at a time
+     * @param limit Maximum number of books, or -1 for all
+     * @return
+     */
+    public BookCursor cursorByPrice(double start, boolean startInc, int batchSize, int limit)
+    {
+        lock.readLock().lock();
+        try{
+            return new BookCursor(idsOf(byPrice(start, startInc)), this, batchSize, limit);
+        }
+        finally{
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Open a cursor over the books published in a certain year that are over a
+     * certain price
+     * @param year Publishing year
+     * @param startPrice Start price
+     * @param startPriceInc Is the start price inclusive?
+     * @param batchSize Number of books looked up at a time
+     * @param limit Maximum number of books, or -1 for all
+     * @return
+     */
+    public BookCursor cursorByYearAndPrice(int year, double startPrice, boolean startPriceInc, int batchSize, int limit)
+    {
+        lock.readLock().lock();
+        try{
+            Iterator<Integer> ids = new CompositeScan(year, true, year, true,
+                    startPrice, startPriceInc, Double.POSITIVE_INFINITY, true);
+            return new BookCursor(ids, this, batchSize, limit);
+        }
+        finally{
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Get the most expensive books published in a year
+     * @param year
+     * @param limit Number of books wanted
+     * @return
+     */
+    public List<Book> getMostExpensive(int year, int limit)
+    {
+        return getByYearOrderByPrice(year, true, year, true, true, limit);
+    }
+
+    /**
+     * Get the books published in a range of years in order of price, as ORDER BY
+     * price LIMIT limit would, reading only the books returned; see
+     * {@link #getIdsByYearOrderByPrice}
+     * @param start Start year
+     * @param startInc Is the start year inclusive?
+     * @param end End year
+     * @param endInc Is the end year inclusive?
+     * @param descending Most expensive first?
+     * @param limit Number of books wanted, or a negative number for all of them
+     * @return
+     */
+    public List<Book> getByYearOrderByPrice(int start, boolean startInc, int end, boolean endInc,
+                                            boolean descending, int limit)
+    {
+        lock.readLock().lock();
+        try{
+            List<Book> ret = new ArrayList<Book>();
+            for(int id : idsByYearOrderByPrice(start, startInc, end, endInc, descending, limit)){
+                ret.add(bTree.get(id));
+            }
+            return ret;
+        }
+        finally{
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Get the ids of the books published in a range of years in order of price, as
+     * ORDER BY price LIMIT limit would. The composite index holds each year's books in
+     * order of price, so each year in range is read from its most expensive end (or
+     * its cheapest) and the years are merged through a heap. Reading stops after limit
+     * entries, so the time taken depends on the limit and the number of years, not on
+     * the number of books that match. Books of the same price come in increasing
+     * order of id either way, as on the bitmap side.
+     * @param start Start year
+     * @param startInc Is the start year inclusive?
+     * @param end End year
+     * @param endInc Is the end year inclusive?
+     * @param descending Most expensive first?
+     * @param limit Number of ids wanted, or a negative number for all of them
+     * @return
+     */
+    public int[] getIdsByYearOrderByPrice(int start, boolean startInc, int end, boolean endInc,
+                                          boolean descending, int limit)
+    {
+        lock.readLock().lock();
+        try{
+            return idsByYearOrderByPrice(start, startInc, end, endInc, descending, limit);
+        }
+        finally{
+            lock.readLock().unlock();
+        }
+    }
+
+    private int[] idsByYearOrderByPrice(int start, boolean startInc, int end, boolean endInc,
+                                        final boolean descending, int limit)
+    {
+        IntColumnBuffer ret = new IntColumnBuffer();
+        // Integer bounds: an exclusive start is the next year
+        long first = startInc ? start : (long) start + 1;
+        long last = endInc ? end : (long) end - 1;
+        if(first > last || limit == 0){
+            return ret.toArray();
+        }
+        // The next entry of each year still being read, best first
+        PriorityQueue<PriceHead> heads = new PriorityQueue<PriceHead>(11, new Comparator<PriceHead>() {
+            @Override
+            public int compare(PriceHead x, PriceHead y) {
+                int c = x.entry.b.compareTo(y.entry.b);
+                if(descending){
+                    c = -c;
+                }
+                return c != 0 ? c : x.entry.c.compareTo(y.entry.c);
+            }
+        });
+        Fun.Tuple3<Integer, Double, Integer> next =
+                bookByYearAndPrice.ceiling(Fun.t3((int) first, (Double) null, (Integer) null));
+        while(next != null && next.a <= last){
+            int year = next.a;
+            PriceHead head = new PriceHead(descending ? mostExpensiveFirst(year) : bookByYearAndPrice.subSet(
+                    Fun.t3(year, (Double) null, (Integer) null), true,
+                    Fun.t3(year, Fun.<Double>HI(), Fun.<Integer>HI()), true).iterator());
+            if(head.advance()){
+                heads.add(head);
+            }
+            if(year == Integer.MAX_VALUE){
+                break;
+            }
+            next = bookByYearAndPrice.ceiling(Fun.t3(year + 1, (Double) null, (Integer) null));
+        }
+        while(!heads.isEmpty() && (limit < 0 || ret.size() < limit)){
+            PriceHead head = heads.poll();
+            ret.add(head.entry.c);
+            if(head.advance()){
+                heads.add(head);
+            }
+        }
+        return ret.toArray();
+    }
+
+    /**
+     * Iterate over the entries of one year of the composite index from the most
+     * expensive, with the books of each price in increasing order of id. The year is
+     * read downwards and the entries of each price are held until the next price is
+     * reached, then returned in reverse.
+     * @param year
+     * @return
+     */
+    private Iterator<Fun.Tuple3<Integer, Double, Integer>> mostExpensiveFirst(int year)
+    {
+        final Iterator<Fun.Tuple3<Integer, Double, Integer>> it = bookByYearAndPrice.subSet(
+                Fun.t3(year, (Double) null, (Integer) null), true,
+                Fun.t3(year, Fun.<Double>HI(), Fun.<Integer>HI()), true).descendingSet().iterator();
+        return new Iterator<Fun.Tuple3<Integer, Double, Integer>>() {
+            // Entries of the current price, in decreasing order of id, and the first
+            // entry of the next price once it has been read
+            final List<Fun.Tuple3<Integer, Double, Integer>> price = new ArrayList<Fun.Tuple3<Integer, Double, Integer>>();
+            int left;
+            Fun.Tuple3<Integer, Double, Integer> ahead;
+
+            @Override
+            public boolean hasNext() {
+                if(left > 0){
+                    return true;
+                }
+                if(ahead == null && !it.hasNext()){
+                    return false;
+                }
+                price.clear();
+                price.add(ahead != null ? ahead : it.next());
+                ahead = null;
+                while(it.hasNext()){
+                    Fun.Tuple3<Integer, Double, Integer> e = it.next();
+                    if(!e.b.equals(price.get(0).b)){
+                        ahead = e;
+                        break;
+                    }
+                    price.add(e);
+                }
+                left = price.size();
+                return true;
+            }
+
+            @Override
+            public Fun.Tuple3<Integer, Double, Integer> next() {
+                if(!hasNext()){
+                    throw new NoSuchElementException();
+                }
+                return price.get(--left);
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * The entries of one year of the composite index, in order of price, with the
+     * one to be returned next
+     */
+    private static class PriceHead {
+        final Iterator<Fun.Tuple3<Integer, Double, Integer>> entries;
+        Fun.Tuple3<Integer, Double, Integer> entry;
+
+        PriceHead(Iterator<Fun.Tuple3<Integer, Double, Integer>> entries)
+        {
+            this.entries = entries;
+        }
+
+        /**
+         * Move to the next entry
+         * @return False if there are none left
+         */
+        boolean advance()
+        {
+            entry = entries.hasNext() ? entries.next() : null;
+            return entry != null;
+        }
+    }
+
+    /**
+     * Get the books matching a query. The ids are found first, so only the matching
+     * books are read from the B-Tree, in order of id.
+     * @param query
+     * @return
+     */
+    public Collection<Book> get(BookQuery query)
+    {
+        lock.readLock().lock();
+        try{
+            Collection<Book> ret = new ArrayList<Book>();
+            for(int id : idsOf(query)){
+                ret.add(bTree.get(id));
+            }
+            return ret;
+        }
+        finally{
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Get the ids of the books matching a query, in ascending order
+     * @param query
+     * @return
+     */
+    public int[] getIds(BookQuery query)
+    {
+        lock.readLock().lock();
+        try{
+            return idsOf(query);
+        }
+        finally{
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Count the books matching a query
+     * @param query
+     * @return
+     */
+    public int count(BookQuery query)
+    {
+        lock.readLock().lock();
+        try{
+            WahBitVector cached = cached(query.toString());
+            return cached != null ? cached.cardinality() : query.evaluate(this).cardinality();
+        }
+        finally{
+            lock.readLock().unlock();
+        }
+    }
+
+    private int[] idsOf(BookQuery query)
+    {
+        String key = query.toString();
+        WahBitVector cached = cached(key);
+        return cached != null ? cached.toArray() : cache(key, query.evaluate(this).toArray());
+    }
+
+    /**
+     * Get the ids of the books published from one year to another, both inclusive
+     */
+    RoaringBitmap yearPostings(int start, int end)
+    {
+        if(postingsByYear != null){
+            return RoaringBitmap.orAll(postingsByYear.subMap(start, true, end, true).values());
+        }
+        return bitmap(byYear(start, true, end, true));
+    }
+
+    /**
+     * Get the ids of the books in a range of prices. With postings, the bins inside
+     * the range are read whole, and only the bins it partly covers, at its ends, are
+     * read price by price.
+     */
+    RoaringBitmap pricePostings(double start, boolean startInc, double end, boolean endInc)
+    {
+        if(postingsByPrice != null){
+            if(!(start <= end) || (start == end && !(startInc && endInc))){
+                return new RoaringBitmap();
+            }
+            // Bins wholly inside the range are [firstBin, lastBin), leaving out the
+            // first and last int bins, which also hold the prices beyond them
+            long lowBin = binNumber(start);
+            long firstBin = startInc && start == lowBin * PRICE_BIN ? lowBin : lowBin + 1;
+            firstBin = Math.max(firstBin, Integer.MIN_VALUE + 1L);
+            long lastBin = binNumber(end);
+            if(lastBin - firstBin < 1){
+                return RoaringBitmap.orAll(postingsByPrice.subMap(start, startInc, end, endInc).values());
+            }
+            RoaringBitmap ret = RoaringBitmap.orAll(
+                    postingsByPriceBin.subMap((int) firstBin, true, (int) lastBin, false).values());
+            // The prices at either end, outside the whole bins
+            ret.orWith(RoaringBitmap.orAll(
+                    postingsByPrice.subMap(start, startInc, firstBin * PRICE_BIN, false).values()));
+            ret.orWith(RoaringBitmap.orAll(postingsByPrice.subMap(lastBin * PRICE_BIN, true, end, endInc).values()));
+            return ret;
+        }
+        return bitmap(byPrice(start, startInc, end, endInc));
+    }
+
+    /**
+     * Get the number of the bin holding a price, clamped to the int range
+     */
+    private static long binNumber(double price)
+    {
+        return (long) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, Math.floor(price / PRICE_BIN)));
+    }
+
+    /**
+     * Get the ids of the books by an author
+     */
+    RoaringBitmap authorPostings(String author)
+    {
+        if(postingsByAuthor != null){
+            RoaringBitmap ids = postingsByAuthor.get(author);
+            return ids == null ? new RoaringBitmap() : ids;
+        }
+        return bitmap(byAuthor(author));
+    }
+
+    /**
+     * Get the ids of every book, for negated conditions. With postings these are the
+     * union of the years' bitmaps, since every book has a year.
+     */
+    RoaringBitmap allPostings()
+    {
+        if(postingsByYear != null){
+            return RoaringBitmap.orAll(postingsByYear.values());
+        }
+        RoaringBitmap ret = new RoaringBitmap();
+        for(Integer id : bTree.keySet()){
+            ret.add(id);
+        }
+        return ret;
+    }
+
+    /**
+     * Get a cached result
+     * @param key Normalized predicate
+     * @return The ids, or null if there is no cache or the result is not in it
+     */
+    private WahBitVector cached(String key)
+    {
+        return cache == null ? null : cache.get(cacheName, key);
+    }
+
+    /**
+     * Sort the ids of a result and cache them, if there is a cache. They are sorted
+     * either way, so results come in the same order as those read back from the cache.
+     * @param key Normalized predicate
+     * @param ids
+     * @return The ids, sorted
+     */
+    private int[] cache(String key, int[] ids)
+    {
+        Arrays.sort(ids);
+        if(cache != null){
+            int size = ids.length == 0 ? 0 : ids[ids.length - 1] + 1;
+            cache.put(cacheName, key, WahBitVector.fromPositions(ids, size));
+        }
+        return ids;
+    }
+
+    private static String authorKey(String author)
+    {
+        return "author = '" + author.replace("'", "''") + "'";
+    }
+
+    private static String yearKey(double start, boolean startInc, double end, boolean endInc)
+    {
+        return new Predicate.Range("year", start, startInc, end, endInc).toString();
+    }
+
+    private static String priceKey(double start, boolean startInc)
+    {
+        return priceKey(start, startInc, Double.POSITIVE_INFINITY, true);
+    }
+
+    private static String priceKey(double start, boolean startInc, double end, boolean endInc)
+    {
+        return new Predicate.Range("price", start, startInc, end, endInc).toString();
+    }
+
+    private static String yearAndPriceKey(int startYear, boolean startYearInc, int endYear, boolean endYearInc,
+                                          double startPrice, boolean startPriceInc,
+                                          double endPrice, boolean endPriceInc)
+    {
+        return new Predicate.And(new Predicate.Range("year", startYear, startYearInc, endYear, endYearInc),
+                new Predicate.Range("price", startPrice, startPriceInc, endPrice, endPriceInc)).toString();
+    }
+
+    /**
+     * Entries of the author index for one author
+     */
+    private NavigableSet<Fun.Tuple2<String, Integer>> byAuthor(String author)
+    {
+        return bookByAuthor.subSet(bound(author, false), true, bound(author, true), true);
+    }
+
+    /**
+     * Entries of the year index between two years
+     */
+    private NavigableSet<Fun.Tuple2<Integer, Integer>> byYear(int start, boolean startInc, int end, boolean endInc)
+    {
+        Fun.Tuple2<Integer, Integer> low = bound(start, !startInc);
+        Fun.Tuple2<Integer, Integer> high = bound(end, endInc);
+        if(low.compareTo(high) >= 0){
+            return new TreeSet<Fun.Tuple2<Integer, Integer>>();
+        }
+        return bookByYear.subSet(low, true, high, true);
+    }
+
+    /**
+     * Entries of the year index from a year upwards
+     */
+    private NavigableSet<Fun.Tuple2<Integer, Integer>> yearsFrom(int start, boolean startInc)
+    {
+        return bookByYear.tailSet(bound(start, !startInc), true);
+    }
+
+    /**
+     * Entries of the price index from a price upwards
+     */
+    private NavigableSet<Fun.Tuple2<Double, Integer>> byPrice(double start, boolean startInc)
+    {
+        return bookByPrice.tailSet(bound(start, !startInc), true);
+    }
+
+    /**
+     * Entries of the price index between two prices
+     */
+    private NavigableSet<Fun.Tuple2<Double, Integer>> byPrice(double start, boolean startInc, double end, boolean endInc)
+    {
+        Fun.Tuple2<Double, Integer> low = bound(start, !startInc);
+        Fun.Tuple2<Double, Integer> high = bound(end, endInc);
+        if(low.compareTo(high) >= 0){
+            return new TreeSet<Fun.Tuple2<Double, Integer>>();
+        }
+        return bookByPrice.subSet(low, true, high, true);
+    }
+
+    /**
+     * Scans the composite index for a range of years and a range of prices, giving
+     * the ids in index order. Within each year the entries in the price range are
+     * read as one sub-range, and the next year is found with a single seek past the
+     * current one, so years with no books and prices out of range are skipped
+     * rather than read.
+     */
+    private class CompositeScan implements Iterator<Integer> {
+        // Years left to scan, both inclusive
+        int year;
+        final int endYear;
+        final double startPrice;
+        final boolean startPriceInc;
+        final double endPrice;
+        final boolean endPriceInc;
+        // Entries of the current year in the price range
+        Iterator<Fun.Tuple3<Integer, Double, Integer>> current;
+        boolean done;
+
+        CompositeScan(int startYear, boolean startYearInc, int endYear, boolean endYearInc,
+                      double startPrice, boolean startPriceInc, double endPrice, boolean endPriceInc)
+        {
+            this.year = startYear;
+            this.endYear = endYearInc ? endYear : endYear - 1;
+            this.startPrice = startPrice;
+            this.startPriceInc = startPriceInc;
+            this.endPrice = endPrice;
+            this.endPriceInc = endPriceInc;
+            // Integer bounds: an exclusive start is the next year, past overflow an empty scan
+            this.done = !startYearInc && startYear == Integer.MAX_VALUE
+                    || !endYearInc && endYear == Integer.MIN_VALUE;
+            if(!startYearInc){
+                year++;
+            }
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            while(current == null || !current.hasNext()){
+                if(done || !seekYear()){
+                    done = true;
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Move to the next year with books, from year on, and open its price range
+         * @return False if there are no more years in range
+         */
+        private boolean seekYear()
+        {
+            if(current != null){
+                // Past every entry of the year just scanned
+                if(year == Integer.MAX_VALUE){
+                    return false;
+                }
+                year++;
+            }
+            if(year > endYear){
+                return false;
+            }
+            Fun.Tuple3<Integer, Double, Integer> next =
+                    bookByYearAndPrice.ceiling(Fun.t3(year, (Double) null, (Integer) null));
+            if(next == null || next.a > endYear){
+                return false;
+            }
+            year = next.a;
+            Fun.Tuple3<Integer, Double, Integer> low = startPriceInc
+                    ? Fun.t3(year, startPrice, (Integer) null)
+                    : Fun.t3(year, startPrice, Fun.<Integer>HI());
+            Fun.Tuple3<Integer, Double, Integer> high = endPriceInc
+                    ? Fun.t3(year, endPrice, Fun.<Integer>HI())
+                    : Fun.t3(year, endPrice, (Integer) null);
+            current = low.compareTo(high) < 0
+                    ? bookByYearAndPrice.subSet(low, true, high, true).iterator()
+                    : Collections.<Fun.Tuple3<Integer, Double, Integer>>emptyList().iterator();
+            return true;
+        }
+
+        @Override
+        public Integer next()
+        {
+            if(!hasNext()){
+                throw new NoSuchElementException();
+            }
+            return current.next().c;
+        }
+
+        @Override
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * An index key bounding all entries of a value. A null id sorts before every
+     * id of the value and HI after them, so bounds made here honour the inclusive
+     * flags of the queries.
+     * @param value
+     * @param afterIds Bound the entries from above instead of below
+     * @return
+     */
+    private static <T> Fun.Tuple2<T, Integer> bound(T value, boolean afterIds)
+    {
+        return afterIds ? Fun.t2(value, Fun.<Integer>HI()) : Fun.t2(value, (Integer) null);
+    }
+
+    /**
+     * Iterate lazily over the ids of secondary index entries
+     */
+    private static Iterator<Integer> idsOf(Collection<? extends Fun.Tuple2<?, Integer>> entries)
+    {
+        final Iterator<? extends Fun.Tuple2<?, Integer>> it = entries.iterator();
+        return new Iterator<Integer>() {
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public Integer next() {
+                return it.next().b;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Gather the ids of secondary index entries into a bitmap, adding them in order
+     */
+    private static RoaringBitmap bitmap(Collection<? extends Fun.Tuple2<?, Integer>> entries)
+    {
+        int[] ids = ids(entries);
+        Arrays.sort(ids);
+        RoaringBitmap ret = new RoaringBitmap();
+        for(int id : ids){
+            ret.add(id);
+        }
+        return ret;
+    }
+
+    /**
+     * Copy the ids out of secondary index entries
+     */
+    private static int[] ids(Collection<? extends Fun.Tuple2<?, Integer>> entries)
+    {
+        IntColumnBuffer ret = new IntColumnBuffer();
+        for(Fun.Tuple2<?, Integer> item : entries){
+            ret.add(item.b);
+        }
+        return ret.toArray();
+    }
 }
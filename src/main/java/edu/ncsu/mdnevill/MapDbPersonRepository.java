@@ -22,7 +22,9 @@ public class MapDbPersonRepository {
 
     public MapDbPersonRepository(DB db)
     {
-        this.bTree = db.getTreeMap("people");
+        this.bTree = db.createTreeMap("people")
+                .valueSerializer(new PersonSerializer())
+                .makeOrGet();
         setMapDbBindings();
     }
 
@@ -0,0 +1,48 @@
+package edu.ncsu.mdnevill;
+
+import org.mapdb.DataInput2;
+import org.mapdb.DataOutput2;
+import org.mapdb.Serializer;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+
+/**
+ * @author Mitchell Neville
+ * A compact binary MapDB serializer for Person values, using the same field
+ * encodings as {@link BookSerializer}. The age is written as a varint holding
+ * zigzag(age) + 1, with 0 meaning null, and the gender as a single byte.
+ */
+public class PersonSerializer implements Serializer<Person>, Serializable {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public void serialize(DataOutput out, Person value) throws IOException
+    {
+        BookSerializer.writeString(out, value.firstName);
+        BookSerializer.writeString(out, value.lastName);
+        // As a long, so the largest zigzag value + 1 does not wrap to 0 and read as null
+        DataOutput2.packLong(out, value.age == null ? 0 : (BookSerializer.zigzag(value.age) & 0xFFFFFFFFL) + 1);
+        out.writeBoolean(value.isMale);
+        BookSerializer.writeString(out, value.city);
+    }
+
+    @Override
+    public Person deserialize(DataInput in, int available) throws IOException
+    {
+        String firstName = BookSerializer.readString(in);
+        String lastName = BookSerializer.readString(in);
+        long age = DataInput2.unpackLong(in);
+        boolean isMale = in.readBoolean();
+        String city = BookSerializer.readString(in);
+        return new Person(firstName, lastName, age == 0 ? null : BookSerializer.unzigzag((int) (age - 1)), isMale, city);
+    }
+
+    @Override
+    public int fixedSize()
+    {
+        return -1;
+    }
+}
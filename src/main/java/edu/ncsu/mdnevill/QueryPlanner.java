@@ -0,0 +1,438 @@
+package edu.ncsu.mdnevill;
+
+import edu.ncsu.mdnevill.bitmap.BitmapEngine;
+import edu.ncsu.mdnevill.bitmap.JavaFastBit;
+import edu.ncsu.mdnevill.bitmap.Partition;
+import edu.ncsu.mdnevill.bitmap.Predicate;
+import edu.ncsu.mdnevill.bitmap.WhereClauseException;
+import edu.ncsu.mdnevill.bitmap.WhereParser;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @author Mitchell Neville
+ * Chooses how to answer each query on the books table: with the bitmap indexes,
+ * with the MapDB B-Tree indexes, or with a hybrid that reads the ids matching one
+ * column from its B-Tree index and ANDs them with the bitmap result for the other
+ * columns. The selectivity of each column's condition is estimated from the column
+ * statistics gathered at load time, or else counted from its bitmap index; every
+ * candidate plan is costed with a simple model of the work it does,
+ * and the cheapest one runs. query() logs the chosen plan with its estimated and
+ * actual cost, so the model can be checked against each regime.
+ */
+public class QueryPlanner {
+    public static final String BITMAP = "bitmap";
+    public static final String BTREE = "btree";
+    public static final String HYBRID = "hybrid";
+
+    // Costs of the basic operations, in nanoseconds
+    // Parsing a WHERE clause and opening a bitmap query
+    static final double BITMAP_QUERY_NS = 50000;
+    // Reading one byte of compressed bitvector
+    static final double BITMAP_BYTE_NS = 2;
+    // Turning one bitmap hit into an id
+    static final double BITMAP_ROW_NS = 20;
+    // Descending a B-Tree index to a key
+    static final double SEEK_NS = 2000;
+    // Reading one B-Tree index entry
+    static final double ENTRY_NS = 200;
+    // Sorting or looking up one id of a hybrid plan
+    static final double PROBE_NS = 30;
+
+    // Columns with a MapDB secondary index
+    private static final List<String> BTREE_COLUMNS = Arrays.asList("year", "price");
+
+    // Bitmap engine and the partition holding the books
+    private final JavaFastBit fb;
+    private final String dir;
+    // MapDB repository holding the same books
+    private final MapDbBookRepository repo;
+    // Statistics of the columns by name, or null to count rows from the bitmap indexes
+    private Map<String, ColumnStatistics> statistics;
+
+    /**
+     * A way of answering a query, with its estimated cost
+     */
+    public static class Plan {
+        final String strategy;
+        // Column read from its B-Tree index by a hybrid plan, else null
+        final String btreeColumn;
+        final Predicate where;
+        // Condition on each column, for plans that use the B-Tree
+        final Map<String, Predicate.Range> ranges;
+        final double estimatedRows;
+        // Estimated cost in nanoseconds
+        final double estimatedCost;
+
+        Plan(String strategy, String btreeColumn, Predicate where, Map<String, Predicate.Range> ranges,
+             double estimatedRows, double estimatedCost)
+        {
+            this.strategy = strategy;
+            this.btreeColumn = btreeColumn;
+            this.where = where;
+            this.ranges = ranges;
+            this.estimatedRows = estimatedRows;
+            this.estimatedCost = estimatedCost;
+        }
+
+        public String getStrategy()
+        {
+            return strategy;
+        }
+
+        public String getBtreeColumn()
+        {
+            return btreeColumn;
+        }
+
+        public Predicate getWhere()
+        {
+            return where;
+        }
+
+        public double getEstimatedRows()
+        {
+            return estimatedRows;
+        }
+
+        /**
+         * Get the estimated cost in nanoseconds
+         * @return
+         */
+        public double getEstimatedCost()
+        {
+            return estimatedCost;
+        }
+
+        /**
+         * Get the name of the plan, e.g. "hybrid(price)"
+         * @return
+         */
+        public String getName()
+        {
+            return btreeColumn == null ? strategy : strategy + "(" + btreeColumn + ")";
+        }
+
+        @Override
+        public String toString()
+        {
+            return getName() + " for " + where + ", estimated " + Math.round(estimatedRows) + " rows in "
+                    + micros(estimatedCost) + " us";
+        }
+    }
+
+    /**
+     * Create a planner over the same books loaded into both indexes. The bitmap
+     * partition must have an id column holding the MapDB id of each row.
+     * @param fb Bitmap engine
+     * @param dir Directory of the bitmap partition
+     * @param repo MapDB repository
+     */
+    public QueryPlanner(JavaFastBit fb, String dir, MapDbBookRepository repo)
+    {
+        this.fb = fb;
+        this.dir = dir;
+        this.repo = repo;
+    }
+
+    /**
+     * Estimate selectivity from column statistics rather than the bitmap indexes
+     * @param statistics Statistics by column name, or null for none
+     */
+    public void setStatistics(Map<String, ColumnStatistics> statistics)
+    {
+        this.statistics = statistics;
+    }
+
+    /**
+     * Cost every way of answering a query
+     * @param where
+     * @return The plans, cheapest first
+     * @throws IOException
+     */
+    public List<Plan> candidates(Predicate where) throws IOException
+    {
+        Partition p = fb.partition(dir);
+        List<Plan> plans = new ArrayList<Plan>();
+        double rows = p.rows();
+        Map<String, Predicate.Range> ranges = new LinkedHashMap<String, Predicate.Range>();
+        boolean conjunction = conjunction(where, ranges);
+        // Conditions on the same column are merged first, as they are not independent
+        double selectivity = selectivity(p, conjunction ? others(ranges, null) : where);
+        plans.add(new Plan(BITMAP, null, where, null, rows * selectivity,
+                bitmapCost(p, where) + rows * selectivity * BITMAP_ROW_NS));
+        if(!conjunction){
+            // Or and not are only answered by the bitmap indexes
+            return plans;
+        }
+        if(BTREE_COLUMNS.containsAll(ranges.keySet())){
+            Predicate.Range year = ranges.get("year");
+            Predicate.Range price = ranges.get("price");
+            double cost;
+            if(year != null && price != null){
+                // One seek for each year in range and one for its prices
+                int years = p.index("year").countKeys(year.getLow(), year.isLowInclusive(),
+                        year.getHigh(), year.isHighInclusive());
+                cost = SEEK_NS * (2 * years + 1) + rows * selectivity * ENTRY_NS;
+            }
+            else{
+                cost = SEEK_NS + rows * selectivity * ENTRY_NS;
+            }
+            plans.add(new Plan(BTREE, null, where, ranges, rows * selectivity, cost));
+        }
+        if(ranges.size() > 1){
+            for(String col : BTREE_COLUMNS){
+                Predicate.Range r = ranges.get(col);
+                if(r == null){
+                    continue;
+                }
+                Predicate others = others(ranges, col);
+                double matches = count(p, r);
+                double otherRows = rows * selectivity(p, others);
+                double cost = SEEK_NS + matches * (ENTRY_NS + PROBE_NS)
+                        + bitmapCost(p, others) + otherRows * (BITMAP_ROW_NS + PROBE_NS);
+                plans.add(new Plan(HYBRID, col, where, ranges, rows * selectivity, cost));
+            }
+        }
+        Collections.sort(plans, new Comparator<Plan>() {
+            @Override
+            public int compare(Plan a, Plan b) {
+                return Double.compare(a.estimatedCost, b.estimatedCost);
+            }
+        });
+        return plans;
+    }
+
+    /**
+     * Choose the cheapest way of answering a query
+     * @param where
+     * @return
+     * @throws IOException
+     */
+    public Plan plan(Predicate where) throws IOException
+    {
+        return candidates(where).get(0);
+    }
+
+    /**
+     * Run a plan
+     * @param plan
+     * @return The ids of the matching books
+     * @throws IOException
+     */
+    public int[] execute(Plan plan) throws IOException
+    {
+        if(plan.strategy.equals(BITMAP)){
+            return bitmapIds(plan.where);
+        }
+        if(plan.strategy.equals(BTREE)){
+            return btreeIds(plan.ranges.get("year"), plan.ranges.get("price"));
+        }
+        String col = plan.btreeColumn;
+        int[] btree = col.equals("year")
+                ? btreeIds(plan.ranges.get(col), null)
+                : btreeIds(null, plan.ranges.get(col));
+        Arrays.sort(btree);
+        int[] bitmap = bitmapIds(others(plan.ranges, col));
+        IntColumnBuffer ret = new IntColumnBuffer();
+        for(int id : bitmap){
+            if(Arrays.binarySearch(btree, id) >= 0){
+                ret.add(id);
+            }
+        }
+        return ret.toArray();
+    }
+
+    /**
+     * Plan and run a query, logging the plan, the other candidates and the
+     * estimated and actual cost
+     * @param where WHERE clause
+     * @return The ids of the matching books, or null if the query failed
+     */
+    public int[] query(String where)
+    {
+        try{
+            List<Plan> plans = candidates(WhereParser.parse(where));
+            Plan plan = plans.get(0);
+            long start = System.nanoTime();
+            int[] ids = execute(plan);
+            long end = System.nanoTime();
+            StringBuilder sb = new StringBuilder();
+            for(Plan other : plans.subList(1, plans.size())){
+                sb.append(sb.length() == 0 ? "" : ", ").append(other.getName())
+                        .append(' ').append(micros(other.estimatedCost)).append(" us");
+            }
+            System.out.println("Plan: " + plan + "; got " + ids.length + " rows in " + micros(end - start) + " us"
+                    + (sb.length() == 0 ? "" : " (rejected " + sb + ")"));
+            return ids;
+        }
+        catch(WhereClauseException e){
+            System.out.println(e.getMessage());
+        }
+        catch(IOException e){
+            System.out.println(e.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * Estimate the fraction of rows satisfying a predicate, taking the conditions
+     * on different columns to be independent
+     */
+    private double selectivity(Partition p, Predicate where) throws IOException
+    {
+        if(where instanceof Predicate.And){
+            Predicate.And and = (Predicate.And) where;
+            return selectivity(p, and.getLeft()) * selectivity(p, and.getRight());
+        }
+        if(where instanceof Predicate.Or){
+            Predicate.Or or = (Predicate.Or) where;
+            double a = selectivity(p, or.getLeft());
+            double b = selectivity(p, or.getRight());
+            return a + b - a * b;
+        }
+        if(where instanceof Predicate.Not){
+            return 1 - selectivity(p, ((Predicate.Not) where).getChild());
+        }
+        return p.rows() == 0 ? 0 : count(p, (Predicate.Range) where) / p.rows();
+    }
+
+    /**
+     * Estimate the cost of evaluating a predicate on the bitmap indexes: the
+     * bitvectors each condition reads, plus the results combined for and, or and not
+     */
+    private static double bitmapCost(Partition p, Predicate where) throws IOException
+    {
+        return BITMAP_QUERY_NS + evaluationCost(p, where);
+    }
+
+    private static double evaluationCost(Partition p, Predicate where) throws IOException
+    {
+        if(where instanceof Predicate.Range){
+            Predicate.Range r = (Predicate.Range) where;
+            return p.index(r.getColumn()).bytesRead(r.getLow(), r.isLowInclusive(), r.getHigh(), r.isHighInclusive())
+                    * BITMAP_BYTE_NS;
+        }
+        // A combined result is at most one bit per row
+        double combine = p.rows() / 8.0 * BITMAP_BYTE_NS;
+        if(where instanceof Predicate.Not){
+            return evaluationCost(p, ((Predicate.Not) where).getChild()) + combine;
+        }
+        Predicate left = where instanceof Predicate.And ? ((Predicate.And) where).getLeft() : ((Predicate.Or) where).getLeft();
+        Predicate right = where instanceof Predicate.And ? ((Predicate.And) where).getRight() : ((Predicate.Or) where).getRight();
+        return evaluationCost(p, left) + evaluationCost(p, right) + 2 * combine;
+    }
+
+    /**
+     * Estimate the rows satisfying a condition on one column
+     */
+    private double count(Partition p, Predicate.Range r) throws IOException
+    {
+        ColumnStatistics stats = statistics == null ? null : statistics.get(r.getColumn());
+        if(stats != null){
+            return stats.estimateRows(r.getLow(), r.isLowInclusive(), r.getHigh(), r.isHighInclusive());
+        }
+        return p.index(r.getColumn()).count(r.getLow(), r.isLowInclusive(), r.getHigh(), r.isHighInclusive());
+    }
+
+    /**
+     * Collect the condition on each column of a predicate made only of ranges
+     * joined by and
+     * @return False if the predicate has an or or a not
+     */
+    private static boolean conjunction(Predicate where, Map<String, Predicate.Range> ranges)
+    {
+        if(where instanceof Predicate.And){
+            Predicate.And and = (Predicate.And) where;
+            return conjunction(and.getLeft(), ranges) && conjunction(and.getRight(), ranges);
+        }
+        if(!(where instanceof Predicate.Range)){
+            return false;
+        }
+        Predicate.Range r = (Predicate.Range) where;
+        Predicate.Range old = ranges.get(r.getColumn());
+        ranges.put(r.getColumn(), old == null ? r : intersect(old, r));
+        return true;
+    }
+
+    /**
+     * The range satisfying two conditions on the same column
+     */
+    private static Predicate.Range intersect(Predicate.Range x, Predicate.Range y)
+    {
+        double low = Math.max(x.getLow(), y.getLow());
+        boolean lowInc = (x.getLow() == low ? x.isLowInclusive() : true) && (y.getLow() == low ? y.isLowInclusive() : true);
+        double high = Math.min(x.getHigh(), y.getHigh());
+        boolean highInc = (x.getHigh() == high ? x.isHighInclusive() : true) && (y.getHigh() == high ? y.isHighInclusive() : true);
+        return new Predicate.Range(x.getColumn(), low, lowInc, high, highInc);
+    }
+
+    /**
+     * The conditions on every column but one, joined by and
+     * @param column Column to leave out, or null for none
+     */
+    private static Predicate others(Map<String, Predicate.Range> ranges, String column)
+    {
+        Predicate ret = null;
+        for(Predicate.Range r : ranges.values()){
+            if(column == null || !r.getColumn().equals(column)){
+                ret = ret == null ? r : new Predicate.And(ret, r);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Answer a predicate with the bitmap indexes
+     */
+    private int[] bitmapIds(Predicate where) throws IOException
+    {
+        BitmapEngine.QueryHandle h = fb.build_query(null, dir, where);
+        if(h == null){
+            throw new IOException("Bitmap query failed: " + where);
+        }
+        int[] ids = fb.get_qualified_ints(h, "id");
+        fb.destroy_query(h);
+        if(ids == null){
+            throw new IOException("No id column in " + dir);
+        }
+        return ids;
+    }
+
+    /**
+     * Answer conditions on the year, the price or both with the B-Tree indexes
+     */
+    private int[] btreeIds(Predicate.Range year, Predicate.Range price)
+    {
+        if(year == null){
+            return repo.getIdsByPrice(price.getLow(), price.isLowInclusive(), price.getHigh(), price.isHighInclusive());
+        }
+        // Years are whole numbers: scan the inclusive range of years satisfying the condition
+        double first = year.getLow() == Math.rint(year.getLow()) && !year.isLowInclusive()
+                ? year.getLow() + 1 : Math.ceil(year.getLow());
+        double last = year.getHigh() == Math.rint(year.getHigh()) && !year.isHighInclusive()
+                ? year.getHigh() - 1 : Math.floor(year.getHigh());
+        if(first > last || first > Integer.MAX_VALUE || last < Integer.MIN_VALUE){
+            return new int[0];
+        }
+        int start = (int) Math.max(first, Integer.MIN_VALUE);
+        int end = (int) Math.min(last, Integer.MAX_VALUE);
+        if(price == null){
+            return repo.getIdsByYear(start, true, end, true);
+        }
+        return repo.getIdsByYearAndPrice(start, true, end, true,
+                price.getLow(), price.isLowInclusive(), price.getHigh(), price.isHighInclusive());
+    }
+
+    private static long micros(double nanos)
+    {
+        return Math.round(nanos / 1000);
+    }
+}
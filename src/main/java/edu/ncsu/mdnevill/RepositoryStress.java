@@ -0,0 +1,354 @@
+package edu.ncsu.mdnevill;
+
+import edu.ncsu.mdnevill.bitmap.ResultCache;
+import org.mapdb.DB;
+import org.mapdb.DBMaker;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * @author Mitchell Neville
+ * Stress test of {@link MapDbBookRepository} under concurrent readers and writers.
+ * A set of stable books, published before 2000, is bulk loaded and never changed,
+ * while writer threads keep rewriting a set of hot books with random years from 2000
+ * on and random prices. Reader threads meanwhile run random queries and check them:
+ * queries on the stable years must return exactly the expected ids, and queries on
+ * the hot years must return each hot book at most once, matching the query. Once the
+ * writers stop, every hot book must be in the indexes exactly once, under its
+ * current year and price. The run is repeated for each number of readers, printing
+ * the read and write throughput, so it also shows how the repository scales.
+ *
+ * Settings are given as key=value arguments; see DEFAULTS:
+ * java -cp ... edu.ncsu.mdnevill.RepositoryStress readers=1,2,4,8,16 writers=4 seconds=10
+ */
+public class RepositoryStress {
+    // Settings of main and their defaults
+    static final String[][] DEFAULTS = {
+            {"stable", "100000"},
+            {"hot", "1000"},
+            // Numbers of reader threads to run in turn
+            {"readers", "1,2,4,8"},
+            {"writers", "2"},
+            {"seconds", "5"},
+            // file or memory
+            {"store", "memory"},
+            // Result cache in front of the id queries: none, lru or lfu
+            {"cache", "none"},
+            {"seed", "100"}
+    };
+    private static final int FIRST_STABLE_YEAR = 1900;
+    private static final int STABLE_YEARS = 100;
+    private static final int FIRST_HOT_YEAR = 2000;
+    private static final int HOT_YEARS = 5;
+
+    private final MapDbBookRepository repo;
+    private final int stable;
+    private final int hot;
+    private final long seed;
+    // Ids and prices of the stable books by year
+    private final int[][] stableIds = new int[STABLE_YEARS][];
+    private final double[][] stablePrices = new double[STABLE_YEARS][];
+
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicReference<String> firstFailure = new AtomicReference<String>();
+
+    /**
+     * Load the stable and hot books into a repository
+     * @param repo
+     * @param stable Number of stable books
+     * @param hot Number of hot books
+     * @param seed
+     */
+    public RepositoryStress(MapDbBookRepository repo, int stable, int hot, long seed)
+    {
+        this.repo = repo;
+        this.stable = stable;
+        this.hot = hot;
+        this.seed = seed;
+        List<Book> books = new ArrayList<Book>(stable);
+        int[] perYear = new int[STABLE_YEARS];
+        for(int i = 0; i < stable; i++){
+            books.add(stableBook(i + 1));
+            perYear[i % STABLE_YEARS]++;
+        }
+        for(int y = 0; y < STABLE_YEARS; y++){
+            stableIds[y] = new int[perYear[y]];
+            stablePrices[y] = new double[perYear[y]];
+            perYear[y] = 0;
+        }
+        for(int i = 0; i < stable; i++){
+            int y = i % STABLE_YEARS;
+            stableIds[y][perYear[y]] = i + 1;
+            stablePrices[y][perYear[y]++] = books.get(i).price;
+        }
+        repo.bulkLoad(books.iterator());
+        Random r = new Random(seed);
+        for(int id = stable + 1; id <= stable + hot; id++){
+            repo.add(hotBook(id, r), id);
+        }
+    }
+
+    private static Book stableBook(int id)
+    {
+        int i = id - 1;
+        return new Book("Title " + id, "Author " + (i % 1000), String.format("%010d", id), "Publisher " + (i % 100),
+                FIRST_STABLE_YEAR + i % STABLE_YEARS, (i * 7919 % 20000) / 100.0);
+    }
+
+    private static Book hotBook(int id, Random r)
+    {
+        return new Book("Title " + id, "Hot author", String.format("%010d", id), "Hot publisher",
+                FIRST_HOT_YEAR + r.nextInt(HOT_YEARS), r.nextInt(20000) / 100.0);
+    }
+
+    /**
+     * Run readers and writers together for a while, then check the indexes
+     * @param readers
+     * @param writers
+     * @param seconds
+     * @return Description of the run
+     * @throws InterruptedException
+     */
+    public String run(int readers, int writers, long seconds) throws InterruptedException
+    {
+        final long end = System.nanoTime() + seconds * 1000000000L;
+        final AtomicLong reads = new AtomicLong();
+        final AtomicLong writes = new AtomicLong();
+        List<Thread> threads = new ArrayList<Thread>();
+        for(int i = 0; i < writers; i++){
+            final Random r = new Random(seed * 1000 + i);
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    long n = 0;
+                    while(System.nanoTime() < end){
+                        int id = stable + 1 + r.nextInt(hot);
+                        repo.add(hotBook(id, r), id);
+                        n++;
+                    }
+                    writes.addAndGet(n);
+                }
+            }, "writer-" + i));
+        }
+        for(int i = 0; i < readers; i++){
+            final Random r = new Random(seed * 1000 + 500 + i);
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    long n = 0;
+                    while(System.nanoTime() < end){
+                        try{
+                            read(r);
+                        }
+                        catch(RuntimeException e){
+                            fail("Query threw " + e);
+                        }
+                        n++;
+                    }
+                    reads.addAndGet(n);
+                }
+            }, "reader-" + i));
+        }
+        for(Thread t : threads){
+            t.start();
+        }
+        for(Thread t : threads){
+            t.join();
+        }
+        checkIndexes();
+        return String.format("%d readers, %d writers: %.0f reads/s (%.0f per reader), %.0f writes/s, %d failures",
+                readers, writers, reads.get() / (double) seconds, reads.get() / (double) seconds / Math.max(1, readers),
+                writes.get() / (double) seconds, failures.get());
+    }
+
+    /**
+     * Run and check one random query
+     */
+    private void read(Random r)
+    {
+        int y = r.nextInt(STABLE_YEARS);
+        int hotYear = FIRST_HOT_YEAR + r.nextInt(HOT_YEARS);
+        switch(r.nextInt(6)){
+            case 0:
+                expect("stable year " + (FIRST_STABLE_YEAR + y), stableIds[y],
+                        repo.getIdsByYear(FIRST_STABLE_YEAR + y));
+                break;
+            case 1:{
+                double price = r.nextInt(20000) / 100.0;
+                IntColumnBuffer expected = new IntColumnBuffer();
+                for(int i = 0; i < stableIds[y].length; i++){
+                    if(stablePrices[y][i] >= price){
+                        expected.add(stableIds[y][i]);
+                    }
+                }
+                expect("stable year " + (FIRST_STABLE_YEAR + y) + " from price " + price, expected.toArray(),
+                        repo.getIdsByYearAndPrice(FIRST_STABLE_YEAR + y, price, true));
+                break;
+            }
+            case 2:{
+                int n = repo.countByYear(FIRST_STABLE_YEAR, true, FIRST_STABLE_YEAR + STABLE_YEARS, false);
+                if(n != stable){
+                    fail("Counted " + n + " stable books, expected " + stable);
+                }
+                break;
+            }
+            case 3:
+                checkHot("hot years from " + hotYear, repo.getIdsByYear(hotYear, true));
+                break;
+            case 4:
+                for(Book b : repo.getByYear(hotYear)){
+                    if(b.year != hotYear){
+                        fail("Query for year " + hotYear + " returned " + b);
+                    }
+                }
+                break;
+            default:{
+                int id = stable + 1 + r.nextInt(hot);
+                Book b = repo.get(id);
+                if(b == null || b.year < FIRST_HOT_YEAR){
+                    fail("Hot book " + id + " read as " + b);
+                }
+            }
+        }
+    }
+
+    /**
+     * Check that a query returned exactly the expected ids, in any order
+     */
+    private void expect(String query, int[] expected, int[] actual)
+    {
+        int[] sorted = actual.clone();
+        Arrays.sort(sorted);
+        if(!Arrays.equals(expected, sorted)){
+            fail("Query for " + query + " returned " + actual.length + " ids, expected " + expected.length);
+        }
+    }
+
+    /**
+     * Check that ids are distinct hot ids
+     */
+    private void checkHot(String query, int[] ids)
+    {
+        Set<Integer> seen = new HashSet<Integer>();
+        for(int id : ids){
+            if(id <= stable || id > stable + hot || !seen.add(id)){
+                fail("Query for " + query + " returned id " + id + " unexpectedly or twice");
+                return;
+            }
+        }
+    }
+
+    /**
+     * With no writers running, check that every hot book is indexed exactly once,
+     * under its current year and price
+     */
+    private void checkIndexes()
+    {
+        int total = 0;
+        for(int y = FIRST_HOT_YEAR; y < FIRST_HOT_YEAR + HOT_YEARS; y++){
+            int[] ids = repo.getIdsByYear(y);
+            checkHot("year " + y, ids);
+            for(int id : ids){
+                Book b = repo.get(id);
+                if(b.year != y){
+                    fail("Book " + id + " of " + b.year + " left in the index under " + y);
+                }
+            }
+            total += ids.length;
+            int composite = repo.countByYearAndPrice(y, Double.NEGATIVE_INFINITY, true);
+            if(composite != ids.length){
+                fail("Composite index holds " + composite + " books of " + y + ", year index " + ids.length);
+            }
+        }
+        if(total != hot){
+            fail("Year index holds " + total + " hot books, expected " + hot);
+        }
+        int byPrice = repo.getIdsByPrice(Double.NEGATIVE_INFINITY, true).length;
+        if(byPrice != stable + hot){
+            fail("Price index holds " + byPrice + " books, expected " + (stable + hot));
+        }
+    }
+
+    private void fail(String message)
+    {
+        failures.incrementAndGet();
+        firstFailure.compareAndSet(null, message);
+    }
+
+    public long getFailures()
+    {
+        return failures.get();
+    }
+
+    /**
+     * Get the first failure seen, or null
+     * @return
+     */
+    public String getFirstFailure()
+    {
+        return firstFailure.get();
+    }
+
+    /**
+     * Run the stress test for each number of readers. Settings are given as
+     * key=value arguments; see DEFAULTS. Exits with status 1 if any check failed.
+     * @param args
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public static void main(String[] args) throws IOException, InterruptedException
+    {
+        Properties settings = new Properties();
+        for(String[] d : DEFAULTS){
+            settings.setProperty(d[0], d[1]);
+        }
+        for(String arg : args){
+            int eq = arg.indexOf('=');
+            if(eq < 0){
+                System.out.println("Expected key=value: " + arg);
+                return;
+            }
+            settings.setProperty(arg.substring(0, eq).trim(), arg.substring(eq + 1).trim());
+        }
+
+        DB db;
+        if(settings.getProperty("store").equals("file")){
+            File dbFile = File.createTempFile("mapdb", "db");
+            db = DBMaker.newFileDB(dbFile).closeOnJvmShutdown().deleteFilesAfterClose().make();
+        }
+        else{
+            db = DBMaker.newMemoryDB().make();
+        }
+        MapDbBookRepository repo = new MapDbBookRepository(db);
+        String cache = settings.getProperty("cache");
+        if(!cache.equals("none")){
+            repo.setResultCache(new ResultCache(cache, 64L << 20));
+        }
+
+        RepositoryStress stress = new RepositoryStress(repo,
+                Integer.parseInt(settings.getProperty("stable")),
+                Integer.parseInt(settings.getProperty("hot")),
+                Long.parseLong(settings.getProperty("seed")));
+        int writers = Integer.parseInt(settings.getProperty("writers"));
+        long seconds = Long.parseLong(settings.getProperty("seconds"));
+        for(String readers : settings.getProperty("readers").split(",")){
+            System.out.println(stress.run(Integer.parseInt(readers.trim()), writers, seconds));
+        }
+        db.close();
+        if(stress.getFailures() > 0){
+            System.out.println("FAILED: " + stress.getFirstFailure());
+            System.exit(1);
+        }
+        System.out.println("All checks passed");
+    }
+}
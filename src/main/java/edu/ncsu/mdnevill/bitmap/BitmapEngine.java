@@ -0,0 +1,84 @@
+package edu.ncsu.mdnevill.bitmap;
+
+/**
+ * @author Mitchell Neville
+ * The subset of the FastBit API used by the benchmarks. Method names and return
+ * conventions follow {@link gov.lbl.fastbit.FastBit}: functions returning int give
+ * a negative value on failure, and functions returning objects or arrays give null.
+ * This lets the benchmarks run against either the native FastBit library or the
+ * pure-Java {@link JavaFastBit}.
+ */
+public interface BitmapEngine {
+
+    /**
+     * A handle to the result of a query built by {@link #build_query}
+     */
+    interface QueryHandle {}
+
+    /** Add values to an int-valued column of the write buffer */
+    int add_ints(String colname, int[] arr);
+
+    /** Add values to a double-valued column of the write buffer */
+    int add_doubles(String colname, double[] arr);
+
+    /** Write the buffered rows to the data partition in the named directory and clear the buffer */
+    int write_buffer(String dir);
+
+    /** Build indexes for all columns in the directory */
+    int build_indexes(String dir, String opt);
+
+    /** Build an index for the named column */
+    int build_index(String dir, String col, String opt);
+
+    /** Remove all existing index files in the directory */
+    int purge_indexes(String dir);
+
+    /** Remove the index files of the named column */
+    int purge_index(String dir, String col);
+
+    /** Build a new query object over the data partition in datadir */
+    QueryHandle build_query(String select, String datadir, String where);
+
+    /**
+     * Build a new query object from a WHERE clause that is already parsed, such as a
+     * bound prepared query; engines that only take text are given where.toString()
+     */
+    QueryHandle build_query(String select, String datadir, Predicate where);
+
+    /**
+     * Destroy a query object, reclaiming its resources. Its results are then no longer
+     * available: the functions reading them return -1 or null.
+     */
+    int destroy_query(QueryHandle handle);
+
+    /** Retrieve the ids of rows satisfying the query conditions */
+    int[] get_result_row_ids(QueryHandle handle);
+
+    /** Return the number of rows satisfying the query conditions */
+    int get_result_size(QueryHandle handle);
+
+    /** Retrieve the values of an int-valued column for the rows satisfying the query */
+    int[] get_qualified_ints(QueryHandle handle, String col);
+
+    /** Retrieve the values of a column as doubles for the rows satisfying the query */
+    double[] get_qualified_doubles(QueryHandle handle, String col);
+
+    /**
+     * Open a cursor reading the rows satisfying the query batchSize at a time, stopping
+     * after limit rows (a negative limit reads them all); null on failure
+     */
+    ResultCursor open_cursor(QueryHandle handle, int batchSize, int limit);
+
+    /**
+     * Open a cursor reading the rows satisfying the query in order of a column, largest
+     * value first if descending, as ORDER BY col LIMIT limit would; rows with equal
+     * values come in row order. A negative limit reads them all; null on failure
+     */
+    ResultCursor open_sorted_cursor(QueryHandle handle, String col, boolean descending, int batchSize, int limit);
+
+    /** Compute the number of rows in the directory */
+    int number_of_rows(String dir);
+
+    /** Compute the number of columns in the directory */
+    int number_of_columns(String dir);
+}
@@ -0,0 +1,1132 @@
+package edu.ncsu.mdnevill.bitmap;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * @author Mitchell Neville
+ * A compressed bitmap index over one column. The column's values are divided into
+ * bins, by default one per distinct value, and the bins are encoded as bitvectors in
+ * one of FastBit's encodings (see {@link IndexOptions}):
+ * <ul>
+ * <li>equality: one bitvector per bin, marking the rows in it. A range of bins is the
+ * OR of their bitvectors, or the complement of the OR of the others.</li>
+ * <li>range: one bitvector per bin but the last, marking the rows in it or any bin
+ * below. Any range of bins takes at most two bitvectors.</li>
+ * <li>interval: about half as many bitvectors, each marking the rows in half the bins
+ * starting from its own. Any range of bins also takes at most two.</li>
+ * </ul>
+ * With binning, a bin may hold several values. Each bin records the smallest and
+ * largest value of its rows, so a range covering the whole bin is answered from the
+ * bitvectors alone; the rows of the bins a range only partly covers are candidates,
+ * checked against the column's values.
+ */
+public class BitmapIndex {
+    // Identifies an index file; the first is the old equality, unbinned format
+    private static final int MAGIC = 0x57414831;
+    private static final int MAGIC_ENCODED = 0x57414832;
+    // Starts each extension appended to an index file
+    private static final int MAGIC_EXTENSION = 0x57414833;
+
+    final IndexOptions options;
+    // Smallest and largest value of the rows in each bin, in increasing order. The
+    // arrays are the same if every bin holds a single value.
+    final double[] lows;
+    final double[] highs;
+    // Encoded bitvectors; see the class comment
+    final WahBitVector[] bitmaps;
+    // Number of rows indexed
+    final int rows;
+    // Running totals of the rows and bitvector bytes of the bins, for estimates;
+    // entry i covers bins before i. Built on first use.
+    private volatile long[] rowsBefore;
+    private volatile long[] bytesBefore;
+
+    BitmapIndex(IndexOptions options, double[] lows, double[] highs, WahBitVector[] bitmaps, int rows)
+    {
+        this.options = options;
+        this.lows = lows;
+        this.highs = Arrays.equals(lows, highs) ? lows : highs;
+        this.bitmaps = bitmaps;
+        this.rows = rows;
+    }
+
+    /**
+     * Build an equality-encoded index with one bin per distinct value
+     * @param column
+     * @return
+     */
+    public static BitmapIndex build(Column column)
+    {
+        return build(column, IndexOptions.DEFAULT);
+    }
+
+    /**
+     * Build an index over the values of a column
+     * @param column
+     * @param options Binning and encoding
+     * @return
+     */
+    public static BitmapIndex build(Column column, IndexOptions options)
+    {
+        int n = column.size();
+        double[] values = column.toDoubles();
+        double[] sorted = Arrays.copyOf(values, n);
+        Arrays.sort(sorted);
+        double[] edges = edges(sorted, options);
+
+        // Counting sort of the rows by bin, so each bitvector is built from
+        // increasing row positions. A value's bin is the number of edges at or below it.
+        int[] binOf = new int[n];
+        int[] start = new int[edges.length + 2];
+        for(int i = 0; i < n; i++){
+            binOf[i] = upperBound(edges, values[i], true);
+            start[binOf[i] + 1]++;
+        }
+        int k = 0;
+        int[] renumber = new int[edges.length + 1];
+        for(int b = 0; b <= edges.length; b++){
+            // Bins no value fell in are dropped
+            renumber[b] = k;
+            if(start[b + 1] > 0){
+                start[++k] = start[b + 1];
+            }
+        }
+        for(int i = 0; i < k; i++){
+            start[i + 1] += start[i];
+        }
+        int[] rowsByBin = new int[n];
+        int[] next = Arrays.copyOf(start, k);
+        for(int i = 0; i < n; i++){
+            binOf[i] = renumber[binOf[i]];
+            rowsByBin[next[binOf[i]]++] = i;
+        }
+
+        double[] lows = new double[k];
+        double[] highs = new double[k];
+        WahBitVector[] bins = new WahBitVector[k];
+        for(int i = 0; i < k; i++){
+            lows[i] = sorted[start[i]];
+            highs[i] = sorted[start[i + 1] - 1];
+            WahBitVector v = new WahBitVector();
+            for(int j = start[i]; j < start[i + 1]; j++){
+                v.set(rowsByBin[j]);
+            }
+            v.pad(n);
+            bins[i] = v;
+        }
+        return new BitmapIndex(options, lows, highs, encode(bins, options, n), n);
+    }
+
+    /**
+     * Get the values at which bins start, other than the first
+     * @param sorted Values of the column in increasing order
+     * @param options
+     * @return Increasing edges; a value belongs to the bin after the last edge at or below it
+     */
+    private static double[] edges(double[] sorted, IndexOptions options)
+    {
+        int n = sorted.length;
+        List<Double> edges = new ArrayList<Double>();
+        if(n == 0){
+            return new double[0];
+        }
+        double min = sorted[0];
+        double max = sorted[n - 1];
+        if(!options.isBinned()){
+            for(int i = 1; i < n; i++){
+                if(Double.compare(sorted[i], sorted[i - 1]) != 0){
+                    edges.add(sorted[i]);
+                }
+            }
+        }
+        else if(options.binning.equals(IndexOptions.WIDTH)){
+            double width = (max - min) / options.bins;
+            for(int i = 1; i < options.bins; i++){
+                edges.add(min + i * width);
+            }
+        }
+        else if(options.binning.equals(IndexOptions.DEPTH)){
+            // Start a bin at every n / bins rows; equal values stay in one bin
+            for(int i = 1; i < options.bins; i++){
+                edges.add(sorted[(int) ((long) i * n / options.bins)]);
+            }
+        }
+        else{
+            // A bin for each value truncated to the given significant digits
+            for(int i = 0; i < n; i++){
+                double e = truncate(sorted[i], options.bins);
+                if(edges.isEmpty() || e != edges.get(edges.size() - 1)){
+                    edges.add(e);
+                }
+            }
+        }
+        double[] ret = new double[edges.size()];
+        int k = 0;
+        for(double e : edges){
+            if(e > min && e <= max && (k == 0 || e > ret[k - 1])){
+                ret[k++] = e;
+            }
+        }
+        return Arrays.copyOf(ret, k);
+    }
+
+    /**
+     * Round a value down to a number of significant digits
+     */
+    static double truncate(double v, int digits)
+    {
+        if(v == 0 || Double.isNaN(v) || Double.isInfinite(v)){
+            return v;
+        }
+        double unit = Math.pow(10, Math.floor(Math.log10(Math.abs(v))) - digits + 1);
+        return Math.min(v, Math.floor(v / unit) * unit);
+    }
+
+    /**
+     * Encode the bitvectors of the rows in each bin
+     * @param bins Rows of each bin
+     * @param options
+     * @param rows
+     * @return
+     */
+    private static WahBitVector[] encode(WahBitVector[] bins, IndexOptions options, int rows)
+    {
+        int k = bins.length;
+        if(options.encoding.equals(IndexOptions.RANGE)){
+            // Rows in bin i or below, leaving out the last, which holds every row
+            WahBitVector[] ret = new WahBitVector[Math.max(0, k - 1)];
+            for(int i = 0; i < ret.length; i++){
+                ret[i] = i == 0 ? bins[0] : ret[i - 1].or(bins[i]);
+            }
+            return ret;
+        }
+        if(options.encoding.equals(IndexOptions.INTERVAL)){
+            // Rows in bins i to i + m - 1, for m about half the bins
+            if(k == 0){
+                return new WahBitVector[0];
+            }
+            int m = (k + 1) / 2;
+            WahBitVector[] ret = new WahBitVector[k - m + 1];
+            ret[0] = WahBitVector.orAll(Arrays.asList(bins).subList(0, m), rows);
+            for(int i = 1; i < ret.length; i++){
+                ret[i] = ret[i - 1].andNot(bins[i - 1]).or(bins[i + m - 1]);
+            }
+            return ret;
+        }
+        return bins;
+    }
+
+    // Operations combining at most two of the range or interval bitvectors
+    private static final int ALL = 0;
+    private static final int ONE = 1;
+    private static final int NOT = 2;
+    private static final int AND = 3;
+    private static final int AND_NOT = 4;
+    private static final int OR = 5;
+
+    /**
+     * Get how the rows in a range of bins are found from the range or interval
+     * bitvectors
+     * @param from First bin
+     * @param to One past the last bin, above from
+     * @return {operation, first bitvector, second bitvector}
+     */
+    private int[] operands(int from, int to)
+    {
+        int k = lows.length;
+        if(from == 0 && to == k){
+            return new int[]{ALL, -1, -1};
+        }
+        if(options.encoding.equals(IndexOptions.RANGE)){
+            if(to == k){
+                return new int[]{NOT, from - 1, -1};
+            }
+            if(from == 0){
+                return new int[]{ONE, to - 1, -1};
+            }
+            return new int[]{AND_NOT, to - 1, from - 1};
+        }
+        // Interval bitvector j holds bins j to j + m - 1, for j up to k - m
+        int m = (k + 1) / 2;
+        int last = to - 1;
+        int n = to - from;
+        if(n == m){
+            return new int[]{ONE, from, -1};
+        }
+        if(n > m){
+            return new int[]{OR, from, last - m + 1};
+        }
+        if(last + 1 <= k - m){
+            return new int[]{AND_NOT, from, last + 1};
+        }
+        if(from <= k - m){
+            return new int[]{AND, last - m + 1, from};
+        }
+        return new int[]{AND_NOT, last - m + 1, from - m};
+    }
+
+    /**
+     * Get the rows in a range of bins
+     * @param from First bin
+     * @param to One past the last bin
+     * @return
+     */
+    private WahBitVector select(int from, int to)
+    {
+        if(from >= to){
+            return new WahBitVector(rows, false);
+        }
+        if(options.encoding.equals(IndexOptions.EQUALITY)){
+            if(to - from > lows.length / 2){
+                // Fewer bitvectors to read outside the range: complement those instead
+                List<WahBitVector> outside = new ArrayList<WahBitVector>();
+                outside.addAll(Arrays.asList(bitmaps).subList(0, from));
+                outside.addAll(Arrays.asList(bitmaps).subList(to, lows.length));
+                return WahBitVector.orAll(outside, rows).not();
+            }
+            return WahBitVector.orAll(Arrays.asList(bitmaps).subList(from, to), rows);
+        }
+        int[] op = operands(from, to);
+        switch(op[0]){
+            case ALL:
+                return new WahBitVector(rows, true);
+            case ONE:
+                return bitmaps[op[1]].copy();
+            case NOT:
+                return bitmaps[op[1]].not();
+            case AND:
+                return bitmaps[op[1]].and(bitmaps[op[2]]);
+            case AND_NOT:
+                return bitmaps[op[1]].andNot(bitmaps[op[2]]);
+            default:
+                return bitmaps[op[1]].or(bitmaps[op[2]]);
+        }
+    }
+
+    /**
+     * Get the number of bytes of bitvectors select reads for a range of bins
+     */
+    private long bytes(int from, int to)
+    {
+        if(from >= to){
+            return 0;
+        }
+        if(options.encoding.equals(IndexOptions.EQUALITY)){
+            summarize();
+            long inside = bytesBefore[to] - bytesBefore[from];
+            if(to - from > lows.length / 2){
+                return bytesBefore[lows.length] - inside;
+            }
+            return inside;
+        }
+        int[] op = operands(from, to);
+        long size = 0;
+        for(int i = 1; i < op.length; i++){
+            if(op[i] >= 0){
+                size += bitmaps[op[i]].sizeInBytes();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Get the rows in each bin
+     * @return
+     */
+    private WahBitVector[] decode()
+    {
+        if(options.encoding.equals(IndexOptions.EQUALITY)){
+            return bitmaps;
+        }
+        WahBitVector[] bins = new WahBitVector[lows.length];
+        for(int i = 0; i < bins.length; i++){
+            bins[i] = select(i, i + 1);
+        }
+        return bins;
+    }
+
+    /**
+     * Extend the index over rows appended to its column, without rebuilding it. The
+     * new rows are put in the index's bins on their own: without binning, a value not
+     * seen before gets a bin of its own; with binning, the bins are widened to hold
+     * values beyond them. Each stored bitvector is then followed by the new rows'
+     * bitvector in its place with {@link WahBitVector#concat}, which writes only the
+     * new words, so the cost is in proportion to the new rows and the number of bins.
+     * The old index is unchanged, so queries already running on it are not disturbed.
+     *
+     * Range and interval bitvectors each cover many bins, so when new values add bins
+     * to such an index, every bitvector changes; it is then re-encoded from its bins,
+     * in time proportional to the whole index.
+     * @param added Only the appended rows of the column
+     * @return An index over rows() + added.size() rows
+     */
+    public BitmapIndex append(Column added)
+    {
+        if(rows == 0){
+            return build(added, options);
+        }
+        Extension e = extension(added);
+        return e != null ? apply(e) : reencode(added);
+    }
+
+    /**
+     * Extend the index over appended rows as {@link #append(Column)} does, and bring
+     * its saved file up to date. The extension is written at the end of the file,
+     * where {@link #read} replays it, so the file is not rewritten unless the index
+     * was re-encoded.
+     * @param added Only the appended rows of the column
+     * @param file Saved index file, or null if the index is not saved
+     * @return An index over rows() + added.size() rows
+     * @throws IOException
+     */
+    BitmapIndex append(Column added, File file) throws IOException
+    {
+        Extension e = rows == 0 ? null : extension(added);
+        if(e == null){
+            BitmapIndex ret = rows == 0 ? build(added, options) : reencode(added);
+            if(file != null){
+                ret.write(file);
+            }
+            return ret;
+        }
+        BitmapIndex ret = apply(e);
+        if(file != null){
+            e.appendTo(file);
+        }
+        return ret;
+    }
+
+    /**
+     * The change appending rows makes to an index: the bins added or widened, and the
+     * new rows' part of each stored bitvector that has any of them
+     */
+    static final class Extension {
+        // Rows indexed after the append, and rows appended
+        final int rows;
+        final int added;
+        // Positions of the bins added, in the new order, and their values
+        final int[] inserted;
+        final double[] insertedValues;
+        // Bins widened, with their new bounds
+        final int[] widened;
+        final double[] widenedLows;
+        final double[] widenedHighs;
+        // Stored bitvectors with new rows, and the new rows' bitvectors; the others
+        // are followed by zeros
+        final int[] vectors;
+        final WahBitVector[] tails;
+
+        Extension(int rows, int added, int[] inserted, double[] insertedValues, int[] widened,
+                  double[] widenedLows, double[] widenedHighs, int[] vectors, WahBitVector[] tails)
+        {
+            this.rows = rows;
+            this.added = added;
+            this.inserted = inserted;
+            this.insertedValues = insertedValues;
+            this.widened = widened;
+            this.widenedLows = widenedLows;
+            this.widenedHighs = widenedHighs;
+            this.vectors = vectors;
+            this.tails = tails;
+        }
+
+        void write(DataOutput out) throws IOException
+        {
+            out.writeInt(rows);
+            out.writeInt(added);
+            out.writeInt(inserted.length);
+            for(int i = 0; i < inserted.length; i++){
+                out.writeInt(inserted[i]);
+                out.writeDouble(insertedValues[i]);
+            }
+            out.writeInt(widened.length);
+            for(int i = 0; i < widened.length; i++){
+                out.writeInt(widened[i]);
+                out.writeDouble(widenedLows[i]);
+                out.writeDouble(widenedHighs[i]);
+            }
+            out.writeInt(vectors.length);
+            for(int i = 0; i < vectors.length; i++){
+                out.writeInt(vectors[i]);
+                tails[i].write(out);
+            }
+        }
+
+        static Extension read(DataInput in) throws IOException
+        {
+            int rows = in.readInt();
+            int added = in.readInt();
+            int[] inserted = new int[in.readInt()];
+            double[] insertedValues = new double[inserted.length];
+            for(int i = 0; i < inserted.length; i++){
+                inserted[i] = in.readInt();
+                insertedValues[i] = in.readDouble();
+            }
+            int[] widened = new int[in.readInt()];
+            double[] widenedLows = new double[widened.length];
+            double[] widenedHighs = new double[widened.length];
+            for(int i = 0; i < widened.length; i++){
+                widened[i] = in.readInt();
+                widenedLows[i] = in.readDouble();
+                widenedHighs[i] = in.readDouble();
+            }
+            int[] vectors = new int[in.readInt()];
+            WahBitVector[] tails = new WahBitVector[vectors.length];
+            for(int i = 0; i < vectors.length; i++){
+                vectors[i] = in.readInt();
+                tails[i] = WahBitVector.read(in);
+            }
+            return new Extension(rows, added, inserted, insertedValues, widened, widenedLows, widenedHighs,
+                    vectors, tails);
+        }
+
+        /**
+         * Add the extension to the end of a saved index file, as a length-prefixed
+         * record so one cut short by a failed write can be told apart
+         * @param file
+         * @throws IOException
+         */
+        void appendTo(File file) throws IOException
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream record = new DataOutputStream(bytes);
+            write(record);
+            record.flush();
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(file, true)));
+            try{
+                out.writeInt(MAGIC_EXTENSION);
+                out.writeInt(bytes.size());
+                bytes.writeTo(out);
+            }
+            finally{
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Work out how appending rows changes the index
+     * @param added Only the appended rows of the column
+     * @return The change, or null if the index must be re-encoded
+     */
+    private Extension extension(Column added)
+    {
+        int n = added.size();
+        int k = lows.length;
+        int[] inserted = new int[0];
+        double[] insertedValues = new double[0];
+        int[] widened = new int[0];
+        double[] widenedLows = new double[0];
+        double[] widenedHighs = new double[0];
+        // Rows of the new rows in each bin, by bin after the append; null if none
+        WahBitVector[] bins;
+        if(!options.isBinned()){
+            BitmapIndex tail = build(added);
+            int[] position = new int[tail.lows.length];
+            NewBins positions = new NewBins(tail.lows.length);
+            int i = 0;
+            int j = 0;
+            int p = 0;
+            while(i < k || j < tail.lows.length){
+                int c = i == k ? 1 : j == tail.lows.length ? -1 : Double.compare(lows[i], tail.lows[j]);
+                if(c > 0){
+                    // A value first seen in the new rows
+                    positions.add(p, tail.lows[j]);
+                }
+                if(c >= 0){
+                    position[j++] = p;
+                }
+                if(c <= 0){
+                    i++;
+                }
+                p++;
+            }
+            if(positions.size > 0 && !options.encoding.equals(IndexOptions.EQUALITY)){
+                return null;
+            }
+            inserted = Arrays.copyOf(positions.positions, positions.size);
+            insertedValues = Arrays.copyOf(positions.values, positions.size);
+            bins = new WahBitVector[p];
+            for(j = 0; j < position.length; j++){
+                bins[position[j]] = tail.bitmaps[j];
+            }
+        }
+        else{
+            // Put each new row in the last bin starting at or below its value
+            double[] newLows = lows.clone();
+            double[] newHighs = highs.clone();
+            bins = new WahBitVector[k];
+            for(int r = 0; r < n; r++){
+                double v = added.valueAt(r);
+                int b = Math.max(0, upperBound(lows, v, true) - 1);
+                newLows[b] = Math.min(newLows[b], v);
+                newHighs[b] = Math.max(newHighs[b], v);
+                if(bins[b] == null){
+                    bins[b] = new WahBitVector();
+                }
+                bins[b].set(r);
+            }
+            int count = 0;
+            for(int b = 0; b < k; b++){
+                if(bins[b] != null){
+                    bins[b].pad(n);
+                }
+                if(newLows[b] != lows[b] || newHighs[b] != highs[b]){
+                    count++;
+                }
+            }
+            widened = new int[count];
+            widenedLows = new double[count];
+            widenedHighs = new double[count];
+            count = 0;
+            for(int b = 0; b < k; b++){
+                if(newLows[b] != lows[b] || newHighs[b] != highs[b]){
+                    widened[count] = b;
+                    widenedLows[count] = newLows[b];
+                    widenedHighs[count++] = newHighs[b];
+                }
+            }
+        }
+        WahBitVector[] vectors = bins;
+        if(!options.encoding.equals(IndexOptions.EQUALITY)){
+            // The bins are the same as before, so the new rows are encoded on their own
+            WahBitVector[] all = new WahBitVector[bins.length];
+            for(int b = 0; b < bins.length; b++){
+                all[b] = bins[b] != null ? bins[b] : new WahBitVector(n, false);
+            }
+            vectors = encode(all, options, n);
+        }
+        int count = 0;
+        for(WahBitVector v : vectors){
+            if(v != null && v.cardinality() > 0){
+                count++;
+            }
+        }
+        int[] changed = new int[count];
+        WahBitVector[] tails = new WahBitVector[count];
+        count = 0;
+        for(int v = 0; v < vectors.length; v++){
+            if(vectors[v] != null && vectors[v].cardinality() > 0){
+                changed[count] = v;
+                tails[count++] = vectors[v];
+            }
+        }
+        return new Extension(rows + n, n, inserted, insertedValues, widened, widenedLows, widenedHighs,
+                changed, tails);
+    }
+
+    /**
+     * Positions and values of the bins a new value adds
+     */
+    private static final class NewBins {
+        int[] positions;
+        double[] values;
+        int size;
+
+        NewBins(int capacity)
+        {
+            positions = new int[Math.max(1, capacity)];
+            values = new double[positions.length];
+        }
+
+        void add(int position, double value)
+        {
+            positions[size] = position;
+            values[size++] = value;
+        }
+    }
+
+    /**
+     * Apply an extension to the index
+     * @param e
+     * @return The extended index; this one is unchanged
+     */
+    BitmapIndex apply(Extension e)
+    {
+        int k = lows.length + e.inserted.length;
+        double[] newLows = new double[k];
+        double[] newHighs = highs == lows && e.widened.length == 0 ? newLows : new double[k];
+        // Bin before the append of each bin after it, or -1 for a new one
+        int[] source = new int[k];
+        int i = 0;
+        int j = 0;
+        for(int p = 0; p < k; p++){
+            if(j < e.inserted.length && e.inserted[j] == p){
+                newLows[p] = e.insertedValues[j++];
+                newHighs[p] = newLows[p];
+                source[p] = -1;
+            }
+            else{
+                newLows[p] = lows[i];
+                newHighs[p] = highs[i];
+                source[p] = i++;
+            }
+        }
+        for(int w = 0; w < e.widened.length; w++){
+            newLows[e.widened[w]] = e.widenedLows[w];
+            newHighs[e.widened[w]] = e.widenedHighs[w];
+        }
+        boolean equality = options.encoding.equals(IndexOptions.EQUALITY);
+        WahBitVector[] tails = new WahBitVector[equality ? k : bitmaps.length];
+        for(int v = 0; v < e.vectors.length; v++){
+            tails[e.vectors[v]] = e.tails[v];
+        }
+        WahBitVector zeros = new WahBitVector(e.added, false);
+        WahBitVector[] vectors = new WahBitVector[tails.length];
+        for(int v = 0; v < vectors.length; v++){
+            int from = equality ? source[v] : v;
+            WahBitVector old = from >= 0 ? bitmaps[from] : new WahBitVector(rows, false);
+            vectors[v] = old.concat(tails[v] != null ? tails[v] : zeros);
+        }
+        return new BitmapIndex(options, newLows, newHighs, vectors, e.rows);
+    }
+
+    /**
+     * Extend the index over appended rows that add bins to a range or interval
+     * encoding, by decoding the bins, extending each and encoding them again
+     * @param added Only the appended rows of the column
+     * @return
+     */
+    private BitmapIndex reencode(Column added)
+    {
+        int n = added.size();
+        WahBitVector[] bins = decode();
+        BitmapIndex tail = build(added);
+        double[] merged = new double[lows.length + tail.lows.length];
+        WahBitVector[] vectors = new WahBitVector[merged.length];
+        int i = 0;
+        int j = 0;
+        int k = 0;
+        while(i < lows.length || j < tail.lows.length){
+            int c = i == lows.length ? 1 : j == tail.lows.length ? -1 : Double.compare(lows[i], tail.lows[j]);
+            WahBitVector v;
+            if(c <= 0){
+                merged[k] = lows[i];
+                v = bins[i++];
+            }
+            else{
+                // A value first seen in the new rows
+                merged[k] = tail.lows[j];
+                v = new WahBitVector(rows, false);
+            }
+            vectors[k++] = v.concat(c >= 0 ? tail.bitmaps[j++] : new WahBitVector(n, false));
+        }
+        merged = Arrays.copyOf(merged, k);
+        return new BitmapIndex(options, merged, merged, encode(Arrays.copyOf(vectors, k), options, rows + n),
+                rows + n);
+    }
+
+    /**
+     * Get the options the index was built with
+     * @return
+     */
+    public IndexOptions getOptions()
+    {
+        return options;
+    }
+
+    /**
+     * Get the number of bins, which without binning is the number of distinct values
+     * in the column
+     * @return
+     */
+    public int cardinality()
+    {
+        return lows.length;
+    }
+
+    /**
+     * Get the number of rows indexed
+     * @return
+     */
+    public int rows()
+    {
+        return rows;
+    }
+
+    /**
+     * Get the number of bytes used by the compressed bitvectors and bin bounds
+     * @return
+     */
+    public long sizeInBytes()
+    {
+        long size = 8L * lows.length * (highs == lows ? 1 : 2);
+        for(WahBitVector v : bitmaps){
+            size += v.sizeInBytes();
+        }
+        return size;
+    }
+
+    /**
+     * Find the rows whose value lies in a range, when no bin is only partly in it,
+     * as is always so without binning
+     * @param low Lower bound
+     * @param lowInc Is the lower bound inclusive?
+     * @param high Upper bound
+     * @param highInc Is the upper bound inclusive?
+     * @return
+     * @throws IllegalStateException If rows of a bin need checking against the column
+     */
+    public WahBitVector evaluate(double low, boolean lowInc, double high, boolean highInc)
+    {
+        return evaluate(low, lowInc, high, highInc, null);
+    }
+
+    /**
+     * Find the rows whose value lies in a range. The rows of bins the range covers are
+     * taken from the bitvectors; those of the bins at its ends, which it may only
+     * partly cover, are checked against the column's values.
+     * @param low Lower bound
+     * @param lowInc Is the lower bound inclusive?
+     * @param high Upper bound
+     * @param highInc Is the upper bound inclusive?
+     * @param column Values of the indexed column, needed only if a bin is partly covered
+     * @return
+     */
+    public WahBitVector evaluate(double low, boolean lowInc, double high, boolean highInc, Column column)
+    {
+        int first = lowerBound(highs, low, lowInc);
+        int end = upperBound(lows, high, highInc);
+        if(first >= end){
+            return new WahBitVector(rows, false);
+        }
+        int from = first;
+        int to = end;
+        if(lowInc ? lows[first] < low : lows[first] <= low){
+            from++;
+        }
+        if(highInc ? highs[end - 1] > high : highs[end - 1] >= high){
+            to--;
+        }
+        WahBitVector hits = select(from, to);
+        if(from > first){
+            hits = hits.or(check(first, low, lowInc, high, highInc, column));
+        }
+        if(to < end && (end - 1 > first || from == first)){
+            hits = hits.or(check(end - 1, low, lowInc, high, highInc, column));
+        }
+        return hits;
+    }
+
+    /**
+     * Check the rows of a bin against a range
+     * @return The rows of the bin whose value lies in the range
+     */
+    private WahBitVector check(int bin, double low, boolean lowInc, double high, boolean highInc, Column column)
+    {
+        if(column == null){
+            throw new IllegalStateException("Checking the rows of a bin needs the column's values");
+        }
+        WahBitVector ret = new WahBitVector();
+        IntIterator it = select(bin, bin + 1).iterator();
+        while(it.hasNext()){
+            int row = it.next();
+            double v = column.valueAt(row);
+            if((lowInc ? v >= low : v > low) && (highInc ? v <= high : v < high)){
+                ret.set(row);
+            }
+        }
+        ret.pad(rows);
+        return ret;
+    }
+
+    /**
+     * Find the rows of a set with the largest values, or the smallest, without
+     * reading the values of the others. Bins are taken from the top (or the bottom) in
+     * runs of 1, 2, 4, ... bins, each run read with select and ANDed with the set,
+     * until the runs hold limit rows of it; only the rows of the set in those runs are
+     * read from the column and ranked. The bins seen depend on how many rows of the set
+     * lie near the top, not on how many rows the set has.
+     * @param hits Rows to choose from
+     * @param limit Number of rows wanted
+     * @param descending Largest values first?
+     * @param column Values of the indexed column
+     * @return Up to limit rows, in order of value; rows with equal values in increasing order
+     */
+    public int[] top(WahBitVector hits, int limit, boolean descending, Column column)
+    {
+        int k = lows.length;
+        int[] ret = new int[limit];
+        int n = 0;
+        int done = 0;
+        int run = 1;
+        while(n < limit && done < k){
+            int from = descending ? Math.max(0, k - done - run) : done;
+            int to = descending ? k - done : Math.min(k, done + run);
+            // Bins are disjoint and in order, so the rows of a run follow those of the last
+            TopK best = new TopK(limit - n, descending);
+            IntIterator it = select(from, to).and(hits).iterator();
+            while(it.hasNext()){
+                int row = it.next();
+                best.offer(row, column.valueAt(row));
+            }
+            int found = best.size();
+            System.arraycopy(best.toArray(), 0, ret, n, found);
+            n += found;
+            done += to - from;
+            run = (int) Math.min(k, 2L * run);
+        }
+        return n == limit ? ret : Arrays.copyOf(ret, n);
+    }
+
+    /**
+     * Count the rows whose value lies in a range, without evaluating it. With
+     * binning, the rows of a bin the range only partly covers are estimated from the
+     * part of the bin's values it covers.
+     * @param low Lower bound
+     * @param lowInc Is the lower bound inclusive?
+     * @param high Upper bound
+     * @param highInc Is the upper bound inclusive?
+     * @return
+     */
+    public int count(double low, boolean lowInc, double high, boolean highInc)
+    {
+        int first = lowerBound(highs, low, lowInc);
+        int end = upperBound(lows, high, highInc);
+        if(first >= end){
+            return 0;
+        }
+        summarize();
+        double count = estimate(first, low, high);
+        if(end - 1 > first){
+            // Bins between the first and last are covered
+            count += rowsBefore[end - 1] - rowsBefore[first + 1] + estimate(end - 1, low, high);
+        }
+        return (int) Math.round(count);
+    }
+
+    /**
+     * Estimate the rows of a bin lying in a range, assuming its values are spread evenly
+     */
+    private double estimate(int bin, double low, double high)
+    {
+        double n = rowsBefore[bin + 1] - rowsBefore[bin];
+        if(highs[bin] == lows[bin]){
+            return n;
+        }
+        double covered = Math.min(high, highs[bin]) - Math.max(low, lows[bin]);
+        return n * Math.min(1, Math.max(0, covered / (highs[bin] - lows[bin])));
+    }
+
+    /**
+     * Count the distinct values lying in a range, or with binning the bins holding
+     * any of them
+     * @param low Lower bound
+     * @param lowInc Is the lower bound inclusive?
+     * @param high Upper bound
+     * @param highInc Is the upper bound inclusive?
+     * @return
+     */
+    public int countKeys(double low, boolean lowInc, double high, boolean highInc)
+    {
+        return Math.max(0, upperBound(lows, high, highInc) - lowerBound(highs, low, lowInc));
+    }
+
+    /**
+     * Get the number of bytes evaluate reads for a range: the bitvectors it combines
+     * and, for bins the range only partly covers, their bitvectors and the values of
+     * their rows
+     * @param low Lower bound
+     * @param lowInc Is the lower bound inclusive?
+     * @param high Upper bound
+     * @param highInc Is the upper bound inclusive?
+     * @return
+     */
+    public long bytesRead(double low, boolean lowInc, double high, boolean highInc)
+    {
+        int first = lowerBound(highs, low, lowInc);
+        int end = upperBound(lows, high, highInc);
+        if(first >= end){
+            return 0;
+        }
+        int from = first;
+        int to = end;
+        if(lowInc ? lows[first] < low : lows[first] <= low){
+            from++;
+        }
+        if(highInc ? highs[end - 1] > high : highs[end - 1] >= high){
+            to--;
+        }
+        long size = bytes(from, to);
+        if(from > first){
+            size += checkBytes(first);
+        }
+        if(to < end && (end - 1 > first || from == first)){
+            size += checkBytes(end - 1);
+        }
+        return size;
+    }
+
+    /**
+     * Get the number of bytes read to check the rows of a bin: its bitvectors and the
+     * values of its rows
+     */
+    private long checkBytes(int bin)
+    {
+        summarize();
+        return bytes(bin, bin + 1) + 8 * (rowsBefore[bin + 1] - rowsBefore[bin]);
+    }
+
+    private synchronized void summarize()
+    {
+        if(rowsBefore != null){
+            return;
+        }
+        WahBitVector[] bins = decode();
+        long[] r = new long[lows.length + 1];
+        long[] b = new long[lows.length + 1];
+        for(int i = 0; i < lows.length; i++){
+            r[i + 1] = r[i] + bins[i].cardinality();
+            b[i + 1] = b[i] + bins[i].sizeInBytes();
+        }
+        bytesBefore = b;
+        rowsBefore = r;
+    }
+
+    /**
+     * Get the index of the first value in a sorted array above (or at, if inclusive)
+     * a bound
+     */
+    static int lowerBound(double[] values, double low, boolean inclusive)
+    {
+        int i = Arrays.binarySearch(values, low);
+        if(i < 0){
+            return -i - 1;
+        }
+        return inclusive ? i : i + 1;
+    }
+
+    /**
+     * Get one past the index of the last value in a sorted array below (or at, if
+     * inclusive) a bound
+     */
+    static int upperBound(double[] values, double high, boolean inclusive)
+    {
+        int i = Arrays.binarySearch(values, high);
+        if(i < 0){
+            return -i - 1;
+        }
+        return inclusive ? i + 1 : i;
+    }
+
+    /**
+     * Write the index to a file
+     * @param file
+     * @throws IOException
+     */
+    public void write(File file) throws IOException
+    {
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file)));
+        try{
+            out.writeInt(MAGIC_ENCODED);
+            out.writeUTF(options.toString());
+            out.writeInt(rows);
+            out.writeInt(lows.length);
+            for(double low : lows){
+                out.writeDouble(low);
+            }
+            out.writeBoolean(highs != lows);
+            if(highs != lows){
+                for(double high : highs){
+                    out.writeDouble(high);
+                }
+            }
+            out.writeInt(bitmaps.length);
+            for(WahBitVector v : bitmaps){
+                v.write(out);
+            }
+        }
+        finally{
+            out.close();
+        }
+    }
+
+    /**
+     * Read an index written by {@link #write(File)}, with the extensions appended to
+     * it since. An extension cut short by a failed write is ignored, leaving an index
+     * over fewer rows than its column.
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static BitmapIndex read(File file) throws IOException
+    {
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)));
+        try{
+            int magic = in.readInt();
+            if(magic != MAGIC && magic != MAGIC_ENCODED){
+                throw new IOException(file + " is not a bitmap index file");
+            }
+            IndexOptions options = IndexOptions.DEFAULT;
+            if(magic == MAGIC_ENCODED){
+                try{
+                    options = IndexOptions.parse(in.readUTF());
+                }
+                catch(IllegalArgumentException e){
+                    throw new IOException(file + ": " + e.getMessage());
+                }
+            }
+            int rows = in.readInt();
+            int k = in.readInt();
+            double[] lows = new double[k];
+            for(int i = 0; i < k; i++){
+                lows[i] = in.readDouble();
+            }
+            double[] highs = lows;
+            int n = k;
+            if(magic == MAGIC_ENCODED){
+                if(in.readBoolean()){
+                    highs = new double[k];
+                    for(int i = 0; i < k; i++){
+                        highs[i] = in.readDouble();
+                    }
+                }
+                n = in.readInt();
+            }
+            WahBitVector[] bitmaps = new WahBitVector[n];
+            for(int i = 0; i < n; i++){
+                bitmaps[i] = WahBitVector.read(in);
+            }
+            BitmapIndex idx = new BitmapIndex(options, lows, highs, bitmaps, rows);
+            while(true){
+                byte[] record;
+                try{
+                    if(in.readInt() != MAGIC_EXTENSION){
+                        throw new IOException(file + " has a damaged extension");
+                    }
+                    int length = in.readInt();
+                    if(length < 0){
+                        throw new IOException(file + " has a damaged extension");
+                    }
+                    record = new byte[length];
+                    in.readFully(record);
+                }
+                catch(EOFException e){
+                    return idx;
+                }
+                idx = idx.apply(Extension.read(new DataInputStream(new ByteArrayInputStream(record))));
+            }
+        }
+        finally{
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package edu.ncsu.mdnevill.bitmap;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * @author Mitchell Neville
+ * The values of one column of a data partition. Like FastBit, each column is stored
+ * in its own file as raw fixed-width values in native byte order, so the file for
+ * row r starts at r times the value width.
+ *
+ * The arrays of a column may be longer than it: {@link #append} writes the new values
+ * after the old ones in the same array when there is room, so a loaded column grows
+ * in time proportional to the rows appended.
+ */
+public class Column {
+    public static final String INT = "INT";
+    public static final String DOUBLE = "DOUBLE";
+
+    final String name;
+    final String type;
+    // Values of an INT column
+    int[] ints;
+    // Values of a DOUBLE column
+    double[] doubles;
+    // Number of values, which may be fewer than the array holds
+    private int size;
+    // Whether append has shared the array with a longer column, so this one must not
+    // be appended to in place again
+    private boolean extended;
+
+    /**
+     * Create an INT column
+     * @param name
+     * @param values
+     */
+    public Column(String name, int[] values)
+    {
+        this.name = name;
+        this.type = INT;
+        this.ints = values;
+        this.size = values.length;
+    }
+
+    /**
+     * Create a DOUBLE column
+     * @param name
+     * @param values
+     */
+    public Column(String name, double[] values)
+    {
+        this.name = name;
+        this.type = DOUBLE;
+        this.doubles = values;
+        this.size = values.length;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public String getType()
+    {
+        return type;
+    }
+
+    /**
+     * Get the number of values in the column
+     * @return
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * Get the value of a row, widened to a double
+     * @param row
+     * @return
+     */
+    public double valueAt(int row)
+    {
+        return ints != null ? ints[row] : doubles[row];
+    }
+
+    /**
+     * Get the values of the column, widened to doubles
+     * @return
+     */
+    public double[] toDoubles()
+    {
+        if(doubles != null){
+            return doubles.length == size ? doubles : Arrays.copyOf(doubles, size);
+        }
+        double[] ret = new double[size];
+        for(int i = 0; i < size; i++){
+            ret[i] = ints[i];
+        }
+        return ret;
+    }
+
+    /**
+     * Get a new column holding this column's values followed by another's
+     * @param other A column of the same type
+     * @return
+     */
+    public Column concat(Column other)
+    {
+        if(ints != null){
+            int[] values = Arrays.copyOf(ints, size + other.size);
+            System.arraycopy(other.ints, 0, values, size, other.size);
+            return new Column(name, values);
+        }
+        double[] values = Arrays.copyOf(doubles, size + other.size);
+        System.arraycopy(other.doubles, 0, values, size, other.size);
+        return new Column(name, values);
+    }
+
+    /**
+     * Get a column holding this column's values followed by another's, without copying
+     * this column's where possible. The new values are written after this column's in
+     * its array, where this column never reads, so this column is unchanged; the array
+     * grows by half when it is full, so appending costs time in proportion to the new
+     * values. A column is only extended in place once; appending to it again copies it.
+     * @param other A column of the same type
+     * @return
+     */
+    Column append(Column other)
+    {
+        int n = size + other.size;
+        Column ret;
+        if(ints != null){
+            int[] values = ints;
+            if(extended || n > values.length){
+                values = Arrays.copyOf(ints, Math.max(n, size + (size >> 1)));
+            }
+            System.arraycopy(other.ints, 0, values, size, other.size);
+            ret = new Column(name, values);
+        }
+        else{
+            double[] values = doubles;
+            if(extended || n > values.length){
+                values = Arrays.copyOf(doubles, Math.max(n, size + (size >> 1)));
+            }
+            System.arraycopy(other.doubles, 0, values, size, other.size);
+            ret = new Column(name, values);
+        }
+        ret.size = n;
+        extended = true;
+        return ret;
+    }
+
+    /**
+     * Get a new column holding the values of a range of rows
+     * @param from First row
+     * @param to Row after the last
+     * @return
+     */
+    Column slice(int from, int to)
+    {
+        if(ints != null){
+            return new Column(name, Arrays.copyOfRange(ints, from, to));
+        }
+        return new Column(name, Arrays.copyOfRange(doubles, from, to));
+    }
+
+    /**
+     * Get a new column holding the values of the given rows, in order
+     * @param rows
+     * @param count Number of rows to take from the start of rows
+     * @return
+     */
+    Column select(int[] rows, int count)
+    {
+        if(ints != null){
+            int[] values = new int[count];
+            for(int i = 0; i < count; i++){
+                values[i] = ints[rows[i]];
+            }
+            return new Column(name, values);
+        }
+        double[] values = new double[count];
+        for(int i = 0; i < count; i++){
+            values[i] = doubles[rows[i]];
+        }
+        return new Column(name, values);
+    }
+
+    /**
+     * Get the smallest and largest values of the column
+     * @return {minimum, maximum}, or null if the column is empty
+     */
+    double[] bounds()
+    {
+        if(size() == 0){
+            return null;
+        }
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        for(int i = 0; i < size(); i++){
+            double v = valueAt(i);
+            min = Math.min(min, v);
+            max = Math.max(max, v);
+        }
+        return new double[]{min, max};
+    }
+
+    /**
+     * Get the width in bytes of one value of a column type
+     * @param type
+     * @return
+     */
+    static int width(String type)
+    {
+        return INT.equals(type) ? 4 : 8;
+    }
+
+    /**
+     * Append the values to the end of a column data file
+     * @param file
+     * @throws IOException
+     */
+    void appendTo(File file) throws IOException
+    {
+        ByteBuffer buf = ByteBuffer.allocate(size * width(type)).order(ByteOrder.nativeOrder());
+        if(ints != null){
+            buf.asIntBuffer().put(ints, 0, size);
+        }
+        else{
+            buf.asDoubleBuffer().put(doubles, 0, size);
+        }
+        FileOutputStream out = new FileOutputStream(file, true);
+        try{
+            FileChannel ch = out.getChannel();
+            while(buf.hasRemaining()){
+                ch.write(buf);
+            }
+        }
+        finally{
+            out.close();
+        }
+    }
+
+    /**
+     * Read a column data file
+     * @param file
+     * @param name Column name
+     * @param type Column type
+     * @param rows Number of rows in the partition
+     * @return
+     * @throws IOException
+     */
+    static Column read(File file, String name, String type, int rows) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try{
+            FileChannel ch = raf.getChannel();
+            long length = (long) rows * width(type);
+            if(ch.size() < length){
+                throw new IOException("Column file " + file + " holds fewer than " + rows + " rows");
+            }
+            MappedByteBuffer mapped = ch.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            mapped.order(ByteOrder.nativeOrder());
+            if(INT.equals(type)){
+                int[] values = new int[rows];
+                mapped.asIntBuffer().get(values);
+                return new Column(name, values);
+            }
+            double[] values = new double[rows];
+            mapped.asDoubleBuffer().get(values);
+            return new Column(name, values);
+        }
+        finally{
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package edu.ncsu.mdnevill.bitmap;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * @author Mitchell Neville
+ * How the index of a column is built, parsed from FastBit's index specification
+ * (https://sdm.lbl.gov/~kewu/fastbit/doc/indexSpec.html). The supported parts are
+ * <pre>
+ * &lt;binning none/&gt;                      one bin per distinct value (the default)
+ * &lt;binning nbins=2000/&gt;                2000 bins of equal width
+ * &lt;binning nbins=2000 equal-weight/&gt;   2000 bins of about equal numbers of rows
+ * &lt;binning precision=2/&gt;               one bin per value rounded to 2 significant digits
+ * &lt;encoding equality/&gt;                 one bitvector per bin (the default)
+ * &lt;encoding range/&gt;                    one bitvector per bin, of the rows in it or below
+ * &lt;encoding interval/&gt;                 about half as many bitvectors, each over half the bins
+ * </pre>
+ * An option string may give different options for some columns by following the
+ * default with name:options, separated by semicolons, for example
+ * "&lt;binning none/&gt;; price:&lt;binning nbins=1000/&gt;&lt;encoding range/&gt;".
+ */
+public class IndexOptions {
+    public static final String EQUALITY = "equality";
+    public static final String RANGE = "range";
+    public static final String INTERVAL = "interval";
+
+    public static final String NONE = "none";
+    // Bins of equal width, of about equal numbers of rows, or of rounded values
+    public static final String WIDTH = "width";
+    public static final String DEPTH = "depth";
+    public static final String PRECISION = "precision";
+
+    // Number of bins of <binning/> without nbins, as in FastBit
+    static final int DEFAULT_BINS = 10000;
+
+    private static final Pattern TAG = Pattern.compile("<\\s*(\\w+)([^>]*?)/?\\s*>");
+    private static final Pattern ASSIGNMENT = Pattern.compile("([\\w-]+)\\s*=\\s*([\\w.-]+)");
+    private static final Pattern COLUMN = Pattern.compile("^\\s*(\\w+)\\s*:\\s*(<.*)$");
+
+    // Equality, unbinned indexes, as FastBit builds by default
+    public static final IndexOptions DEFAULT = new IndexOptions(EQUALITY, NONE, 0);
+
+    final String encoding;
+    final String binning;
+    // Number of bins, or significant digits for precision binning
+    final int bins;
+
+    IndexOptions(String encoding, String binning, int bins)
+    {
+        this.encoding = encoding;
+        this.binning = binning;
+        this.bins = bins;
+    }
+
+    /**
+     * Get the options of one column from an option string, which may give options
+     * for some columns by name after the default for the others
+     * @param options Option string; blank for the default
+     * @param column
+     * @return
+     * @throws IllegalArgumentException If the options are not valid
+     */
+    public static IndexOptions forColumn(String options, String column)
+    {
+        String common = "";
+        String own = null;
+        if(options != null){
+            for(String part : options.split(";")){
+                Matcher m = COLUMN.matcher(part);
+                if(!m.matches()){
+                    common = common + part;
+                }
+                else if(m.group(1).equalsIgnoreCase(column)){
+                    own = m.group(2);
+                }
+            }
+        }
+        return parse(own != null ? own : common);
+    }
+
+    /**
+     * Parse the options of one column
+     * @param spec FastBit index specification; blank for the default
+     * @return
+     * @throws IllegalArgumentException If the options are not valid
+     */
+    public static IndexOptions parse(String spec)
+    {
+        String encoding = EQUALITY;
+        String binning = NONE;
+        int bins = 0;
+        if(spec == null){
+            return DEFAULT;
+        }
+        Matcher tag = TAG.matcher(spec);
+        int end = 0;
+        while(tag.find()){
+            if(spec.substring(end, tag.start()).trim().length() > 0){
+                throw new IllegalArgumentException("Unexpected text in index options: " + spec);
+            }
+            end = tag.end();
+            String name = tag.group(1).toLowerCase();
+            String body = tag.group(2).trim().toLowerCase();
+            if(name.equals("encoding")){
+                body = body.replaceAll("=.*$", "").trim();
+                if(!body.equals(EQUALITY) && !body.equals(RANGE) && !body.equals(INTERVAL)){
+                    throw new IllegalArgumentException("Unsupported encoding " + body + " in " + spec);
+                }
+                encoding = body;
+            }
+            else if(name.equals("binning")){
+                binning = WIDTH;
+                bins = DEFAULT_BINS;
+                if(body.equals(NONE)){
+                    binning = NONE;
+                    bins = 0;
+                    continue;
+                }
+                Matcher a = ASSIGNMENT.matcher(body);
+                String rest = body;
+                while(a.find()){
+                    rest = rest.replace(a.group(), " ");
+                    int value = parseCount(a.group(2), spec);
+                    if(a.group(1).equals("nbins")){
+                        bins = value;
+                    }
+                    else if(a.group(1).equals("precision")){
+                        binning = PRECISION;
+                        bins = value;
+                    }
+                    else{
+                        throw new IllegalArgumentException("Unsupported binning option " + a.group(1) + " in " + spec);
+                    }
+                }
+                for(String word : rest.trim().split("[\\s,]+")){
+                    if(word.equals("equal-weight") || word.equals("equal_weight")){
+                        if(binning.equals(PRECISION)){
+                            throw new IllegalArgumentException("Precision bins cannot be equal-weight: " + spec);
+                        }
+                        binning = DEPTH;
+                    }
+                    else if(word.length() > 0 && !word.equals("equal-width") && !word.equals("equal_width")){
+                        throw new IllegalArgumentException("Unsupported binning option " + word + " in " + spec);
+                    }
+                }
+            }
+            else{
+                throw new IllegalArgumentException("Unsupported index option <" + name + "> in " + spec);
+            }
+        }
+        if(spec.substring(end).trim().length() > 0){
+            throw new IllegalArgumentException("Unexpected text in index options: " + spec);
+        }
+        return new IndexOptions(encoding, binning, bins);
+    }
+
+    private static int parseCount(String value, String spec)
+    {
+        try{
+            int n = Integer.parseInt(value);
+            if(n > 0){
+                return n;
+            }
+        }
+        catch(NumberFormatException e){
+            // Reported below
+        }
+        throw new IllegalArgumentException("Expected a positive number, not " + value + " in " + spec);
+    }
+
+    /**
+     * Get the encoding: equality, range or interval
+     * @return
+     */
+    public String getEncoding()
+    {
+        return encoding;
+    }
+
+    /**
+     * Get the binning: none, width, depth or precision
+     * @return
+     */
+    public String getBinning()
+    {
+        return binning;
+    }
+
+    /**
+     * Get the number of bins, or the significant digits of precision binning
+     * @return
+     */
+    public int getBins()
+    {
+        return bins;
+    }
+
+    /**
+     * Are values grouped into bins, so a query may need to check candidate rows?
+     * @return
+     */
+    public boolean isBinned()
+    {
+        return !binning.equals(NONE);
+    }
+
+    /**
+     * Write the options as a FastBit index specification
+     * @return
+     */
+    @Override
+    public String toString()
+    {
+        String b;
+        if(binning.equals(NONE)){
+            b = "<binning none/>";
+        }
+        else if(binning.equals(PRECISION)){
+            b = "<binning precision=" + bins + "/>";
+        }
+        else{
+            b = "<binning nbins=" + bins + (binning.equals(DEPTH) ? " equal-weight" : "") + "/>";
+        }
+        return b + "<encoding " + encoding + "/>";
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if(!(o instanceof IndexOptions)){
+            return false;
+        }
+        IndexOptions other = (IndexOptions) o;
+        return encoding.equals(other.encoding) && binning.equals(other.binning) && bins == other.bins;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return (encoding.hashCode() * 31 + binning.hashCode()) * 31 + bins;
+    }
+}
@@ -0,0 +1,205 @@
+package edu.ncsu.mdnevill.bitmap;
+
+/**
+ * @author Mitchell Neville
+ * Wraps a bitmap engine, timing every query call into a {@link QueryMetrics}. Query
+ * handles are wrapped so the calls reading a result are recorded under the shape of
+ * the query that produced it. Only the delegated call is timed; the WHERE clause is
+ * parsed for its shape before the clock starts.
+ */
+public class InstrumentedBitmapEngine implements BitmapEngine {
+    private final BitmapEngine engine;
+    private final QueryMetrics metrics;
+    // Engine name the calls are recorded under
+    private final String name;
+
+    /**
+     * A query handle of the wrapped engine, with the shape of its query
+     */
+    static class QueryHandle implements BitmapEngine.QueryHandle {
+        final BitmapEngine.QueryHandle handle;
+        final String shape;
+
+        QueryHandle(BitmapEngine.QueryHandle handle, String shape)
+        {
+            this.handle = handle;
+            this.shape = shape;
+        }
+    }
+
+    /**
+     * Wrap an engine
+     * @param engine
+     * @param metrics Where to record the calls
+     * @param name Engine name the calls are recorded under, e.g. "bitmap"
+     */
+    public InstrumentedBitmapEngine(BitmapEngine engine, QueryMetrics metrics, String name)
+    {
+        this.engine = engine;
+        this.metrics = metrics;
+        this.name = name;
+    }
+
+    /**
+     * Get the wrapped engine
+     * @return
+     */
+    public BitmapEngine getEngine()
+    {
+        return engine;
+    }
+
+    private static BitmapEngine.QueryHandle unwrap(BitmapEngine.QueryHandle handle)
+    {
+        return handle == null ? null : ((QueryHandle) handle).handle;
+    }
+
+    private static String shapeOf(BitmapEngine.QueryHandle handle)
+    {
+        return handle == null ? "" : ((QueryHandle) handle).shape;
+    }
+
+    @Override
+    public int add_ints(String colname, int[] arr)
+    {
+        return engine.add_ints(colname, arr);
+    }
+
+    @Override
+    public int add_doubles(String colname, double[] arr)
+    {
+        return engine.add_doubles(colname, arr);
+    }
+
+    @Override
+    public int write_buffer(String dir)
+    {
+        return engine.write_buffer(dir);
+    }
+
+    @Override
+    public int build_indexes(String dir, String opt)
+    {
+        return engine.build_indexes(dir, opt);
+    }
+
+    @Override
+    public int build_index(String dir, String col, String opt)
+    {
+        return engine.build_index(dir, col, opt);
+    }
+
+    @Override
+    public int purge_indexes(String dir)
+    {
+        return engine.purge_indexes(dir);
+    }
+
+    @Override
+    public int purge_index(String dir, String col)
+    {
+        return engine.purge_index(dir, col);
+    }
+
+    @Override
+    public BitmapEngine.QueryHandle build_query(String select, String datadir, String where)
+    {
+        String shape;
+        try{
+            shape = QueryMetrics.shape(WhereParser.parse(where));
+        }
+        catch(WhereClauseException e){
+            shape = where;
+        }
+        long start = System.nanoTime();
+        BitmapEngine.QueryHandle h = engine.build_query(select, datadir, where);
+        metrics.record(name, "build_query", shape, System.nanoTime() - start, -1);
+        return h == null ? null : new QueryHandle(h, shape);
+    }
+
+    @Override
+    public BitmapEngine.QueryHandle build_query(String select, String datadir, Predicate where)
+    {
+        String shape = QueryMetrics.shape(where);
+        long start = System.nanoTime();
+        BitmapEngine.QueryHandle h = engine.build_query(select, datadir, where);
+        metrics.record(name, "build_query", shape, System.nanoTime() - start, -1);
+        return h == null ? null : new QueryHandle(h, shape);
+    }
+
+    @Override
+    public int destroy_query(BitmapEngine.QueryHandle handle)
+    {
+        return engine.destroy_query(unwrap(handle));
+    }
+
+    @Override
+    public int[] get_result_row_ids(BitmapEngine.QueryHandle handle)
+    {
+        long start = System.nanoTime();
+        int[] ret = engine.get_result_row_ids(unwrap(handle));
+        metrics.record(name, "get_result_row_ids", shapeOf(handle), System.nanoTime() - start,
+                ret == null ? -1 : ret.length);
+        return ret;
+    }
+
+    @Override
+    public int get_result_size(BitmapEngine.QueryHandle handle)
+    {
+        long start = System.nanoTime();
+        int ret = engine.get_result_size(unwrap(handle));
+        metrics.record(name, "get_result_size", shapeOf(handle), System.nanoTime() - start, ret);
+        return ret;
+    }
+
+    @Override
+    public int[] get_qualified_ints(BitmapEngine.QueryHandle handle, String col)
+    {
+        long start = System.nanoTime();
+        int[] ret = engine.get_qualified_ints(unwrap(handle), col);
+        metrics.record(name, "get_qualified_ints", shapeOf(handle), System.nanoTime() - start,
+                ret == null ? -1 : ret.length);
+        return ret;
+    }
+
+    @Override
+    public double[] get_qualified_doubles(BitmapEngine.QueryHandle handle, String col)
+    {
+        long start = System.nanoTime();
+        double[] ret = engine.get_qualified_doubles(unwrap(handle), col);
+        metrics.record(name, "get_qualified_doubles", shapeOf(handle), System.nanoTime() - start,
+                ret == null ? -1 : ret.length);
+        return ret;
+    }
+
+    @Override
+    public ResultCursor open_cursor(BitmapEngine.QueryHandle handle, int batchSize, int limit)
+    {
+        long start = System.nanoTime();
+        ResultCursor ret = engine.open_cursor(unwrap(handle), batchSize, limit);
+        metrics.record(name, "open_cursor", shapeOf(handle), System.nanoTime() - start, -1);
+        return ret;
+    }
+
+    @Override
+    public ResultCursor open_sorted_cursor(BitmapEngine.QueryHandle handle, String col, boolean descending,
+                                           int batchSize, int limit)
+    {
+        long start = System.nanoTime();
+        ResultCursor ret = engine.open_sorted_cursor(unwrap(handle), col, descending, batchSize, limit);
+        metrics.record(name, "open_sorted_cursor", shapeOf(handle), System.nanoTime() - start, -1);
+        return ret;
+    }
+
+    @Override
+    public int number_of_rows(String dir)
+    {
+        return engine.number_of_rows(dir);
+    }
+
+    @Override
+    public int number_of_columns(String dir)
+    {
+        return engine.number_of_columns(dir);
+    }
+}
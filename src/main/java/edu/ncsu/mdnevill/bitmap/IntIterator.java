@@ -0,0 +1,19 @@
+package edu.ncsu.mdnevill.bitmap;
+
+/**
+ * @author Mitchell Neville
+ * An iterator over primitive ints, used to walk row ids without boxing them.
+ */
+public interface IntIterator {
+    /**
+     * Is there another value?
+     * @return
+     */
+    boolean hasNext();
+
+    /**
+     * Get the next value
+     * @return
+     */
+    int next();
+}
@@ -0,0 +1,1015 @@
+package edu.ncsu.mdnevill.bitmap;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * @author Mitchell Neville
+ * A pure-Java replacement for the FastBit JNI. Rows are buffered with the add
+ * functions and written to a FastBit-style data partition by write_buffer; queries
+ * are answered from WAH bitmap indexes, built on demand or saved with build_index,
+ * whose binning and encoding are chosen per column by the option string (see
+ * {@link IndexOptions}). Nothing here needs libfastbitjni.so, so the benchmarks run
+ * on any JVM and the bitmap side can be profiled with ordinary Java tools.
+ *
+ * A directory may instead hold a {@link PartitionedTable}, made by create_table,
+ * whose rows are spread over several partitions. Every function taking a directory
+ * accepts either; queries on a table run on all its partitions in parallel and
+ * return row ids numbered across the table.
+ */
+public class JavaFastBit implements BitmapEngine {
+    // Index options used when build_index is given a blank option string, and by
+    // indexes built on demand
+    private final String indexOptions;
+    // Columns added since the last write_buffer
+    private final LinkedHashMap<String, Column> buffer = new LinkedHashMap<String, Column>();
+    // Open partitions by directory
+    private final Map<String, Partition> partitions = new HashMap<String, Partition>();
+    // Open partitioned tables by directory
+    private final Map<String, PartitionedTable> tables = new HashMap<String, PartitionedTable>();
+    // Pool evaluating queries on the partitions of a table, created on first use
+    private ForkJoinPool pool;
+    // Cache of query results, or null
+    private final ResultCache cache;
+
+    /**
+     * Create a new engine
+     * @param indexOptions Default indexing option, e.g. "&lt;binning none/&gt;&lt;encoding equality/&gt;"
+     */
+    public JavaFastBit(String indexOptions)
+    {
+        this(indexOptions, null);
+    }
+
+    /**
+     * Create a new engine that keeps query results in a cache. Results are cached
+     * under the partition directory and the normalized WHERE clause, and are dropped
+     * when write_buffer changes the partition.
+     * @param indexOptions Default indexing option
+     * @param cache Result cache, or null for none
+     */
+    public JavaFastBit(String indexOptions, ResultCache cache)
+    {
+        this.indexOptions = indexOptions;
+        this.cache = cache;
+    }
+
+    /**
+     * The result of a query: the bitvector of qualifying rows in a partition
+     */
+    public static class QueryHandle implements BitmapEngine.QueryHandle {
+        final Partition partition;
+        final Predicate where;
+        WahBitVector hits;
+        int[] rowIds;
+        int size = -1;
+
+        QueryHandle(Partition partition, Predicate where, WahBitVector hits)
+        {
+            this.partition = partition;
+            this.where = where;
+            this.hits = hits;
+        }
+
+        public Partition getPartition()
+        {
+            return partition;
+        }
+
+        public Predicate getWhere()
+        {
+            return where;
+        }
+
+        public WahBitVector getHits()
+        {
+            return hits;
+        }
+
+        /**
+         * Get the number of hits
+         * @return The number, or -1 once the query is destroyed
+         */
+        synchronized int size()
+        {
+            if(hits == null){
+                return -1;
+            }
+            if(size < 0){
+                size = rowIds != null ? rowIds.length : hits.cardinality();
+            }
+            return size;
+        }
+
+        /**
+         * Get the rows of the hits
+         * @return The rows, or null once the query is destroyed
+         */
+        synchronized int[] rowIds()
+        {
+            if(hits == null){
+                return null;
+            }
+            if(rowIds == null){
+                rowIds = hits.toArray();
+            }
+            return rowIds;
+        }
+    }
+
+    /**
+     * Walks the hits of a query with the bitvector's own iterator, so no row id array
+     * is materialized, and reads column values straight from the partition
+     */
+    private static class Cursor implements ResultCursor {
+        final Partition partition;
+        final IntIterator rows;
+        final int[] batch;
+        // Rows that may still be returned under the limit
+        int remaining;
+        // Rows in the current batch
+        int count;
+
+        Cursor(Partition partition, IntIterator rows, int batchSize, int limit)
+        {
+            this.partition = partition;
+            this.rows = rows;
+            this.batch = new int[batchSize];
+            this.remaining = limit < 0 ? Integer.MAX_VALUE : limit;
+        }
+
+        @Override
+        public int next_batch()
+        {
+            count = 0;
+            while(count < batch.length && remaining > 0 && rows.hasNext()){
+                batch[count++] = rows.next();
+                remaining--;
+            }
+            return count;
+        }
+
+        @Override
+        public int[] get_batch_row_ids()
+        {
+            return batch;
+        }
+
+        @Override
+        public int get_batch_ints(String col, int[] out)
+        {
+            try{
+                Column c = partition.column(col);
+                if(c.ints == null || out.length < count){
+                    return -1;
+                }
+                for(int i = 0; i < count; i++){
+                    out[i] = c.ints[batch[i]];
+                }
+                return count;
+            }
+            catch(IOException e){
+                System.out.println(e.getMessage());
+                return -1;
+            }
+        }
+
+        @Override
+        public int get_batch_doubles(String col, double[] out)
+        {
+            try{
+                Column c = partition.column(col);
+                if(out.length < count){
+                    return -1;
+                }
+                for(int i = 0; i < count; i++){
+                    out[i] = c.valueAt(batch[i]);
+                }
+                return count;
+            }
+            catch(IOException e){
+                System.out.println(e.getMessage());
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * The result of a query on a partitioned table: the bitvector of qualifying rows in
+     * each partition, merged into table row order when rows or values are read
+     */
+    public static class TableQueryHandle implements BitmapEngine.QueryHandle {
+        final PartitionedTable table;
+        final Predicate where;
+        // Hits of each partition, null for those skipped
+        WahBitVector[] hits;
+        PartitionedTable.Merged merged;
+        int size = -1;
+
+        TableQueryHandle(PartitionedTable table, Predicate where, WahBitVector[] hits)
+        {
+            this.table = table;
+            this.where = where;
+            this.hits = hits;
+        }
+
+        public PartitionedTable getTable()
+        {
+            return table;
+        }
+
+        public Predicate getWhere()
+        {
+            return where;
+        }
+
+        /**
+         * Get the number of partitions skipped because none of their rows could match
+         * @return The number, or -1 once the query is destroyed
+         */
+        public synchronized int getSkippedPartitions()
+        {
+            if(hits == null){
+                return -1;
+            }
+            int skipped = 0;
+            for(WahBitVector h : hits){
+                if(h == null){
+                    skipped++;
+                }
+            }
+            return skipped;
+        }
+
+        /**
+         * Get the number of hits
+         * @return The number, or -1 once the query is destroyed
+         */
+        synchronized int size()
+        {
+            if(hits == null){
+                return -1;
+            }
+            if(size < 0){
+                size = 0;
+                for(WahBitVector h : hits){
+                    if(h != null){
+                        size += h.cardinality();
+                    }
+                }
+            }
+            return size;
+        }
+
+        /**
+         * Get the hits in table row order
+         * @return The hits, or null once the query is destroyed
+         * @throws IOException
+         */
+        synchronized PartitionedTable.Merged merged() throws IOException
+        {
+            if(hits == null){
+                return null;
+            }
+            if(merged == null){
+                merged = table.merge(hits);
+            }
+            return merged;
+        }
+
+        /**
+         * Get the data of a column in every partition with hits
+         * @param col
+         * @param hits Hits of each partition, taken while the query was not destroyed
+         */
+        Column[] columns(String col, WahBitVector[] hits) throws IOException
+        {
+            List<Partition> ps = table.partitions();
+            Column[] ret = new Column[hits.length];
+            for(int i = 0; i < hits.length; i++){
+                if(hits[i] != null){
+                    ret[i] = ps.get(i).column(col);
+                }
+            }
+            return ret;
+        }
+    }
+
+    /**
+     * Reads the merged hits of a table query in batches, returning table row numbers
+     * and reading column values from each hit's partition
+     */
+    private static class TableCursor implements ResultCursor {
+        final TableQueryHandle handle;
+        // Hits of each partition when the cursor was opened, so it can still read
+        // values once the query is destroyed
+        final WahBitVector[] hits;
+        final PartitionedTable.Merged merged;
+        final int[] batch;
+        // Position in the merged hits of the first row of the batch
+        int start;
+        // Rows in the current batch
+        int count;
+        // Position after the last row that may be returned under the limit
+        final int end;
+
+        TableCursor(TableQueryHandle handle, WahBitVector[] hits, PartitionedTable.Merged merged,
+                    int batchSize, int limit)
+        {
+            this.handle = handle;
+            this.hits = hits;
+            this.merged = merged;
+            this.batch = new int[batchSize];
+            this.end = limit < 0 ? merged.size() : Math.min(limit, merged.size());
+        }
+
+        @Override
+        public int next_batch()
+        {
+            start += count;
+            count = Math.min(batch.length, end - start);
+            System.arraycopy(merged.rows, start, batch, 0, count);
+            return count;
+        }
+
+        @Override
+        public int[] get_batch_row_ids()
+        {
+            return batch;
+        }
+
+        @Override
+        public int get_batch_ints(String col, int[] out)
+        {
+            try{
+                Column[] c = handle.columns(col, hits);
+                if(out.length < count){
+                    return -1;
+                }
+                for(int i = 0; i < count; i++){
+                    Column pc = c[merged.partitions[start + i]];
+                    if(pc.ints == null){
+                        return -1;
+                    }
+                    out[i] = pc.ints[merged.localRows[start + i]];
+                }
+                return count;
+            }
+            catch(IOException e){
+                System.out.println(e.getMessage());
+                return -1;
+            }
+        }
+
+        @Override
+        public int get_batch_doubles(String col, double[] out)
+        {
+            try{
+                Column[] c = handle.columns(col, hits);
+                if(out.length < count){
+                    return -1;
+                }
+                for(int i = 0; i < count; i++){
+                    out[i] = c[merged.partitions[start + i]].valueAt(merged.localRows[start + i]);
+                }
+                return count;
+            }
+            catch(IOException e){
+                System.out.println(e.getMessage());
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Create an empty partitioned table in a directory; rows later written to it with
+     * write_buffer are split over its partitions
+     * @param dir
+     * @param split "rows:N" for partitions of N rows, or "column:width" for partitions
+     *              holding ranges of width values of a column, e.g. "year:10"
+     * @return 0, or -1 on failure
+     */
+    public synchronized int create_table(String dir, String split)
+    {
+        try{
+            File f = new File(dir);
+            PartitionedTable t = PartitionedTable.create(f, split);
+            tables.put(f.getAbsolutePath(), t);
+            partitions.remove(f.getAbsolutePath());
+            return 0;
+        }
+        catch(IllegalArgumentException e){
+            System.out.println(e.getMessage());
+        }
+        catch(IOException e){
+            System.out.println(e.getMessage());
+        }
+        return -1;
+    }
+
+    /**
+     * Does a directory hold a partitioned table rather than a single partition?
+     * @param dir
+     * @return
+     */
+    public synchronized boolean is_table(String dir)
+    {
+        File f = new File(dir);
+        return tables.containsKey(f.getAbsolutePath()) || PartitionedTable.exists(f);
+    }
+
+    /**
+     * Get the open partitioned table in a directory
+     * @param dir
+     * @return
+     * @throws IOException
+     */
+    public synchronized PartitionedTable table(String dir) throws IOException
+    {
+        File f = new File(dir);
+        String key = f.getAbsolutePath();
+        PartitionedTable t = tables.get(key);
+        if(t == null){
+            if(!PartitionedTable.exists(f)){
+                throw new IOException("No partitioned table in " + dir);
+            }
+            t = PartitionedTable.open(f);
+            tables.put(key, t);
+        }
+        return t;
+    }
+
+    /**
+     * Get the partitions in a directory: those of its table, or its single partition
+     */
+    private List<Partition> partitionsOf(String dir) throws IOException
+    {
+        if(is_table(dir)){
+            return table(dir).partitions();
+        }
+        return Collections.singletonList(partition(dir));
+    }
+
+    private synchronized ForkJoinPool pool()
+    {
+        if(pool == null){
+            pool = new ForkJoinPool();
+        }
+        return pool;
+    }
+
+    /**
+     * Get the open partition in a directory
+     * @param dir
+     * @return
+     * @throws IOException
+     */
+    public synchronized Partition partition(String dir) throws IOException
+    {
+        File f = new File(dir);
+        String key = f.getAbsolutePath();
+        Partition p = partitions.get(key);
+        if(p == null){
+            if(!Partition.exists(f)){
+                throw new IOException("No data partition in " + dir);
+            }
+            p = Partition.open(f);
+            partitions.put(key, p);
+        }
+        return p;
+    }
+
+    private synchronized void forget(String dir)
+    {
+        partitions.remove(new File(dir).getAbsolutePath());
+        tables.remove(new File(dir).getAbsolutePath());
+    }
+
+    @Override
+    public synchronized int add_ints(String colname, int[] arr)
+    {
+        return add(new Column(colname, arr));
+    }
+
+    @Override
+    public synchronized int add_doubles(String colname, double[] arr)
+    {
+        return add(new Column(colname, arr));
+    }
+
+    private int add(Column c)
+    {
+        Column old = buffer.get(c.name);
+        if(old != null){
+            if(!old.type.equals(c.type)){
+                System.out.println("Column " + c.name + " was added as " + old.type + ", not " + c.type);
+                return -1;
+            }
+            c = old.concat(c);
+        }
+        buffer.put(c.name, c);
+        return 0;
+    }
+
+    @Override
+    public synchronized int write_buffer(String dir)
+    {
+        if(buffer.isEmpty()){
+            return 0;
+        }
+        // Options for indexes built on demand over columns not yet given any
+        Map<String, IndexOptions> options = new HashMap<String, IndexOptions>();
+        try{
+            for(String col : buffer.keySet()){
+                options.put(col, IndexOptions.forColumn(indexOptions, col));
+            }
+        }
+        catch(IllegalArgumentException e){
+            System.out.println(e.getMessage());
+            return -1;
+        }
+        try{
+            File f = new File(dir);
+            if(is_table(dir)){
+                List<Partition> changed = table(dir).append(buffer);
+                buffer.clear();
+                for(Partition p : changed){
+                    p.defaultIndexOptions(options);
+                }
+                if(cache != null){
+                    for(Partition p : changed){
+                        cache.invalidate(p.getDirectory().getAbsolutePath());
+                    }
+                }
+                return 0;
+            }
+            Partition p = Partition.exists(f) ? partition(dir) : Partition.create(f);
+            p.append(buffer);
+            p.defaultIndexOptions(options);
+            partitions.put(f.getAbsolutePath(), p);
+            buffer.clear();
+            if(cache != null){
+                cache.invalidate(f.getAbsolutePath());
+            }
+            return 0;
+        }
+        catch(IOException e){
+            System.out.println(e.getMessage());
+            return -1;
+        }
+    }
+
+    @Override
+    public int build_indexes(String dir, String opt)
+    {
+        try{
+            for(Partition p : partitionsOf(dir)){
+                for(String col : p.columnTypes().keySet()){
+                    p.buildIndex(col, IndexOptions.forColumn(options(opt), col));
+                }
+            }
+            return 0;
+        }
+        catch(IOException e){
+            System.out.println(e.getMessage());
+            return -1;
+        }
+        catch(IllegalArgumentException e){
+            System.out.println(e.getMessage());
+            return -1;
+        }
+    }
+
+    @Override
+    public int build_index(String dir, String col, String opt)
+    {
+        try{
+            for(Partition p : partitionsOf(dir)){
+                p.buildIndex(col, IndexOptions.forColumn(options(opt), col));
+            }
+            return 0;
+        }
+        catch(IOException e){
+            System.out.println(e.getMessage());
+            return -1;
+        }
+        catch(IllegalArgumentException e){
+            System.out.println(e.getMessage());
+            return -1;
+        }
+    }
+
+    /**
+     * Get the option string to build indexes with
+     * @param opt Option string given to build_index, or blank for the default
+     * @return
+     */
+    private String options(String opt)
+    {
+        return opt == null || opt.trim().length() == 0 ? indexOptions : opt;
+    }
+
+    /**
+     * Get the size of a column's index, building it if needed
+     * @param dir
+     * @param col
+     * @return Bytes of bitvectors and bin bounds over all partitions, or -1 on failure
+     */
+    public long get_index_size(String dir, String col)
+    {
+        try{
+            long size = 0;
+            for(Partition p : partitionsOf(dir)){
+                size += p.index(col).sizeInBytes();
+            }
+            return size;
+        }
+        catch(IOException e){
+            System.out.println(e.getMessage());
+            return -1;
+        }
+    }
+
+    @Override
+    public int purge_indexes(String dir)
+    {
+        File f = new File(dir);
+        if(!Partition.exists(f) && !PartitionedTable.exists(f)){
+            forget(dir);
+            if(cache != null){
+                cache.invalidate(f.getAbsolutePath());
+            }
+            return 0;
+        }
+        try{
+            for(Partition p : partitionsOf(dir)){
+                for(String col : p.columnTypes().keySet()){
+                    p.purgeIndex(col);
+                }
+            }
+            return 0;
+        }
+        catch(IOException e){
+            System.out.println(e.getMessage());
+            forget(dir);
+            return -1;
+        }
+    }
+
+    @Override
+    public int purge_index(String dir, String col)
+    {
+        try{
+            for(Partition p : partitionsOf(dir)){
+                p.purgeIndex(col);
+            }
+            return 0;
+        }
+        catch(IOException e){
+            System.out.println(e.getMessage());
+            return -1;
+        }
+    }
+
+    @Override
+    public BitmapEngine.QueryHandle build_query(String select, String datadir, String where)
+    {
+        try{
+            return build_query(select, datadir, WhereParser.parse(where));
+        }
+        catch(WhereClauseException e){
+            System.out.println(e.getMessage());
+            return null;
+        }
+    }
+
+    @Override
+    public BitmapEngine.QueryHandle build_query(String select, String datadir, Predicate where)
+    {
+        if(where.parameters() > 0){
+            System.out.println("Parameters of " + where + " are not bound");
+            return null;
+        }
+        try{
+            if(is_table(datadir)){
+                PartitionedTable t = table(datadir);
+                return new TableQueryHandle(t, where, t.evaluate(where, pool(), cache));
+            }
+            Partition p = partition(datadir);
+            if(cache == null){
+                return new QueryHandle(p, where, where.evaluate(p));
+            }
+            String dir = new File(datadir).getAbsolutePath();
+            String text = where.toString();
+            // Read the version first: a write_buffer while evaluating makes the result stale
+            long version = cache.version(dir);
+            WahBitVector hits = cache.get(dir, text);
+            if(hits == null){
+                hits = where.evaluate(p);
+                cache.put(dir, text, hits, version);
+            }
+            return new QueryHandle(p, where, hits);
+        }
+        catch(IOException e){
+            System.out.println(e.getMessage());
+            return null;
+        }
+    }
+
+    @Override
+    public int destroy_query(BitmapEngine.QueryHandle handle)
+    {
+        if(handle instanceof TableQueryHandle){
+            TableQueryHandle t = (TableQueryHandle) handle;
+            synchronized(t){
+                t.hits = null;
+                t.merged = null;
+            }
+            return 0;
+        }
+        QueryHandle h = (QueryHandle) handle;
+        synchronized(h){
+            h.hits = null;
+            h.rowIds = null;
+        }
+        return 0;
+    }
+
+    @Override
+    public int[] get_result_row_ids(BitmapEngine.QueryHandle handle)
+    {
+        if(handle instanceof TableQueryHandle){
+            try{
+                PartitionedTable.Merged m = ((TableQueryHandle) handle).merged();
+                return m != null ? m.rows.clone() : null;
+            }
+            catch(IOException e){
+                System.out.println(e.getMessage());
+                return null;
+            }
+        }
+        int[] ids = ((QueryHandle) handle).rowIds();
+        return ids != null ? ids.clone() : null;
+    }
+
+    @Override
+    public int get_result_size(BitmapEngine.QueryHandle handle)
+    {
+        if(handle instanceof TableQueryHandle){
+            return ((TableQueryHandle) handle).size();
+        }
+        return ((QueryHandle) handle).size();
+    }
+
+    @Override
+    public int[] get_qualified_ints(BitmapEngine.QueryHandle handle, String col)
+    {
+        if(handle instanceof TableQueryHandle){
+            return tableInts((TableQueryHandle) handle, col);
+        }
+        QueryHandle h = (QueryHandle) handle;
+        try{
+            Column c = h.partition.column(col);
+            if(c.ints == null){
+                return null;
+            }
+            int[] rows = h.rowIds();
+            if(rows == null){
+                return null;
+            }
+            int[] ret = new int[rows.length];
+            for(int i = 0; i < rows.length; i++){
+                ret[i] = c.ints[rows[i]];
+            }
+            return ret;
+        }
+        catch(IOException e){
+            System.out.println(e.getMessage());
+            return null;
+        }
+    }
+
+    @Override
+    public double[] get_qualified_doubles(BitmapEngine.QueryHandle handle, String col)
+    {
+        if(handle instanceof TableQueryHandle){
+            return tableDoubles((TableQueryHandle) handle, col);
+        }
+        QueryHandle h = (QueryHandle) handle;
+        try{
+            Column c = h.partition.column(col);
+            int[] rows = h.rowIds();
+            if(rows == null){
+                return null;
+            }
+            double[] ret = new double[rows.length];
+            for(int i = 0; i < rows.length; i++){
+                ret[i] = c.valueAt(rows[i]);
+            }
+            return ret;
+        }
+        catch(IOException e){
+            System.out.println(e.getMessage());
+            return null;
+        }
+    }
+
+    @Override
+    public ResultCursor open_cursor(BitmapEngine.QueryHandle handle, int batchSize, int limit)
+    {
+        if(handle instanceof TableQueryHandle){
+            TableQueryHandle t = (TableQueryHandle) handle;
+            if(batchSize <= 0){
+                return null;
+            }
+            try{
+                synchronized(t){
+                    if(t.hits == null){
+                        return null;
+                    }
+                    return new TableCursor(t, t.hits, t.merged(), batchSize, limit);
+                }
+            }
+            catch(IOException e){
+                System.out.println(e.getMessage());
+                return null;
+            }
+        }
+        QueryHandle h = (QueryHandle) handle;
+        WahBitVector hits;
+        synchronized(h){
+            hits = h.hits;
+        }
+        if(hits == null || batchSize <= 0){
+            return null;
+        }
+        return new Cursor(h.partition, hits.iterator(), batchSize, limit);
+    }
+
+    /**
+     * Only the first limit rows are ranked, and only their values are read: with
+     * many hits the column's index is walked from the top and stops once it has
+     * limit of them, otherwise the hits' values go through a bounded heap. On a
+     * table each partition ranks its own hits and the best of each are merged.
+     */
+    @Override
+    public ResultCursor open_sorted_cursor(BitmapEngine.QueryHandle handle, String col, boolean descending,
+                                           int batchSize, int limit)
+    {
+        if(batchSize <= 0){
+            return null;
+        }
+        try{
+            if(handle instanceof TableQueryHandle){
+                TableQueryHandle t = (TableQueryHandle) handle;
+                WahBitVector[] hits;
+                synchronized(t){
+                    hits = t.hits;
+                }
+                if(hits == null){
+                    return null;
+                }
+                return new TableCursor(t, hits, t.table.top(hits, col, limit, descending), batchSize, limit);
+            }
+            QueryHandle h = (QueryHandle) handle;
+            WahBitVector hits;
+            synchronized(h){
+                hits = h.hits;
+            }
+            if(hits == null){
+                return null;
+            }
+            return new Cursor(h.partition, iterate(h.partition.top(hits, col, limit, descending)), batchSize, limit);
+        }
+        catch(IOException e){
+            System.out.println(e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Iterate over an array of rows
+     */
+    private static IntIterator iterate(final int[] rows)
+    {
+        return new IntIterator() {
+            int next = 0;
+
+            @Override
+            public boolean hasNext() {
+                return next < rows.length;
+            }
+
+            @Override
+            public int next() {
+                return rows[next++];
+            }
+        };
+    }
+
+    /**
+     * Read an int-valued column for the merged hits of a table query
+     */
+    private static int[] tableInts(TableQueryHandle h, String col)
+    {
+        try{
+            WahBitVector[] hits;
+            PartitionedTable.Merged m;
+            synchronized(h){
+                hits = h.hits;
+                m = h.merged();
+            }
+            if(m == null){
+                return null;
+            }
+            Column[] c = h.columns(col, hits);
+            int[] ret = new int[m.size()];
+            for(int i = 0; i < ret.length; i++){
+                Column pc = c[m.partitions[i]];
+                if(pc.ints == null){
+                    return null;
+                }
+                ret[i] = pc.ints[m.localRows[i]];
+            }
+            return ret;
+        }
+        catch(IOException e){
+            System.out.println(e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Read a column as doubles for the merged hits of a table query
+     */
+    private static double[] tableDoubles(TableQueryHandle h, String col)
+    {
+        try{
+            WahBitVector[] hits;
+            PartitionedTable.Merged m;
+            synchronized(h){
+                hits = h.hits;
+                m = h.merged();
+            }
+            if(m == null){
+                return null;
+            }
+            Column[] c = h.columns(col, hits);
+            double[] ret = new double[m.size()];
+            for(int i = 0; i < ret.length; i++){
+                ret[i] = c[m.partitions[i]].valueAt(m.localRows[i]);
+            }
+            return ret;
+        }
+        catch(IOException e){
+            System.out.println(e.getMessage());
+            return null;
+        }
+    }
+
+    @Override
+    public int number_of_rows(String dir)
+    {
+        try{
+            return is_table(dir) ? table(dir).rows() : partition(dir).rows();
+        }
+        catch(IOException e){
+            return -1;
+        }
+    }
+
+    @Override
+    public int number_of_columns(String dir)
+    {
+        try{
+            return is_table(dir) ? table(dir).columnTypes().size() : partition(dir).columnTypes().size();
+        }
+        catch(IOException e){
+            return -1;
+        }
+    }
+
+    /**
+     * Get the result cache
+     * @return The cache, or null if results are not cached
+     */
+    public ResultCache getResultCache()
+    {
+        return cache;
+    }
+
+    /**
+     * Get the default indexing option
+     * @return
+     */
+    public String getIndexOptions()
+    {
+        return indexOptions;
+    }
+}
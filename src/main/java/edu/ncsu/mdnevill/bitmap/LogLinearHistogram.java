@@ -0,0 +1,188 @@
+package edu.ncsu.mdnevill.bitmap;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * @author Mitchell Neville
+ * A histogram of non-negative longs, such as latencies in nanoseconds or result
+ * sizes, with log-linear buckets: each power of two is split into 32 equal
+ * buckets, so any recorded value is reported within about 3% while the whole
+ * range of a long fits in under 2,000 counters. Recording is lock-free, so one
+ * histogram can be shared by every thread running a query.
+ */
+public class LogLinearHistogram {
+    // Bits of a value below its leading one that choose the bucket
+    private static final int SUB_BITS = 5;
+    private static final int SUB = 1 << SUB_BITS;
+    // Values below SUB get a bucket each; positive longs have at most 62 further exponents
+    private static final int BUCKETS = SUB + (63 - SUB_BITS) * SUB;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Record a value. Negative values are recorded as 0.
+     * @param value
+     */
+    public void record(long value)
+    {
+        long v = Math.max(0, value);
+        counts.incrementAndGet(bucket(v));
+        count.incrementAndGet();
+        sum.addAndGet(v);
+        long m = max.get();
+        while(v > m && !max.compareAndSet(m, v)){
+            m = max.get();
+        }
+    }
+
+    /**
+     * Record a value a number of times
+     * @param value
+     * @param times
+     */
+    public void record(long value, long times)
+    {
+        if(times <= 0){
+            return;
+        }
+        long v = Math.max(0, value);
+        counts.addAndGet(bucket(v), times);
+        count.addAndGet(times);
+        sum.addAndGet(v * times);
+        long m = max.get();
+        while(v > m && !max.compareAndSet(m, v)){
+            m = max.get();
+        }
+    }
+
+    /**
+     * Copy the histogram, correcting for coordinated omission: a client that waits
+     * for each query before sending the next one sends nothing while a query stalls,
+     * so the queries it would have sent in that time, and their waits, go unrecorded.
+     * For every value longer than the expected interval between queries, the copy
+     * also holds the values those missing queries would have seen: the value less
+     * one interval, less two, and so on down to the interval.
+     * @param expectedInterval Expected time between the queries of one client, in
+     *                         the units of the values
+     * @return
+     */
+    public LogLinearHistogram copyCorrectedForCoordinatedOmission(long expectedInterval)
+    {
+        LogLinearHistogram ret = new LogLinearHistogram();
+        long top = max.get();
+        for(int i = 0; i < BUCKETS; i++){
+            long c = counts.get(i);
+            if(c == 0){
+                continue;
+            }
+            ret.counts.addAndGet(i, c);
+            if(expectedInterval <= 0){
+                continue;
+            }
+            for(long missing = Math.min(highestValue(i), top) - expectedInterval; missing >= expectedInterval;
+                    missing -= expectedInterval){
+                ret.record(missing, c);
+            }
+        }
+        ret.count.addAndGet(count.get());
+        ret.sum.addAndGet(sum.get());
+        // The added values are all below the largest one
+        ret.max.set(top);
+        return ret;
+    }
+
+    /**
+     * Get the bucket holding a value
+     */
+    static int bucket(long v)
+    {
+        if(v < SUB){
+            return (int) v;
+        }
+        int e = 63 - Long.numberOfLeadingZeros(v);
+        return SUB + (e - SUB_BITS) * SUB + (int) ((v >>> (e - SUB_BITS)) - SUB);
+    }
+
+    /**
+     * Get the largest value a bucket holds
+     */
+    static long highestValue(int bucket)
+    {
+        if(bucket < SUB){
+            return bucket;
+        }
+        int shift = (bucket - SUB) / SUB;
+        long low = (long) (SUB + (bucket - SUB) % SUB) << shift;
+        return low + (1L << shift) - 1;
+    }
+
+    /**
+     * Move the counts into a new histogram, leaving this one empty, so a reporter
+     * can read the values recorded since its last report while recording goes on
+     * @return
+     */
+    public LogLinearHistogram copyAndReset()
+    {
+        LogLinearHistogram ret = new LogLinearHistogram();
+        for(int i = 0; i < BUCKETS; i++){
+            long c = counts.getAndSet(i, 0);
+            if(c != 0){
+                ret.counts.set(i, c);
+            }
+        }
+        ret.count.set(count.getAndSet(0));
+        ret.sum.set(sum.getAndSet(0));
+        ret.max.set(max.getAndSet(0));
+        return ret;
+    }
+
+    /**
+     * Get the number of values recorded
+     * @return
+     */
+    public long getCount()
+    {
+        return count.get();
+    }
+
+    public long getMax()
+    {
+        return max.get();
+    }
+
+    public double getMean()
+    {
+        long n = count.get();
+        return n == 0 ? 0 : (double) sum.get() / n;
+    }
+
+    /**
+     * Get the value below which a fraction of the recorded values lie, rounded up
+     * to the top of its bucket
+     * @param quantile Between 0 and 1, e.g. 0.99 for the 99th percentile
+     * @return The value, or 0 if nothing was recorded
+     */
+    public long getValueAtQuantile(double quantile)
+    {
+        long total = 0;
+        for(int i = 0; i < BUCKETS; i++){
+            total += counts.get(i);
+        }
+        if(total == 0){
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for(int i = 0; i < BUCKETS; i++){
+            seen += counts.get(i);
+            if(seen >= rank){
+                return Math.min(highestValue(i), max.get());
+            }
+        }
+        return max.get();
+    }
+}
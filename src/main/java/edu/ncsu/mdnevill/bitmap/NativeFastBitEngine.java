@@ -0,0 +1,264 @@
+package edu.ncsu.mdnevill.bitmap;
+
+import gov.lbl.fastbit.FastBit;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * @author Mitchell Neville
+ * Adapts the native FastBit JNI to {@link BitmapEngine}. Creating one loads
+ * libfastbitjni.so, which must be on LD_LIBRARY_PATH.
+ */
+public class NativeFastBitEngine implements BitmapEngine {
+    private final FastBit fb;
+
+    /**
+     * Create the engine
+     * @param rcfile Passed on to the FastBit constructor
+     */
+    public NativeFastBitEngine(String rcfile)
+    {
+        this.fb = new FastBit(rcfile);
+    }
+
+    /**
+     * Wraps a native query handle
+     */
+    private static class NativeHandle implements QueryHandle {
+        final FastBit.QueryHandle handle;
+
+        NativeHandle(FastBit.QueryHandle handle)
+        {
+            this.handle = handle;
+        }
+    }
+
+    /**
+     * The JNI only hands out whole result columns, so this cursor fetches each column
+     * once and returns it in slices. It keeps the batch interface and the limit, but
+     * not the bounded memory of the pure-Java cursor.
+     */
+    private class NativeCursor implements ResultCursor {
+        final FastBit.QueryHandle handle;
+        final int[] rows;
+        // Positions in the result to read, in order, or null to read it as it is
+        final int[] order;
+        final int[] batch;
+        final int end;
+        final Map<String, int[]> intColumns = new HashMap<String, int[]>();
+        final Map<String, double[]> doubleColumns = new HashMap<String, double[]>();
+        // Position of the current batch in the result
+        int offset;
+        // Rows in the current batch
+        int count;
+
+        NativeCursor(FastBit.QueryHandle handle, int[] rows, int[] order, int batchSize, int limit)
+        {
+            this.handle = handle;
+            this.rows = rows;
+            this.order = order;
+            this.batch = new int[batchSize];
+            int n = order != null ? order.length : rows.length;
+            this.end = limit < 0 ? n : Math.min(limit, n);
+        }
+
+        /**
+         * Get the position in the result of a row of the current batch
+         */
+        private int position(int i)
+        {
+            return order != null ? order[offset + i] : offset + i;
+        }
+
+        @Override
+        public int next_batch()
+        {
+            offset += count;
+            count = Math.min(batch.length, end - offset);
+            for(int i = 0; i < count; i++){
+                batch[i] = rows[position(i)];
+            }
+            return count;
+        }
+
+        @Override
+        public int[] get_batch_row_ids()
+        {
+            return batch;
+        }
+
+        @Override
+        public int get_batch_ints(String col, int[] out)
+        {
+            int[] values = intColumns.get(col);
+            if(values == null){
+                values = fb.get_qualified_ints(handle, col);
+                if(values == null){
+                    return -1;
+                }
+                intColumns.put(col, values);
+            }
+            if(out.length < count){
+                return -1;
+            }
+            for(int i = 0; i < count; i++){
+                out[i] = values[position(i)];
+            }
+            return count;
+        }
+
+        @Override
+        public int get_batch_doubles(String col, double[] out)
+        {
+            double[] values = doubleColumns.get(col);
+            if(values == null){
+                values = fb.get_qualified_doubles(handle, col);
+                if(values == null){
+                    return -1;
+                }
+                doubleColumns.put(col, values);
+            }
+            if(out.length < count){
+                return -1;
+            }
+            for(int i = 0; i < count; i++){
+                out[i] = values[position(i)];
+            }
+            return count;
+        }
+    }
+
+    private static FastBit.QueryHandle unwrap(QueryHandle h)
+    {
+        return ((NativeHandle) h).handle;
+    }
+
+    @Override
+    public int add_ints(String colname, int[] arr)
+    {
+        return fb.add_ints(colname, arr);
+    }
+
+    @Override
+    public int add_doubles(String colname, double[] arr)
+    {
+        return fb.add_doubles(colname, arr);
+    }
+
+    @Override
+    public int write_buffer(String dir)
+    {
+        return fb.write_buffer(dir);
+    }
+
+    @Override
+    public int build_indexes(String dir, String opt)
+    {
+        return fb.build_indexes(dir, opt);
+    }
+
+    @Override
+    public int build_index(String dir, String col, String opt)
+    {
+        return fb.build_index(dir, col, opt);
+    }
+
+    @Override
+    public int purge_indexes(String dir)
+    {
+        return fb.purge_indexes(dir);
+    }
+
+    @Override
+    public int purge_index(String dir, String col)
+    {
+        return fb.purge_index(dir, col);
+    }
+
+    @Override
+    public QueryHandle build_query(String select, String datadir, String where)
+    {
+        FastBit.QueryHandle h = fb.build_query(select, datadir, where);
+        return h == null ? null : new NativeHandle(h);
+    }
+
+    @Override
+    public QueryHandle build_query(String select, String datadir, Predicate where)
+    {
+        return build_query(select, datadir, where.toString());
+    }
+
+    @Override
+    public int destroy_query(QueryHandle handle)
+    {
+        return fb.destroy_query(unwrap(handle));
+    }
+
+    @Override
+    public int[] get_result_row_ids(QueryHandle handle)
+    {
+        return fb.get_result_row_ids(unwrap(handle));
+    }
+
+    @Override
+    public int get_result_size(QueryHandle handle)
+    {
+        return fb.get_result_size(unwrap(handle));
+    }
+
+    @Override
+    public int[] get_qualified_ints(QueryHandle handle, String col)
+    {
+        return fb.get_qualified_ints(unwrap(handle), col);
+    }
+
+    @Override
+    public double[] get_qualified_doubles(QueryHandle handle, String col)
+    {
+        return fb.get_qualified_doubles(unwrap(handle), col);
+    }
+
+    @Override
+    public ResultCursor open_cursor(QueryHandle handle, int batchSize, int limit)
+    {
+        FastBit.QueryHandle h = unwrap(handle);
+        int[] rows = fb.get_result_row_ids(h);
+        if(rows == null || batchSize <= 0){
+            return null;
+        }
+        return new NativeCursor(h, rows, null, batchSize, limit);
+    }
+
+    /**
+     * The JNI has no ORDER BY, so the whole column is fetched and the top rows are
+     * chosen with a bounded heap over its values; only those are ordered.
+     */
+    @Override
+    public ResultCursor open_sorted_cursor(QueryHandle handle, String col, boolean descending, int batchSize, int limit)
+    {
+        FastBit.QueryHandle h = unwrap(handle);
+        int[] rows = fb.get_result_row_ids(h);
+        double[] values = fb.get_qualified_doubles(h, col);
+        if(rows == null || values == null || batchSize <= 0){
+            return null;
+        }
+        TopK best = new TopK(limit < 0 ? values.length : Math.min(limit, values.length), descending);
+        for(int i = 0; i < values.length; i++){
+            best.offer(i, values[i]);
+        }
+        return new NativeCursor(h, rows, best.toArray(), batchSize, limit);
+    }
+
+    @Override
+    public int number_of_rows(String dir)
+    {
+        return fb.number_of_rows(dir);
+    }
+
+    @Override
+    public int number_of_columns(String dir)
+    {
+        return fb.number_of_columns(dir);
+    }
+}
@@ -0,0 +1,449 @@
+package edu.ncsu.mdnevill.bitmap;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * @author Mitchell Neville
+ * A data partition on disk, laid out like a FastBit partition: a -part.txt metadata
+ * file naming the columns and row count, one raw data file per column, and one
+ * .idx file per indexed column. Column data and indexes are loaded lazily and kept
+ * in memory once loaded. As in FastBit, the metadata also records the smallest and
+ * largest value of each column, so a query can skip a partition none of whose rows
+ * could match without loading anything, and the options each column's index was
+ * built with, which are used again when it is rebuilt.
+ */
+public class Partition {
+    static final String METADATA_FILE = "-part.txt";
+    static final String INDEX_SUFFIX = ".idx";
+
+    final File dir;
+    int rows;
+    // Column names to types, in the order they were added
+    final LinkedHashMap<String, String> columnTypes = new LinkedHashMap<String, String>();
+    // Loaded column data
+    private final Map<String, Column> columns = new HashMap<String, Column>();
+    // Loaded or built indexes
+    private final Map<String, BitmapIndex> indexes = new HashMap<String, BitmapIndex>();
+    // Smallest and largest value of each column, where known
+    private final Map<String, double[]> bounds = new HashMap<String, double[]>();
+    // Options the indexes of columns were built with, where given
+    private final Map<String, IndexOptions> indexOptions = new HashMap<String, IndexOptions>();
+
+    private Partition(File dir)
+    {
+        this.dir = dir;
+    }
+
+    /**
+     * Is there a data partition in the directory?
+     * @param dir
+     * @return
+     */
+    public static boolean exists(File dir)
+    {
+        return new File(dir, METADATA_FILE).isFile();
+    }
+
+    /**
+     * Open the data partition in a directory
+     * @param dir
+     * @return
+     * @throws IOException
+     */
+    public static Partition open(File dir) throws IOException
+    {
+        Partition p = new Partition(dir);
+        BufferedReader in = new BufferedReader(new FileReader(new File(dir, METADATA_FILE)));
+        try{
+            boolean inColumn = false;
+            String column = null;
+            String line;
+            while((line = in.readLine()) != null){
+                line = line.trim();
+                if(line.equalsIgnoreCase("Begin Column")){
+                    inColumn = true;
+                    column = null;
+                    continue;
+                }
+                if(line.equalsIgnoreCase("End Column")){
+                    inColumn = false;
+                    continue;
+                }
+                int eq = line.indexOf('=');
+                if(eq < 0){
+                    continue;
+                }
+                String key = line.substring(0, eq).trim();
+                String value = line.substring(eq + 1).trim();
+                if(key.equalsIgnoreCase("Number_of_rows")){
+                    p.rows = Integer.parseInt(value);
+                }
+                else if(inColumn && key.equalsIgnoreCase("name")){
+                    column = value;
+                }
+                else if(inColumn && key.equalsIgnoreCase("data_type") && column != null){
+                    p.columnTypes.put(column, value.toUpperCase());
+                }
+                else if(inColumn && column != null
+                        && (key.equalsIgnoreCase("minimum") || key.equalsIgnoreCase("maximum"))){
+                    double[] b = p.bounds.get(column);
+                    if(b == null){
+                        b = new double[]{Double.NaN, Double.NaN};
+                        p.bounds.put(column, b);
+                    }
+                    b[key.equalsIgnoreCase("minimum") ? 0 : 1] = Double.parseDouble(value);
+                }
+                else if(inColumn && column != null && key.equalsIgnoreCase("index")){
+                    try{
+                        p.indexOptions.put(column, IndexOptions.parse(value));
+                    }
+                    catch(IllegalArgumentException e){
+                        throw new IOException(dir + ": " + e.getMessage());
+                    }
+                }
+            }
+        }
+        finally{
+            in.close();
+        }
+        for(Iterator<double[]> it = p.bounds.values().iterator(); it.hasNext(); ){
+            double[] b = it.next();
+            if(Double.isNaN(b[0]) || Double.isNaN(b[1])){
+                it.remove();
+            }
+        }
+        return p;
+    }
+
+    /**
+     * Create an empty data partition in a directory
+     * @param dir
+     * @return
+     * @throws IOException
+     */
+    static Partition create(File dir) throws IOException
+    {
+        if(!dir.isDirectory() && !dir.mkdirs()){
+            throw new IOException("Unable to create directory " + dir);
+        }
+        Partition p = new Partition(dir);
+        p.writeMetadata();
+        return p;
+    }
+
+    public File getDirectory()
+    {
+        return dir;
+    }
+
+    /**
+     * Get the number of rows in the partition
+     * @return
+     */
+    public int rows()
+    {
+        return rows;
+    }
+
+    /**
+     * Get the names and types of the columns
+     * @return
+     */
+    public Map<String, String> columnTypes()
+    {
+        return columnTypes;
+    }
+
+    /**
+     * Get the smallest and largest values of a column
+     * @param name
+     * @return {minimum, maximum}, or null if they are not known or the partition is empty
+     */
+    public synchronized double[] bounds(String name)
+    {
+        double[] b = bounds.get(name);
+        return b == null ? null : b.clone();
+    }
+
+    /**
+     * Get the options of a column's index
+     * @param name
+     * @return The options it was last built with, or the default
+     */
+    public synchronized IndexOptions indexOptions(String name)
+    {
+        IndexOptions options = indexOptions.get(name);
+        return options != null ? options : IndexOptions.DEFAULT;
+    }
+
+    /**
+     * Record index options for the columns that have none yet, to build their
+     * indexes with when needed
+     * @param options Options by column
+     * @throws IOException
+     */
+    synchronized void defaultIndexOptions(Map<String, IndexOptions> options) throws IOException
+    {
+        boolean changed = false;
+        for(Map.Entry<String, IndexOptions> e : options.entrySet()){
+            if(!indexOptions.containsKey(e.getKey()) && !e.getValue().equals(IndexOptions.DEFAULT)){
+                indexOptions.put(e.getKey(), e.getValue());
+                changed = true;
+            }
+        }
+        if(changed){
+            writeMetadata();
+        }
+    }
+
+    /**
+     * Get the data of a column, reading it from disk on first use
+     * @param name
+     * @return
+     * @throws IOException
+     */
+    public synchronized Column column(String name) throws IOException
+    {
+        Column c = columns.get(name);
+        if(c == null){
+            String type = columnTypes.get(name);
+            if(type == null){
+                throw new IOException("No column named " + name + " in " + dir);
+            }
+            c = Column.read(new File(dir, name), name, type, rows);
+            columns.put(name, c);
+        }
+        return c;
+    }
+
+    /**
+     * Get the index of a column. A saved index is read from disk; otherwise the index
+     * is built in memory with the column's index options, as FastBit does for
+     * unindexed columns.
+     * @param name
+     * @return
+     * @throws IOException
+     */
+    public synchronized BitmapIndex index(String name) throws IOException
+    {
+        BitmapIndex idx = indexes.get(name);
+        if(idx == null){
+            File f = indexFile(name);
+            if(f.isFile()){
+                idx = BitmapIndex.read(f);
+            }
+            if(idx == null || idx.rows() != rows){
+                idx = BitmapIndex.build(column(name), indexOptions(name));
+            }
+            indexes.put(name, idx);
+        }
+        return idx;
+    }
+
+    /**
+     * Build the index of a column with its index options and save it
+     * @param name
+     * @return
+     * @throws IOException
+     */
+    public synchronized BitmapIndex buildIndex(String name) throws IOException
+    {
+        return buildIndex(name, indexOptions(name));
+    }
+
+    /**
+     * Build the index of a column and save it, recording its options in the metadata
+     * @param name
+     * @param options Binning and encoding
+     * @return
+     * @throws IOException
+     */
+    public synchronized BitmapIndex buildIndex(String name, IndexOptions options) throws IOException
+    {
+        BitmapIndex idx = BitmapIndex.build(column(name), options);
+        idx.write(indexFile(name));
+        indexes.put(name, idx);
+        if(!options.equals(indexOptions(name))){
+            indexOptions.put(name, options);
+            writeMetadata();
+        }
+        return idx;
+    }
+
+    /**
+     * Remove the saved index of a column
+     * @param name
+     */
+    public synchronized void purgeIndex(String name)
+    {
+        indexes.remove(name);
+        File f = indexFile(name);
+        if(f.exists()){
+            f.delete();
+        }
+    }
+
+    /**
+     * Find the rows of a set with the largest or smallest values of a column. When
+     * the set holds more than a sixteenth of the rows it is ranked through the
+     * column's index, reading only the bins at the top (see {@link BitmapIndex#top});
+     * a smaller set, or any set when all its rows are wanted, through a bounded heap
+     * of its rows' values.
+     * @param hits Rows to choose from
+     * @param col
+     * @param limit Number of rows wanted, or a negative number for all of them
+     * @param descending Largest values first?
+     * @return Rows in order of value; rows with equal values in increasing order
+     * @throws IOException
+     */
+    int[] top(WahBitVector hits, String col, int limit, boolean descending) throws IOException
+    {
+        Column c = column(col);
+        int size = hits.cardinality();
+        if(limit < 0 || limit > size){
+            limit = size;
+        }
+        if(limit < size && (long) size * 16 > rows){
+            return index(col).top(hits, limit, descending, c);
+        }
+        TopK best = new TopK(limit, descending);
+        IntIterator it = hits.iterator();
+        while(it.hasNext()){
+            int row = it.next();
+            best.offer(row, c.valueAt(row));
+        }
+        return best.toArray();
+    }
+
+    File indexFile(String name)
+    {
+        return new File(dir, name + INDEX_SUFFIX);
+    }
+
+    /**
+     * Append buffered columns to the partition. Every column of the partition must be
+     * present and all columns must have the same number of rows. Indexes covering the
+     * existing rows are extended over the new ones, and the extensions added to their
+     * files if they were saved.
+     * @param buffer Columns to append
+     * @throws IOException
+     */
+    synchronized void append(Map<String, Column> buffer) throws IOException
+    {
+        int n = -1;
+        for(Column c : buffer.values()){
+            if(n >= 0 && c.size() != n){
+                throw new IOException("Columns have different numbers of rows");
+            }
+            n = c.size();
+            String type = columnTypes.get(c.name);
+            if(type != null && !type.equals(c.type)){
+                throw new IOException("Column " + c.name + " is " + type + ", not " + c.type);
+            }
+        }
+        if(rows > 0){
+            for(String name : columnTypes.keySet()){
+                if(!buffer.containsKey(name)){
+                    throw new IOException("No values were added for column " + name);
+                }
+            }
+        }
+        for(Column c : buffer.values()){
+            c.appendTo(new File(dir, c.name));
+            columnTypes.put(c.name, c.type);
+            double[] added = c.bounds();
+            double[] b = bounds.get(c.name);
+            if(rows == 0 || added == null){
+                if(added != null){
+                    bounds.put(c.name, added);
+                }
+            }
+            else if(b != null){
+                b[0] = Math.min(b[0], added[0]);
+                b[1] = Math.max(b[1], added[1]);
+            }
+            // Extend the column's index over the new rows and add the extension to its
+            // file, rather than rebuilding or rewriting either. An index not loaded yet
+            // is read once first.
+            BitmapIndex idx = currentIndex(c.name);
+            if(idx != null){
+                File file = indexFile(c.name);
+                indexes.put(c.name, idx.append(c, file.isFile() ? file : null));
+            }
+            else{
+                purgeIndex(c.name);
+            }
+            // The new values go at the end of the loaded column's array, copying it
+            // only when it is full
+            Column loaded = columns.get(c.name);
+            if(loaded != null){
+                columns.put(c.name, loaded.append(c));
+            }
+        }
+        rows += Math.max(n, 0);
+        writeMetadata();
+    }
+
+    /**
+     * Get the loaded or saved index of a column, if it covers every row
+     * @param name
+     * @return The index, or null if there is none or it is out of date
+     * @throws IOException
+     */
+    private BitmapIndex currentIndex(String name) throws IOException
+    {
+        BitmapIndex idx = indexes.get(name);
+        if(idx == null && indexFile(name).isFile()){
+            idx = BitmapIndex.read(indexFile(name));
+        }
+        return idx != null && idx.rows() == rows ? idx : null;
+    }
+
+    /**
+     * Write the -part.txt metadata file
+     * @throws IOException
+     */
+    void writeMetadata() throws IOException
+    {
+        PrintWriter out = new PrintWriter(new FileWriter(new File(dir, METADATA_FILE)));
+        try{
+            out.println("# meta data for data partition " + dir.getName() + " written on " + new Date());
+            out.println();
+            out.println("BEGIN HEADER");
+            out.println("Name = " + dir.getName());
+            out.println("Number_of_rows = " + rows);
+            out.println("Number_of_columns = " + columnTypes.size());
+            out.println("Timestamp = " + new Date().getTime() / 1000);
+            out.println("END HEADER");
+            for(Map.Entry<String, String> e : columnTypes.entrySet()){
+                out.println();
+                out.println("Begin Column");
+                out.println("name = " + e.getKey());
+                out.println("data_type = " + e.getValue());
+                double[] b = bounds.get(e.getKey());
+                if(b != null){
+                    out.println("minimum = " + Predicate.format(b[0]));
+                    out.println("maximum = " + Predicate.format(b[1]));
+                }
+                IndexOptions options = indexOptions.get(e.getKey());
+                if(options != null){
+                    out.println("index = " + options);
+                }
+                out.println("End Column");
+            }
+        }
+        finally{
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,612 @@
+package edu.ncsu.mdnevill.bitmap;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * @author Mitchell Neville
+ * A table whose rows are spread over several data partitions, each in its own
+ * subdirectory, split either by row count or by ranges of one column's values. A
+ * -table.txt file records the split and lists the partitions in the order they were
+ * created. Rows are numbered across the table in the order they were appended, and
+ * each partition keeps the table row numbers of its rows in a -rows file, so hits
+ * found in several partitions can be merged back into that order.
+ *
+ * Queries are evaluated on every partition in parallel on a fork-join pool. A
+ * partition is skipped when the smallest and largest values of its columns show that
+ * none of its rows could match, which with a split on a column means most range
+ * queries on that column only touch a few partitions.
+ */
+public class PartitionedTable {
+    static final String METADATA_FILE = "-table.txt";
+    static final String ROWS_FILE = "-rows";
+    private static final String ROWS_SPLIT = "rows";
+
+    final File dir;
+    // Column the rows are split on, or null to split them by row count
+    final String splitColumn;
+    // Rows per partition when split by row count, or else the width of each
+    // partition's range of splitColumn values
+    final double splitSize;
+    int rows;
+    // Partitions in the order they were created
+    private final List<Partition> partitions = new ArrayList<Partition>();
+    // Partitions by range number, floor(value / splitSize), when split on a column
+    private final Map<Long, Partition> ranges = new HashMap<Long, Partition>();
+    // Loaded table row numbers of the rows of each partition
+    private final Map<Partition, Column> rowNumbers = new HashMap<Partition, Column>();
+
+    private PartitionedTable(File dir, String splitColumn, double splitSize)
+    {
+        this.dir = dir;
+        this.splitColumn = splitColumn;
+        this.splitSize = splitSize;
+    }
+
+    /**
+     * Is there a partitioned table in the directory?
+     * @param dir
+     * @return
+     */
+    public static boolean exists(File dir)
+    {
+        return new File(dir, METADATA_FILE).isFile();
+    }
+
+    /**
+     * Create an empty partitioned table in a directory
+     * @param dir
+     * @param split "rows:N" for partitions of N rows, or "column:width" for partitions
+     *              holding ranges of width values of an int or double column
+     * @return
+     * @throws IOException If the directory already holds data
+     * @throws IllegalArgumentException If the split is not valid
+     */
+    public static PartitionedTable create(File dir, String split) throws IOException
+    {
+        int colon = split.indexOf(':');
+        if(colon <= 0){
+            throw new IllegalArgumentException("Expected rows:N or column:width, not " + split);
+        }
+        String column = split.substring(0, colon).trim();
+        double size;
+        try{
+            size = Double.parseDouble(split.substring(colon + 1).trim());
+        }
+        catch(NumberFormatException e){
+            throw new IllegalArgumentException("Expected rows:N or column:width, not " + split);
+        }
+        if(column.equals(ROWS_SPLIT) ? size < 1 || size != Math.rint(size) || size > Integer.MAX_VALUE : !(size > 0)){
+            throw new IllegalArgumentException("Invalid partition size in " + split);
+        }
+        if(exists(dir) || Partition.exists(dir)){
+            throw new IOException(dir + " already holds data");
+        }
+        if(!dir.isDirectory() && !dir.mkdirs()){
+            throw new IOException("Unable to create directory " + dir);
+        }
+        PartitionedTable t = new PartitionedTable(dir, column.equals(ROWS_SPLIT) ? null : column, size);
+        t.writeMetadata();
+        return t;
+    }
+
+    /**
+     * Open the partitioned table in a directory
+     * @param dir
+     * @return
+     * @throws IOException
+     */
+    public static PartitionedTable open(File dir) throws IOException
+    {
+        String column = null;
+        double size = 0;
+        List<String> names = new ArrayList<String>();
+        BufferedReader in = new BufferedReader(new FileReader(new File(dir, METADATA_FILE)));
+        try{
+            String line;
+            while((line = in.readLine()) != null){
+                int eq = line.indexOf('=');
+                if(line.trim().startsWith("#") || eq < 0){
+                    continue;
+                }
+                String key = line.substring(0, eq).trim();
+                String value = line.substring(eq + 1).trim();
+                if(key.equalsIgnoreCase("Split_column")){
+                    column = value;
+                }
+                else if(key.equalsIgnoreCase("Split_size")){
+                    size = Double.parseDouble(value);
+                }
+                else if(key.equalsIgnoreCase("Partition")){
+                    names.add(value);
+                }
+            }
+        }
+        finally{
+            in.close();
+        }
+        PartitionedTable t = new PartitionedTable(dir, column, size);
+        for(String name : names){
+            Partition p = Partition.open(new File(dir, name));
+            t.partitions.add(p);
+            t.rows += p.rows();
+            if(column != null){
+                double[] b = p.bounds(column);
+                if(b == null){
+                    throw new IOException("Partition " + p.dir + " does not record the range of " + column);
+                }
+                t.ranges.put(t.range(b[0]), p);
+            }
+        }
+        return t;
+    }
+
+    public File getDirectory()
+    {
+        return dir;
+    }
+
+    /**
+     * Describe the split, in the form given to create
+     * @return
+     */
+    public String getSplit()
+    {
+        return (splitColumn == null ? ROWS_SPLIT : splitColumn) + ":" + Predicate.format(splitSize);
+    }
+
+    /**
+     * Get the number of rows in the table
+     * @return
+     */
+    public synchronized int rows()
+    {
+        return rows;
+    }
+
+    /**
+     * Get the partitions, in the order they were created
+     * @return
+     */
+    public synchronized List<Partition> partitions()
+    {
+        return Collections.unmodifiableList(new ArrayList<Partition>(partitions));
+    }
+
+    /**
+     * Get the names and types of the columns
+     * @return
+     */
+    public synchronized Map<String, String> columnTypes()
+    {
+        if(partitions.isEmpty()){
+            return Collections.emptyMap();
+        }
+        return partitions.get(0).columnTypes();
+    }
+
+    /**
+     * Get the table row numbers of the rows of a partition
+     * @param p
+     * @return The number of each row, by row; the array may be longer than the partition
+     * @throws IOException
+     */
+    synchronized int[] rowNumbers(Partition p) throws IOException
+    {
+        Column ret = rowNumbers.get(p);
+        if(ret == null){
+            ret = Column.read(new File(p.dir, ROWS_FILE), ROWS_FILE, Column.INT, p.rows());
+            rowNumbers.put(p, ret);
+        }
+        return ret.ints;
+    }
+
+    private long range(double value)
+    {
+        return (long) Math.floor(value / splitSize);
+    }
+
+    /**
+     * Append buffered columns to the table, spreading the rows over the partitions
+     * @param buffer Columns to append
+     * @return The partitions that were changed
+     * @throws IOException
+     */
+    synchronized List<Partition> append(Map<String, Column> buffer) throws IOException
+    {
+        int n = -1;
+        for(Column c : buffer.values()){
+            if(n >= 0 && c.size() != n){
+                throw new IOException("Columns have different numbers of rows");
+            }
+            n = c.size();
+        }
+        List<Partition> changed = new ArrayList<Partition>();
+        if(n <= 0){
+            return changed;
+        }
+        if(splitColumn == null){
+            int size = (int) splitSize;
+            int done = 0;
+            while(done < n){
+                Partition p = partitions.isEmpty() ? null : partitions.get(partitions.size() - 1);
+                if(p == null || p.rows() >= size){
+                    p = newPartition();
+                }
+                int take = Math.min(n - done, size - p.rows());
+                Map<String, Column> slice = new LinkedHashMap<String, Column>();
+                for(Column c : buffer.values()){
+                    slice.put(c.name, c.slice(done, done + take));
+                }
+                int[] numbers = new int[take];
+                for(int i = 0; i < take; i++){
+                    numbers[i] = rows + done + i;
+                }
+                append(p, slice, numbers);
+                changed.add(p);
+                done += take;
+            }
+        }
+        else{
+            Column split = buffer.get(splitColumn);
+            if(split == null){
+                throw new IOException("No values were added for column " + splitColumn);
+            }
+            // Group the new rows by range, keeping their order within each range
+            LinkedHashMap<Long, int[]> groups = new LinkedHashMap<Long, int[]>();
+            Map<Long, Integer> counts = new HashMap<Long, Integer>();
+            long[] keys = new long[n];
+            for(int i = 0; i < n; i++){
+                keys[i] = range(split.valueAt(i));
+                Integer count = counts.get(keys[i]);
+                counts.put(keys[i], count == null ? 1 : count + 1);
+            }
+            for(int i = 0; i < n; i++){
+                int[] group = groups.get(keys[i]);
+                if(group == null){
+                    group = new int[counts.get(keys[i]) + 1];
+                    groups.put(keys[i], group);
+                }
+                // The last slot counts the rows filled in so far
+                group[group[group.length - 1]++] = i;
+            }
+            for(Map.Entry<Long, int[]> e : groups.entrySet()){
+                int[] group = e.getValue();
+                int count = group.length - 1;
+                Map<String, Column> selected = new LinkedHashMap<String, Column>();
+                for(Column c : buffer.values()){
+                    selected.put(c.name, c.select(group, count));
+                }
+                int[] numbers = new int[count];
+                for(int i = 0; i < count; i++){
+                    numbers[i] = rows + group[i];
+                }
+                Partition p = ranges.get(e.getKey());
+                if(p == null){
+                    p = newPartition();
+                    ranges.put(e.getKey(), p);
+                }
+                append(p, selected, numbers);
+                changed.add(p);
+            }
+        }
+        rows += n;
+        writeMetadata();
+        return changed;
+    }
+
+    /**
+     * Append rows to one partition along with their table row numbers
+     */
+    private void append(Partition p, Map<String, Column> columns, int[] numbers) throws IOException
+    {
+        p.append(columns);
+        Column c = new Column(ROWS_FILE, numbers);
+        c.appendTo(new File(p.dir, ROWS_FILE));
+        Column loaded = rowNumbers.get(p);
+        if(loaded != null){
+            rowNumbers.put(p, loaded.append(c));
+        }
+    }
+
+    private Partition newPartition() throws IOException
+    {
+        Partition p = Partition.create(new File(dir, String.format("p%05d", partitions.size())));
+        partitions.add(p);
+        return p;
+    }
+
+    /**
+     * Evaluate a predicate on every partition in parallel, skipping those whose
+     * column bounds rule it out
+     * @param where
+     * @param pool
+     * @param cache Cache of each partition's hits, kept under the partition's
+     *              directory, or null
+     * @return The hits of each partition, in the order of partitions(), with null for
+     * the partitions skipped
+     * @throws IOException
+     */
+    public WahBitVector[] evaluate(Predicate where, ForkJoinPool pool, ResultCache cache) throws IOException
+    {
+        List<Partition> ps = partitions();
+        Evaluation task = new Evaluation(ps, where, where.toString(), cache, new WahBitVector[ps.size()], 0, ps.size());
+        if(ps.size() <= 1){
+            task.compute();
+            return task.hits;
+        }
+        try{
+            pool.invoke(task);
+        }
+        catch(RuntimeException e){
+            // Rethrow a partition's IOException as it was thrown
+            for(Throwable t = e; t != null; t = t.getCause()){
+                if(t instanceof IOException){
+                    throw (IOException) t;
+                }
+            }
+            throw e;
+        }
+        return task.hits;
+    }
+
+    /**
+     * Evaluates a predicate on a range of partitions, splitting the range in halves
+     * until each task has a single partition
+     */
+    private static class Evaluation extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final List<Partition> partitions;
+        final Predicate where;
+        // Normalized text of the predicate, the key of its cached hits
+        final String text;
+        final ResultCache cache;
+        final WahBitVector[] hits;
+        final int from;
+        final int to;
+
+        Evaluation(List<Partition> partitions, Predicate where, String text, ResultCache cache,
+                   WahBitVector[] hits, int from, int to)
+        {
+            this.partitions = partitions;
+            this.where = where;
+            this.text = text;
+            this.cache = cache;
+            this.hits = hits;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if(to - from > 1){
+                int mid = (from + to) >>> 1;
+                invokeAll(new Evaluation(partitions, where, text, cache, hits, from, mid),
+                        new Evaluation(partitions, where, text, cache, hits, mid, to));
+                return;
+            }
+            for(int i = from; i < to; i++){
+                Partition p = partitions.get(i);
+                if(!where.mayMatch(p)){
+                    continue;
+                }
+                try{
+                    if(cache == null){
+                        hits[i] = where.evaluate(p);
+                        continue;
+                    }
+                    String key = p.dir.getAbsolutePath();
+                    // Read the version first: an append while evaluating makes the result stale
+                    long version = cache.version(key);
+                    WahBitVector h = cache.get(key, text);
+                    if(h == null){
+                        h = where.evaluate(p);
+                        cache.put(key, text, h, version);
+                    }
+                    hits[i] = h;
+                }
+                catch(IOException e){
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * The hits of a query on the table, merged into table row order
+     */
+    public static class Merged {
+        // Table row numbers of the hits, ascending, or in order of value if made by top
+        final int[] rows;
+        // Partition of each hit, as an index into partitions()
+        final int[] partitions;
+        // Row of each hit within its partition
+        final int[] localRows;
+
+        Merged(int size)
+        {
+            rows = new int[size];
+            partitions = new int[size];
+            localRows = new int[size];
+        }
+
+        public int size()
+        {
+            return rows.length;
+        }
+
+        /**
+         * Get the table row numbers of the hits, ascending
+         * @return
+         */
+        public int[] getRows()
+        {
+            return rows;
+        }
+    }
+
+    /**
+     * Merge the hits of each partition into table row order. The rows of each
+     * partition are already in order, so when every partition's rows follow those of
+     * the one before, as when the table is split by row count, they are concatenated;
+     * otherwise they are merged through a heap of the partitions.
+     * @param hits Hits of each partition, as returned by evaluate
+     * @return
+     * @throws IOException
+     */
+    public Merged merge(WahBitVector[] hits) throws IOException
+    {
+        List<Partition> ps = partitions();
+        final int[][] local = new int[hits.length][];
+        final int[][] global = new int[hits.length][];
+        int total = 0;
+        boolean ordered = true;
+        int last = -1;
+        for(int i = 0; i < hits.length; i++){
+            if(hits[i] == null){
+                continue;
+            }
+            local[i] = hits[i].toArray();
+            if(local[i].length == 0){
+                continue;
+            }
+            int[] numbers = rowNumbers(ps.get(i));
+            global[i] = new int[local[i].length];
+            for(int j = 0; j < local[i].length; j++){
+                global[i][j] = numbers[local[i][j]];
+            }
+            ordered &= global[i][0] > last;
+            last = global[i][global[i].length - 1];
+            total += global[i].length;
+        }
+
+        Merged ret = new Merged(total);
+        if(ordered){
+            int k = 0;
+            for(int i = 0; i < hits.length; i++){
+                if(global[i] == null){
+                    continue;
+                }
+                System.arraycopy(global[i], 0, ret.rows, k, global[i].length);
+                System.arraycopy(local[i], 0, ret.localRows, k, local[i].length);
+                Arrays.fill(ret.partitions, k, k + global[i].length, i);
+                k += global[i].length;
+            }
+            return ret;
+        }
+        final int[] next = new int[hits.length];
+        PriorityQueue<Integer> heap = new PriorityQueue<Integer>(hits.length, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                int x = global[a][next[a]];
+                int y = global[b][next[b]];
+                return x < y ? -1 : (x == y ? 0 : 1);
+            }
+        });
+        for(int i = 0; i < hits.length; i++){
+            if(global[i] != null){
+                heap.add(i);
+            }
+        }
+        for(int k = 0; k < total; k++){
+            int i = heap.poll();
+            ret.rows[k] = global[i][next[i]];
+            ret.localRows[k] = local[i][next[i]];
+            ret.partitions[k] = i;
+            if(++next[i] < global[i].length){
+                heap.add(i);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Find the hits with the largest or smallest values of a column. Each partition
+     * ranks its own hits, and the first limit of each are ranked together, so no more
+     * than limit rows per partition are read from the column.
+     * @param hits Hits of each partition, as returned by evaluate
+     * @param col
+     * @param limit Number of rows wanted, or a negative number for all of them
+     * @param descending Largest values first?
+     * @return The hits in order of value; hits with equal values in table row order
+     * @throws IOException
+     */
+    public Merged top(WahBitVector[] hits, String col, int limit, boolean descending) throws IOException
+    {
+        List<Partition> ps = partitions();
+        int[][] local = new int[hits.length][];
+        int total = 0;
+        for(int i = 0; i < hits.length; i++){
+            if(hits[i] != null){
+                local[i] = ps.get(i).top(hits[i], col, limit, descending);
+                total += local[i].length;
+            }
+        }
+        TopK best = new TopK(limit < 0 ? total : Math.min(limit, total), descending);
+        // Partition and row within it of each candidate, by table row number
+        Map<Integer, int[]> candidates = new HashMap<Integer, int[]>();
+        for(int i = 0; i < hits.length; i++){
+            if(local[i] == null){
+                continue;
+            }
+            Column c = ps.get(i).column(col);
+            int[] numbers = rowNumbers(ps.get(i));
+            for(int row : local[i]){
+                best.offer(numbers[row], c.valueAt(row));
+                candidates.put(numbers[row], new int[]{i, row});
+            }
+        }
+        int[] rows = best.toArray();
+        Merged ret = new Merged(rows.length);
+        for(int k = 0; k < rows.length; k++){
+            int[] where = candidates.get(rows[k]);
+            ret.rows[k] = rows[k];
+            ret.partitions[k] = where[0];
+            ret.localRows[k] = where[1];
+        }
+        return ret;
+    }
+
+    /**
+     * Write the -table.txt metadata file
+     * @throws IOException
+     */
+    private void writeMetadata() throws IOException
+    {
+        PrintWriter out = new PrintWriter(new FileWriter(new File(dir, METADATA_FILE)));
+        try{
+            out.println("# partitioned table " + dir.getName() + " written on " + new Date());
+            out.println();
+            if(splitColumn != null){
+                out.println("Split_column = " + splitColumn);
+            }
+            out.println("Split_size = " + Predicate.format(splitSize));
+            out.println("Number_of_rows = " + rows);
+            out.println("Number_of_partitions = " + partitions.size());
+            for(Partition p : partitions){
+                out.println("Partition = " + p.dir.getName());
+            }
+        }
+        finally{
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,336 @@
+package edu.ncsu.mdnevill.bitmap;
+
+import java.io.IOException;
+
+/**
+ * @author Mitchell Neville
+ * A parsed WHERE clause. Every comparison is normalized into a {@link Range} on one
+ * column, and ranges are combined with {@link And}, {@link Or} and {@link Not}.
+ *
+ * The clause of a prepared query may have ? parameters in place of numbers; bind
+ * returns a copy with values in their place, without parsing the clause again.
+ */
+public abstract class Predicate {
+
+    /**
+     * Find the rows of a partition satisfying the predicate
+     * @param p
+     * @return
+     * @throws IOException
+     */
+    public abstract WahBitVector evaluate(Partition p) throws IOException;
+
+    /**
+     * Could any row of a partition satisfy the predicate, judging only by the smallest
+     * and largest values of its columns? A false answer lets the partition be skipped.
+     * @param p
+     * @return
+     */
+    public boolean mayMatch(Partition p)
+    {
+        return true;
+    }
+
+    /**
+     * Get the number of ? parameters
+     * @return
+     */
+    public abstract int parameters();
+
+    /**
+     * Get the predicate with values in place of its parameters
+     * @param values Value of each parameter, by index from 0
+     * @return The bound predicate, or this one if it has no parameters
+     */
+    public abstract Predicate bind(double[] values);
+
+    /**
+     * A condition low (&lt; or &lt;=) column (&lt; or &lt;=) high on a single column.
+     * Unbounded sides use infinite bounds.
+     */
+    public static class Range extends Predicate {
+        final String column;
+        final double low;
+        final boolean lowInc;
+        final double high;
+        final boolean highInc;
+        // Parameters giving the bounds of a prepared clause, or -1 for fixed bounds
+        int lowParam = -1;
+        int highParam = -1;
+
+        public Range(String column, double low, boolean lowInc, double high, boolean highInc)
+        {
+            this.column = column;
+            this.low = low;
+            this.lowInc = lowInc;
+            this.high = high;
+            this.highInc = highInc;
+        }
+
+        /**
+         * Create the condition column = value
+         */
+        public static Range equal(String column, double value)
+        {
+            return new Range(column, value, true, value, true);
+        }
+
+        public String getColumn()
+        {
+            return column;
+        }
+
+        public double getLow()
+        {
+            return low;
+        }
+
+        public boolean isLowInclusive()
+        {
+            return lowInc;
+        }
+
+        public double getHigh()
+        {
+            return high;
+        }
+
+        public boolean isHighInclusive()
+        {
+            return highInc;
+        }
+
+        /**
+         * Is this an equality condition?
+         * @return
+         */
+        public boolean isPoint()
+        {
+            return (low == high || (lowParam >= 0 && lowParam == highParam)) && lowInc && highInc;
+        }
+
+        @Override
+        public WahBitVector evaluate(Partition p) throws IOException
+        {
+            BitmapIndex idx = p.index(column);
+            // Binned indexes check the rows of bins the range only partly covers
+            return idx.evaluate(low, lowInc, high, highInc, idx.getOptions().isBinned() ? p.column(column) : null);
+        }
+
+        @Override
+        public int parameters()
+        {
+            return Math.max(lowParam, highParam) + 1;
+        }
+
+        @Override
+        public Predicate bind(double[] values)
+        {
+            if(lowParam < 0 && highParam < 0){
+                return this;
+            }
+            return new Range(column, lowParam < 0 ? low : values[lowParam], lowInc,
+                    highParam < 0 ? high : values[highParam], highInc);
+        }
+
+        @Override
+        public boolean mayMatch(Partition p)
+        {
+            double[] b = p.bounds(column);
+            if(b == null){
+                return true;
+            }
+            return (low < b[1] || (low == b[1] && lowInc)) && (high > b[0] || (high == b[0] && highInc));
+        }
+
+        @Override
+        public String toString()
+        {
+            if(isPoint()){
+                return column + " = " + format(low, lowParam);
+            }
+            StringBuilder sb = new StringBuilder();
+            if(low != Double.NEGATIVE_INFINITY){
+                sb.append(format(low, lowParam)).append(lowInc ? " <= " : " < ");
+            }
+            sb.append(column);
+            if(high != Double.POSITIVE_INFINITY){
+                sb.append(highInc ? " <= " : " < ").append(format(high, highParam));
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Both conditions hold
+     */
+    public static class And extends Predicate {
+        final Predicate left;
+        final Predicate right;
+
+        public And(Predicate left, Predicate right)
+        {
+            this.left = left;
+            this.right = right;
+        }
+
+        public Predicate getLeft()
+        {
+            return left;
+        }
+
+        public Predicate getRight()
+        {
+            return right;
+        }
+
+        @Override
+        public WahBitVector evaluate(Partition p) throws IOException
+        {
+            return left.evaluate(p).and(right.evaluate(p));
+        }
+
+        @Override
+        public boolean mayMatch(Partition p)
+        {
+            return left.mayMatch(p) && right.mayMatch(p);
+        }
+
+        @Override
+        public int parameters()
+        {
+            return Math.max(left.parameters(), right.parameters());
+        }
+
+        @Override
+        public Predicate bind(double[] values)
+        {
+            Predicate l = left.bind(values);
+            Predicate r = right.bind(values);
+            return l == left && r == right ? this : new And(l, r);
+        }
+
+        @Override
+        public String toString()
+        {
+            return "(" + left + " and " + right + ")";
+        }
+    }
+
+    /**
+     * Either condition holds
+     */
+    public static class Or extends Predicate {
+        final Predicate left;
+        final Predicate right;
+
+        public Or(Predicate left, Predicate right)
+        {
+            this.left = left;
+            this.right = right;
+        }
+
+        public Predicate getLeft()
+        {
+            return left;
+        }
+
+        public Predicate getRight()
+        {
+            return right;
+        }
+
+        @Override
+        public WahBitVector evaluate(Partition p) throws IOException
+        {
+            return left.evaluate(p).or(right.evaluate(p));
+        }
+
+        @Override
+        public boolean mayMatch(Partition p)
+        {
+            return left.mayMatch(p) || right.mayMatch(p);
+        }
+
+        @Override
+        public int parameters()
+        {
+            return Math.max(left.parameters(), right.parameters());
+        }
+
+        @Override
+        public Predicate bind(double[] values)
+        {
+            Predicate l = left.bind(values);
+            Predicate r = right.bind(values);
+            return l == left && r == right ? this : new Or(l, r);
+        }
+
+        @Override
+        public String toString()
+        {
+            return "(" + left + " or " + right + ")";
+        }
+    }
+
+    /**
+     * The condition does not hold
+     */
+    public static class Not extends Predicate {
+        final Predicate child;
+
+        public Not(Predicate child)
+        {
+            this.child = child;
+        }
+
+        public Predicate getChild()
+        {
+            return child;
+        }
+
+        @Override
+        public WahBitVector evaluate(Partition p) throws IOException
+        {
+            return child.evaluate(p).not();
+        }
+
+        @Override
+        public int parameters()
+        {
+            return child.parameters();
+        }
+
+        @Override
+        public Predicate bind(double[] values)
+        {
+            Predicate c = child.bind(values);
+            return c == child ? this : new Not(c);
+        }
+
+        @Override
+        public String toString()
+        {
+            return "not " + child;
+        }
+    }
+
+    /**
+     * Format a bound, or ? if it is a parameter
+     */
+    static String format(double v, int param)
+    {
+        return param >= 0 ? "?" : format(v);
+    }
+
+    /**
+     * Format a bound without a trailing .0 for whole numbers
+     */
+    static String format(double v)
+    {
+        if(v == Math.rint(v) && Math.abs(v) < 1e15){
+            return Long.toString((long) v);
+        }
+        return Double.toString(v);
+    }
+}
@@ -0,0 +1,275 @@
+package edu.ncsu.mdnevill.bitmap;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Mitchell Neville
+ * Latency and result size distributions of queries, shared by the bitmap engine and
+ * the MapDB repository like the result cache. Each call is recorded under its
+ * engine, its operation (build_query, getIdsByYear, ...) and the shape of its
+ * predicate, which is the predicate with every constant replaced by ?, so
+ * "year = 2000" and "year = 2001" are one series that both engines can share.
+ * A snapshot of every series can be printed on demand or periodically.
+ */
+public class QueryMetrics {
+    // Percentiles reported by snapshots
+    private static final double[] QUANTILES = {0.5, 0.99, 0.999};
+    private static final String[] LABELS = {"p50", "p99", "p999"};
+
+    /**
+     * The recorded calls of one operation and query shape on one engine
+     */
+    public static class Series {
+        final String engine;
+        final String operation;
+        final String shape;
+        // Nanoseconds per call
+        final LogLinearHistogram latency;
+        // Rows returned per call, for calls that return rows
+        final LogLinearHistogram hits;
+
+        Series(String engine, String operation, String shape, LogLinearHistogram latency, LogLinearHistogram hits)
+        {
+            this.engine = engine;
+            this.operation = operation;
+            this.shape = shape;
+            this.latency = latency;
+            this.hits = hits;
+        }
+
+        public String getEngine()
+        {
+            return engine;
+        }
+
+        public String getOperation()
+        {
+            return operation;
+        }
+
+        public String getShape()
+        {
+            return shape;
+        }
+
+        public LogLinearHistogram getLatency()
+        {
+            return latency;
+        }
+
+        public LogLinearHistogram getHits()
+        {
+            return hits;
+        }
+
+        @Override
+        public String toString()
+        {
+            StringBuilder sb = new StringBuilder();
+            sb.append(engine).append(' ').append(operation).append(" [").append(shape).append("]: ")
+                    .append(latency.getCount()).append(" calls, latency ").append(describeLatency(latency));
+            if(hits.getCount() > 0){
+                sb.append("; hits");
+                for(int i = 0; i < QUANTILES.length; i++){
+                    sb.append(' ').append(LABELS[i]).append(' ').append(hits.getValueAtQuantile(QUANTILES[i]));
+                }
+                sb.append(" max ").append(hits.getMax());
+            }
+            return sb.toString();
+        }
+    }
+
+    // Series by engine, operation and shape
+    private final ConcurrentHashMap<String, Series> series = new ConcurrentHashMap<String, Series>();
+    // Thread printing periodic snapshots, or null
+    private ScheduledExecutorService reporter;
+
+    /**
+     * Record a call
+     * @param engine Engine that ran it, e.g. "bitmap" or "mapdb"
+     * @param operation Method called
+     * @param shape Query shape, as given by shape()
+     * @param nanos Time taken
+     * @param hits Rows returned, or -1 if the call does not return rows
+     */
+    public void record(String engine, String operation, String shape, long nanos, long hits)
+    {
+        String key = engine + '\n' + operation + '\n' + shape;
+        Series s = series.get(key);
+        if(s == null){
+            Series created = new Series(engine, operation, shape, new LogLinearHistogram(), new LogLinearHistogram());
+            s = series.putIfAbsent(key, created);
+            if(s == null){
+                s = created;
+            }
+        }
+        s.latency.record(nanos);
+        if(hits >= 0){
+            s.hits.record(hits);
+        }
+    }
+
+    /**
+     * Get every series, ordered by engine, operation and shape
+     * @return
+     */
+    public List<Series> getSeries()
+    {
+        List<Series> ret = new ArrayList<Series>(series.values());
+        Collections.sort(ret, new Comparator<Series>() {
+            @Override
+            public int compare(Series a, Series b) {
+                int c = a.engine.compareTo(b.engine);
+                if(c == 0){
+                    c = a.operation.compareTo(b.operation);
+                }
+                return c != 0 ? c : a.shape.compareTo(b.shape);
+            }
+        });
+        return ret;
+    }
+
+    /**
+     * Describe every series
+     * @param reset Clear the series afterwards, so the next snapshot covers only
+     *              the calls made after this one
+     * @return
+     */
+    public String snapshot(boolean reset)
+    {
+        StringBuilder sb = new StringBuilder("Query metrics at " + new Date());
+        for(Series s : getSeries()){
+            if(reset){
+                s = new Series(s.engine, s.operation, s.shape, s.latency.copyAndReset(), s.hits.copyAndReset());
+            }
+            if(s.latency.getCount() > 0){
+                sb.append('\n').append(s);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Clear every series
+     */
+    public void reset()
+    {
+        series.clear();
+    }
+
+    /**
+     * Print a snapshot periodically on a background thread, replacing any earlier
+     * schedule
+     * @param periodSeconds Seconds between snapshots
+     * @param out Where to print them
+     * @param reset Does each snapshot cover only the calls since the last one?
+     */
+    public synchronized void startSnapshots(long periodSeconds, final PrintStream out, final boolean reset)
+    {
+        stopSnapshots();
+        reporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "query-metrics");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        reporter.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                out.println(snapshot(reset));
+            }
+        }, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stop printing periodic snapshots
+     */
+    public synchronized void stopSnapshots()
+    {
+        if(reporter != null){
+            reporter.shutdownNow();
+            reporter = null;
+        }
+    }
+
+    /**
+     * Get the shape of a predicate: its normalized text with every constant
+     * replaced by ?
+     * @param where
+     * @return
+     */
+    public static String shape(Predicate where)
+    {
+        if(where instanceof Predicate.Range){
+            Predicate.Range r = (Predicate.Range) where;
+            return shape(r.column, r.low, r.lowInc, r.high, r.highInc);
+        }
+        if(where instanceof Predicate.And){
+            Predicate.And and = (Predicate.And) where;
+            return "(" + shape(and.left) + " and " + shape(and.right) + ")";
+        }
+        if(where instanceof Predicate.Or){
+            Predicate.Or or = (Predicate.Or) where;
+            return "(" + shape(or.left) + " or " + shape(or.right) + ")";
+        }
+        return "not " + shape(((Predicate.Not) where).child);
+    }
+
+    /**
+     * Get the shape of the condition low (&lt; or &lt;=) column (&lt; or &lt;=) high,
+     * matching shape() of the same Range
+     * @param column
+     * @param low Lower bound, or Double.NEGATIVE_INFINITY
+     * @param lowInc
+     * @param high Upper bound, or Double.POSITIVE_INFINITY
+     * @param highInc
+     * @return
+     */
+    public static String shape(String column, double low, boolean lowInc, double high, boolean highInc)
+    {
+        if(low == high && lowInc && highInc){
+            return column + " = ?";
+        }
+        StringBuilder sb = new StringBuilder();
+        if(low != Double.NEGATIVE_INFINITY){
+            sb.append(lowInc ? "? <= " : "? < ");
+        }
+        sb.append(column);
+        if(high != Double.POSITIVE_INFINITY){
+            sb.append(highInc ? " <= ?" : " < ?");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Describe a histogram of nanosecond latencies by its reported percentiles and
+     * maximum, in microseconds
+     * @param latency
+     * @return
+     */
+    public static String describeLatency(LogLinearHistogram latency)
+    {
+        StringBuilder sb = new StringBuilder();
+        for(int i = 0; i < QUANTILES.length; i++){
+            sb.append(LABELS[i]).append(' ').append(micros(latency.getValueAtQuantile(QUANTILES[i]))).append(' ');
+        }
+        return sb.append("max ").append(micros(latency.getMax())).append(" us").toString();
+    }
+
+    private static String micros(long nanos)
+    {
+        return String.format("%.1f", nanos / 1000.0);
+    }
+}
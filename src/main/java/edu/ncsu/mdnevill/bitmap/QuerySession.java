@@ -0,0 +1,438 @@
+package edu.ncsu.mdnevill.bitmap;
+
+import java.io.Closeable;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author Mitchell Neville
+ * Runs queries on one data directory of a bitmap engine and makes sure every query
+ * handle is destroyed. Each {@link Query} is Closeable and destroys its handle when
+ * closed; closing the session destroys the handles of any queries still open.
+ *
+ * Handles are tracked so leaks are found: a query that becomes unreachable without
+ * being closed is noticed the next time the session runs a query, and one still open
+ * when the session closes is noticed then. Either way its handle is destroyed and a
+ * leak is reported with the WHERE clause, and, if leak tracing is on, the stack of the
+ * code that opened it. The number of handles open across all sessions is kept too.
+ *
+ * A {@link Prepared} query parses its WHERE clause once, with ? in place of the
+ * numbers, so running it again with other values only binds them:
+ * <pre>
+ * QuerySession.Prepared q = session.prepare("year = ? and price &gt;= ?");
+ * QuerySession.Query r = q.execute(2000, 100.0);
+ * try{
+ *     int[] ids = r.ints("id");
+ * }
+ * finally{
+ *     r.close();
+ * }
+ * </pre>
+ */
+public class QuerySession implements Closeable {
+    // Handles open across all sessions
+    private static final AtomicInteger OUTSTANDING = new AtomicInteger();
+
+    private final BitmapEngine engine;
+    private final String dir;
+    // Trackers of the queries not yet closed
+    private final Set<Tracker> open = Collections.newSetFromMap(new ConcurrentHashMap<Tracker, Boolean>());
+    // Where the trackers of unreachable queries are put by the garbage collector
+    private final ReferenceQueue<Query> unreachable = new ReferenceQueue<Query>();
+    private final AtomicLong leaks = new AtomicLong();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    // Record the stack opening each query, to report with its leak
+    private volatile boolean traceLeaks;
+
+    /**
+     * Open a session
+     * @param engine
+     * @param dir Data directory the queries run on
+     */
+    public QuerySession(BitmapEngine engine, String dir)
+    {
+        this.engine = engine;
+        this.dir = dir;
+    }
+
+    /**
+     * The handle of an open query, destroyed once however the query ends
+     */
+    private static class Handle {
+        final BitmapEngine engine;
+        final BitmapEngine.QueryHandle handle;
+        final String where;
+        // Stack of the code opening the query, or null if leaks are not traced
+        final Throwable opened;
+        final AtomicBoolean destroyed = new AtomicBoolean();
+
+        Handle(BitmapEngine engine, BitmapEngine.QueryHandle handle, String where, Throwable opened)
+        {
+            this.engine = engine;
+            this.handle = handle;
+            this.where = where;
+            this.opened = opened;
+        }
+
+        /**
+         * Destroy the handle unless it already is
+         * @return Whether this call destroyed it
+         */
+        boolean destroy()
+        {
+            if(!destroyed.compareAndSet(false, true)){
+                return false;
+            }
+            engine.destroy_query(handle);
+            OUTSTANDING.decrementAndGet();
+            return true;
+        }
+    }
+
+    /**
+     * Holds a query's handle while the query can be reached, and still holds it after
+     * the query has been collected so the handle can be destroyed
+     */
+    private static class Tracker extends WeakReference<Query> {
+        final Handle handle;
+
+        Tracker(Query query, Handle handle, ReferenceQueue<Query> queue)
+        {
+            super(query, queue);
+            this.handle = handle;
+        }
+    }
+
+    /**
+     * The result of a query. Its methods follow the engine's, returning null or a
+     * negative number on failure, and throw IllegalStateException once it is closed.
+     */
+    public static class Query implements Closeable {
+        private final QuerySession session;
+        private final Handle handle;
+        private Tracker tracker;
+
+        private Query(QuerySession session, Handle handle)
+        {
+            this.session = session;
+            this.handle = handle;
+        }
+
+        private BitmapEngine.QueryHandle handle()
+        {
+            if(handle.destroyed.get()){
+                throw new IllegalStateException("Query is closed: " + handle.where);
+            }
+            return handle.handle;
+        }
+
+        /**
+         * Get the WHERE clause, with any parameters bound
+         * @return
+         */
+        public String getWhere()
+        {
+            return handle.where;
+        }
+
+        public boolean isClosed()
+        {
+            return handle.destroyed.get();
+        }
+
+        /**
+         * Get the number of rows satisfying the query
+         * @return
+         */
+        public int size()
+        {
+            return handle.engine.get_result_size(handle());
+        }
+
+        /**
+         * Get the ids of the rows satisfying the query
+         * @return
+         */
+        public int[] rowIds()
+        {
+            return handle.engine.get_result_row_ids(handle());
+        }
+
+        /**
+         * Get the values of an int-valued column for the rows satisfying the query
+         * @param col
+         * @return
+         */
+        public int[] ints(String col)
+        {
+            return handle.engine.get_qualified_ints(handle(), col);
+        }
+
+        /**
+         * Get the values of a column as doubles for the rows satisfying the query
+         * @param col
+         * @return
+         */
+        public double[] doubles(String col)
+        {
+            return handle.engine.get_qualified_doubles(handle(), col);
+        }
+
+        /**
+         * Open a cursor over the rows satisfying the query; see
+         * {@link BitmapEngine#open_cursor}. It must not be read after the query is closed.
+         * @param batchSize
+         * @param limit
+         * @return
+         */
+        public ResultCursor cursor(int batchSize, int limit)
+        {
+            return handle.engine.open_cursor(handle(), batchSize, limit);
+        }
+
+        /**
+         * Open a cursor over the rows satisfying the query in order of a column; see
+         * {@link BitmapEngine#open_sorted_cursor}. It must not be read after the query is closed.
+         * @param col
+         * @param descending Largest values first?
+         * @param batchSize
+         * @param limit
+         * @return
+         */
+        public ResultCursor sortedCursor(String col, boolean descending, int batchSize, int limit)
+        {
+            return handle.engine.open_sorted_cursor(handle(), col, descending, batchSize, limit);
+        }
+
+        /**
+         * Destroy the query's handle. Closing a query again does nothing.
+         */
+        @Override
+        public void close()
+        {
+            if(handle.destroy()){
+                session.open.remove(tracker);
+            }
+        }
+    }
+
+    /**
+     * A query whose WHERE clause is parsed once, with ? parameters bound to values
+     * before each execution. Like a JDBC statement, it is meant for one thread at a time.
+     */
+    public static class Prepared {
+        private final QuerySession session;
+        private final Predicate where;
+        private final double[] values;
+        private final boolean[] bound;
+
+        private Prepared(QuerySession session, Predicate where)
+        {
+            this.session = session;
+            this.where = where;
+            this.values = new double[where.parameters()];
+            this.bound = new boolean[values.length];
+        }
+
+        /**
+         * Get the number of parameters
+         * @return
+         */
+        public int getParameterCount()
+        {
+            return values.length;
+        }
+
+        /**
+         * Bind a value to a parameter; it stays bound for later executions
+         * @param index Parameter index, from 1 as in JDBC
+         * @param value
+         * @return This query
+         */
+        public Prepared set(int index, double value)
+        {
+            if(index < 1 || index > values.length){
+                throw new IndexOutOfBoundsException("Parameter " + index + " of " + values.length + " in " + where);
+            }
+            values[index - 1] = value;
+            bound[index - 1] = true;
+            return this;
+        }
+
+        /**
+         * Run the query with the values bound so far
+         * @return The result, to be closed; null if the engine failed
+         * @throws IllegalStateException If a parameter has no value
+         */
+        public Query execute()
+        {
+            for(int i = 0; i < bound.length; i++){
+                if(!bound[i]){
+                    throw new IllegalStateException("Parameter " + (i + 1) + " of " + where + " is not bound");
+                }
+            }
+            return session.run(where.bind(values));
+        }
+
+        /**
+         * Bind every parameter, in order, and run the query
+         * @param values
+         * @return The result, to be closed; null if the engine failed
+         */
+        public Query execute(double... values)
+        {
+            if(values.length != this.values.length){
+                throw new IllegalArgumentException(where + " has " + this.values.length + " parameters, not "
+                        + values.length);
+            }
+            for(int i = 0; i < values.length; i++){
+                set(i + 1, values[i]);
+            }
+            return execute();
+        }
+
+        @Override
+        public String toString()
+        {
+            return where.toString();
+        }
+    }
+
+    /**
+     * Run a query
+     * @param where WHERE clause
+     * @return The result, to be closed; null if the clause is invalid or the engine failed
+     */
+    public Query query(String where)
+    {
+        try{
+            return run(WhereParser.parse(where));
+        }
+        catch(WhereClauseException e){
+            System.out.println(e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Parse a query with ? parameters to run later
+     * @param where WHERE clause
+     * @return
+     * @throws WhereClauseException If the clause is invalid
+     */
+    public Prepared prepare(String where) throws WhereClauseException
+    {
+        return new Prepared(this, WhereParser.parsePrepared(where));
+    }
+
+    private Query run(Predicate where)
+    {
+        if(closed.get()){
+            throw new IllegalStateException("Session on " + dir + " is closed");
+        }
+        reclaim();
+        BitmapEngine.QueryHandle h = engine.build_query(null, dir, where);
+        if(h == null){
+            return null;
+        }
+        OUTSTANDING.incrementAndGet();
+        Handle handle = new Handle(engine, h, where.toString(),
+                traceLeaks ? new Throwable("Query opened here") : null);
+        Query q = new Query(this, handle);
+        q.tracker = new Tracker(q, handle, unreachable);
+        open.add(q.tracker);
+        return q;
+    }
+
+    /**
+     * Destroy the handles of queries that were collected without being closed
+     * @return Number of leaks found
+     */
+    public int reclaim()
+    {
+        int found = 0;
+        Reference<? extends Query> r;
+        while((r = unreachable.poll()) != null){
+            Tracker t = (Tracker) r;
+            if(open.remove(t) && t.handle.destroy()){
+                leaked(t.handle, "was never closed");
+                found++;
+            }
+        }
+        return found;
+    }
+
+    private void leaked(Handle handle, String how)
+    {
+        leaks.incrementAndGet();
+        System.out.println("Leaked query handle " + how + ": " + handle.where);
+        if(handle.opened != null){
+            handle.opened.printStackTrace(System.out);
+        }
+    }
+
+    /**
+     * Record the stack of the code opening each query, to report with its leak
+     * @param trace
+     */
+    public void setLeakTracing(boolean trace)
+    {
+        traceLeaks = trace;
+    }
+
+    /**
+     * Get the number of queries of this session not yet closed
+     * @return
+     */
+    public int getOpenQueries()
+    {
+        return open.size();
+    }
+
+    /**
+     * Get the number of leaked handles found so far
+     * @return
+     */
+    public long getLeaks()
+    {
+        return leaks.get();
+    }
+
+    /**
+     * Get the number of query handles open across all sessions
+     * @return
+     */
+    public static int getOutstandingHandles()
+    {
+        return OUTSTANDING.get();
+    }
+
+    /**
+     * Close the session, destroying the handle of every query still open and
+     * reporting each as a leak
+     */
+    @Override
+    public void close()
+    {
+        if(!closed.compareAndSet(false, true)){
+            return;
+        }
+        reclaim();
+        List<Tracker> remaining = new ArrayList<Tracker>(open);
+        open.clear();
+        for(Tracker t : remaining){
+            if(t.handle.destroy()){
+                leaked(t.handle, "was still open when the session closed");
+            }
+        }
+    }
+}
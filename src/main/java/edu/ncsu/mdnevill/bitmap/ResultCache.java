@@ -0,0 +1,257 @@
+package edu.ncsu.mdnevill.bitmap;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * @author Mitchell Neville
+ * A cache of query results, shared by the bitmap engine and the MapDB repository.
+ * Results are kept as compressed bitvectors of row ids under the partition they
+ * came from and the normalized text of their predicate, so "year >= 2000" and
+ * "2000 <= year" share an entry. The cache holds at most maxBytes of bitvectors,
+ * evicting the least recently used (LRU) or least frequently used (LFU) entries,
+ * and everything cached for a partition is dropped when its data changes.
+ *
+ * A query that may race with a change to its partition reads the partition's
+ * version before evaluating and passes it to put; if the partition was invalidated
+ * in between, the result is not cached, so a result computed from the old rows
+ * cannot outlive the change.
+ */
+public class ResultCache {
+    public static final String LRU = "lru";
+    public static final String LFU = "lfu";
+
+    /**
+     * A cached result
+     */
+    private static class Entry {
+        final String partition;
+        final WahBitVector bits;
+        final long bytes;
+        // Number of times the result was read, for LFU
+        long uses;
+
+        Entry(String partition, WahBitVector bits)
+        {
+            this.partition = partition;
+            this.bits = bits;
+            this.bytes = bits.sizeInBytes();
+        }
+    }
+
+    // Eviction policy, LRU or LFU
+    private final String policy;
+    // Most bytes of bitvectors to hold
+    private final long maxBytes;
+    // Entries by key, least recently used first
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long invalidations;
+    // Number of invalidations and clears so far, stamping each change
+    private long changes;
+    // Stamp of the last invalidation of each partition
+    private final Map<String, Long> changed = new HashMap<String, Long>();
+    // Stamp of the last clear
+    private long cleared;
+
+    /**
+     * Create a cache
+     * @param policy LRU or LFU
+     * @param maxBytes Most bytes of bitvectors to hold
+     */
+    public ResultCache(String policy, long maxBytes)
+    {
+        if(!LRU.equalsIgnoreCase(policy) && !LFU.equalsIgnoreCase(policy)){
+            throw new IllegalArgumentException("Unknown cache policy " + policy);
+        }
+        this.policy = policy.toLowerCase();
+        this.maxBytes = maxBytes;
+    }
+
+    private static String key(String partition, String predicate)
+    {
+        return partition + '\n' + predicate;
+    }
+
+    /**
+     * Get a cached result. The bitvector is shared and must not be modified.
+     * @param partition
+     * @param predicate Normalized predicate, as given by Predicate.toString()
+     * @return The rows, or null if the result is not cached
+     */
+    public synchronized WahBitVector get(String partition, String predicate)
+    {
+        Entry e = entries.get(key(partition, predicate));
+        if(e == null){
+            misses++;
+            return null;
+        }
+        hits++;
+        e.uses++;
+        return e.bits;
+    }
+
+    /**
+     * Get the version of a partition's data, which changes whenever its results
+     * are invalidated
+     * @param partition
+     * @return
+     */
+    public synchronized long version(String partition)
+    {
+        Long v = changed.get(partition);
+        return v == null ? cleared : Math.max(v, cleared);
+    }
+
+    /**
+     * Cache a result computed from a version of the partition's data, unless the
+     * partition has changed since
+     * @param partition
+     * @param predicate Normalized predicate, as given by Predicate.toString()
+     * @param bits The rows; the cache keeps it, so it must not be modified afterwards
+     * @param version Version of the partition, read before the result was computed
+     */
+    public synchronized void put(String partition, String predicate, WahBitVector bits, long version)
+    {
+        if(version(partition) != version){
+            return;
+        }
+        put(partition, predicate, bits);
+    }
+
+    /**
+     * Cache a result, evicting others to make room. A result larger than the
+     * whole cache is not kept. The caller must keep the partition from changing
+     * while the result is computed and cached.
+     * @param partition
+     * @param predicate Normalized predicate, as given by Predicate.toString()
+     * @param bits The rows; the cache keeps it, so it must not be modified afterwards
+     */
+    public synchronized void put(String partition, String predicate, WahBitVector bits)
+    {
+        Entry e = new Entry(partition, bits);
+        if(e.bytes > maxBytes){
+            return;
+        }
+        String key = key(partition, predicate);
+        Entry old = entries.put(key, e);
+        if(old != null){
+            bytes -= old.bytes;
+            e.uses = old.uses;
+        }
+        bytes += e.bytes;
+        while(bytes > maxBytes){
+            evict(key);
+        }
+    }
+
+    /**
+     * Remove the least recently used entry, or for LFU the least used one,
+     * breaking ties by recency
+     * @param keep Key of the entry being added, which is never the one removed
+     */
+    private void evict(String keep)
+    {
+        Map.Entry<String, Entry> victim = null;
+        for(Map.Entry<String, Entry> e : entries.entrySet()){
+            if(e.getKey().equals(keep)){
+                continue;
+            }
+            if(victim == null){
+                victim = e;
+                if(policy.equals(LRU)){
+                    break;
+                }
+            }
+            else if(e.getValue().uses < victim.getValue().uses){
+                victim = e;
+            }
+        }
+        bytes -= victim.getValue().bytes;
+        entries.remove(victim.getKey());
+        evictions++;
+    }
+
+    /**
+     * Drop every result cached for a partition, after its data has changed
+     * @param partition
+     */
+    public synchronized void invalidate(String partition)
+    {
+        changed.put(partition, ++changes);
+        Iterator<Entry> it = entries.values().iterator();
+        while(it.hasNext()){
+            Entry e = it.next();
+            if(e.partition.equals(partition)){
+                bytes -= e.bytes;
+                invalidations++;
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Drop every cached result
+     */
+    public synchronized void clear()
+    {
+        cleared = ++changes;
+        changed.clear();
+        invalidations += entries.size();
+        entries.clear();
+        bytes = 0;
+    }
+
+    public synchronized int size()
+    {
+        return entries.size();
+    }
+
+    public synchronized long sizeInBytes()
+    {
+        return bytes;
+    }
+
+    public synchronized long getHits()
+    {
+        return hits;
+    }
+
+    public synchronized long getMisses()
+    {
+        return misses;
+    }
+
+    public synchronized long getEvictions()
+    {
+        return evictions;
+    }
+
+    public synchronized long getInvalidations()
+    {
+        return invalidations;
+    }
+
+    /**
+     * Fraction of lookups that found a cached result
+     * @return
+     */
+    public synchronized double hitRate()
+    {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return policy.toUpperCase() + " cache: " + entries.size() + " results in " + bytes + " of " + maxBytes
+                + " bytes, " + hits + " hits, " + misses + " misses, " + evictions + " evictions, "
+                + invalidations + " invalidations";
+    }
+}
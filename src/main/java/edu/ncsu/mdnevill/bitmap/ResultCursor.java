@@ -0,0 +1,25 @@
+package edu.ncsu.mdnevill.bitmap;
+
+/**
+ * @author Mitchell Neville
+ * Reads the result of a query in batches of a fixed size, opened with
+ * {@link BitmapEngine#open_cursor}. Each call to next_batch moves to the next group
+ * of qualifying rows, and the get_batch functions copy that group's values into
+ * arrays owned by the caller, so a query over any number of rows needs no more
+ * memory than one batch. Reading can stop at any point; the cursor holds nothing
+ * that must be released.
+ */
+public interface ResultCursor {
+
+    /** Move to the next batch of rows; returns the number of rows in it, 0 once the result or the limit is used up */
+    int next_batch();
+
+    /** Row ids of the current batch; only the first next_batch() entries are valid */
+    int[] get_batch_row_ids();
+
+    /** Copy the values of an int-valued column for the current batch into out; returns the count, or a negative value on failure */
+    int get_batch_ints(String col, int[] out);
+
+    /** Copy the values of a column as doubles for the current batch into out; returns the count, or a negative value on failure */
+    int get_batch_doubles(String col, double[] out);
+}
@@ -0,0 +1,763 @@
+package edu.ncsu.mdnevill.bitmap;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * @author Mitchell Neville
+ * A compressed set of non-negative ints in the style of Roaring bitmaps. Values are
+ * grouped by their high 16 bits, and each group's low 16 bits are kept in a container:
+ * a sorted array while the group has at most 4096 values, a 65536-bit bitmap beyond
+ * that. Set operations work a container at a time, matching groups by their high
+ * bits and skipping groups only one side has, so their cost depends on the number of
+ * containers rather than on the number of values.
+ *
+ * Unlike the WAH bitvectors, which cover every row of a partition, a RoaringBitmap
+ * stores a sparse set cheaply however large its values are, so it suits the ids of
+ * one key of a secondary index. The set operations return new bitmaps and never
+ * change their arguments.
+ */
+public class RoaringBitmap {
+    // Largest number of values kept in an array container
+    static final int ARRAY_MAX = 4096;
+
+    // High 16 bits of each group, in increasing order
+    private char[] keys;
+    // Container of each group
+    private Container[] containers;
+    private int size;
+
+    public RoaringBitmap()
+    {
+        keys = new char[4];
+        containers = new Container[4];
+    }
+
+    private RoaringBitmap(int capacity)
+    {
+        keys = new char[Math.max(4, capacity)];
+        containers = new Container[keys.length];
+    }
+
+    /**
+     * Make a bitmap of some values, in any order
+     * @param values
+     * @return
+     */
+    public static RoaringBitmap of(int... values)
+    {
+        RoaringBitmap ret = new RoaringBitmap();
+        for(int v : values){
+            ret.add(v);
+        }
+        return ret;
+    }
+
+    /**
+     * Add a value. Adding values in increasing order is fastest.
+     * @param value Non-negative value
+     */
+    public void add(int value)
+    {
+        char high = (char) (value >>> 16);
+        int i = size > 0 && keys[size - 1] == high ? size - 1 : find(high);
+        if(i < 0){
+            i = -i - 1;
+            insert(i, high, new ArrayContainer());
+        }
+        containers[i] = containers[i].add((char) value);
+    }
+
+    /**
+     * Remove a value
+     * @param value
+     */
+    public void remove(int value)
+    {
+        int i = find((char) (value >>> 16));
+        if(i < 0){
+            return;
+        }
+        Container c = containers[i].remove((char) value);
+        if(c.cardinality() == 0){
+            System.arraycopy(keys, i + 1, keys, i, size - i - 1);
+            System.arraycopy(containers, i + 1, containers, i, size - i - 1);
+            containers[--size] = null;
+        }
+        else{
+            containers[i] = c;
+        }
+    }
+
+    /**
+     * Is a value in the set?
+     * @param value
+     * @return
+     */
+    public boolean contains(int value)
+    {
+        int i = find((char) (value >>> 16));
+        return i >= 0 && containers[i].contains((char) value);
+    }
+
+    /**
+     * Count the values
+     * @return
+     */
+    public int cardinality()
+    {
+        int n = 0;
+        for(int i = 0; i < size; i++){
+            n += containers[i].cardinality();
+        }
+        return n;
+    }
+
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    /**
+     * Get the values in increasing order
+     * @return
+     */
+    public int[] toArray()
+    {
+        int[] ret = new int[cardinality()];
+        int pos = 0;
+        for(int i = 0; i < size; i++){
+            pos = containers[i].fill(ret, pos, keys[i] << 16);
+        }
+        return ret;
+    }
+
+    /**
+     * Iterate over the values in increasing order
+     * @return
+     */
+    public IntIterator iterator()
+    {
+        return new IntIterator() {
+            int container = 0;
+            int[] values = new int[0];
+            int next = 0;
+
+            @Override
+            public boolean hasNext() {
+                while(next == values.length && container < size){
+                    values = new int[containers[container].cardinality()];
+                    containers[container].fill(values, 0, keys[container] << 16);
+                    container++;
+                    next = 0;
+                }
+                return next < values.length;
+            }
+
+            @Override
+            public int next() {
+                if(!hasNext()){
+                    throw new java.util.NoSuchElementException();
+                }
+                return values[next++];
+            }
+        };
+    }
+
+    /**
+     * Get a copy that can be changed without changing this bitmap
+     * @return
+     */
+    public RoaringBitmap copy()
+    {
+        RoaringBitmap ret = new RoaringBitmap(size);
+        for(int i = 0; i < size; i++){
+            ret.keys[i] = keys[i];
+            ret.containers[i] = containers[i].copy();
+        }
+        ret.size = size;
+        return ret;
+    }
+
+    /**
+     * Get the number of bytes of the containers
+     * @return
+     */
+    public long sizeInBytes()
+    {
+        long n = 2L * size;
+        for(int i = 0; i < size; i++){
+            n += containers[i].sizeInBytes();
+        }
+        return n;
+    }
+
+    public RoaringBitmap and(RoaringBitmap other)
+    {
+        RoaringBitmap ret = new RoaringBitmap(Math.min(size, other.size));
+        int i = 0;
+        int j = 0;
+        while(i < size && j < other.size){
+            if(keys[i] < other.keys[j]){
+                i++;
+            }
+            else if(keys[i] > other.keys[j]){
+                j++;
+            }
+            else{
+                ret.append(keys[i], containers[i++].and(other.containers[j++]));
+            }
+        }
+        return ret;
+    }
+
+    public RoaringBitmap or(RoaringBitmap other)
+    {
+        RoaringBitmap ret = new RoaringBitmap(size + other.size);
+        int i = 0;
+        int j = 0;
+        while(i < size || j < other.size){
+            if(j == other.size || (i < size && keys[i] < other.keys[j])){
+                ret.append(keys[i], containers[i++].copy());
+            }
+            else if(i == size || keys[i] > other.keys[j]){
+                ret.append(other.keys[j], other.containers[j++].copy());
+            }
+            else{
+                ret.append(keys[i], containers[i++].or(other.containers[j++]));
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Get the values of this bitmap that are not in another
+     * @param other
+     * @return
+     */
+    public RoaringBitmap andNot(RoaringBitmap other)
+    {
+        RoaringBitmap ret = new RoaringBitmap(size);
+        int j = 0;
+        for(int i = 0; i < size; i++){
+            while(j < other.size && other.keys[j] < keys[i]){
+                j++;
+            }
+            if(j < other.size && other.keys[j] == keys[i]){
+                ret.append(keys[i], containers[i].andNot(other.containers[j]));
+            }
+            else{
+                ret.append(keys[i], containers[i].copy());
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Add the values of another bitmap to this one. Unlike or, this changes the
+     * containers of this bitmap in place, so OR-ing many bitmaps into one does not
+     * copy the result each time.
+     * @param other
+     */
+    public void orWith(RoaringBitmap other)
+    {
+        for(int j = 0; j < other.size; j++){
+            int i = find(other.keys[j]);
+            if(i >= 0){
+                containers[i] = containers[i].orWith(other.containers[j]);
+            }
+            else{
+                insert(-i - 1, other.keys[j], other.containers[j].copy());
+            }
+        }
+    }
+
+    /**
+     * OR many bitmaps
+     * @param bitmaps
+     * @return
+     */
+    public static RoaringBitmap orAll(Iterable<RoaringBitmap> bitmaps)
+    {
+        RoaringBitmap ret = new RoaringBitmap();
+        for(RoaringBitmap b : bitmaps){
+            ret.orWith(b);
+        }
+        return ret;
+    }
+
+    /**
+     * Add a container after the last, unless it is empty
+     */
+    private void append(char key, Container c)
+    {
+        if(c.cardinality() > 0){
+            insert(size, key, c);
+        }
+    }
+
+    private void insert(int i, char key, Container c)
+    {
+        if(size == keys.length){
+            keys = Arrays.copyOf(keys, size * 2);
+            containers = Arrays.copyOf(containers, size * 2);
+        }
+        System.arraycopy(keys, i, keys, i + 1, size - i);
+        System.arraycopy(containers, i, containers, i + 1, size - i);
+        keys[i] = key;
+        containers[i] = c;
+        size++;
+    }
+
+    /**
+     * Find the container of a group
+     * @return Its position, or -(insertion point) - 1
+     */
+    private int find(char key)
+    {
+        return Arrays.binarySearch(keys, 0, size, key);
+    }
+
+    /**
+     * Write the bitmap: the number of containers, then each container's key and
+     * cardinality - 1, followed by its values if it has at most 4096, or its bitmap
+     * @param out
+     * @throws IOException
+     */
+    public void write(DataOutput out) throws IOException
+    {
+        out.writeInt(size);
+        for(int i = 0; i < size; i++){
+            out.writeChar(keys[i]);
+            out.writeChar(containers[i].cardinality() - 1);
+            containers[i].write(out);
+        }
+    }
+
+    /**
+     * Read a bitmap written by {@link #write(DataOutput)}
+     * @param in
+     * @return
+     * @throws IOException
+     */
+    public static RoaringBitmap read(DataInput in) throws IOException
+    {
+        int n = in.readInt();
+        RoaringBitmap ret = new RoaringBitmap(n);
+        for(int i = 0; i < n; i++){
+            ret.keys[i] = in.readChar();
+            int cardinality = in.readChar() + 1;
+            if(cardinality <= ARRAY_MAX){
+                char[] values = new char[cardinality];
+                for(int j = 0; j < cardinality; j++){
+                    values[j] = in.readChar();
+                }
+                ret.containers[i] = new ArrayContainer(values, cardinality);
+            }
+            else{
+                long[] words = new long[BitmapContainer.WORDS];
+                for(int j = 0; j < words.length; j++){
+                    words[j] = in.readLong();
+                }
+                ret.containers[i] = new BitmapContainer(words, cardinality);
+            }
+        }
+        ret.size = n;
+        return ret;
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        return o instanceof RoaringBitmap && Arrays.equals(toArray(), ((RoaringBitmap) o).toArray());
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return Arrays.hashCode(toArray());
+    }
+
+    @Override
+    public String toString()
+    {
+        int n = cardinality();
+        return "RoaringBitmap(" + n + " values in " + size + " containers)";
+    }
+
+    /**
+     * The low 16 bits of the values of one group
+     */
+    private abstract static class Container {
+        abstract int cardinality();
+
+        abstract boolean contains(char x);
+
+        /**
+         * Add a value, returning the container now holding the values
+         */
+        abstract Container add(char x);
+
+        /**
+         * Remove a value, returning the container now holding the values
+         */
+        abstract Container remove(char x);
+
+        abstract Container and(Container other);
+
+        abstract Container or(Container other);
+
+        abstract Container andNot(Container other);
+
+        /**
+         * OR another container into this one, in place where possible
+         */
+        abstract Container orWith(Container other);
+
+        /**
+         * Write the values, each plus high, to an array from a position
+         * @return The position after the last value
+         */
+        abstract int fill(int[] out, int pos, int high);
+
+        abstract Container copy();
+
+        abstract long sizeInBytes();
+
+        abstract void write(DataOutput out) throws IOException;
+
+        BitmapContainer toBitmap()
+        {
+            BitmapContainer ret = new BitmapContainer(new long[BitmapContainer.WORDS], 0);
+            int[] values = new int[cardinality()];
+            fill(values, 0, 0);
+            for(int v : values){
+                ret.words[v >>> 6] |= 1L << v;
+            }
+            ret.cardinality = values.length;
+            return ret;
+        }
+    }
+
+    private static final class ArrayContainer extends Container {
+        char[] values;
+        int cardinality;
+
+        ArrayContainer()
+        {
+            this(new char[4], 0);
+        }
+
+        ArrayContainer(char[] values, int cardinality)
+        {
+            this.values = values;
+            this.cardinality = cardinality;
+        }
+
+        @Override
+        int cardinality()
+        {
+            return cardinality;
+        }
+
+        @Override
+        boolean contains(char x)
+        {
+            return Arrays.binarySearch(values, 0, cardinality, x) >= 0;
+        }
+
+        @Override
+        Container add(char x)
+        {
+            int i = cardinality > 0 && values[cardinality - 1] < x ? -cardinality - 1
+                    : Arrays.binarySearch(values, 0, cardinality, x);
+            if(i >= 0){
+                return this;
+            }
+            if(cardinality == ARRAY_MAX){
+                return toBitmap().add(x);
+            }
+            i = -i - 1;
+            if(cardinality == values.length){
+                values = Arrays.copyOf(values, Math.min(ARRAY_MAX, cardinality * 2));
+            }
+            System.arraycopy(values, i, values, i + 1, cardinality - i);
+            values[i] = x;
+            cardinality++;
+            return this;
+        }
+
+        @Override
+        Container remove(char x)
+        {
+            int i = Arrays.binarySearch(values, 0, cardinality, x);
+            if(i >= 0){
+                System.arraycopy(values, i + 1, values, i, cardinality - i - 1);
+                cardinality--;
+            }
+            return this;
+        }
+
+        @Override
+        Container and(Container other)
+        {
+            char[] ret = new char[Math.min(cardinality, other.cardinality())];
+            int n = 0;
+            if(other instanceof ArrayContainer){
+                ArrayContainer o = (ArrayContainer) other;
+                int i = 0;
+                int j = 0;
+                while(i < cardinality && j < o.cardinality){
+                    if(values[i] < o.values[j]){
+                        i++;
+                    }
+                    else if(values[i] > o.values[j]){
+                        j++;
+                    }
+                    else{
+                        ret[n++] = values[i++];
+                        j++;
+                    }
+                }
+            }
+            else{
+                for(int i = 0; i < cardinality; i++){
+                    if(other.contains(values[i])){
+                        ret[n++] = values[i];
+                    }
+                }
+            }
+            return new ArrayContainer(ret, n);
+        }
+
+        @Override
+        Container or(Container other)
+        {
+            if(!(other instanceof ArrayContainer)){
+                return other.or(this);
+            }
+            ArrayContainer o = (ArrayContainer) other;
+            char[] ret = new char[cardinality + o.cardinality];
+            int n = 0;
+            int i = 0;
+            int j = 0;
+            while(i < cardinality || j < o.cardinality){
+                if(j == o.cardinality || (i < cardinality && values[i] < o.values[j])){
+                    ret[n++] = values[i++];
+                }
+                else if(i == cardinality || values[i] > o.values[j]){
+                    ret[n++] = o.values[j++];
+                }
+                else{
+                    ret[n++] = values[i++];
+                    j++;
+                }
+            }
+            ArrayContainer c = new ArrayContainer(ret, n);
+            return n > ARRAY_MAX ? c.toBitmap() : c;
+        }
+
+        @Override
+        Container andNot(Container other)
+        {
+            char[] ret = new char[cardinality];
+            int n = 0;
+            for(int i = 0; i < cardinality; i++){
+                if(!other.contains(values[i])){
+                    ret[n++] = values[i];
+                }
+            }
+            return new ArrayContainer(ret, n);
+        }
+
+        @Override
+        Container orWith(Container other)
+        {
+            return or(other);
+        }
+
+        @Override
+        int fill(int[] out, int pos, int high)
+        {
+            for(int i = 0; i < cardinality; i++){
+                out[pos++] = high | values[i];
+            }
+            return pos;
+        }
+
+        @Override
+        Container copy()
+        {
+            return new ArrayContainer(Arrays.copyOf(values, Math.max(1, cardinality)), cardinality);
+        }
+
+        @Override
+        long sizeInBytes()
+        {
+            return 2L * cardinality;
+        }
+
+        @Override
+        void write(DataOutput out) throws IOException
+        {
+            for(int i = 0; i < cardinality; i++){
+                out.writeChar(values[i]);
+            }
+        }
+    }
+
+    private static final class BitmapContainer extends Container {
+        static final int WORDS = 1024;
+
+        final long[] words;
+        int cardinality;
+
+        BitmapContainer(long[] words, int cardinality)
+        {
+            this.words = words;
+            this.cardinality = cardinality;
+        }
+
+        @Override
+        int cardinality()
+        {
+            return cardinality;
+        }
+
+        @Override
+        boolean contains(char x)
+        {
+            return (words[x >>> 6] & (1L << x)) != 0;
+        }
+
+        @Override
+        Container add(char x)
+        {
+            if(!contains(x)){
+                words[x >>> 6] |= 1L << x;
+                cardinality++;
+            }
+            return this;
+        }
+
+        @Override
+        Container remove(char x)
+        {
+            if(contains(x)){
+                words[x >>> 6] &= ~(1L << x);
+                cardinality--;
+            }
+            return shrink();
+        }
+
+        /**
+         * Get an array container instead, once the values fit one
+         */
+        private Container shrink()
+        {
+            if(cardinality > ARRAY_MAX){
+                return this;
+            }
+            char[] values = new char[Math.max(1, cardinality)];
+            int n = 0;
+            for(int w = 0; w < WORDS; w++){
+                long bits = words[w];
+                while(bits != 0){
+                    values[n++] = (char) (w * 64 + Long.numberOfTrailingZeros(bits));
+                    bits &= bits - 1;
+                }
+            }
+            return new ArrayContainer(values, n);
+        }
+
+        @Override
+        Container and(Container other)
+        {
+            if(other instanceof ArrayContainer){
+                return other.and(this);
+            }
+            long[] o = ((BitmapContainer) other).words;
+            long[] ret = new long[WORDS];
+            int n = 0;
+            for(int w = 0; w < WORDS; w++){
+                ret[w] = words[w] & o[w];
+                n += Long.bitCount(ret[w]);
+            }
+            return new BitmapContainer(ret, n).shrink();
+        }
+
+        @Override
+        Container or(Container other)
+        {
+            return copy().orWith(other);
+        }
+
+        @Override
+        Container andNot(Container other)
+        {
+            BitmapContainer o = other instanceof BitmapContainer ? (BitmapContainer) other : other.toBitmap();
+            long[] ret = new long[WORDS];
+            int n = 0;
+            for(int w = 0; w < WORDS; w++){
+                ret[w] = words[w] & ~o.words[w];
+                n += Long.bitCount(ret[w]);
+            }
+            return new BitmapContainer(ret, n).shrink();
+        }
+
+        @Override
+        Container orWith(Container other)
+        {
+            if(other instanceof ArrayContainer){
+                ArrayContainer o = (ArrayContainer) other;
+                for(int i = 0; i < o.cardinality; i++){
+                    add(o.values[i]);
+                }
+                return this;
+            }
+            long[] o = ((BitmapContainer) other).words;
+            int n = 0;
+            for(int w = 0; w < WORDS; w++){
+                words[w] |= o[w];
+                n += Long.bitCount(words[w]);
+            }
+            cardinality = n;
+            return this;
+        }
+
+        @Override
+        int fill(int[] out, int pos, int high)
+        {
+            for(int w = 0; w < WORDS; w++){
+                long bits = words[w];
+                while(bits != 0){
+                    out[pos++] = high | (w * 64 + Long.numberOfTrailingZeros(bits));
+                    bits &= bits - 1;
+                }
+            }
+            return pos;
+        }
+
+        @Override
+        Container copy()
+        {
+            return new BitmapContainer(words.clone(), cardinality);
+        }
+
+        @Override
+        long sizeInBytes()
+        {
+            return 8L * WORDS;
+        }
+
+        @Override
+        void write(DataOutput out) throws IOException
+        {
+            for(long w : words){
+                out.writeLong(w);
+            }
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package edu.ncsu.mdnevill.bitmap;
+
+/**
+ * @author Mitchell Neville
+ * Keeps the k rows with the largest values seen so far, or the smallest, in a
+ * bounded heap whose root is the row that would be dropped next, so choosing k rows
+ * out of n takes O(n log k) time and O(k) memory however large n is. Rows with
+ * equal values are ordered by row, smaller first.
+ */
+final class TopK {
+    private final boolean descending;
+    private final int[] rows;
+    private final double[] values;
+    private int size;
+
+    /**
+     * @param k Number of rows to keep
+     * @param descending Keep the largest values rather than the smallest?
+     */
+    TopK(int k, boolean descending)
+    {
+        this.descending = descending;
+        this.rows = new int[k];
+        this.values = new double[k];
+    }
+
+    int size()
+    {
+        return size;
+    }
+
+    /**
+     * Consider a row
+     * @param row
+     * @param value
+     */
+    void offer(int row, double value)
+    {
+        if(size < rows.length){
+            rows[size] = row;
+            values[size] = value;
+            up(size++);
+        }
+        else if(size > 0 && before(value, row, values[0], rows[0])){
+            rows[0] = row;
+            values[0] = value;
+            down(0);
+        }
+    }
+
+    /**
+     * Remove the rows kept, best first
+     * @return
+     */
+    int[] toArray()
+    {
+        int[] ret = new int[size];
+        while(size > 0){
+            ret[size - 1] = rows[0];
+            size--;
+            if(size > 0){
+                swap(0, size);
+                down(0);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Does the first row come before the second in the result?
+     */
+    private boolean before(double v, int row, double w, int other)
+    {
+        if(v != w){
+            return descending ? v > w : v < w;
+        }
+        return row < other;
+    }
+
+    /**
+     * Does the entry at i come after the one at j, so it is nearer the root?
+     */
+    private boolean worse(int i, int j)
+    {
+        return before(values[j], rows[j], values[i], rows[i]);
+    }
+
+    private void up(int i)
+    {
+        while(i > 0){
+            int parent = (i - 1) / 2;
+            if(!worse(i, parent)){
+                return;
+            }
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void down(int i)
+    {
+        while(true){
+            int child = 2 * i + 1;
+            if(child >= size){
+                return;
+            }
+            if(child + 1 < size && worse(child + 1, child)){
+                child++;
+            }
+            if(!worse(child, i)){
+                return;
+            }
+            swap(i, child);
+            i = child;
+        }
+    }
+
+    private void swap(int i, int j)
+    {
+        int r = rows[i];
+        rows[i] = rows[j];
+        rows[j] = r;
+        double v = values[i];
+        values[i] = values[j];
+        values[j] = v;
+    }
+}
@@ -0,0 +1,746 @@
+package edu.ncsu.mdnevill.bitmap;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * @author Mitchell Neville
+ * A word-aligned hybrid (WAH) compressed bitvector, the same compression scheme
+ * FastBit uses for its bitmap indexes. Bits are grouped into 31-bit groups; each
+ * 32-bit word is either a literal holding one group verbatim (MSB clear) or a fill
+ * (MSB set) holding a run of identical groups, with bit 30 giving the fill value
+ * and the low 30 bits the number of groups. The trailing partial group is kept
+ * uncompressed in an active word.
+ *
+ * Bitvectors are built by appending bits in increasing position order. Logical
+ * operations run directly on the compressed words.
+ */
+public class WahBitVector {
+    static final int GROUP_BITS = 31;
+    static final int LITERAL_MASK = 0x7FFFFFFF;
+    static final int FILL_FLAG = 0x80000000;
+    static final int FILL_ONE = 0x40000000;
+    static final int COUNT_MASK = 0x3FFFFFFF;
+
+    private static final int AND = 0;
+    private static final int OR = 1;
+    private static final int XOR = 2;
+    private static final int AND_NOT = 3;
+
+    // Compressed words for all complete groups
+    int[] words;
+    // Number of used entries in words
+    int nwords;
+    // Bits of the trailing partial group
+    int active;
+    // Number of bits in the trailing partial group
+    int activeBits;
+    // Total number of bits represented
+    int size;
+    // Leading words shared with the bitvector this one was concatenated to, which
+    // must not change
+    private int frozen;
+    // Whether a concat has shared the words with a later bitvector, so they must be
+    // copied before this one changes
+    private boolean extended;
+
+    /**
+     * Create an empty bitvector
+     */
+    public WahBitVector()
+    {
+        this.words = new int[4];
+    }
+
+    /**
+     * Create a bitvector of the given size with every bit set to the same value
+     * @param size Number of bits
+     * @param value Value of every bit
+     */
+    public WahBitVector(int size, boolean value)
+    {
+        this();
+        appendRun(value, size);
+    }
+
+    /**
+     * Build a bitvector with the given positions set
+     * @param positions Set positions in strictly increasing order
+     * @param size Total number of bits, at least one past the last position
+     * @return
+     */
+    public static WahBitVector fromPositions(int[] positions, int size)
+    {
+        WahBitVector v = new WahBitVector();
+        for(int p : positions){
+            v.set(p);
+        }
+        v.pad(size);
+        return v;
+    }
+
+    /**
+     * Get the number of bits represented by this bitvector
+     * @return
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * Set the bit at the given position. Positions must be set in increasing order,
+     * and all bits between the current size and the position are appended as zeros.
+     * @param position
+     */
+    public void set(int position)
+    {
+        if(position < size){
+            throw new IllegalArgumentException("Position " + position
+                    + " is before the end of the bitvector (" + size + ")");
+        }
+        appendRun(false, position - size);
+        appendBit(true);
+    }
+
+    /**
+     * Extend the bitvector with zeros up to the given size
+     * @param newSize
+     */
+    public void pad(int newSize)
+    {
+        if(newSize > size){
+            appendRun(false, newSize - size);
+        }
+    }
+
+    /**
+     * Append a single bit
+     * @param bit
+     */
+    public void appendBit(boolean bit)
+    {
+        if(bit){
+            active |= 1 << activeBits;
+        }
+        activeBits++;
+        size++;
+        if(activeBits == GROUP_BITS){
+            appendGroup(active);
+            active = 0;
+            activeBits = 0;
+        }
+    }
+
+    /**
+     * Append a run of identical bits
+     * @param bit Value of the run
+     * @param n Length of the run
+     */
+    public void appendRun(boolean bit, int n)
+    {
+        if(n <= 0){
+            return;
+        }
+        size += n;
+        if(activeBits > 0){
+            int k = Math.min(n, GROUP_BITS - activeBits);
+            if(bit){
+                active |= ((1 << k) - 1) << activeBits;
+            }
+            activeBits += k;
+            n -= k;
+            if(activeBits < GROUP_BITS){
+                return;
+            }
+            appendGroup(active);
+            active = 0;
+            activeBits = 0;
+        }
+        appendFill(bit, n / GROUP_BITS);
+        int rem = n % GROUP_BITS;
+        active = bit ? (1 << rem) - 1 : 0;
+        activeBits = rem;
+    }
+
+    /**
+     * Append another bitvector to the end of this one
+     * @param other
+     */
+    public void append(WahBitVector other)
+    {
+        if(activeBits == 0){
+            // Word-aligned: copy the compressed words directly
+            for(int i = 0; i < other.nwords; i++){
+                int w = other.words[i];
+                if((w & FILL_FLAG) != 0){
+                    appendFill((w & FILL_ONE) != 0, w & COUNT_MASK);
+                }
+                else{
+                    appendGroup(w);
+                }
+            }
+            size += other.size;
+            active = other.active;
+            activeBits = other.activeBits;
+            return;
+        }
+        IntIterator it = other.iterator();
+        int base = size;
+        while(it.hasNext()){
+            set(base + it.next());
+        }
+        pad(base + other.size);
+    }
+
+    /**
+     * Get a bitvector holding this one's bits followed by another's, for extending an
+     * index over appended rows. The result shares this bitvector's words and writes the
+     * other's after them, where this bitvector never reads, so this one is unchanged and
+     * the cost is in proportion to the other's words. The words are copied instead if
+     * they were shared before, and a later change to this bitvector copies them first.
+     * @param tail
+     * @return
+     */
+    public WahBitVector concat(WahBitVector tail)
+    {
+        WahBitVector v;
+        if(extended){
+            v = copy();
+        }
+        else{
+            v = new WahBitVector();
+            v.words = words;
+            v.nwords = nwords;
+            v.active = active;
+            v.activeBits = activeBits;
+            v.size = size;
+            v.frozen = nwords;
+            extended = true;
+        }
+        v.append(tail);
+        return v;
+    }
+
+    /**
+     * Copy the words before they change if a later bitvector shares them
+     */
+    private void unshare()
+    {
+        if(extended){
+            words = Arrays.copyOf(words, Math.max(4, words.length));
+            extended = false;
+        }
+    }
+
+    /**
+     * Append one complete 31-bit group, merging it into a fill if possible
+     * @param group
+     */
+    private void appendGroup(int group)
+    {
+        if(group == 0){
+            appendFill(false, 1);
+        }
+        else if(group == LITERAL_MASK){
+            appendFill(true, 1);
+        }
+        else{
+            addWord(group);
+        }
+    }
+
+    /**
+     * Append a number of complete groups that are all zeros or all ones
+     * @param one Fill value
+     * @param groups Number of groups
+     */
+    private void appendFill(boolean one, int groups)
+    {
+        if(groups <= 0){
+            return;
+        }
+        unshare();
+        int fill = FILL_FLAG | (one ? FILL_ONE : 0);
+        if(nwords > frozen){
+            int last = words[nwords - 1];
+            if((last & (FILL_FLAG | FILL_ONE)) == fill){
+                int k = Math.min(COUNT_MASK - (last & COUNT_MASK), groups);
+                words[nwords - 1] = last + k;
+                groups -= k;
+            }
+        }
+        if(groups == 1){
+            // A single uniform group is cheaper to keep as a literal
+            addWord(one ? LITERAL_MASK : 0);
+            return;
+        }
+        while(groups > 0){
+            int k = Math.min(COUNT_MASK, groups);
+            addWord(fill | k);
+            groups -= k;
+        }
+    }
+
+    private void addWord(int w)
+    {
+        unshare();
+        if(nwords == words.length){
+            words = Arrays.copyOf(words, words.length * 2);
+            frozen = 0;
+        }
+        // Two adjacent uniform literals collapse into a fill
+        if(nwords > frozen && (w == 0 || w == LITERAL_MASK) && words[nwords - 1] == w){
+            words[nwords - 1] = FILL_FLAG | (w == 0 ? 0 : FILL_ONE) | 2;
+            return;
+        }
+        words[nwords++] = w;
+    }
+
+    /**
+     * Count the set bits
+     * @return
+     */
+    public int cardinality()
+    {
+        int count = 0;
+        for(int i = 0; i < nwords; i++){
+            int w = words[i];
+            if((w & FILL_FLAG) != 0){
+                if((w & FILL_ONE) != 0){
+                    count += GROUP_BITS * (w & COUNT_MASK);
+                }
+            }
+            else{
+                count += Integer.bitCount(w);
+            }
+        }
+        return count + Integer.bitCount(active);
+    }
+
+    /**
+     * Get whether the bit at a position is set. This decodes from the start of
+     * the vector, so it is intended for spot checks rather than scans.
+     * @param position
+     * @return
+     */
+    public boolean get(int position)
+    {
+        if(position < 0 || position >= size){
+            return false;
+        }
+        int group = position / GROUP_BITS;
+        int g = 0;
+        for(int i = 0; i < nwords; i++){
+            int w = words[i];
+            int n = (w & FILL_FLAG) != 0 ? (w & COUNT_MASK) : 1;
+            if(group < g + n){
+                if((w & FILL_FLAG) != 0){
+                    return (w & FILL_ONE) != 0;
+                }
+                return (w & (1 << (position % GROUP_BITS))) != 0;
+            }
+            g += n;
+        }
+        return (active & (1 << (position - g * GROUP_BITS))) != 0;
+    }
+
+    /**
+     * Get the positions of all set bits in increasing order
+     * @return
+     */
+    public int[] toArray()
+    {
+        int[] ret = new int[cardinality()];
+        IntIterator it = iterator();
+        int i = 0;
+        while(it.hasNext()){
+            ret[i++] = it.next();
+        }
+        return ret;
+    }
+
+    /**
+     * Iterate over the positions of the set bits in increasing order
+     * @return
+     */
+    public IntIterator iterator()
+    {
+        return new SetBitIterator();
+    }
+
+    /**
+     * Get the number of bytes used by the compressed words
+     * @return
+     */
+    public long sizeInBytes()
+    {
+        return 4L * (nwords + 1);
+    }
+
+    /**
+     * OR together many bitvectors of the same size. Rather than combining them
+     * pairwise, which re-copies the growing result for every operand, the groups
+     * are accumulated into an uncompressed buffer and compressed once at the end.
+     * @param vectors
+     * @param size Size of every vector
+     * @return
+     */
+    public static WahBitVector orAll(java.util.List<WahBitVector> vectors, int size)
+    {
+        if(vectors.size() < 8){
+            WahBitVector ret = new WahBitVector(size, false);
+            for(WahBitVector v : vectors){
+                ret = ret.or(v);
+            }
+            return ret;
+        }
+        int ngroups = size / GROUP_BITS;
+        int[] acc = new int[ngroups + 1];
+        for(WahBitVector v : vectors){
+            v = v.padded(size);
+            int g = 0;
+            for(int i = 0; i < v.nwords; i++){
+                int w = v.words[i];
+                if((w & FILL_FLAG) != 0){
+                    int n = w & COUNT_MASK;
+                    if((w & FILL_ONE) != 0){
+                        Arrays.fill(acc, g, g + n, LITERAL_MASK);
+                    }
+                    g += n;
+                }
+                else{
+                    acc[g++] |= w;
+                }
+            }
+            acc[ngroups] |= v.active;
+        }
+        WahBitVector ret = new WahBitVector();
+        for(int g = 0; g < ngroups; g++){
+            ret.appendGroup(acc[g]);
+        }
+        ret.active = acc[ngroups];
+        ret.activeBits = size % GROUP_BITS;
+        ret.size = size;
+        return ret;
+    }
+
+    public WahBitVector and(WahBitVector other)
+    {
+        return combine(this, other, AND);
+    }
+
+    public WahBitVector or(WahBitVector other)
+    {
+        return combine(this, other, OR);
+    }
+
+    public WahBitVector xor(WahBitVector other)
+    {
+        return combine(this, other, XOR);
+    }
+
+    public WahBitVector andNot(WahBitVector other)
+    {
+        return combine(this, other, AND_NOT);
+    }
+
+    /**
+     * Get the complement of this bitvector over its size
+     * @return
+     */
+    public WahBitVector not()
+    {
+        WahBitVector ret = new WahBitVector();
+        ret.words = new int[Math.max(4, nwords)];
+        for(int i = 0; i < nwords; i++){
+            int w = words[i];
+            ret.words[i] = (w & FILL_FLAG) != 0 ? w ^ FILL_ONE : ~w & LITERAL_MASK;
+        }
+        ret.nwords = nwords;
+        ret.activeBits = activeBits;
+        ret.active = ~active & ((1 << activeBits) - 1);
+        ret.size = size;
+        return ret;
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if(this == o){
+            return true;
+        }
+        if(o == null || getClass() != o.getClass()){
+            return false;
+        }
+        WahBitVector v = (WahBitVector) o;
+        if(size != v.size || active != v.active){
+            return false;
+        }
+        // Compare group by group: a concat may split a fill the other keeps whole
+        Run x = new Run(this);
+        Run y = new Run(v);
+        while(x.groups > 0 && y.groups > 0){
+            if(x.word != y.word){
+                return false;
+            }
+            int n = Math.min(x.groups, y.groups);
+            x.consume(n);
+            y.consume(n);
+        }
+        return x.groups == 0 && y.groups == 0;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        // Hash runs of uniform groups as one, however they are split into words
+        int h = size * 31 + active;
+        Run r = new Run(this);
+        int word = 0;
+        int groups = 0;
+        while(r.groups > 0){
+            boolean uniform = r.word == 0 || r.word == LITERAL_MASK;
+            if(uniform && groups > 0 && word == r.word){
+                groups += r.groups;
+            }
+            else{
+                h = (h * 31 + word) * 31 + groups;
+                word = r.word;
+                groups = r.groups;
+            }
+            r.consume(r.groups);
+        }
+        return (h * 31 + word) * 31 + groups;
+    }
+
+    /**
+     * Write the bitvector in its compressed form
+     * @param out
+     * @throws IOException
+     */
+    public void write(DataOutput out) throws IOException
+    {
+        out.writeInt(size);
+        out.writeInt(nwords);
+        for(int i = 0; i < nwords; i++){
+            out.writeInt(words[i]);
+        }
+        out.writeInt(active);
+    }
+
+    /**
+     * Read a bitvector written by {@link #write(DataOutput)}
+     * @param in
+     * @return
+     * @throws IOException
+     */
+    public static WahBitVector read(DataInput in) throws IOException
+    {
+        WahBitVector v = new WahBitVector();
+        v.size = in.readInt();
+        v.nwords = in.readInt();
+        v.words = new int[Math.max(4, v.nwords)];
+        for(int i = 0; i < v.nwords; i++){
+            v.words[i] = in.readInt();
+        }
+        v.active = in.readInt();
+        v.activeBits = v.size % GROUP_BITS;
+        return v;
+    }
+
+    /**
+     * Combine two bitvectors group by group. Runs of fills on both sides are
+     * combined in one step, so the cost is proportional to the compressed sizes.
+     */
+    private static WahBitVector combine(WahBitVector a, WahBitVector b, int op)
+    {
+        if(a.size != b.size){
+            int n = Math.max(a.size, b.size);
+            a = a.padded(n);
+            b = b.padded(n);
+        }
+        WahBitVector ret = new WahBitVector();
+        ret.words = new int[Math.max(4, Math.max(a.nwords, b.nwords))];
+        Run x = new Run(a);
+        Run y = new Run(b);
+        while(x.groups > 0 && y.groups > 0){
+            int n = Math.min(x.groups, y.groups);
+            int w = apply(op, x.word, y.word) & LITERAL_MASK;
+            if(x.fill && y.fill){
+                ret.appendFill(w != 0, n);
+            }
+            else{
+                ret.appendGroup(w);
+            }
+            x.consume(n);
+            y.consume(n);
+        }
+        ret.activeBits = a.activeBits;
+        ret.active = apply(op, a.active, b.active) & ((1 << a.activeBits) - 1);
+        ret.size = a.size;
+        return ret;
+    }
+
+    private static int apply(int op, int x, int y)
+    {
+        switch(op){
+            case AND:
+                return x & y;
+            case OR:
+                return x | y;
+            case XOR:
+                return x ^ y;
+            default:
+                return x & ~y;
+        }
+    }
+
+    private WahBitVector padded(int n)
+    {
+        if(size >= n){
+            return this;
+        }
+        WahBitVector v = copy();
+        v.pad(n);
+        return v;
+    }
+
+    /**
+     * Create an independent copy of this bitvector
+     * @return
+     */
+    public WahBitVector copy()
+    {
+        WahBitVector v = new WahBitVector();
+        v.words = Arrays.copyOf(words, Math.max(4, nwords));
+        v.nwords = nwords;
+        v.active = active;
+        v.activeBits = activeBits;
+        v.size = size;
+        return v;
+    }
+
+    /**
+     * Decodes the compressed words of a bitvector one run at a time
+     */
+    private static final class Run {
+        final WahBitVector v;
+        int next;
+        // The current group value (a full literal for fills)
+        int word;
+        // Groups left in the current word
+        int groups;
+        boolean fill;
+
+        Run(WahBitVector v)
+        {
+            this.v = v;
+            advance();
+        }
+
+        void advance()
+        {
+            if(next >= v.nwords){
+                groups = 0;
+                return;
+            }
+            int w = v.words[next++];
+            fill = (w & FILL_FLAG) != 0;
+            if(fill){
+                groups = w & COUNT_MASK;
+                word = (w & FILL_ONE) != 0 ? LITERAL_MASK : 0;
+            }
+            else{
+                groups = 1;
+                word = w;
+            }
+        }
+
+        void consume(int n)
+        {
+            groups -= n;
+            if(groups == 0){
+                advance();
+            }
+        }
+    }
+
+    /**
+     * Iterates over the set positions, skipping zero fills in one step
+     */
+    private final class SetBitIterator implements IntIterator {
+        int wordIndex;
+        // Position of bit 0 of the current group
+        int base;
+        // Remaining set bits of the current group
+        int bits;
+        // Remaining groups in the current one-fill
+        int oneGroups;
+        boolean inActive;
+
+        SetBitIterator()
+        {
+            base = -GROUP_BITS;
+            fetch();
+        }
+
+        private void fetch()
+        {
+            while(bits == 0){
+                if(oneGroups > 0){
+                    oneGroups--;
+                    base += GROUP_BITS;
+                    bits = LITERAL_MASK;
+                    return;
+                }
+                if(wordIndex >= nwords){
+                    if(inActive){
+                        return;
+                    }
+                    inActive = true;
+                    base += GROUP_BITS;
+                    bits = active;
+                    continue;
+                }
+                int w = words[wordIndex++];
+                if((w & FILL_FLAG) != 0){
+                    int n = w & COUNT_MASK;
+                    if((w & FILL_ONE) != 0){
+                        oneGroups = n;
+                    }
+                    else{
+                        base += GROUP_BITS * n;
+                    }
+                }
+                else{
+                    base += GROUP_BITS;
+                    bits = w;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            return bits != 0;
+        }
+
+        @Override
+        public int next()
+        {
+            if(bits == 0){
+                throw new java.util.NoSuchElementException();
+            }
+            int bit = Integer.numberOfTrailingZeros(bits);
+            bits &= bits - 1;
+            int ret = base + bit;
+            if(bits == 0){
+                fetch();
+            }
+            return ret;
+        }
+    }
+}
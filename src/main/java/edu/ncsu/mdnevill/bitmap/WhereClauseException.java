@@ -0,0 +1,14 @@
+package edu.ncsu.mdnevill.bitmap;
+
+/**
+ * @author Mitchell Neville
+ * Exception thrown when a WHERE clause cannot be parsed.
+ */
+public class WhereClauseException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    public WhereClauseException(String message)
+    {
+        super(message);
+    }
+}
@@ -0,0 +1,413 @@
+package edu.ncsu.mdnevill.bitmap;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author Mitchell Neville
+ * Parses the WHERE clauses accepted by FastBit's build_query into a {@link Predicate}.
+ * Supported forms are comparisons between a column and a number (=, ==, !=, &lt;&gt;,
+ * &lt;, &lt;=, &gt;, &gt;=, in either order), two-sided ranges such as
+ * "2000 &lt;= year &lt; 2010", "column between a and b", and conditions joined with
+ * and/or/not (or &amp;&amp;, ||, !) and parentheses. The clauses of prepared queries
+ * may also have ? parameters in place of numbers, numbered from 0 in the order they
+ * appear.
+ */
+public class WhereParser {
+    private final List<String> tokens;
+    private int pos;
+    // Are ? parameters allowed?
+    private final boolean prepared;
+    // Parameters seen so far
+    private int parameters;
+
+    private WhereParser(List<String> tokens, boolean prepared)
+    {
+        this.tokens = tokens;
+        this.prepared = prepared;
+    }
+
+    /**
+     * Parse a WHERE clause
+     * @param where
+     * @return
+     * @throws WhereClauseException
+     */
+    public static Predicate parse(String where) throws WhereClauseException
+    {
+        return parse(where, false);
+    }
+
+    /**
+     * Parse the WHERE clause of a prepared query, which may have ? parameters
+     * @param where
+     * @return The clause, to be bound with {@link Predicate#bind} before evaluating it
+     * @throws WhereClauseException
+     */
+    public static Predicate parsePrepared(String where) throws WhereClauseException
+    {
+        return parse(where, true);
+    }
+
+    private static Predicate parse(String where, boolean prepared) throws WhereClauseException
+    {
+        if(where == null || where.trim().length() == 0){
+            throw new WhereClauseException("Empty where clause");
+        }
+        WhereParser p = new WhereParser(tokenize(where), prepared);
+        Predicate ret = p.parseOr();
+        if(p.pos < p.tokens.size()){
+            throw new WhereClauseException("Unexpected '" + p.tokens.get(p.pos) + "' in: " + where);
+        }
+        return ret;
+    }
+
+    private Predicate parseOr() throws WhereClauseException
+    {
+        Predicate left = parseAnd();
+        while(accept("or") || accept("||")){
+            left = new Predicate.Or(left, parseAnd());
+        }
+        return left;
+    }
+
+    private Predicate parseAnd() throws WhereClauseException
+    {
+        Predicate left = parseNot();
+        while(accept("and") || accept("&&")){
+            left = new Predicate.And(left, parseNot());
+        }
+        return left;
+    }
+
+    private Predicate parseNot() throws WhereClauseException
+    {
+        if(accept("not") || accept("!")){
+            return new Predicate.Not(parseNot());
+        }
+        if(accept("(")){
+            Predicate p = parseOr();
+            expect(")");
+            return p;
+        }
+        return parseComparison();
+    }
+
+    private Predicate parseComparison() throws WhereClauseException
+    {
+        String first = next();
+        if(isNumber(first) || first.equals("?")){
+            // number op column [op number]
+            int lowParam = parameter(first);
+            String op = nextOperator();
+            String column = nextIdentifier();
+            Predicate lower = mark(compare(column, flip(op), value(first)), lowParam);
+            if(pos < tokens.size() && isOperator(peek())){
+                String op2 = nextOperator();
+                String high = nextNumber();
+                return intersect(lower, mark(compare(column, op2, value(high)), parameter(high)));
+            }
+            return lower;
+        }
+        if(!isIdentifier(first)){
+            throw new WhereClauseException("Expected a column name but found '" + first + "'");
+        }
+        if(accept("between")){
+            String low = nextNumber();
+            int lowParam = parameter(low);
+            expect("and");
+            String high = nextNumber();
+            Predicate.Range r = new Predicate.Range(first, value(low), true, value(high), true);
+            r.lowParam = lowParam;
+            r.highParam = parameter(high);
+            return r;
+        }
+        String op = nextOperator();
+        String value = nextNumber();
+        return mark(compare(first, op, value(value)), parameter(value));
+    }
+
+    /**
+     * Get the index of a ? parameter, numbering it
+     * @param t A number or ?
+     * @return The index, or -1 for a number
+     * @throws WhereClauseException If parameters are not allowed
+     */
+    private int parameter(String t) throws WhereClauseException
+    {
+        if(!t.equals("?")){
+            return -1;
+        }
+        if(!prepared){
+            throw new WhereClauseException("Parameters (?) are only allowed in prepared queries");
+        }
+        return parameters++;
+    }
+
+    /**
+     * Get the value of a number, or NaN for a parameter
+     */
+    private static double value(String t)
+    {
+        return t.equals("?") ? Double.NaN : Double.parseDouble(t);
+    }
+
+    /**
+     * Make the bounds of a comparison left as NaN by a parameter refer to it
+     * @param p A comparison built by compare
+     * @param param Parameter index, or -1 for none
+     * @return p
+     */
+    private static Predicate mark(Predicate p, int param)
+    {
+        if(param < 0){
+            return p;
+        }
+        if(p instanceof Predicate.Not){
+            mark(((Predicate.Not) p).child, param);
+            return p;
+        }
+        Predicate.Range r = (Predicate.Range) p;
+        if(Double.isNaN(r.low)){
+            r.lowParam = param;
+        }
+        if(Double.isNaN(r.high)){
+            r.highParam = param;
+        }
+        return p;
+    }
+
+    /**
+     * Build the predicate column op value
+     */
+    static Predicate compare(String column, String op, double value) throws WhereClauseException
+    {
+        if(op.equals("=") || op.equals("==")){
+            return Predicate.Range.equal(column, value);
+        }
+        if(op.equals("!=") || op.equals("<>")){
+            return new Predicate.Not(Predicate.Range.equal(column, value));
+        }
+        if(op.equals("<")){
+            return new Predicate.Range(column, Double.NEGATIVE_INFINITY, true, value, false);
+        }
+        if(op.equals("<=")){
+            return new Predicate.Range(column, Double.NEGATIVE_INFINITY, true, value, true);
+        }
+        if(op.equals(">")){
+            return new Predicate.Range(column, value, false, Double.POSITIVE_INFINITY, true);
+        }
+        if(op.equals(">=")){
+            return new Predicate.Range(column, value, true, Double.POSITIVE_INFINITY, true);
+        }
+        throw new WhereClauseException("Unknown operator '" + op + "'");
+    }
+
+    /**
+     * Get the operator that gives the same condition with its operands swapped
+     */
+    private static String flip(String op)
+    {
+        if(op.equals("<")){
+            return ">";
+        }
+        if(op.equals("<=")){
+            return ">=";
+        }
+        if(op.equals(">")){
+            return "<";
+        }
+        if(op.equals(">=")){
+            return "<=";
+        }
+        return op;
+    }
+
+    /**
+     * Merge two conditions on the same column into a single range where possible
+     */
+    private static Predicate intersect(Predicate a, Predicate b)
+    {
+        if(a instanceof Predicate.Range && b instanceof Predicate.Range){
+            Predicate.Range x = (Predicate.Range) a;
+            Predicate.Range y = (Predicate.Range) b;
+            if(x.parameters() > 0 || y.parameters() > 0){
+                // A parameter's value is not known yet, so only conditions bounding
+                // opposite sides are merged
+                if(x.high == Double.POSITIVE_INFINITY && y.low == Double.NEGATIVE_INFINITY){
+                    Predicate.Range r = new Predicate.Range(x.column, x.low, x.lowInc, y.high, y.highInc);
+                    r.lowParam = x.lowParam;
+                    r.highParam = y.highParam;
+                    return r;
+                }
+                return new Predicate.And(a, b);
+            }
+            double low = Math.max(x.low, y.low);
+            boolean lowInc = (x.low == low ? x.lowInc : true) && (y.low == low ? y.lowInc : true);
+            double high = Math.min(x.high, y.high);
+            boolean highInc = (x.high == high ? x.highInc : true) && (y.high == high ? y.highInc : true);
+            return new Predicate.Range(x.column, low, lowInc, high, highInc);
+        }
+        return new Predicate.And(a, b);
+    }
+
+    private boolean accept(String token)
+    {
+        if(pos < tokens.size() && tokens.get(pos).equalsIgnoreCase(token)){
+            pos++;
+            return true;
+        }
+        return false;
+    }
+
+    private void expect(String token) throws WhereClauseException
+    {
+        if(!accept(token)){
+            throw new WhereClauseException("Expected '" + token + "'"
+                    + (pos < tokens.size() ? " but found '" + tokens.get(pos) + "'" : " at end of clause"));
+        }
+    }
+
+    private String peek()
+    {
+        return tokens.get(pos);
+    }
+
+    private String next() throws WhereClauseException
+    {
+        if(pos >= tokens.size()){
+            throw new WhereClauseException("Unexpected end of where clause");
+        }
+        return tokens.get(pos++);
+    }
+
+    private String nextOperator() throws WhereClauseException
+    {
+        String t = next();
+        if(!isOperator(t)){
+            throw new WhereClauseException("Expected a comparison operator but found '" + t + "'");
+        }
+        return t;
+    }
+
+    private String nextNumber() throws WhereClauseException
+    {
+        String t = next();
+        if(!isNumber(t) && !t.equals("?")){
+            throw new WhereClauseException("Expected a number but found '" + t + "'");
+        }
+        return t;
+    }
+
+    private String nextIdentifier() throws WhereClauseException
+    {
+        String t = next();
+        if(!isIdentifier(t)){
+            throw new WhereClauseException("Expected a column name but found '" + t + "'");
+        }
+        return t;
+    }
+
+    private static boolean isOperator(String t)
+    {
+        return t.equals("=") || t.equals("==") || t.equals("!=") || t.equals("<>")
+                || t.equals("<") || t.equals("<=") || t.equals(">") || t.equals(">=");
+    }
+
+    private static boolean isNumber(String t)
+    {
+        char c = t.charAt(0);
+        return Character.isDigit(c) || ((c == '-' || c == '+' || c == '.') && t.length() > 1);
+    }
+
+    private static boolean isIdentifier(String t)
+    {
+        char c = t.charAt(0);
+        if(!(Character.isLetter(c) || c == '_')){
+            return false;
+        }
+        String lower = t.toLowerCase();
+        return !lower.equals("and") && !lower.equals("or") && !lower.equals("not")
+                && !lower.equals("between");
+    }
+
+    /**
+     * Split a WHERE clause into identifiers, numbers, operators and parentheses
+     */
+    static List<String> tokenize(String s) throws WhereClauseException
+    {
+        List<String> ret = new ArrayList<String>();
+        int i = 0;
+        int n = s.length();
+        while(i < n){
+            char c = s.charAt(i);
+            if(Character.isWhitespace(c)){
+                i++;
+            }
+            else if(Character.isLetter(c) || c == '_'){
+                int j = i + 1;
+                while(j < n && (Character.isLetterOrDigit(s.charAt(j)) || s.charAt(j) == '_' || s.charAt(j) == '.')){
+                    j++;
+                }
+                ret.add(s.substring(i, j));
+                i = j;
+            }
+            else if(Character.isDigit(c) || c == '.'
+                    || ((c == '-' || c == '+') && i + 1 < n && (Character.isDigit(s.charAt(i + 1)) || s.charAt(i + 1) == '.')
+                        && (ret.isEmpty() || !isValue(ret.get(ret.size() - 1))))){
+                int j = i + 1;
+                while(j < n){
+                    char d = s.charAt(j);
+                    if(Character.isDigit(d) || d == '.'){
+                        j++;
+                    }
+                    else if((d == 'e' || d == 'E') && j + 1 < n){
+                        j += (s.charAt(j + 1) == '-' || s.charAt(j + 1) == '+') ? 2 : 1;
+                    }
+                    else{
+                        break;
+                    }
+                }
+                String num = s.substring(i, j);
+                try{
+                    Double.parseDouble(num);
+                }
+                catch(NumberFormatException e){
+                    throw new WhereClauseException("Invalid number '" + num + "'");
+                }
+                ret.add(num);
+                i = j;
+            }
+            else if(c == '(' || c == ')' || c == '?'){
+                ret.add(String.valueOf(c));
+                i++;
+            }
+            else if(i + 1 < n && isTwoCharOperator(s.substring(i, i + 2))){
+                ret.add(s.substring(i, i + 2));
+                i += 2;
+            }
+            else if(c == '=' || c == '<' || c == '>' || c == '!'){
+                ret.add(String.valueOf(c));
+                i++;
+            }
+            else{
+                throw new WhereClauseException("Unexpected character '" + c + "' in: " + s);
+            }
+        }
+        return ret;
+    }
+
+    private static boolean isTwoCharOperator(String t)
+    {
+        return t.equals("==") || t.equals("!=") || t.equals("<>") || t.equals("<=")
+                || t.equals(">=") || t.equals("&&") || t.equals("||");
+    }
+
+    /**
+     * Does the token end an operand, so a following sign is a binary operator?
+     */
+    private static boolean isValue(String t)
+    {
+        return t.equals(")") || t.equals("?") || isNumber(t) || isIdentifier(t);
+    }
+}
@@ -0,0 +1,239 @@
+package gov.lbl.fastbit;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Dictionary of a FastBit category column.  The .dic file holds the
+ * distinct values as NUL-terminated strings; a value's integer code is
+ * its position in the file, 0 for the first, so codes are dense and
+ * never change as new values are appended.  Values are looked up in an
+ * open-addressing hash table of codes, and the codes can be written as
+ * an int column and indexed and queried like any other.
+ *
+ * @author Mitchell Neville
+ * @ingroup FastBitJava
+ */
+public class FastBitDictionary {
+    private static int INITIAL_CAPACITY = 16;
+
+    final private String charsetName;
+
+    // Values by code
+    private String[] values;
+    private int size;
+
+    // Hash table of code + 1, 0 for an empty slot; the length is a power of 2
+    private int[] table;
+
+    /**
+     * Create an empty dictionary
+     * @param charsetName
+     */
+    public FastBitDictionary(String charsetName) {
+	this.charsetName = charsetName;
+	this.values = new String[INITIAL_CAPACITY];
+	this.table = new int[2 * INITIAL_CAPACITY];
+    }
+
+    /**
+     * Read a .dic file.  The file is mapped and parsed in one pass; a
+     * missing file gives an empty dictionary.
+     * @param dicFile
+     * @param charsetName
+     * @return
+     * @throws IOException
+     */
+    public static FastBitDictionary read(File dicFile, String charsetName)
+	throws IOException {
+	FastBitDictionary dic = new FastBitDictionary(charsetName);
+	if (!dicFile.exists()) {
+	    return dic;
+	}
+	RandomAccessFile raf = new RandomAccessFile(dicFile, "r");
+	try {
+	    dic.read(raf.getChannel());
+	}
+	finally {
+	    raf.close();
+	}
+	return dic;
+    }
+
+    /**
+     * Add the values in a .dic file to the dictionary, in file order.
+     * The channel is left open and its position is not changed.
+     * @param fc
+     * @throws IOException If a value is already in the dictionary, as
+     * it would then not get the code of its position
+     */
+    public void read(FileChannel fc) throws IOException {
+	long length = fc.size();
+	if (length > Integer.MAX_VALUE) {
+	    throw new IOException("Dictionary too large to map ("+length
+				  +" bytes)");
+	}
+	if (length == 0) {
+	    return;
+	}
+	MappedByteBuffer buf = fc.map(FileChannel.MapMode.READ_ONLY, 0, length);
+	byte[] bytes = new byte[64];
+	int len = 0;
+	while (buf.hasRemaining()) {
+	    byte b = buf.get();
+	    if (b == 0) {
+		addRead(new String(bytes, 0, len, charsetName));
+		len = 0;
+	    } else {
+		if (len == bytes.length) {
+		    bytes = Arrays.copyOf(bytes, 2 * len);
+		}
+		bytes[len++] = b;
+	    }
+	}
+	if (len > 0) {
+	    // a last value without its NUL
+	    addRead(new String(bytes, 0, len, charsetName));
+	}
+    }
+
+    /**
+     * Add a value read from a file, which must be new so that its code
+     * is its position
+     */
+    private void addRead(String value) throws IOException {
+	int code = size;
+	if (add(value) != code) {
+	    throw new IOException("Duplicate dictionary value \""+value
+				  +"\" at code "+code);
+	}
+    }
+
+    /**
+     * Write the values with codes from..size()-1 at the current position
+     * of a channel, in the .dic format.
+     * @param fc
+     * @param from
+     * @param bufferLength
+     * @throws IOException
+     */
+    public void write(FileChannel fc, int from, int bufferLength)
+	throws IOException {
+	ByteBuffer buf = ByteBuffer.allocate(bufferLength);
+	for (int code=from; code<size; code++) {
+	    byte[] ar = values[code].getBytes(charsetName);
+	    if (buf.remaining() < ar.length+1) {
+		buf.flip();
+		fc.write(buf);
+		buf.clear();
+		if (buf.remaining() < ar.length+1) {
+		    buf = ByteBuffer.allocate(ar.length+1);
+		}
+	    }
+	    buf.put(ar);
+	    buf.put((byte) 0);
+	}
+	buf.flip();
+	while (buf.hasRemaining()) {
+	    fc.write(buf);
+	}
+    }
+
+    /**
+     * Number of values
+     * @return
+     */
+    public int size() {
+	return size;
+    }
+
+    /**
+     * Get the code of a value
+     * @param value
+     * @return The code, or -1 if the value is not in the dictionary
+     */
+    public int code(String value) {
+	int mask = table.length - 1;
+	for (int i=hash(value) & mask; table[i] != 0; i=(i+1) & mask) {
+	    if (values[table[i]-1].equals(value)) {
+		return table[i]-1;
+	    }
+	}
+	return -1;
+    }
+
+    /**
+     * Get the value with a code
+     * @param code
+     * @return
+     */
+    public String value(int code) {
+	if (code < 0 || code >= size) {
+	    throw new IndexOutOfBoundsException("No value with code "+code);
+	}
+	return values[code];
+    }
+
+    /**
+     * Get the code of a value, adding the value with the next code if it
+     * is new
+     * @param value
+     * @return
+     */
+    public int add(String value) {
+	int mask = table.length - 1;
+	int i = hash(value) & mask;
+	for (; table[i] != 0; i=(i+1) & mask) {
+	    if (values[table[i]-1].equals(value)) {
+		return table[i]-1;
+	    }
+	}
+	if (size == values.length) {
+	    values = Arrays.copyOf(values, 2 * size);
+	}
+	values[size] = value;
+	table[i] = ++size;
+	if (2 * size > table.length) {
+	    rehash(2 * table.length);
+	}
+	return size-1;
+    }
+
+    /**
+     * Get the codes of an array of values, adding new ones
+     * @param arr
+     * @return
+     */
+    public int[] encode(String[] arr) {
+	int[] codes = new int[arr.length];
+	for (int i=0; i<arr.length; i++) {
+	    codes[i] = add(arr[i]);
+	}
+	return codes;
+    }
+
+    private void rehash(int capacity) {
+	table = new int[capacity];
+	int mask = capacity - 1;
+	for (int code=0; code<size; code++) {
+	    int i = hash(values[code]) & mask;
+	    while (table[i] != 0) {
+		i = (i+1) & mask;
+	    }
+	    table[i] = code+1;
+	}
+    }
+
+    /**
+     * Spread String.hashCode over the low bits used by the table
+     */
+    private static int hash(String value) {
+	int h = value.hashCode() * 0x9E3779B9;
+	return h ^ (h >>> 16);
+    }
+}
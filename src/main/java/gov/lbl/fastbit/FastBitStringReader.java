@@ -4,16 +4,22 @@ import gov.lbl.fastbit.FastBitStringWriter.WriteHandle;
 
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Java StringReader for FastBit.  It converts the strings retured from
@@ -30,6 +36,18 @@ public class FastBitStringReader {
     final private long bufferSize;
     private static int DEFAULT_BUFFER_LENGTH = 1024;
 
+    /**
+     * Largest piece of a string data file mapped at once.
+     */
+    private static long SEGMENT_LENGTH = 1L << 30;
+
+    /**
+     * String columns mapped by the getMappedStrings functions, by data
+     * file path.
+     */
+    final private Map<String, MappedColumn> mappedColumns =
+	new HashMap<String, MappedColumn>();
+
     /**
      * FastBitStringReader constructor with default buffer length
      */
@@ -103,6 +121,29 @@ public class FastBitStringReader {
 	}
     }
 
+    /**
+     * FastBit String[] getter for strings starting at the given offsets
+     * of an open data file.  Like getQualifiedStrings, it maps the file
+     * again for every string.
+     * @param fc
+     * @param offsets
+     * @param charsetName
+     * @return
+     * @throws FastBitStringReaderException
+     */
+    public String[]
+	getStrings(final FileChannel fc, long[] offsets, String charsetName)
+	throws FastBitStringReaderException {
+	ArrayList<String> ret = new ArrayList<String>();
+	try {
+	    getStringArrayList(fc, offsets, charsetName, ret);
+	    return ret.toArray(new String[0]);
+	}
+	catch (IOException ex) {
+	    throw new FastBitStringReaderException(ex.getMessage());
+	}
+    }
+
     private void getStringArrayList(final FileChannel fc,
 				    final FastBitStringReader.ReadHandle handle,
 				    String column,
@@ -115,7 +156,15 @@ public class FastBitStringReader {
 	    throw new FastBitStringReaderException
 		("get_qualified_longs result is null");
 	}
+	getStringArrayList(fc, offsets, handle.getCharsetName(), ret);
+    }
 
+    private void getStringArrayList(final FileChannel fc,
+				    long[] offsets,
+				    String charsetName,
+				    ArrayList<String> ret)
+	throws FastBitStringReaderException,
+	       IOException, UnsupportedEncodingException {
 	for (int i=0; i<offsets.length; i++) {
 	    StringBuffer buf = new StringBuffer();
 
@@ -142,7 +191,7 @@ public class FastBitStringReader {
 		    stringLength=j;
 		}
 		buf.append (new String(Arrays.copyOf(buffer, stringLength+1),
-				       handle.getCharsetName()));
+				       charsetName));
 		offset +=size;
 	    } while (!eobuf);
 
@@ -151,6 +200,184 @@ public class FastBitStringReader {
     }
 
 
+    /**
+     * Thread-safe FastBit String[] getter that maps the data file and its
+     * .sp file once.  The mapping is kept by this reader and shared by
+     * later calls and threads for the same column, until the files
+     * change or releaseMappings is called.  Each string is decoded from
+     * the mapping through one reused buffer, its length taken from the
+     * .sp offsets, with no per-string mapping or scan for the NUL byte.
+     * @param handle
+     * @param column
+     * @return
+     * @throws FastBitStringReaderException
+     */
+    public String[]
+	getMappedStrings(final FastBitStringReader.ReadHandle handle,
+			 String column)
+	throws FastBitStringReaderException {
+	int[] rows = handle.getFb().get_result_row_ids(handle.getFbHandle());
+	if (rows == null) {
+	    throw new FastBitStringReaderException
+		("get_result_row_ids result is null");
+	}
+	return getMappedStrings(handle.getPartition(), column, rows,
+				handle.getCharsetName());
+    }
+
+    /**
+     * Thread-safe FastBit String[] getter for the given rows of a string
+     * column, using the shared mapping of getMappedStrings.
+     * @param partition
+     * @param column
+     * @param rows
+     * @param charsetName
+     * @return
+     * @throws FastBitStringReaderException
+     */
+    public String[]
+	getMappedStrings(String partition, String column, int[] rows,
+			 String charsetName)
+	throws FastBitStringReaderException {
+	MappedColumn col = getMappedColumn(partition, column);
+	Charset charset;
+	try {
+	    charset = Charset.forName(charsetName);
+	}
+	catch (IllegalArgumentException ex) {
+	    throw new FastBitStringReaderException(ex.getMessage());
+	}
+	return col.get(rows, charset);
+    }
+
+    /**
+     * Drop the mappings kept by getMappedStrings.  The memory is given
+     * back once no other thread is still reading them.
+     */
+    public void releaseMappings() {
+	synchronized (mappedColumns) {
+	    mappedColumns.clear();
+	}
+    }
+
+    /**
+     * Get the mapping of a string column, mapping it if it is new or its
+     * files have changed since it was mapped.
+     * @param partition
+     * @param column
+     * @return
+     * @throws FastBitStringReaderException
+     */
+    private MappedColumn getMappedColumn(String partition, String column)
+	throws FastBitStringReaderException {
+	File data = new File(partition, column);
+	File sp = new File(partition, column+".sp");
+	String key = data.getAbsolutePath();
+	synchronized (mappedColumns) {
+	    MappedColumn col = mappedColumns.get(key);
+	    if (col == null || col.dataLength != data.length()
+		|| col.spLength != sp.length()) {
+		try {
+		    col = new MappedColumn(data, sp);
+		}
+		catch (IOException ex) {
+		    throw new FastBitStringReaderException(ex.getMessage());
+		}
+		mappedColumns.put(key, col);
+	    }
+	    return col;
+	}
+    }
+
+    /**
+     * A string column mapped read-only: the NUL-terminated strings in
+     * segments of at most SEGMENT_LENGTH bytes, and the .sp file of
+     * little-endian starting positions, one per row plus the end of the
+     * last string.  Readers only use absolute positions or duplicates,
+     * so any number of threads can share it.
+     */
+    private static class MappedColumn {
+	final long dataLength;
+	final long spLength;
+	final private ByteBuffer[] segments;
+	final private LongBuffer starts;
+
+	MappedColumn(File data, File sp) throws IOException {
+	    RandomAccessFile dataFile = new RandomAccessFile(data, "r");
+	    RandomAccessFile spFile = null;
+	    try {
+		spFile = new RandomAccessFile(sp, "r");
+		FileChannel dc = dataFile.getChannel();
+		FileChannel sc = spFile.getChannel();
+		dataLength = dc.size();
+		spLength = sc.size();
+		if (spLength > Integer.MAX_VALUE) {
+		    throw new IOException
+			(sp+" is too large to map ("+spLength+" bytes)");
+		}
+		int n = (int) ((dataLength + SEGMENT_LENGTH - 1)
+			       / SEGMENT_LENGTH);
+		segments = new ByteBuffer[n];
+		for (int i=0; i<n; i++) {
+		    long pos = i * SEGMENT_LENGTH;
+		    segments[i] = dc.map(FileChannel.MapMode.READ_ONLY, pos,
+					 Math.min(SEGMENT_LENGTH,
+						  dataLength - pos));
+		}
+		starts = sc.map(FileChannel.MapMode.READ_ONLY, 0, spLength)
+		    .order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+	    }
+	    finally {
+		// The mappings stay valid after the files are closed
+		dataFile.close();
+		if (spFile != null) {
+		    spFile.close();
+		}
+	    }
+	}
+
+	String[] get(int[] rows, Charset charset)
+	    throws FastBitStringReaderException {
+	    String[] ret = new String[rows.length];
+	    ByteBuffer[] views = new ByteBuffer[segments.length];
+	    byte[] bytes = new byte[64];
+	    int count = starts.capacity();
+	    for (int i=0; i<rows.length; i++) {
+		int row = rows[i];
+		if (row < 0 || row+1 >= count) {
+		    throw new FastBitStringReaderException
+			("Row "+row+" is not in the .sp file");
+		}
+		long start = starts.get(row);
+		// the string ends just before the NUL at the next start
+		long end = starts.get(row+1) - 1;
+		if (start > end || end > dataLength) {
+		    throw new FastBitStringReaderException
+			("Bad .sp offsets "+start+", "+(end+1)+" for row "+row);
+		}
+		int length = (int) (end - start);
+		if (bytes.length < length) {
+		    bytes = new byte[Math.max(length, 2 * bytes.length)];
+		}
+		int done = 0;
+		while (done < length) {
+		    long pos = start + done;
+		    int seg = (int) (pos / SEGMENT_LENGTH);
+		    if (views[seg] == null) {
+			views[seg] = segments[seg].duplicate();
+		    }
+		    ByteBuffer view = views[seg];
+		    view.position((int) (pos - seg * SEGMENT_LENGTH));
+		    int n = Math.min(length - done, view.remaining());
+		    view.get(bytes, done, n);
+		    done += n;
+		}
+		ret[i] = new String(bytes, 0, length, charset);
+	    }
+	    return ret;
+	}
+    }
+
     /**
      * Create FastBitStringReader.ReadHandle. Currently
      * FastBit.QueryHandle has not methods to get FastBit and
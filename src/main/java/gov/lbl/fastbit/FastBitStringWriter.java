@@ -1,18 +1,16 @@
 package gov.lbl.fastbit;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
 import java.nio.charset.UnsupportedCharsetException;
 import java.util.Date;
-import java.util.HashSet;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
@@ -80,50 +78,52 @@ public class FastBitStringWriter {
     public void addCategories(String partition, String colname, String[] arr,
 			      String charsetName)
 	throws FastBitStringWriterException {
+	addCategoryCodes(partition, colname, arr, charsetName);
+    }
+
+    /**
+     * Add String values with a small number of distinct choices, and
+     * return their integer codes in the column's dictionary.  The codes
+     * can be added to a data partition as an int column, indexed, and
+     * queried with the codes from FastBitDictionary.code.
+     * @param partition
+     * @param colname
+     * @param arr
+     * @param charsetName
+     * @return
+     * @throws FastBitStringWriterException
+     */
+    public int[] addCategoryCodes(String partition, String colname,
+				  String[] arr, String charsetName)
+	throws FastBitStringWriterException {
 	WriteHandle handler = getHandle(partition, colname, charsetName);
 	String dicFileName = handler.getDataFileName()+".dic";
-	Set<String> keys = new HashSet<String>();
-	Set<String> oldkeys = new HashSet<String>();
-
-	File dicFile = new File(dicFileName);
+	FastBitDictionary dic = new FastBitDictionary(charsetName);
 	FileLock dicLock = null;
+	int[] codes;
 
 	try {
-	    if (dicFile.exists()) {
-		dicLock =
-		    new RandomAccessFile(dicFile,"rw").getChannel().lock();
-		// Dictionary must fit in the heap memory
-		ByteBuffer oldBuffer = ByteBuffer.allocate
-		    (new Long(dicLock.channel().size()).intValue());
-		dicLock.channel().read(oldBuffer);
-		oldBuffer.position(0);
-		oldkeys = getOldDicValues(oldBuffer, oldkeys, charsetName);
-	    } else {
-		dicLock =
-		    new RandomAccessFile(dicFile,"rw").getChannel().lock();
-	    }
-	} catch (FileNotFoundException ex) {
-	    throw new FastBitStringWriterException(ex.getMessage());
-	} catch (IOException ex) {
-	    throw new FastBitStringWriterException(ex.getMessage());
-	}
+	    dicLock = new RandomAccessFile(dicFileName,"rw").getChannel().lock();
+	    dic.read(dicLock.channel());
+	    int oldSize = dic.size();
 
-
-	for (int i=0; i<arr.length; i++) {
-	    addRow(handler, arr[i]);
-	    if (!keys.contains(arr[i]) && !oldkeys.contains(arr[i])) {
-		keys.add(arr[i]);
+	    for (int i=0; i<arr.length; i++) {
+		addRow(handler, arr[i]);
 	    }
-	}
+	    codes = dic.encode(arr);
 
-	saveDictionary(handler, keys, dicLock);
-	try {
+	    // new values go after the old ones, so old codes stay the same
+	    dicLock.channel().position(dicLock.channel().size());
+	    dic.write(dicLock.channel(), oldSize, bufferLength);
 	    dicLock.release();
-	}
-	catch (IOException ex) {
+	    dicLock.channel().close();
+	} catch (FileNotFoundException ex) {
+	    throw new FastBitStringWriterException(ex.getMessage());
+	} catch (IOException ex) {
 	    throw new FastBitStringWriterException(ex.getMessage());
 	}
 	handler.close();
+	return codes;
     }
 
     /**
@@ -146,33 +146,6 @@ public class FastBitStringWriter {
 	buf.clear();
     }
 
-    /**
-     * Add old dictionary values to the Set
-     * @param buf
-     * @param keys
-     * @param charsetName
-     * @return
-     */
-    private synchronized Set<String>
-	getOldDicValues(ByteBuffer buf, final Set<String> keys,
-			String charsetName)
-	throws UnsupportedEncodingException {
-	if (buf.position() == buf.capacity()) {
-	    return keys;
-	}
-	ByteArrayOutputStream bos = new ByteArrayOutputStream();
-	byte b = buf.get();
-	while (b != 0) {
-	    bos.write(b);
-	    b = buf.get();
-	}
-	String key = bos.toString(charsetName);
-	if (!keys.contains(key)) {
-	    keys.add(key);
-	}
-	return getOldDicValues(buf, keys, charsetName);
-    }
-
     /**
      * Add dictionary strings to a .dic file
      *
@@ -497,7 +470,9 @@ public class FastBitStringWriter {
             else { // read the last 8 bytes from the file
                 splength -= 8;
                 spch.read(spbuf, splength);
-                splength = spbuf.getLong();
+                // the offsets are written little-endian by getBytes
+                spbuf.flip();
+                splength = spbuf.order(ByteOrder.LITTLE_ENDIAN).getLong();
                 offset.getAndSet(splength);
                 spbuf.clear(); // no longer need the value in the buffer
             }
@@ -0,0 +1,141 @@
+package edu.ncsu.mdnevill;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Mitchell Neville
+ * Checks that the loader reads back the rows of a books file as written, with one
+ * thread or several
+ */
+public class BooksCsvLoaderTest {
+    private static final String[] PRICES = {"12.5", "7", "0.99", "199.99", "1e2", "-3.25", "0.000001"};
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final Random random = new Random(11);
+
+    private static String row(String isbn, String title, String author, String year, String publisher, String price)
+    {
+        String url = "http://images.amazon.com/images/P/" + isbn + ".01.MZZZZZZZ.jpg";
+        return "\"" + isbn + "\";\"" + title + "\";\"" + author + "\";\"" + year + "\";\"" + publisher
+                + "\";\"" + url + "\";\"" + url + "\";\"" + url + "\";\"" + price + "\"";
+    }
+
+    private File write(List<String> lines, String eol) throws IOException
+    {
+        File file = folder.newFile();
+        OutputStream out = new FileOutputStream(file);
+        try{
+            for(String line : lines){
+                out.write((line + eol).getBytes("UTF-8"));
+            }
+        }
+        finally{
+            out.close();
+        }
+        return file;
+    }
+
+    @Test
+    public void rowsReadBackAsWritten() throws IOException
+    {
+        List<String> lines = new ArrayList<String>();
+        List<Book> books = new ArrayList<Book>();
+        for(int i = 0; i < 5000; i++){
+            String isbn = String.format("%010d", i);
+            String author = "Auteur \u00e9" + random.nextInt(50);
+            int year = i == 17 ? -300 : 1900 + random.nextInt(116);
+            String price = i < PRICES.length ? PRICES[i] : random.nextInt(20000) / 100.0 + "";
+            lines.add(row(isbn, "Title " + i, author, Integer.toString(year), "Publisher " + i % 7, price));
+            books.add(new Book("Title " + i, author, isbn, "Publisher " + i % 7, year, Double.parseDouble(price)));
+        }
+        String[] eols = {"\n", "\r\n"};
+        for(String eol : eols){
+            File file = write(lines, eol);
+            for(int threads = 1; threads <= 4; threads += 3){
+                BooksCsvLoader.Result result = new BooksCsvLoader(file, threads).load(-1, true);
+                assertEquals(books.size(), result.size());
+                for(int i = 0; i < books.size(); i++){
+                    Book b = books.get(i);
+                    assertEquals(i + 1, result.ids[i]);
+                    assertEquals(b.year, result.years[i]);
+                    assertEquals(b.price, result.prices[i], 0);
+                    assertEquals(b, result.books[i]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void loadsTheFirstRows() throws IOException
+    {
+        List<String> lines = new ArrayList<String>();
+        for(int i = 0; i < 1000; i++){
+            lines.add(row("" + i, "T", "A", "" + (2000 + i % 10), "P", i + ".5"));
+        }
+        BooksCsvLoader.Result result = new BooksCsvLoader(write(lines, "\n"), 4).load(100, false);
+        assertEquals(100, result.size());
+        assertNull(result.books);
+        assertEquals(2009, result.years[99]);
+        assertEquals(99.5, result.prices[99], 0);
+        // Blank lines are skipped
+        lines.add(2, "");
+        result = new BooksCsvLoader(write(lines, "\n"), 1).load(-1, false);
+        assertEquals(1000, result.size());
+        assertArrayEquals(new int[]{2000, 2001, 2002}, new int[]{result.years[0], result.years[1], result.years[2]});
+    }
+
+    @Test
+    public void malformedRowsAreErrors() throws IOException
+    {
+        String[] bad = {
+                "\"1\";\"T\";\"A\";\"2000\"",
+                row("1", "T", "A", "19x0", "P", "1.5"),
+                row("1", "T", "A", "", "P", "1.5"),
+                row("1", "T", "A", "-", "P", "1.5"),
+                row("1", "T", "A", "2000", "P", "abc"),
+                row("1", "T", "A", "2000", "P", ""),
+                row("1", "T", "A", "2147483648", "P", "1.5"),
+                row("1", "T", "A", "-2147483649", "P", "1.5"),
+                row("1", "T", "A", "99999999999", "P", "1.5"),
+        };
+        for(String line : bad){
+            List<String> lines = new ArrayList<String>();
+            lines.add(row("0", "T", "A", "2000", "P", "1.5"));
+            lines.add(line);
+            try{
+                new BooksCsvLoader(write(lines, "\n"), 2).load(-1, false);
+                fail(line);
+            }
+            catch(IOException expected){
+            }
+        }
+    }
+
+    @Test
+    public void yearsAtTheEndsOfTheIntRange() throws IOException
+    {
+        List<String> lines = new ArrayList<String>();
+        lines.add(row("0", "T", "A", "2147483647", "P", "1.5"));
+        lines.add(row("1", "T", "A", "-2147483648", "P", "1.5"));
+        lines.add(row("2", "T", "A", "000000000002015", "P", "1.5"));
+        BooksCsvLoader.Result result = new BooksCsvLoader(write(lines, "\n"), 1).load(-1, false);
+        assertArrayEquals(new int[]{Integer.MAX_VALUE, Integer.MIN_VALUE, 2015}, result.years);
+    }
+}
@@ -0,0 +1,142 @@
+package edu.ncsu.mdnevill;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Mitchell Neville
+ * Checks that generated books are repeatable, stay within their distributions and are
+ * written as the values generated
+ */
+public class BooksGeneratorTest {
+    private static BooksGenerator generator(long seed)
+    {
+        return new BooksGenerator(seed,
+                BooksGenerator.Distribution.parse("zipf:1.1", 1900, 2015, 116, seed),
+                BooksGenerator.Distribution.parse("clustered:3", 0, 19999, 500, seed));
+    }
+
+    private static byte[] write(BooksGenerator generator, int rows) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        generator.write(rows, out);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void sameSeedSameRows() throws IOException
+    {
+        byte[] rows = write(generator(5), 5000);
+        assertArrayEquals(rows, write(generator(5), 5000));
+        assertFalse(Arrays.equals(rows, write(generator(6), 5000)));
+    }
+
+    @Test
+    public void rowsAreWrittenAsGenerated() throws IOException
+    {
+        // Enough rows to flush the output buffer several times
+        String[] lines = new String(write(generator(9), 3000), "US-ASCII").split("\n");
+        assertEquals(3000, lines.length);
+        BooksGenerator expected = generator(9);
+        for(int i = 0; i < lines.length; i++){
+            expected.next();
+            String line = lines[i];
+            assertTrue(line, line.startsWith("\"") && line.endsWith("\""));
+            String[] fields = line.substring(1, line.length() - 1).split("\";\"", -1);
+            assertEquals(line, 9, fields.length);
+            assertEquals(String.format("%010d", i), fields[0]);
+            assertEquals(Integer.toString(expected.getYear()), fields[3]);
+            assertEquals(String.format(Locale.ROOT, "%.2f", expected.getPrice()), fields[8]);
+        }
+    }
+
+    @Test
+    public void fillMatchesNext()
+    {
+        IntColumnBuffer years = new IntColumnBuffer();
+        DoubleColumnBuffer prices = new DoubleColumnBuffer();
+        generator(4).fill(1000, years, prices);
+        BooksGenerator expected = generator(4);
+        for(int i = 0; i < 1000; i++){
+            expected.next();
+            assertEquals(expected.getYear(), years.get(i));
+            assertEquals(expected.getPrice(), prices.get(i), 0);
+        }
+        assertEquals(1000, expected.getRow());
+    }
+
+    @Test
+    public void valuesStayInTheirRange()
+    {
+        String[] kinds = {"uniform", "zipf", "zipf:2", "clustered", "clustered:1"};
+        for(String kind : kinds){
+            BooksGenerator.Distribution d = BooksGenerator.Distribution.parse(kind, 100, 1100, 51, 1);
+            Map<Long, Integer> counts = new HashMap<Long, Integer>();
+            Random r = new Random(2);
+            for(int i = 0; i < 20000; i++){
+                long v = d.next(r);
+                assertTrue(kind + " " + v, v >= 100 && v <= 1100);
+                // Distinct values are 20 apart
+                assertEquals(kind + " " + v, 0, (v - 100) % 20);
+                Integer n = counts.get(v);
+                counts.put(v, n == null ? 1 : n + 1);
+            }
+            if(kind.equals("uniform")){
+                assertEquals(51, counts.size());
+            }
+            else if(kind.startsWith("zipf")){
+                // Rank 1, the minimum, is the most common value
+                int most = 0;
+                for(int n : counts.values()){
+                    most = Math.max(most, n);
+                }
+                assertTrue(kind + " " + most, most > 20000 / 10);
+                assertEquals(kind, most, (int) counts.get(100L));
+            }
+        }
+    }
+
+    @Test
+    public void singleValue()
+    {
+        BooksGenerator.Distribution d = BooksGenerator.Distribution.parse("zipf", 7, 7, 10, 1);
+        Random r = new Random(3);
+        for(int i = 0; i < 100; i++){
+            assertEquals(7, d.next(r));
+        }
+    }
+
+    @Test
+    public void badDistributions()
+    {
+        String[][] specs = {
+                {"zipf:x", "0", "10"},
+                {"zipf:0", "0", "10"},
+                {"clustered:0", "0", "10"},
+                {"normal", "0", "10"},
+                {"uniform", "10", "0"},
+                {"uniform", "-1", "10"}
+        };
+        for(String[] spec : specs){
+            try{
+                BooksGenerator.Distribution.parse(spec[0], Long.parseLong(spec[1]), Long.parseLong(spec[2]), 5, 1);
+                fail(Arrays.toString(spec));
+            }
+            catch(IllegalArgumentException expected){
+            }
+        }
+    }
+}
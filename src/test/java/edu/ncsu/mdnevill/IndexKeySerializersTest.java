@@ -0,0 +1,142 @@
+package edu.ncsu.mdnevill;
+
+import org.junit.Test;
+import org.mapdb.BTreeKeySerializer;
+import org.mapdb.DB;
+import org.mapdb.DBMaker;
+import org.mapdb.Fun;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author Mitchell Neville
+ * Checks that index keys read back as written, in order, from tree sets whose nodes
+ * are small enough that most keys share a node with keys of other values
+ */
+public class IndexKeySerializersTest {
+    private final Random random = new Random(13);
+
+    /**
+     * Add the keys to a tree set one by one and compare it with a TreeSet of them
+     */
+    private static <K> void roundTrip(BTreeKeySerializer<K> serializer, List<K> keys)
+    {
+        // Without the instance cache, every node read is deserialized
+        DB db = DBMaker.newMemoryDB().transactionDisable().cacheDisable().make();
+        NavigableSet<K> set = db.createTreeSet("keys")
+                .serializer(serializer)
+                .nodeSize(6)
+                .make();
+        set.addAll(keys);
+        TreeSet<K> expected = new TreeSet<K>(Fun.COMPARATOR);
+        expected.addAll(keys);
+        assertEquals(new ArrayList<K>(expected), new ArrayList<K>(set));
+        db.close();
+    }
+
+    @Test
+    public void authors()
+    {
+        List<Fun.Tuple2<String, Integer>> keys = new ArrayList<Fun.Tuple2<String, Integer>>();
+        for(int id = 0; id < 2000; id++){
+            keys.add(Fun.t2("Author \u00e9" + random.nextInt(100), id));
+        }
+        keys.add(Fun.t2("", 2000));
+        keys.add(Fun.t2((String) null, 2001));
+        keys.add(Fun.t2((String) null, 2002));
+        roundTrip(IndexKeySerializers.AUTHOR_ID, keys);
+    }
+
+    @Test
+    public void years()
+    {
+        List<Fun.Tuple2<Integer, Integer>> keys = new ArrayList<Fun.Tuple2<Integer, Integer>>();
+        for(int id = 0; id < 2000; id++){
+            keys.add(Fun.t2(1900 + random.nextInt(120), id));
+        }
+        int[] extremes = {Integer.MIN_VALUE, Integer.MAX_VALUE, 1 << 30, -(1 << 30), -1};
+        for(int i = 0; i < extremes.length; i++){
+            keys.add(Fun.t2(extremes[i], 3000 + i));
+            keys.add(Fun.t2(2000, extremes[i]));
+        }
+        roundTrip(IndexKeySerializers.YEAR_ID, keys);
+    }
+
+    @Test
+    public void prices()
+    {
+        List<Fun.Tuple2<Double, Integer>> keys = new ArrayList<Fun.Tuple2<Double, Integer>>();
+        for(int id = 0; id < 2000; id++){
+            keys.add(Fun.t2(random.nextInt(10000) / 100.0, id));
+        }
+        // Prices that are not whole cents are kept exactly
+        keys.add(Fun.t2(0.125, 2000));
+        keys.add(Fun.t2(1e300, 2001));
+        keys.add(Fun.t2(-12.5, 2002));
+        keys.add(Fun.t2(Double.POSITIVE_INFINITY, 2003));
+        roundTrip(IndexKeySerializers.PRICE_ID, keys);
+    }
+
+    @Test
+    public void yearsAndPrices()
+    {
+        List<Fun.Tuple3<Integer, Double, Integer>> keys = new ArrayList<Fun.Tuple3<Integer, Double, Integer>>();
+        for(int id = 0; id < 2000; id++){
+            keys.add(Fun.t3(1990 + random.nextInt(5), random.nextInt(20) / 4.0, id));
+        }
+        roundTrip(IndexKeySerializers.YEAR_PRICE_ID, keys);
+    }
+
+    /**
+     * Build a tree set of the keys with the data pump and compare it with a TreeSet of them
+     */
+    private static <K> void pump(BTreeKeySerializer<K> serializer, List<K> keys)
+    {
+        TreeSet<K> expected = new TreeSet<K>(Fun.COMPARATOR);
+        expected.addAll(keys);
+        DB db = DBMaker.newMemoryDB().transactionDisable().cacheDisable().make();
+        // The pump takes its keys in descending order
+        NavigableSet<K> set = db.createTreeSet("keys")
+                .serializer(serializer)
+                .pumpSource(expected.descendingIterator())
+                .make();
+        assertEquals(new ArrayList<K>(expected), new ArrayList<K>(set));
+        db.close();
+    }
+
+    @Test
+    public void pumpedTrees()
+    {
+        // The pump leaves a null key inside the root of a tree of this many keys
+        int n = 1090;
+        List<Fun.Tuple2<String, Integer>> authors = new ArrayList<Fun.Tuple2<String, Integer>>();
+        List<Fun.Tuple2<Integer, Integer>> years = new ArrayList<Fun.Tuple2<Integer, Integer>>();
+        List<Fun.Tuple2<Double, Integer>> prices = new ArrayList<Fun.Tuple2<Double, Integer>>();
+        List<Fun.Tuple3<Integer, Double, Integer>> yearsAndPrices = new ArrayList<Fun.Tuple3<Integer, Double, Integer>>();
+        List<Integer> ints = new ArrayList<Integer>();
+        List<Double> doubles = new ArrayList<Double>();
+        List<String> strings = new ArrayList<String>();
+        for(int id = 0; id < n; id++){
+            authors.add(Fun.t2("Author " + random.nextInt(100), id));
+            years.add(Fun.t2(1990 + random.nextInt(20), id));
+            prices.add(Fun.t2(random.nextInt(10000) / 100.0, id));
+            yearsAndPrices.add(Fun.t3(1990 + random.nextInt(5), random.nextInt(20) / 4.0, id));
+            ints.add(id - 500);
+            doubles.add(id / 100.0);
+            strings.add("Author " + id);
+        }
+        pump(IndexKeySerializers.AUTHOR_ID, authors);
+        pump(IndexKeySerializers.YEAR_ID, years);
+        pump(IndexKeySerializers.PRICE_ID, prices);
+        pump(IndexKeySerializers.YEAR_PRICE_ID, yearsAndPrices);
+        pump(IndexKeySerializers.INT_KEY, ints);
+        pump(IndexKeySerializers.PRICE_KEY, doubles);
+        pump(IndexKeySerializers.STRING_KEY, strings);
+    }
+}
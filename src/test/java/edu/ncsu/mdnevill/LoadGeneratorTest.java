@@ -0,0 +1,117 @@
+package edu.ncsu.mdnevill;
+
+import edu.ncsu.mdnevill.bitmap.BitmapEngine;
+import edu.ncsu.mdnevill.bitmap.JavaFastBit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Mitchell Neville
+ * Checks the throughput reported by the load generator against an engine slow
+ * enough that its last queries finish well after the time is up
+ */
+public class LoadGeneratorTest {
+    // Time each query takes
+    private static final long QUERY_MILLIS = 600;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private BitmapEngine savedEngine;
+    private String savedDir;
+    private Map<String, ColumnStatistics> savedStats;
+
+    /**
+     * The pure-Java engine, taking QUERY_MILLIS to build each query
+     */
+    private static class SlowEngine extends JavaFastBit {
+        SlowEngine()
+        {
+            super("<binning none/><encoding equality/>");
+        }
+
+        @Override
+        public BitmapEngine.QueryHandle build_query(String select, String datadir, String where)
+        {
+            try{
+                Thread.sleep(QUERY_MILLIS);
+            }
+            catch(InterruptedException e){
+                Thread.currentThread().interrupt();
+            }
+            return super.build_query(select, datadir, where);
+        }
+    }
+
+    @Before
+    public void loadRows() throws IOException
+    {
+        savedEngine = App.fb;
+        savedDir = App.fb_dir;
+        savedStats = App.columnStats;
+        int[] ids = new int[100];
+        int[] years = new int[ids.length];
+        double[] prices = new double[ids.length];
+        ColumnStatistics.Collector yearStats = new ColumnStatistics.Collector("year", 0);
+        ColumnStatistics.Collector priceStats = new ColumnStatistics.Collector("price", 0);
+        for(int i = 0; i < ids.length; i++){
+            ids[i] = i + 1;
+            years[i] = 2000 + i % 10;
+            prices[i] = i / 2.0;
+            yearStats.add(years[i]);
+            priceStats.add(prices[i]);
+        }
+        App.fb = new SlowEngine();
+        App.fb_dir = folder.newFolder().getPath();
+        App.fb.add_ints("id", ids);
+        App.fb.add_ints("year", years);
+        App.fb.add_doubles("price", prices);
+        App.fb.write_buffer(App.fb_dir);
+        App.columnStats = new HashMap<String, ColumnStatistics>();
+        App.columnStats.put("year", yearStats.finish());
+        App.columnStats.put("price", priceStats.finish());
+    }
+
+    @After
+    public void restoreApp()
+    {
+        App.fb = savedEngine;
+        App.fb_dir = savedDir;
+        App.columnStats = savedStats;
+    }
+
+    @Test
+    public void closedLoopThroughputCountsTheTimeToTheLastQuery() throws InterruptedException
+    {
+        LoadGenerator load = new LoadGenerator("bitmap", 1, LoadGenerator.CLOSED, 0, 0, 1,
+                new double[]{1, 0, 0}, 1);
+        load.run();
+        // Queries start at about 0 and 0.6 s, so the second ends at about 1.2 s
+        assertTrue("Elapsed " + load.getElapsedSeconds(), load.getElapsedSeconds() >= 1.15);
+        assertTrue("Throughput " + load.getThroughput(), load.getThroughput() < 1.8);
+        assertEquals(2, load.getThroughput() * load.getElapsedSeconds(), 1e-6);
+    }
+
+    @Test
+    public void openLoopReportsOfferedAndAchievedRates() throws InterruptedException
+    {
+        LoadGenerator load = new LoadGenerator("bitmap", 1, LoadGenerator.OPEN, 2, 0, 1,
+                new double[]{1, 0, 0}, 1);
+        load.run();
+        // Queries due at 0 and 0.5 s; the second waits for the first and ends at about 1.2 s
+        assertTrue("Throughput " + load.getThroughput(), load.getThroughput() < 1.8);
+        String report = load.report();
+        assertTrue(report, report.contains(String.format("offered %.1f queries/s", 2.0)));
+        assertTrue(report, report.contains(String.format("achieved %.1f queries/s", load.getThroughput())));
+    }
+}
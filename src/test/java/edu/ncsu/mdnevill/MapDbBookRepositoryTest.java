@@ -0,0 +1,771 @@
+package edu.ncsu.mdnevill;
+
+import edu.ncsu.mdnevill.bitmap.ResultCache;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mapdb.DB;
+import org.mapdb.DBMaker;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Mitchell Neville
+ * Checks the queries of the repository against a scan of the books it was given,
+ * after adds, overwrites and bulk loads, and after reopening the database
+ */
+public class MapDbBookRepositoryTest {
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final Random random = new Random(5);
+    // The books the repository should hold, by id
+    private final TreeMap<Integer, Book> books = new TreeMap<Integer, Book>();
+
+    private static DB memoryDb()
+    {
+        return DBMaker.newMemoryDB().transactionDisable().make();
+    }
+
+    /**
+     * A random book whose ISBN is its id. Ids below 10000 get different prices.
+     */
+    private Book book(int id)
+    {
+        return new Book("Title " + id, "Author " + random.nextInt(30), String.valueOf(id), "Publisher",
+                1990 + random.nextInt(20), id * 7919 % 10000 / 100.0);
+    }
+
+    /**
+     * Make n books with ids from first on, and keep them as the books expected
+     */
+    private List<Book> books(int first, int n)
+    {
+        List<Book> ret = new ArrayList<Book>();
+        for(int id = first; id < first + n; id++){
+            Book b = book(id);
+            books.put(id, b);
+            ret.add(b);
+        }
+        return ret;
+    }
+
+    /**
+     * The ids of books found, in the order found, checking that each is the book expected
+     */
+    private int[] idsInOrder(Collection<Book> found)
+    {
+        int[] ret = new int[found.size()];
+        int n = 0;
+        for(Book b : found){
+            ret[n] = Integer.parseInt(b.isbn);
+            assertEquals(books.get(ret[n]), b);
+            n++;
+        }
+        return ret;
+    }
+
+    private int[] ids(Collection<Book> found)
+    {
+        return sorted(idsInOrder(found));
+    }
+
+    private static int[] sorted(int[] ids)
+    {
+        int[] ret = ids.clone();
+        Arrays.sort(ret);
+        return ret;
+    }
+
+    private static List<Book> read(Iterator<Book> cursor)
+    {
+        List<Book> ret = new ArrayList<Book>();
+        while(cursor.hasNext()){
+            ret.add(cursor.next());
+        }
+        return ret;
+    }
+
+    private int[] scanAuthor(String author)
+    {
+        int[] ret = new int[books.size()];
+        int n = 0;
+        for(Map.Entry<Integer, Book> e : books.entrySet()){
+            if(author.equals(e.getValue().author)){
+                ret[n++] = e.getKey();
+            }
+        }
+        return Arrays.copyOf(ret, n);
+    }
+
+    private int[] scan(int start, boolean startInc, int end, boolean endInc,
+                       double startPrice, boolean startPriceInc, double endPrice, boolean endPriceInc)
+    {
+        int[] ret = new int[books.size()];
+        int n = 0;
+        for(Map.Entry<Integer, Book> e : books.entrySet()){
+            Book b = e.getValue();
+            if((startInc ? b.year >= start : b.year > start) && (endInc ? b.year <= end : b.year < end)
+                    && (startPriceInc ? b.price >= startPrice : b.price > startPrice)
+                    && (endPriceInc ? b.price <= endPrice : b.price < endPrice)){
+                ret[n++] = e.getKey();
+            }
+        }
+        return Arrays.copyOf(ret, n);
+    }
+
+    private int[] scanYears(int start, boolean startInc, int end, boolean endInc)
+    {
+        return scan(start, startInc, end, endInc, Double.NEGATIVE_INFINITY, true, Double.POSITIVE_INFINITY, true);
+    }
+
+    private static int[] union(int[] a, int[] b)
+    {
+        TreeSet<Integer> s = new TreeSet<Integer>();
+        for(int id : a){
+            s.add(id);
+        }
+        for(int id : b){
+            s.add(id);
+        }
+        return toArray(s);
+    }
+
+    private static int[] intersection(int[] a, int[] b)
+    {
+        TreeSet<Integer> s = new TreeSet<Integer>();
+        for(int id : a){
+            if(Arrays.binarySearch(b, id) >= 0){
+                s.add(id);
+            }
+        }
+        return toArray(s);
+    }
+
+    private int[] complement(int[] a)
+    {
+        TreeSet<Integer> s = new TreeSet<Integer>(books.keySet());
+        for(int id : a){
+            s.remove(id);
+        }
+        return toArray(s);
+    }
+
+    private static int[] toArray(Collection<Integer> ids)
+    {
+        int[] ret = new int[ids.size()];
+        int n = 0;
+        for(int id : ids){
+            ret[n++] = id;
+        }
+        return ret;
+    }
+
+    /**
+     * The ids in order of price, ties in increasing order of id, cut to limit
+     */
+    private int[] orderByPrice(int[] ids, final boolean descending, int limit)
+    {
+        Integer[] boxed = new Integer[ids.length];
+        for(int i = 0; i < ids.length; i++){
+            boxed[i] = ids[i];
+        }
+        Arrays.sort(boxed, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer x, Integer y) {
+                int c = Double.compare(books.get(x).price, books.get(y).price);
+                return c != 0 ? (descending ? -c : c) : x.compareTo(y);
+            }
+        });
+        int[] ret = new int[limit < 0 ? ids.length : Math.min(limit, ids.length)];
+        for(int i = 0; i < ret.length; i++){
+            ret[i] = boxed[i];
+        }
+        return ret;
+    }
+
+    /**
+     * The prices of the books with the given ids, in order
+     */
+    private double[] prices(int[] ids)
+    {
+        double[] ret = new double[ids.length];
+        for(int i = 0; i < ids.length; i++){
+            ret[i] = books.get(ids[i]).price;
+        }
+        return ret;
+    }
+
+    /**
+     * Compare every query with a scan of the books expected, on random authors,
+     * years and prices
+     */
+    private void check(MapDbBookRepository repo)
+    {
+        assertEquals(books.size(), repo.size());
+        for(Map.Entry<Integer, Book> e : books.entrySet()){
+            assertEquals(e.getValue(), repo.get(e.getKey()));
+        }
+        for(int q = 0; q < 20; q++){
+            String author = "Author " + random.nextInt(32);
+            int start = 1988 + random.nextInt(24);
+            int end = start + 1 + random.nextInt(5);
+            boolean startInc = random.nextBoolean();
+            boolean endInc = random.nextBoolean();
+            double price = random.nextInt(10000) / 100.0;
+            boolean priceInc = random.nextBoolean();
+            double endPrice = price + random.nextInt(3000) / 100.0;
+            boolean endPriceInc = random.nextBoolean();
+            String range = author + " " + (startInc ? "[" : "(") + start + ", " + end + (endInc ? "] " : ") ")
+                    + (priceInc ? "[" : "(") + price + ", " + endPrice + (endPriceInc ? "]" : ")");
+
+            int[] byAuthor = scanAuthor(author);
+            int[] inYear = scanYears(start, true, start, true);
+            int[] inYears = scanYears(start, startInc, end, endInc);
+            int[] fromYear = scanYears(start, startInc, Integer.MAX_VALUE, true);
+            int[] fromPrice = scan(Integer.MIN_VALUE, true, Integer.MAX_VALUE, true,
+                    price, priceInc, Double.POSITIVE_INFINITY, true);
+            int[] inYearFromPrice = scan(start, true, start, true, price, priceInc, Double.POSITIVE_INFINITY, true);
+            assertArrayEquals(range, byAuthor, ids(repo.getByAuthor(author)));
+            assertArrayEquals(range, inYear, ids(repo.getByYear(start)));
+            assertArrayEquals(range, inYears, ids(repo.getByYear(start, startInc, end, endInc)));
+            assertArrayEquals(range, fromYear, ids(repo.getByYear(start, startInc)));
+            assertArrayEquals(range, fromPrice, ids(repo.getByPrice(price, priceInc)));
+            assertArrayEquals(range, inYearFromPrice, ids(repo.getByYearAndPrice(start, price, priceInc)));
+
+            assertArrayEquals(range, byAuthor, sorted(repo.getIdsByAuthor(author)));
+            assertArrayEquals(range, inYear, sorted(repo.getIdsByYear(start)));
+            assertArrayEquals(range, inYears, sorted(repo.getIdsByYear(start, startInc, end, endInc)));
+            assertArrayEquals(range, fromYear, sorted(repo.getIdsByYear(start, startInc)));
+            assertArrayEquals(range, fromPrice, sorted(repo.getIdsByPrice(price, priceInc)));
+            assertArrayEquals(range, inYearFromPrice, sorted(repo.getIdsByYearAndPrice(start, price, priceInc)));
+            assertEquals(range, byAuthor.length, repo.countByAuthor(author));
+            assertEquals(range, inYear.length, repo.countByYear(start));
+            assertEquals(range, inYears.length, repo.countByYear(start, startInc, end, endInc));
+            assertEquals(range, fromPrice.length, repo.countByPrice(price, priceInc));
+            assertEquals(range, inYearFromPrice.length, repo.countByYearAndPrice(start, price, priceInc));
+
+            int batch = 1 + random.nextInt(10);
+            assertArrayEquals(range, byAuthor, ids(read(repo.cursorByAuthor(author, batch, -1))));
+            assertArrayEquals(range, inYear, ids(read(repo.cursorByYear(start, batch, -1))));
+            assertArrayEquals(range, inYears, ids(read(repo.cursorByYear(start, startInc, end, endInc, batch, -1))));
+            assertArrayEquals(range, fromYear, ids(read(repo.cursorByYear(start, startInc, batch, -1))));
+            assertArrayEquals(range, fromPrice, ids(read(repo.cursorByPrice(price, priceInc, batch, -1))));
+            assertArrayEquals(range, inYearFromPrice,
+                    ids(read(repo.cursorByYearAndPrice(start, price, priceInc, batch, -1))));
+
+            int[] inBoth = scan(start, startInc, end, endInc, price, priceInc, endPrice, endPriceInc);
+            assertArrayEquals(range, inBoth, ids(repo.getByYearAndPrice(start, startInc, end, endInc,
+                    price, priceInc, endPrice, endPriceInc)));
+            assertArrayEquals(range, inBoth, sorted(repo.getIdsByYearAndPrice(start, startInc, end, endInc,
+                    price, priceInc, endPrice, endPriceInc)));
+            assertEquals(range, inBoth.length, repo.countByYearAndPrice(start, startInc, end, endInc,
+                    price, priceInc, endPrice, endPriceInc));
+
+            int[] inPrices = scan(Integer.MIN_VALUE, true, Integer.MAX_VALUE, true,
+                    price, priceInc, endPrice, endPriceInc);
+            assertArrayEquals(range, inPrices, sorted(repo.getIdsByPrice(price, priceInc, endPrice, endPriceInc)));
+
+            BookQuery years = BookQuery.years(start, startInc, end, endInc);
+            BookQuery prices = BookQuery.price(price, priceInc, endPrice, endPriceInc);
+            BookQuery byAuthorQuery = BookQuery.author(author);
+            assertArrayEquals(range, inYear, repo.getIds(BookQuery.year(start)));
+            assertArrayEquals(range, inYears, repo.getIds(years));
+            assertArrayEquals(range, inPrices, repo.getIds(prices));
+            assertArrayEquals(range, byAuthor, repo.getIds(byAuthorQuery));
+            assertArrayEquals(range, inBoth, repo.getIds(years.and(prices)));
+            assertArrayEquals(range, union(inYears, byAuthor), repo.getIds(years.or(byAuthorQuery)));
+            assertArrayEquals(range, intersection(inPrices, complement(byAuthor)),
+                    repo.getIds(prices.and(byAuthorQuery.not())));
+            assertArrayEquals(range, inBoth, ids(repo.get(years.and(prices))));
+            assertEquals(range, union(inYears, byAuthor).length, repo.count(years.or(byAuthorQuery)));
+
+            int limit = random.nextInt(12) - 1;
+            boolean descending = random.nextBoolean();
+            int[] ordered = orderByPrice(inYears, descending, limit);
+            // Prices are unique, so the ids come in one order whatever the tie-breaking
+            assertArrayEquals(range, ordered,
+                    repo.getIdsByYearOrderByPrice(start, startInc, end, endInc, descending, limit));
+            assertArrayEquals(range, ordered, idsInOrder(repo.getByYearOrderByPrice(start, startInc, end, endInc,
+                    descending, limit)));
+            assertArrayEquals(range, prices(orderByPrice(inYear, true, 5)),
+                    prices(idsInOrder(repo.getMostExpensive(start, 5))), 0);
+        }
+    }
+
+    @Test
+    public void addsMatchScan()
+    {
+        MapDbBookRepository repo = new MapDbBookRepository(memoryDb());
+        List<Integer> ids = new ArrayList<Integer>();
+        for(int id = 1; id <= 500; id++){
+            ids.add(id);
+        }
+        Collections.shuffle(ids, random);
+        for(int id : ids){
+            Book b = book(id);
+            books.put(id, b);
+            repo.add(b, id);
+        }
+        check(repo);
+        // Overwritten books move in every index
+        for(int i = 0; i < 50; i++){
+            int id = 1 + random.nextInt(500);
+            Book b = book(id);
+            books.put(id, b);
+            repo.add(b, id);
+        }
+        check(repo);
+    }
+
+    @Test
+    public void bulkLoadMatchesScan()
+    {
+        MapDbBookRepository repo = new MapDbBookRepository(memoryDb());
+        repo.add(book(1), 1);
+        repo.bulkLoad(books(1, 2000).iterator());
+        check(repo);
+        // Books added after a bulk load are indexed as well
+        for(int id = 2001; id <= 2100; id++){
+            Book b = book(id);
+            books.put(id, b);
+            repo.add(b, id);
+        }
+        check(repo);
+    }
+
+    @Test
+    public void indexesPersist() throws Exception
+    {
+        File file = new File(folder.getRoot(), "books");
+        DB db = DBMaker.newFileDB(file).transactionDisable().make();
+        MapDbBookRepository repo = new MapDbBookRepository(db);
+        repo.bulkLoad(books(1, 1000).iterator());
+        for(int id = 1001; id <= 1100; id++){
+            Book b = book(id);
+            books.put(id, b);
+            repo.add(b, id);
+        }
+        db.close();
+
+        db = DBMaker.newFileDB(file).transactionDisable().make();
+        check(new MapDbBookRepository(db));
+        db.close();
+    }
+
+    @Test
+    public void separateIndexDb()
+    {
+        MapDbBookRepository repo = new MapDbBookRepository(memoryDb(),
+                DBMaker.newMemoryDirectDB().transactionDisable().make(), new BookSerializer());
+        repo.bulkLoad(books(1, 1000).iterator());
+        for(int id = 1001; id <= 1100; id++){
+            Book b = book(id);
+            books.put(id, b);
+            repo.add(b, id);
+        }
+        check(repo);
+    }
+
+    @Test
+    public void booksWithoutAnAuthor()
+    {
+        MapDbBookRepository repo = new MapDbBookRepository(memoryDb());
+        List<Book> loaded = new ArrayList<Book>();
+        for(int id = 1; id <= 500; id++){
+            Book b = book(id);
+            if(id % 7 == 0){
+                b = new Book(b.title, null, b.isbn, b.publisher, b.year, b.price);
+            }
+            books.put(id, b);
+            loaded.add(b);
+        }
+        repo.bulkLoad(loaded.iterator());
+        for(int id = 501; id <= 600; id++){
+            Book b = book(id);
+            b = new Book(b.title, null, b.isbn, b.publisher, b.year, b.price);
+            books.put(id, b);
+            repo.add(b, id);
+        }
+        check(repo);
+        // Books overwritten to or from having no author, then without one again
+        for(int id = 490; id <= 520; id++){
+            Book b = book(id);
+            if(books.get(id).author != null || id > 510){
+                b = new Book(b.title, null, b.isbn, b.publisher, b.year + 1, b.price);
+            }
+            books.put(id, b);
+            repo.add(b, id);
+        }
+        check(repo);
+    }
+
+    @Test
+    public void emptyYearRanges()
+    {
+        MapDbBookRepository repo = new MapDbBookRepository(memoryDb());
+        repo.bulkLoad(books(1, 500).iterator());
+        repo.setResultCache(new ResultCache(ResultCache.LRU, 1 << 20));
+        int[][] ranges = {{2000, 2000}, {2001, 2000}, {2019, 1990}};
+        for(int[] r : ranges){
+            for(int inc = 0; inc < 4; inc++){
+                boolean startInc = (inc & 1) != 0;
+                boolean endInc = (inc & 2) != 0;
+                int[] expected = scanYears(r[0], startInc, r[1], endInc);
+                String range = r[0] + " " + startInc + " " + r[1] + " " + endInc;
+                assertArrayEquals(range, expected, repo.getIdsByYear(r[0], startInc, r[1], endInc));
+                assertEquals(range, expected.length, repo.countByYear(r[0], startInc, r[1], endInc));
+                assertArrayEquals(range, expected, repo.getIdsByYearAndPrice(r[0], startInc, r[1], endInc,
+                        0, true, 100, true));
+                assertArrayEquals(range, expected, repo.getIds(BookQuery.years(r[0], startInc, r[1], endInc)));
+                assertArrayEquals(range, expected, ids(repo.getByYear(r[0], startInc, r[1], endInc)));
+                assertArrayEquals(range, expected,
+                        ids(read(repo.cursorByYear(r[0], startInc, r[1], endInc, 10, -1))));
+            }
+        }
+    }
+
+    @Test
+    public void cursorsStopAtTheirLimit()
+    {
+        MapDbBookRepository repo = new MapDbBookRepository(memoryDb());
+        repo.bulkLoad(books(1, 1000).iterator());
+        List<Book> all = read(repo.cursorByYear(1995, true, 2005, false, 16, -1));
+        assertEquals(scanYears(1995, true, 2005, false).length, all.size());
+        for(int limit = 0; limit < 40; limit += 3){
+            for(int batch = 1; batch < 40; batch += 7){
+                assertEquals(all.subList(0, limit), read(repo.cursorByYear(1995, true, 2005, false, batch, limit)));
+            }
+        }
+        try{
+            repo.cursorByAuthor("Author 1", 0, -1);
+            fail("Batch size 0 accepted");
+        }
+        catch(IllegalArgumentException e){
+            // expected
+        }
+    }
+
+    @Test
+    public void cursorsFailAfterBulkLoadOrClear()
+    {
+        MapDbBookRepository repo = new MapDbBookRepository(memoryDb());
+        repo.bulkLoad(books(1, 1000).iterator());
+        Iterator<Book> cursor = repo.cursorByYear(1990, true, 10, -1);
+        // Read the first batch, so the next read looks up another
+        for(int i = 0; i < 10; i++){
+            cursor.next();
+        }
+        repo.bulkLoad(books(1, 1000).iterator());
+        try{
+            cursor.next();
+            fail("Cursor read on after bulkLoad");
+        }
+        catch(ConcurrentModificationException e){
+            // expected
+        }
+
+        cursor = repo.cursorByAuthor("Author 3", 1, -1);
+        cursor.next();
+        repo.clear();
+        try{
+            cursor.next();
+            fail("Cursor read on after clear");
+        }
+        catch(ConcurrentModificationException e){
+            // expected
+        }
+    }
+
+    @Test
+    public void cachedResultsFollowWrites()
+    {
+        ResultCache cache = new ResultCache(ResultCache.LRU, 1 << 20);
+        MapDbBookRepository repo = new MapDbBookRepository(memoryDb());
+        repo.setResultCache(cache);
+        repo.bulkLoad(books(1, 1000).iterator());
+        for(int round = 0; round < 3; round++){
+            // The same queries twice: the second time from the cache
+            long seed = random.nextLong();
+            random.setSeed(seed);
+            check(repo);
+            random.setSeed(seed);
+            long hits = cache.getHits();
+            check(repo);
+            assertTrue(cache.getHits() > hits);
+
+            for(int id = 1; id <= 50; id++){
+                int at = round == 1 ? books.lastKey() + 1 : 1 + random.nextInt(books.size());
+                Book b = book(at);
+                books.put(at, b);
+                repo.add(b, at);
+            }
+            check(repo);
+        }
+        books.clear();
+        repo.bulkLoad(books(1, 300).iterator());
+        check(repo);
+    }
+
+    @Test
+    public void idsAscendWithOrWithoutACache()
+    {
+        MapDbBookRepository repo = new MapDbBookRepository(memoryDb());
+        repo.bulkLoad(books(1, 1000).iterator());
+        for(int pass = 0; pass < 3; pass++){
+            assertArrayEquals(scanYears(1995, true, 2000, true), repo.getIdsByYear(1995, true, 2000, true));
+            assertArrayEquals(scanYears(2003, false, Integer.MAX_VALUE, true), repo.getIdsByYear(2003, false));
+            assertArrayEquals(scan(Integer.MIN_VALUE, true, Integer.MAX_VALUE, true, 50, true, 80, false),
+                    repo.getIdsByPrice(50, true, 80, false));
+            assertArrayEquals(scan(1995, true, 2000, true, 20, true, 60, true),
+                    repo.getIdsByYearAndPrice(1995, true, 2000, true, 20, true, 60, true));
+            // Then the same queries with a cache, missing and hitting it
+            if(pass == 0){
+                repo.setResultCache(new ResultCache(ResultCache.LFU, 1 << 20));
+            }
+        }
+    }
+
+    @Test
+    public void booksOfTheSameYearAndPriceAreKept()
+    {
+        MapDbBookRepository repo = new MapDbBookRepository(memoryDb());
+        List<Book> loaded = new ArrayList<Book>();
+        for(int id = 1; id <= 300; id++){
+            Book b = new Book("Title " + id, "Author " + id % 5, String.valueOf(id), "Publisher",
+                    2000 + id % 3, id % 4 * 10.5);
+            books.put(id, b);
+            loaded.add(b);
+        }
+        repo.bulkLoad(loaded.iterator());
+        for(int id = 301; id <= 330; id++){
+            Book b = new Book("Title " + id, "Author 1", String.valueOf(id), "Publisher", 2001, 21.0);
+            books.put(id, b);
+            repo.add(b, id);
+        }
+        for(int year = 1999; year <= 2003; year++){
+            for(double price = 0; price <= 40; price += 10.5){
+                int[] expected = scan(year, true, year, true, price, true, price, true);
+                assertArrayEquals(expected, ids(repo.getByYearAndPrice(year, true, year, true,
+                        price, true, price, true)));
+                assertArrayEquals(expected, sorted(repo.getIdsByYearAndPrice(year, true, year, true,
+                        price, true, price, true)));
+                assertEquals(expected.length, repo.countByYearAndPrice(year, true, year, true,
+                        price, true, price, true));
+                assertArrayEquals(scan(year, true, year, true, price, false, Double.POSITIVE_INFINITY, true),
+                        sorted(repo.getIdsByYearAndPrice(year, price, false)));
+            }
+        }
+        // 25 loaded and 30 added books share one key
+        assertEquals(55, repo.countByYearAndPrice(2001, true, 2001, true, 21, true, 21, true));
+    }
+
+    @Test
+    public void readersSeeWholeChanges() throws Exception
+    {
+        final MapDbBookRepository repo = new MapDbBookRepository(memoryDb());
+        repo.bulkLoad(books(1, 1000).iterator());
+        final List<Book> added = books(1001, 1000);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                int id = 1001;
+                for(Book b : added){
+                    repo.add(b, id++);
+                }
+            }
+        };
+        Thread[] readers = new Thread[4];
+        for(int i = 0; i < readers.length; i++){
+            readers[i] = new Thread() {
+                @Override
+                public void run() {
+                    try{
+                        int last = 0;
+                        for(int q = 0; q < 300; q++){
+                            // A query sees every book added before it and none half added
+                            int count = repo.countByYear(Integer.MIN_VALUE, true, Integer.MAX_VALUE, true);
+                            assertTrue(count >= last && count <= 2000);
+                            int[] ids = repo.getIdsByPrice(0, true);
+                            assertTrue(ids.length >= count);
+                            for(Book b : repo.getByYear(2000)){
+                                assertEquals(2000, b.year);
+                            }
+                            last = count;
+                        }
+                    }
+                    catch(Throwable t){
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            };
+        }
+        writer.start();
+        for(Thread t : readers){
+            t.start();
+        }
+        writer.join();
+        for(Thread t : readers){
+            t.join();
+        }
+        assertNull(failure.get());
+        check(repo);
+    }
+
+    @Test
+    public void appendContinuesIds()
+    {
+        MapDbBookRepository repo = new MapDbBookRepository(memoryDb());
+        assertEquals(1, repo.append(books(1, 300).iterator()));
+        check(repo);
+        repo.bulkLoad(new ArrayList<Book>(books.values()).iterator());
+        assertEquals(301, repo.append(books(301, 200).iterator()));
+        assertEquals(501, repo.append(books(501, 0).iterator()));
+        check(repo);
+        Book b = book(900);
+        books.put(900, b);
+        repo.add(b, 900);
+        assertEquals(901, repo.append(books(901, 10).iterator()));
+        check(repo);
+    }
+
+    @Test
+    public void postingsMatchScan()
+    {
+        // Enabled before the books are loaded
+        MapDbBookRepository repo = new MapDbBookRepository(memoryDb());
+        assertFalse(repo.hasPostings());
+        repo.enablePostings();
+        assertTrue(repo.hasPostings());
+        repo.bulkLoad(books(1, 2000).iterator());
+        check(repo);
+        for(int i = 0; i < 100; i++){
+            int id = 1 + random.nextInt(2100);
+            Book b = book(id);
+            books.put(id, b);
+            repo.add(b, id);
+        }
+        check(repo);
+        repo.clear();
+        books.clear();
+        assertTrue(repo.hasPostings());
+        repo.append(books(1, 300).iterator());
+        check(repo);
+
+        // Enabled after the books are loaded, and reopened with the database
+        books.clear();
+        File file = new File(folder.getRoot(), "postings");
+        DB db = DBMaker.newFileDB(file).transactionDisable().make();
+        repo = new MapDbBookRepository(db);
+        repo.bulkLoad(books(1, 1000).iterator());
+        repo.enablePostings();
+        check(repo);
+        db.close();
+        db = DBMaker.newFileDB(file).transactionDisable().make();
+        repo = new MapDbBookRepository(db);
+        assertTrue(repo.hasPostings());
+        check(repo);
+        db.close();
+    }
+
+    @Test
+    public void postingsOfManyPrices()
+    {
+        List<Book> loaded = new ArrayList<Book>();
+        // Trees of this many keys are pumped with a null key inside their root
+        for(int id = 1; id <= 10480; id++){
+            // Every price different, so the price postings have one key per book
+            Book b = new Book("Title " + id, "Author " + random.nextInt(30), String.valueOf(id), "Publisher",
+                    1990 + random.nextInt(20), id / 100.0);
+            books.put(id, b);
+            loaded.add(b);
+        }
+        MapDbBookRepository before = new MapDbBookRepository(memoryDb());
+        before.enablePostings();
+        before.bulkLoad(loaded.iterator());
+        MapDbBookRepository after = new MapDbBookRepository(memoryDb());
+        after.bulkLoad(loaded.iterator());
+        after.enablePostings();
+        for(MapDbBookRepository repo : new MapDbBookRepository[]{before, after}){
+            assertArrayEquals(scan(Integer.MIN_VALUE, true, Integer.MAX_VALUE, true, 10, true, 90.5, false),
+                    repo.getIds(BookQuery.price(10, true, 90.5, false)));
+            assertEquals(10480, repo.count(BookQuery.price(0, true, 120, true)));
+            // The pumped trees take updates as well
+            repo.add(book(5), 5);
+            assertEquals(10480, repo.count(BookQuery.price(0, true, 120, true)));
+        }
+    }
+
+    @Test
+    public void pricesBeyondTheIntRange()
+    {
+        MapDbBookRepository repo = new MapDbBookRepository(memoryDb());
+        repo.enablePostings();
+        repo.bulkLoad(books(1, 500).iterator());
+        // Bounds whose bins are beyond the int range
+        assertEquals(0, repo.count(BookQuery.price(2.5e9, true, 4e9, true)));
+        assertArrayEquals(scan(Integer.MIN_VALUE, true, Integer.MAX_VALUE, true, 50, false, 1e12, true),
+                repo.getIds(BookQuery.price(50, false, 1e12, true)));
+        assertArrayEquals(scan(Integer.MIN_VALUE, true, Integer.MAX_VALUE, true, -3e9, true, 20, true),
+                repo.getIds(BookQuery.price(-3e9, true, 20, true)));
+        assertEquals(500, repo.count(BookQuery.price(Double.NEGATIVE_INFINITY, true, Double.POSITIVE_INFINITY, true)));
+        assertEquals(0, repo.count(BookQuery.price(Double.NaN, true, 4e9, true)));
+
+        // Prices whose bins are beyond the int range
+        double[] prices = {2.2e9, 3e9, 5e9, 1e12, Double.POSITIVE_INFINITY, -3e9};
+        for(int i = 0; i < prices.length; i++){
+            Book b = new Book("Title", "Author", String.valueOf(501 + i), "Publisher", 2000, prices[i]);
+            books.put(501 + i, b);
+            repo.add(b, 501 + i);
+        }
+        assertArrayEquals(new int[]{502}, repo.getIds(BookQuery.price(2.5e9, true, 4e9, true)));
+        assertArrayEquals(new int[]{501, 502, 503, 504}, repo.getIds(BookQuery.price(2e9, false, 1e12, true)));
+        assertArrayEquals(new int[]{503, 504, 505},
+                repo.getIds(BookQuery.price(4e9, true, Double.POSITIVE_INFINITY, true)));
+        assertArrayEquals(new int[]{506}, repo.getIds(BookQuery.price(Double.NEGATIVE_INFINITY, true, -1e9, true)));
+    }
+
+    @Test
+    public void tiedPricesComeInOrderOfId()
+    {
+        MapDbBookRepository repo = new MapDbBookRepository(memoryDb());
+        List<Book> loaded = new ArrayList<Book>();
+        for(int id = 1; id <= 400; id++){
+            Book b = new Book("Title " + id, "Author", String.valueOf(id), "Publisher",
+                    2000 + random.nextInt(4), random.nextInt(10) * 5.0);
+            books.put(id, b);
+            loaded.add(b);
+        }
+        repo.bulkLoad(loaded.iterator());
+        int[] inYears = scanYears(2000, true, 2002, true);
+        for(boolean descending : new boolean[]{false, true}){
+            for(int limit = -1; limit < 60; limit += 7){
+                assertArrayEquals(orderByPrice(inYears, descending, limit),
+                        repo.getIdsByYearOrderByPrice(2000, true, 2002, true, descending, limit));
+            }
+        }
+        assertArrayEquals(orderByPrice(scanYears(2001, true, 2001, true), true, 30),
+                idsInOrder(repo.getMostExpensive(2001, 30)));
+    }
+}
@@ -0,0 +1,108 @@
+package edu.ncsu.mdnevill;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author Mitchell Neville
+ * Checks that BookSerializer and PersonSerializer read back what they write, including
+ * null fields, non-ASCII text, prices that are not a whole number of cents and years
+ * and ages far from 0.
+ */
+public class SerializerTest {
+    private static final BookSerializer BOOKS = new BookSerializer();
+    private static final PersonSerializer PEOPLE = new PersonSerializer();
+
+    private static Book roundTrip(Book b) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BOOKS.serialize(new DataOutputStream(bytes), b);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        Book ret = BOOKS.deserialize(in, bytes.size());
+        assertEquals("Bytes left over after " + b, 0, in.available());
+        return ret;
+    }
+
+    private static Person roundTrip(Person p) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PEOPLE.serialize(new DataOutputStream(bytes), p);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        Person ret = PEOPLE.deserialize(in, bytes.size());
+        assertEquals("Bytes left over after " + p, 0, in.available());
+        return ret;
+    }
+
+    private static void assertBook(Book expected, Book actual)
+    {
+        assertEquals(expected.title, actual.title);
+        assertEquals(expected.author, actual.author);
+        assertEquals(expected.isbn, actual.isbn);
+        assertEquals(expected.publisher, actual.publisher);
+        assertEquals(expected.year, actual.year);
+        // Exactly, with NaN equal to itself and -0.0 to 0.0 as in Book.equals
+        assertEquals(expected.price, actual.price, 0);
+    }
+
+    @Test
+    public void books() throws IOException
+    {
+        Book[] books = {
+                new Book("Classical Mythology", "Mark P. O. Morford", "0195153448", "Oxford University Press", 2002, 7.99),
+                new Book(null, null, null, null, 0, 0),
+                new Book("", "", "", "", -1, -0.01),
+                new Book("Caf\u00e9 \u65e5\u672c", "Jos\u00e9", "x", "\ud83d\udcda", 2001, 1e15),
+                new Book("t", "a", "i", "p", 1999, 12.345),
+                new Book("t", "a", "i", "p", Integer.MAX_VALUE, 10),
+                new Book("t", "a", "i", "p", Integer.MIN_VALUE, 10),
+                new Book("t", "a", "i", "p", 1 << 30, 10),
+                new Book("t", "a", "i", "p", 1999, 0.1 + 0.2),
+                new Book("t", "a", "i", "p", 1999, Double.NaN),
+                new Book("t", "a", "i", "p", 1999, Double.POSITIVE_INFINITY),
+                new Book("t", "a", "i", "p", 1999, -0.0),
+                new Book("t", "a", "i", "p", 1999, 1e300)
+        };
+        for(Book b : books){
+            assertBook(b, roundTrip(b));
+        }
+    }
+
+    @Test
+    public void wholeCentPricesArePacked() throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BookSerializer.writePrice(new DataOutputStream(bytes), 19.99);
+        // A varint of the cents, rather than a tag and an 8-byte double
+        assertEquals(2, bytes.size());
+    }
+
+    @Test
+    public void people() throws IOException
+    {
+        Person[] people = {
+                new Person("Ada", "Lovelace", 36, false, "London"),
+                new Person(null, null, null, true, null),
+                new Person("", "", 0, false, ""),
+                new Person("Ren\u00e9", "\u00c5str\u00f6m", -5, true, "M\u00fcnchen"),
+                new Person("a", "b", Integer.MIN_VALUE, false, "c"),
+                new Person("a", "b", Integer.MAX_VALUE, false, "c"),
+                new Person("a", "b", -(1 << 30), false, "c"),
+                new Person("a", "b", 1000, true, "c")
+        };
+        for(Person p : people){
+            Person read = roundTrip(p);
+            assertEquals(p.getFirstName(), read.getFirstName());
+            assertEquals(p.getLastName(), read.getLastName());
+            assertEquals(p.getAge(), read.getAge());
+            assertEquals(p.isMale(), read.isMale());
+            assertEquals(p.getCity(), read.getCity());
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package edu.ncsu.mdnevill.bitmap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Mitchell Neville
+ * Checks that bitmap indexes of every encoding and binning answer ranges as a scan
+ * of the column would, when built, when appended to and when read back from a file.
+ */
+public class BitmapIndexTest {
+    private static final String[] ENCODINGS = {
+            IndexOptions.EQUALITY, IndexOptions.RANGE, IndexOptions.INTERVAL
+    };
+    private static final IndexOptions[] BINNINGS = {
+            new IndexOptions(IndexOptions.EQUALITY, IndexOptions.NONE, 0),
+            new IndexOptions(IndexOptions.EQUALITY, IndexOptions.WIDTH, 10),
+            new IndexOptions(IndexOptions.EQUALITY, IndexOptions.DEPTH, 7),
+            new IndexOptions(IndexOptions.EQUALITY, IndexOptions.PRECISION, 2)
+    };
+
+    private final Random random = new Random(7);
+    private File file;
+
+    @Before
+    public void createFile() throws IOException
+    {
+        file = File.createTempFile("bitmap", ".idx");
+    }
+
+    @After
+    public void deleteFile()
+    {
+        file.delete();
+    }
+
+    private static IndexOptions options(String encoding, IndexOptions binning)
+    {
+        return new IndexOptions(encoding, binning.binning, binning.bins);
+    }
+
+    /**
+     * Prices in cents, with a few values far outside the usual range
+     */
+    private double[] randomValues(int n)
+    {
+        double[] values = new double[n];
+        for(int i = 0; i < n; i++){
+            values[i] = random.nextInt(20) == 0 ? random.nextInt(100000) - 50000
+                    : random.nextInt(20000) / 100.0;
+        }
+        return values;
+    }
+
+    private static double[] concat(double[] a, double[] b)
+    {
+        double[] ret = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, ret, a.length, b.length);
+        return ret;
+    }
+
+    private static int[] scan(double[] values, double low, boolean lowInc, double high, boolean highInc)
+    {
+        int[] rows = new int[values.length];
+        int n = 0;
+        for(int i = 0; i < values.length; i++){
+            double v = values[i];
+            if((lowInc ? v >= low : v > low) && (highInc ? v <= high : v < high)){
+                rows[n++] = i;
+            }
+        }
+        return Arrays.copyOf(rows, n);
+    }
+
+    /**
+     * Compare the index with a scan on random ranges, points and open ranges
+     */
+    private void check(String message, BitmapIndex idx, double[] values)
+    {
+        assertEquals(message, values.length, idx.rows());
+        Column column = new Column("price", values);
+        for(int q = 0; q < 50; q++){
+            double low;
+            double high;
+            boolean lowInc = random.nextBoolean();
+            boolean highInc = random.nextBoolean();
+            switch(q % 4){
+                case 0:
+                    low = high = values.length > 0 ? values[random.nextInt(values.length)] : 0;
+                    lowInc = highInc = true;
+                    break;
+                case 1:
+                    low = Double.NEGATIVE_INFINITY;
+                    high = random.nextInt(20000) / 100.0;
+                    break;
+                case 2:
+                    low = random.nextInt(20000) / 100.0;
+                    high = Double.POSITIVE_INFINITY;
+                    break;
+                default:
+                    low = random.nextInt(60000) - 30000;
+                    high = low + random.nextInt(30000);
+                    break;
+            }
+            String range = message + " " + (lowInc ? "[" : "(") + low + ", " + high + (highInc ? "]" : ")");
+            int[] expected = scan(values, low, lowInc, high, highInc);
+            boolean binned = idx.getOptions().isBinned();
+            assertArrayEquals(range, expected,
+                    idx.evaluate(low, lowInc, high, highInc, binned ? column : null).toArray());
+            if(!binned){
+                assertEquals(range, expected.length, idx.count(low, lowInc, high, highInc));
+            }
+        }
+    }
+
+    @Test
+    public void buildMatchesScan() throws IOException
+    {
+        for(String encoding : ENCODINGS){
+            for(IndexOptions binning : BINNINGS){
+                IndexOptions options = options(encoding, binning);
+                double[] values = randomValues(random.nextInt(2000));
+                BitmapIndex idx = BitmapIndex.build(new Column("price", values), options);
+                check(options.toString(), idx, values);
+                idx.write(file);
+                check(options + " read", BitmapIndex.read(file), values);
+            }
+        }
+    }
+
+    @Test
+    public void intColumn()
+    {
+        int[] years = new int[1000];
+        double[] values = new double[years.length];
+        for(int i = 0; i < years.length; i++){
+            years[i] = 1900 + random.nextInt(116);
+            values[i] = years[i];
+        }
+        for(String encoding : ENCODINGS){
+            IndexOptions options = options(encoding, BINNINGS[0]);
+            check(options.toString(), BitmapIndex.build(new Column("year", years), options), values);
+        }
+    }
+
+    @Test
+    public void appendMatchesScan() throws IOException
+    {
+        for(String encoding : ENCODINGS){
+            for(IndexOptions binning : BINNINGS){
+                IndexOptions options = options(encoding, binning);
+                double[] values = randomValues(random.nextInt(1000));
+                BitmapIndex idx = BitmapIndex.build(new Column("price", values), options);
+                idx.write(file);
+                for(int step = 0; step < 5; step++){
+                    double[] added = randomValues(random.nextInt(500));
+                    BitmapIndex before = idx;
+                    double[] old = values;
+                    idx = idx.append(new Column("price", added), file);
+                    values = concat(values, added);
+                    check(options + " append " + step, idx, values);
+                    check(options + " read " + step, BitmapIndex.read(file), values);
+                    // The index appended to still covers only its own rows
+                    check(options + " before " + step, before, old);
+                    check(options + " in memory " + step, before.append(new Column("price", added)), values);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void appendToEmptyIndex()
+    {
+        for(String encoding : ENCODINGS){
+            IndexOptions options = options(encoding, BINNINGS[1]);
+            BitmapIndex idx = BitmapIndex.build(new Column("price", new double[0]), options);
+            double[] values = randomValues(300);
+            check(options.toString(), idx.append(new Column("price", values)), values);
+        }
+    }
+
+    @Test
+    public void appendLeavesSavedIndexAlone() throws IOException
+    {
+        double[] values = randomValues(100000);
+        BitmapIndex.build(new Column("price", values)).write(file);
+        byte[] saved = read(file, (int) file.length());
+        // Ten new rows touch at most ten bitvectors, and only their tails are written
+        double[] added = randomValues(10);
+        BitmapIndex.read(file).append(new Column("price", added), file);
+        assertTrue(file.length() > saved.length);
+        assertTrue("Extension of " + (file.length() - saved.length) + " bytes",
+                file.length() - saved.length < 1000);
+        assertArrayEquals(saved, read(file, saved.length));
+        check("reopened", BitmapIndex.read(file), concat(values, added));
+    }
+
+    private static byte[] read(File file, int length) throws IOException
+    {
+        byte[] ret = new byte[length];
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try{
+            raf.readFully(ret);
+        }
+        finally{
+            raf.close();
+        }
+        return ret;
+    }
+
+    @Test
+    public void truncatedExtensionIsIgnored() throws IOException
+    {
+        double[] values = randomValues(500);
+        BitmapIndex idx = BitmapIndex.build(new Column("price", values));
+        idx.write(file);
+        long saved = file.length();
+        idx.append(new Column("price", randomValues(100)), file);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try{
+            raf.setLength(saved + (raf.length() - saved) / 2);
+        }
+        finally{
+            raf.close();
+        }
+        check("truncated", BitmapIndex.read(file), values);
+    }
+}
@@ -0,0 +1,385 @@
+package edu.ncsu.mdnevill.bitmap;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Mitchell Neville
+ * Checks the results of queries on the pure-Java engine against a scan of the rows
+ * written, on single partitions and partitioned tables
+ */
+public class JavaFastBitTest {
+    private static final String OPTIONS = "<binning none/><encoding equality/>";
+    // WHERE clauses and the same conditions on a row, for the scan
+    private static final String[] WHERE = {
+            "year = 2000",
+            "year >= 2005 and price < 50",
+            "price between 10 and 20 or year < 1992",
+            "not year = 2001",
+            "price > 1000"
+    };
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final Random random = new Random(3);
+    // Every row written so far, in order
+    private int[] years = new int[0];
+    private double[] prices = new double[0];
+
+    private static boolean matches(int clause, int year, double price)
+    {
+        switch(clause){
+            case 0:
+                return year == 2000;
+            case 1:
+                return year >= 2005 && price < 50;
+            case 2:
+                return (price >= 10 && price <= 20) || year < 1992;
+            case 3:
+                return year != 2001;
+            default:
+                return price > 1000;
+        }
+    }
+
+    /**
+     * Add n random rows to the buffer and write them to dir
+     */
+    private void write(BitmapEngine engine, String dir, int n)
+    {
+        int[] y = new int[n];
+        double[] p = new double[n];
+        for(int i = 0; i < n; i++){
+            y[i] = 1990 + random.nextInt(20);
+            p[i] = random.nextInt(10000) / 100.0;
+        }
+        assertEquals(0, engine.add_ints("year", y));
+        assertEquals(0, engine.add_doubles("price", p));
+        assertEquals(0, engine.write_buffer(dir));
+        years = Arrays.copyOf(years, years.length + n);
+        System.arraycopy(y, 0, years, years.length - n, n);
+        prices = Arrays.copyOf(prices, prices.length + n);
+        System.arraycopy(p, 0, prices, prices.length - n, n);
+    }
+
+    private int[] scan(int clause)
+    {
+        int[] rows = new int[years.length];
+        int n = 0;
+        for(int i = 0; i < years.length; i++){
+            if(matches(clause, years[i], prices[i])){
+                rows[n++] = i;
+            }
+        }
+        return Arrays.copyOf(rows, n);
+    }
+
+    /**
+     * Run every clause and compare the rows and their values with a scan
+     */
+    private void check(BitmapEngine engine, String dir)
+    {
+        assertEquals(years.length, engine.number_of_rows(dir));
+        for(int clause = 0; clause < WHERE.length; clause++){
+            int[] expected = scan(clause);
+            int[] expectedYears = new int[expected.length];
+            double[] expectedPrices = new double[expected.length];
+            for(int i = 0; i < expected.length; i++){
+                expectedYears[i] = years[expected[i]];
+                expectedPrices[i] = prices[expected[i]];
+            }
+            BitmapEngine.QueryHandle h = engine.build_query("year, price", dir, WHERE[clause]);
+            assertNotNull(WHERE[clause], h);
+            assertEquals(WHERE[clause], expected.length, engine.get_result_size(h));
+            assertArrayEquals(WHERE[clause], expected, engine.get_result_row_ids(h));
+            assertArrayEquals(WHERE[clause], expectedYears, engine.get_qualified_ints(h, "year"));
+            assertArrayEquals(WHERE[clause], expectedPrices, engine.get_qualified_doubles(h, "price"), 0);
+            engine.destroy_query(h);
+        }
+    }
+
+    @Test
+    public void queriesMatchScan() throws IOException
+    {
+        String dir = folder.newFolder().getPath();
+        JavaFastBit engine = new JavaFastBit(OPTIONS);
+        write(engine, dir, 3000);
+        assertEquals(2, engine.number_of_columns(dir));
+        // Indexes built on demand, then saved ones
+        check(engine, dir);
+        assertEquals(0, engine.build_indexes(dir, ""));
+        check(engine, dir);
+        // Rows written after the indexes were built
+        write(engine, dir, 500);
+        check(engine, dir);
+        assertEquals(0, engine.purge_indexes(dir));
+        check(engine, dir);
+    }
+
+    @Test
+    public void badClausesGiveNull() throws IOException
+    {
+        String dir = folder.newFolder().getPath();
+        JavaFastBit engine = new JavaFastBit(OPTIONS);
+        write(engine, dir, 10);
+        assertNull(engine.build_query("year", dir, "year ~ 2000"));
+        assertNull(engine.build_query("year", dir, "title = 3"));
+        assertNull(engine.build_query("year", folder.newFolder().getPath(), "year = 2000"));
+    }
+
+    @Test
+    public void cursorsReadEveryRowInBatches() throws IOException
+    {
+        String dir = folder.newFolder().getPath();
+        JavaFastBit engine = new JavaFastBit(OPTIONS);
+        write(engine, dir, 2000);
+        int[] expected = scan(1);
+        BitmapEngine.QueryHandle h = engine.build_query("year", dir, WHERE[1]);
+        for(int limit : new int[]{-1, 0, 1, 10, expected.length + 5}){
+            int wanted = limit < 0 ? expected.length : Math.min(limit, expected.length);
+            ResultCursor c = engine.open_cursor(h, 7, limit);
+            int[] rows = new int[wanted];
+            int[] batchYears = new int[7];
+            int n = 0;
+            int size;
+            while((size = c.next_batch()) > 0){
+                assertTrue(size <= 7);
+                assertEquals(size, c.get_batch_ints("year", batchYears));
+                for(int i = 0; i < size; i++){
+                    rows[n] = c.get_batch_row_ids()[i];
+                    assertEquals(years[rows[n]], batchYears[i]);
+                    n++;
+                }
+            }
+            assertEquals(wanted, n);
+            assertArrayEquals(Arrays.copyOf(expected, wanted), rows);
+        }
+        assertNull(engine.open_cursor(h, 0, -1));
+    }
+
+    @Test
+    public void cachedResultsFollowWrites() throws IOException
+    {
+        String dir = folder.newFolder().getPath();
+        ResultCache cache = new ResultCache(ResultCache.LRU, 1 << 20);
+        JavaFastBit engine = new JavaFastBit(OPTIONS, cache);
+        write(engine, dir, 1000);
+        check(engine, dir);
+        long misses = cache.getMisses();
+        check(engine, dir);
+        assertEquals(misses, cache.getMisses());
+        assertEquals(WHERE.length, cache.getHits());
+        // A write drops the partition's results
+        write(engine, dir, 100);
+        check(engine, dir);
+        assertEquals(misses + WHERE.length, cache.getMisses());
+    }
+
+    @Test
+    public void resultsEvaluatedBeforeAWriteAreNotCached() throws IOException
+    {
+        final String dir = folder.newFolder().getPath();
+        final JavaFastBit[] engine = new JavaFastBit[1];
+        ResultCache cache = new ResultCache(ResultCache.LRU, 1 << 20) {
+            private boolean raced;
+
+            @Override
+            public synchronized void put(String partition, String predicate, WahBitVector bits, long version)
+            {
+                // The write lands after the query evaluated but before it cached the result
+                if(!raced){
+                    raced = true;
+                    write(engine[0], dir, 100);
+                }
+                super.put(partition, predicate, bits, version);
+            }
+        };
+        engine[0] = new JavaFastBit(OPTIONS, cache);
+        write(engine[0], dir, 1000);
+        BitmapEngine.QueryHandle h = engine[0].build_query("year", dir, WHERE[3]);
+        assertEquals(0, cache.size());
+        engine[0].destroy_query(h);
+        check(engine[0], dir);
+    }
+
+    @Test
+    public void indexesAreExtendedByWrites() throws IOException
+    {
+        String dir = folder.newFolder().getPath();
+        JavaFastBit engine = new JavaFastBit(OPTIONS);
+        write(engine, dir, 2000);
+        assertEquals(0, engine.build_indexes(dir, ""));
+        File idx = new File(dir, "price" + Partition.INDEX_SUFFIX);
+        long saved = idx.length();
+        for(int i = 0; i < 3; i++){
+            write(engine, dir, 100);
+            check(engine, dir);
+        }
+        // The saved indexes were extended rather than dropped or rewritten
+        assertTrue(idx.length() > saved);
+        check(new JavaFastBit(OPTIONS), dir);
+    }
+
+    @Test
+    public void tablesMatchScan() throws IOException
+    {
+        for(String split : new String[]{"rows:700", "year:5"}){
+            String dir = folder.newFolder().getPath();
+            JavaFastBit engine = new JavaFastBit(OPTIONS);
+            years = new int[0];
+            prices = new double[0];
+            assertEquals(0, engine.create_table(dir, split));
+            assertTrue(engine.is_table(dir));
+            write(engine, dir, 2000);
+            check(engine, dir);
+            write(engine, dir, 1000);
+            assertEquals(0, engine.build_indexes(dir, ""));
+            check(engine, dir);
+            // Reopened from disk
+            check(new JavaFastBit(OPTIONS), dir);
+        }
+    }
+
+    @Test
+    public void cachedTableResultsFollowWrites() throws IOException
+    {
+        String dir = folder.newFolder().getPath();
+        ResultCache cache = new ResultCache(ResultCache.LFU, 1 << 20);
+        JavaFastBit engine = new JavaFastBit(OPTIONS, cache);
+        assertEquals(0, engine.create_table(dir, "rows:400"));
+        write(engine, dir, 1000);
+        check(engine, dir);
+        check(engine, dir);
+        assertTrue(cache.getHits() > 0);
+        write(engine, dir, 300);
+        check(engine, dir);
+    }
+
+    @Test
+    public void tableResultsEvaluatedBeforeAWriteAreNotCached() throws IOException
+    {
+        final String dir = folder.newFolder().getPath();
+        final JavaFastBit[] engine = new JavaFastBit[1];
+        ResultCache cache = new ResultCache(ResultCache.LRU, 1 << 20) {
+            private boolean raced;
+
+            @Override
+            public synchronized void put(String partition, String predicate, WahBitVector bits, long version)
+            {
+                if(!raced){
+                    raced = true;
+                    write(engine[0], dir, 100);
+                }
+                super.put(partition, predicate, bits, version);
+            }
+        };
+        engine[0] = new JavaFastBit(OPTIONS, cache);
+        // A single partition is evaluated on the calling thread
+        assertEquals(0, engine[0].create_table(dir, "rows:100000"));
+        write(engine[0], dir, 1000);
+        BitmapEngine.QueryHandle h = engine[0].build_query("year", dir, WHERE[3]);
+        assertEquals(0, cache.size());
+        engine[0].destroy_query(h);
+        check(engine[0], dir);
+    }
+
+    @Test
+    public void encodingsAndBinningMatchScan() throws IOException
+    {
+        String[] options = {
+                "<binning none/><encoding range/>",
+                "<binning none/><encoding interval/>",
+                "<binning nbins=10/><encoding equality/>",
+                "<binning nbins=10 equal-weight/><encoding range/>",
+                "<binning precision=1/><encoding interval/>",
+                "<binning none/><encoding equality/>; price:<binning nbins=20/><encoding range/>"
+        };
+        for(String opt : options){
+            String dir = folder.newFolder().getPath();
+            years = new int[0];
+            prices = new double[0];
+            JavaFastBit engine = new JavaFastBit(opt);
+            write(engine, dir, 1500);
+            check(engine, dir);
+            assertEquals(opt, 0, engine.build_indexes(dir, ""));
+            check(engine, dir);
+            write(engine, dir, 200);
+            check(engine, dir);
+        }
+    }
+
+    @Test
+    public void sortedCursorsOrderByValueThenRow() throws IOException
+    {
+        String dir = folder.newFolder().getPath();
+        JavaFastBit engine = new JavaFastBit(OPTIONS);
+        write(engine, dir, 3000);
+        List<Integer> rows = new ArrayList<Integer>();
+        for(int row : scan(1)){
+            rows.add(row);
+        }
+        for(final boolean descending : new boolean[]{false, true}){
+            Collections.sort(rows, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    int c = Double.compare(prices[a], prices[b]);
+                    return c != 0 ? (descending ? -c : c) : a.compareTo(b);
+                }
+            });
+            BitmapEngine.QueryHandle h = engine.build_query("price", dir, WHERE[1]);
+            for(int limit : new int[]{0, 1, 25, rows.size()}){
+                ResultCursor c = engine.open_sorted_cursor(h, "price", descending, 10, limit);
+                int n = 0;
+                int size;
+                while((size = c.next_batch()) > 0){
+                    for(int i = 0; i < size; i++){
+                        assertEquals(descending + " " + limit + " " + n, (int) rows.get(n++),
+                                c.get_batch_row_ids()[i]);
+                    }
+                }
+                assertEquals(limit, n);
+            }
+        }
+    }
+
+    @Test
+    public void destroyedQueriesGiveNoResults() throws IOException
+    {
+        JavaFastBit engine = new JavaFastBit(OPTIONS);
+        String[] dirs = {folder.newFolder().getPath(), folder.newFolder().getPath()};
+        assertEquals(0, engine.create_table(dirs[1], "rows:100"));
+        for(String d : dirs){
+            years = new int[0];
+            prices = new double[0];
+            write(engine, d, 500);
+            BitmapEngine.QueryHandle h = engine.build_query("year", d, WHERE[0]);
+            ResultCursor open = engine.open_cursor(h, 1000, -1);
+            assertEquals(0, engine.destroy_query(h));
+            assertEquals(-1, engine.get_result_size(h));
+            assertNull(engine.get_result_row_ids(h));
+            assertNull(engine.get_qualified_ints(h, "year"));
+            assertNull(engine.get_qualified_doubles(h, "price"));
+            assertNull(engine.open_cursor(h, 10, -1));
+            assertNull(engine.open_sorted_cursor(h, "price", true, 10, 5));
+            // A cursor opened before still reads its rows
+            assertEquals(scan(0).length, open.next_batch());
+        }
+    }
+}
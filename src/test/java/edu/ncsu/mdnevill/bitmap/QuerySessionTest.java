@@ -0,0 +1,208 @@
+package edu.ncsu.mdnevill.bitmap;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Mitchell Neville
+ * Checks that sessions answer plain and prepared queries as the engine does, and
+ * that every handle they open is destroyed, whether closed, leaked or left open
+ */
+public class QuerySessionTest {
+    private static final int ROWS = 1000;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final int[] years = new int[ROWS];
+    private final double[] prices = new double[ROWS];
+    private JavaFastBit engine;
+    private String dir;
+
+    @Before
+    public void writeRows() throws IOException
+    {
+        for(int i = 0; i < ROWS; i++){
+            years[i] = 1990 + i % 20;
+            prices[i] = i * 37 % 10000 / 100.0;
+        }
+        dir = folder.newFolder().getPath();
+        engine = new JavaFastBit("<binning none/><encoding equality/>");
+        assertEquals(0, engine.add_ints("year", years));
+        assertEquals(0, engine.add_doubles("price", prices));
+        assertEquals(0, engine.write_buffer(dir));
+    }
+
+    private int[] scan(int year, double minPrice)
+    {
+        int[] rows = new int[ROWS];
+        int n = 0;
+        for(int i = 0; i < ROWS; i++){
+            if(years[i] == year && prices[i] >= minPrice){
+                rows[n++] = i;
+            }
+        }
+        return Arrays.copyOf(rows, n);
+    }
+
+    @Test
+    public void queriesMatchScan()
+    {
+        QuerySession session = new QuerySession(engine, dir);
+        QuerySession.Query q = session.query("year = 2000 and price >= 40");
+        assertNotNull(q);
+        int[] expected = scan(2000, 40);
+        assertEquals(expected.length, q.size());
+        assertArrayEquals(expected, q.rowIds());
+        for(int year : q.ints("year")){
+            assertEquals(2000, year);
+        }
+        q.close();
+        session.close();
+        assertEquals(0, session.getLeaks());
+    }
+
+    @Test
+    public void preparedQueriesBindTheirParameters() throws WhereClauseException
+    {
+        QuerySession session = new QuerySession(engine, dir);
+        QuerySession.Prepared p = session.prepare("year = ? and price >= ?");
+        assertEquals(2, p.getParameterCount());
+        for(int year = 1988; year < 2012; year += 3){
+            QuerySession.Query q = p.execute(year, year - 1960);
+            try{
+                assertArrayEquals(q.getWhere(), scan(year, year - 1960), q.rowIds());
+            }
+            finally{
+                q.close();
+            }
+        }
+        // A parameter keeps its value until set again
+        QuerySession.Query q = p.set(2, 0).execute();
+        assertArrayEquals(scan(2009, 0), q.rowIds());
+        q.close();
+        session.close();
+        assertEquals(0, session.getLeaks());
+    }
+
+    @Test
+    public void parametersMustBeBound() throws WhereClauseException
+    {
+        QuerySession session = new QuerySession(engine, dir);
+        QuerySession.Prepared p = session.prepare("year = ? and price >= ?");
+        p.set(1, 2000);
+        try{
+            p.execute();
+            fail("Parameter 2 is not bound");
+        }
+        catch(IllegalStateException expected){
+        }
+        try{
+            p.set(3, 0);
+            fail("There is no parameter 3");
+        }
+        catch(IndexOutOfBoundsException expected){
+        }
+        try{
+            p.execute(2000);
+            fail("Too few values");
+        }
+        catch(IllegalArgumentException expected){
+        }
+        session.close();
+    }
+
+    @Test
+    public void badClauses() throws WhereClauseException
+    {
+        QuerySession session = new QuerySession(engine, dir);
+        assertNull(session.query("year = "));
+        try{
+            session.prepare("year = ? and");
+            fail("The clause is incomplete");
+        }
+        catch(WhereClauseException expected){
+        }
+        assertEquals(0, session.getOpenQueries());
+        session.close();
+    }
+
+    @Test
+    public void closedQueriesCannotBeRead()
+    {
+        int outstanding = QuerySession.getOutstandingHandles();
+        QuerySession session = new QuerySession(engine, dir);
+        QuerySession.Query q = session.query("year = 2000");
+        assertEquals(outstanding + 1, QuerySession.getOutstandingHandles());
+        assertEquals(1, session.getOpenQueries());
+        q.close();
+        q.close();
+        assertTrue(q.isClosed());
+        assertEquals(outstanding, QuerySession.getOutstandingHandles());
+        assertEquals(0, session.getOpenQueries());
+        try{
+            q.rowIds();
+            fail("The query is closed");
+        }
+        catch(IllegalStateException expected){
+        }
+        session.close();
+        assertEquals(0, session.getLeaks());
+    }
+
+    @Test
+    public void closingTheSessionClosesItsQueries()
+    {
+        int outstanding = QuerySession.getOutstandingHandles();
+        QuerySession session = new QuerySession(engine, dir);
+        QuerySession.Query closed = session.query("year = 2000");
+        QuerySession.Query open = session.query("year = 2001");
+        closed.close();
+        session.close();
+        assertTrue(open.isClosed());
+        assertEquals(1, session.getLeaks());
+        assertEquals(outstanding, QuerySession.getOutstandingHandles());
+        try{
+            session.query("year = 2000");
+            fail("The session is closed");
+        }
+        catch(IllegalStateException expected){
+        }
+    }
+
+    @Test
+    public void unreachableQueriesAreReclaimed() throws InterruptedException
+    {
+        int outstanding = QuerySession.getOutstandingHandles();
+        QuerySession session = new QuerySession(engine, dir);
+        session.query("year = 2000");
+        QuerySession.Query kept = session.query("year = 2001");
+        int found = 0;
+        for(int i = 0; i < 100 && found == 0; i++){
+            System.gc();
+            Thread.sleep(10);
+            found = session.reclaim();
+        }
+        assertEquals(1, found);
+        assertEquals(1, session.getLeaks());
+        assertEquals(1, session.getOpenQueries());
+        assertFalse(kept.isClosed());
+        kept.close();
+        assertEquals(outstanding, QuerySession.getOutstandingHandles());
+        session.close();
+        assertEquals(1, session.getLeaks());
+    }
+}
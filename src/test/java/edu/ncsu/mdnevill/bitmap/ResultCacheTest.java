@@ -0,0 +1,130 @@
+package edu.ncsu.mdnevill.bitmap;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * @author Mitchell Neville
+ * Checks the lookups, eviction and invalidation of the result cache
+ */
+public class ResultCacheTest {
+    /**
+     * A result taking the same number of bytes for every i
+     */
+    private static WahBitVector rows(int i)
+    {
+        return WahBitVector.fromPositions(new int[]{i, 100 + i, 200 + i}, 1000);
+    }
+
+    private static long bytes()
+    {
+        return rows(0).sizeInBytes();
+    }
+
+    @Test
+    public void hitsAndMisses()
+    {
+        ResultCache cache = new ResultCache(ResultCache.LRU, 1 << 20);
+        assertNull(cache.get("p", "year = 2000"));
+        WahBitVector bits = rows(1);
+        cache.put("p", "year = 2000", bits);
+        assertSame(bits, cache.get("p", "year = 2000"));
+        assertNull(cache.get("q", "year = 2000"));
+        assertEquals(1, cache.getHits());
+        assertEquals(2, cache.getMisses());
+        assertEquals(1.0 / 3, cache.hitRate(), 1e-9);
+        assertEquals(1, cache.size());
+        assertEquals(bits.sizeInBytes(), cache.sizeInBytes());
+    }
+
+    @Test
+    public void lruEvictsTheLeastRecentlyUsed()
+    {
+        ResultCache cache = new ResultCache(ResultCache.LRU, 3 * bytes());
+        cache.put("p", "a", rows(1));
+        cache.put("p", "b", rows(2));
+        cache.put("p", "c", rows(3));
+        cache.get("p", "a");
+        cache.put("p", "d", rows(4));
+        assertNull(cache.get("p", "b"));
+        assertNotNull(cache.get("p", "a"));
+        assertNotNull(cache.get("p", "c"));
+        assertNotNull(cache.get("p", "d"));
+        assertEquals(1, cache.getEvictions());
+        assertEquals(3 * bytes(), cache.sizeInBytes());
+    }
+
+    @Test
+    public void lfuEvictsTheLeastUsed()
+    {
+        ResultCache cache = new ResultCache(ResultCache.LFU, 3 * bytes());
+        cache.put("p", "a", rows(1));
+        cache.put("p", "b", rows(2));
+        cache.put("p", "c", rows(3));
+        cache.get("p", "a");
+        cache.get("p", "a");
+        cache.get("p", "b");
+        cache.get("p", "c");
+        cache.get("p", "c");
+        cache.put("p", "d", rows(4));
+        assertNull(cache.get("p", "b"));
+        assertNotNull(cache.get("p", "a"));
+        assertNotNull(cache.get("p", "c"));
+        assertNotNull(cache.get("p", "d"));
+    }
+
+    @Test
+    public void resultsLargerThanTheCacheAreNotKept()
+    {
+        ResultCache cache = new ResultCache(ResultCache.LRU, bytes() - 1);
+        cache.put("p", "a", rows(1));
+        assertNull(cache.get("p", "a"));
+        assertEquals(0, cache.sizeInBytes());
+    }
+
+    @Test
+    public void invalidateDropsOnlyItsPartition()
+    {
+        ResultCache cache = new ResultCache(ResultCache.LRU, 1 << 20);
+        cache.put("p", "a", rows(1));
+        cache.put("p", "b", rows(2));
+        cache.put("q", "a", rows(3));
+        cache.invalidate("p");
+        assertNull(cache.get("p", "a"));
+        assertNull(cache.get("p", "b"));
+        assertNotNull(cache.get("q", "a"));
+        assertEquals(2, cache.getInvalidations());
+        assertEquals(bytes(), cache.sizeInBytes());
+        cache.clear();
+        assertNull(cache.get("q", "a"));
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.sizeInBytes());
+    }
+
+    @Test
+    public void resultsOfAnOldVersionAreNotKept()
+    {
+        ResultCache cache = new ResultCache(ResultCache.LRU, 1 << 20);
+        long version = cache.version("p");
+        cache.invalidate("p");
+        cache.put("p", "a", rows(1), version);
+        assertNull(cache.get("p", "a"));
+
+        // Other partitions changing does not matter
+        version = cache.version("p");
+        cache.invalidate("q");
+        cache.put("p", "a", rows(1), version);
+        assertNotNull(cache.get("p", "a"));
+
+        version = cache.version("p");
+        cache.clear();
+        cache.put("p", "a", rows(1), version);
+        assertNull(cache.get("p", "a"));
+        cache.put("p", "a", rows(1), cache.version("p"));
+        assertNotNull(cache.get("p", "a"));
+    }
+}
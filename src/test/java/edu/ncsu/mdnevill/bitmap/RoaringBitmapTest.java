@@ -0,0 +1,144 @@
+package edu.ncsu.mdnevill.bitmap;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Mitchell Neville
+ * Checks RoaringBitmap against a TreeSet, on sets whose chunks are sparse enough for
+ * array containers or dense enough for bitmap containers, so each operation meets
+ * every pair of container kinds and results change kind.
+ */
+public class RoaringBitmapTest {
+    private final Random random = new Random(11);
+
+    /**
+     * Values in a few 65536-value chunks, each sparse, dense or just around the
+     * array container limit
+     */
+    private TreeSet<Integer> randomSet()
+    {
+        TreeSet<Integer> set = new TreeSet<Integer>();
+        int chunks = 1 + random.nextInt(4);
+        for(int c = 0; c < chunks; c++){
+            int base = random.nextInt(6) << 16;
+            int n;
+            switch(random.nextInt(3)){
+                case 0:
+                    n = random.nextInt(200);
+                    break;
+                case 1:
+                    n = RoaringBitmap.ARRAY_MAX - 50 + random.nextInt(100);
+                    break;
+                default:
+                    n = 10000 + random.nextInt(30000);
+                    break;
+            }
+            for(int i = 0; i < n; i++){
+                set.add(base + random.nextInt(1 << 16));
+            }
+        }
+        return set;
+    }
+
+    private static RoaringBitmap toBitmap(TreeSet<Integer> set)
+    {
+        RoaringBitmap b = new RoaringBitmap();
+        for(int v : set){
+            b.add(v);
+        }
+        return b;
+    }
+
+    private static void assertSet(TreeSet<Integer> expected, RoaringBitmap actual)
+    {
+        assertEquals(expected.size(), actual.cardinality());
+        assertEquals(expected.isEmpty(), actual.isEmpty());
+        int[] values = new int[expected.size()];
+        int i = 0;
+        for(int v : expected){
+            values[i++] = v;
+        }
+        assertArrayEquals(values, actual.toArray());
+        IntIterator it = actual.iterator();
+        for(int v : values){
+            assertTrue(it.hasNext());
+            assertEquals(v, it.next());
+        }
+        assertFalse(it.hasNext());
+    }
+
+    @Test
+    public void addRemoveContains()
+    {
+        TreeSet<Integer> set = randomSet();
+        RoaringBitmap b = toBitmap(set);
+        assertSet(set, b);
+        Iterator<Integer> it = set.iterator();
+        while(it.hasNext()){
+            int v = it.next();
+            assertTrue(b.contains(v));
+            assertFalse(b.contains(v + (7 << 16)));
+            if(random.nextInt(3) > 0){
+                b.remove(v);
+                it.remove();
+            }
+        }
+        assertSet(set, b);
+        assertArrayEquals(new int[]{1, 5, 70000}, RoaringBitmap.of(70000, 5, 1, 5).toArray());
+    }
+
+    @Test
+    public void operationsMatchTreeSet()
+    {
+        for(int trial = 0; trial < 60; trial++){
+            TreeSet<Integer> a = randomSet();
+            TreeSet<Integer> b = randomSet();
+            RoaringBitmap ra = toBitmap(a);
+            RoaringBitmap rb = toBitmap(b);
+
+            TreeSet<Integer> and = new TreeSet<Integer>(a);
+            and.retainAll(b);
+            assertSet(and, ra.and(rb));
+            TreeSet<Integer> or = new TreeSet<Integer>(a);
+            or.addAll(b);
+            assertSet(or, ra.or(rb));
+            TreeSet<Integer> andNot = new TreeSet<Integer>(a);
+            andNot.removeAll(b);
+            assertSet(andNot, ra.andNot(rb));
+            // The operands are unchanged
+            assertSet(a, ra);
+            assertSet(b, rb);
+
+            RoaringBitmap with = ra.copy();
+            with.orWith(rb);
+            assertSet(or, with);
+            assertSet(a, ra);
+            assertSet(b, rb);
+        }
+    }
+
+    @Test
+    public void orAll()
+    {
+        TreeSet<Integer> all = new TreeSet<Integer>();
+        List<RoaringBitmap> bitmaps = new ArrayList<RoaringBitmap>();
+        for(int i = 0; i < 8; i++){
+            TreeSet<Integer> set = randomSet();
+            all.addAll(set);
+            bitmaps.add(toBitmap(set));
+        }
+        assertSet(all, RoaringBitmap.orAll(bitmaps));
+        assertSet(new TreeSet<Integer>(), RoaringBitmap.orAll(new ArrayList<RoaringBitmap>()));
+    }
+}
@@ -0,0 +1,183 @@
+package edu.ncsu.mdnevill.bitmap;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Mitchell Neville
+ * Checks WahBitVector's run encoding and logical operations against BitSet, on
+ * bitvectors mixing long runs of zeros and ones with scattered bits.
+ */
+public class WahBitVectorTest {
+    private final Random random = new Random(42);
+
+    /**
+     * Random bits in runs of random length, each run all zeros, all ones or mixed
+     */
+    private BitSet randomBits(int size)
+    {
+        BitSet bits = new BitSet(size);
+        int i = 0;
+        while(i < size){
+            int run = Math.min(size - i, 1 + random.nextInt(random.nextBoolean() ? 40 : 400));
+            int kind = random.nextInt(3);
+            for(int j = i; j < i + run; j++){
+                if(kind == 1 || (kind == 2 && random.nextInt(4) == 0)){
+                    bits.set(j);
+                }
+            }
+            i += run;
+        }
+        return bits;
+    }
+
+    private static WahBitVector fromBits(BitSet bits, int size)
+    {
+        WahBitVector v = new WahBitVector();
+        for(int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1)){
+            v.set(i);
+        }
+        v.pad(size);
+        return v;
+    }
+
+    private static void assertBits(BitSet expected, int size, WahBitVector actual)
+    {
+        assertEquals(size, actual.size());
+        assertEquals(expected.cardinality(), actual.cardinality());
+        int[] positions = new int[expected.cardinality()];
+        int n = 0;
+        for(int i = expected.nextSetBit(0); i >= 0; i = expected.nextSetBit(i + 1)){
+            positions[n++] = i;
+        }
+        assertArrayEquals(positions, actual.toArray());
+        for(int i = 0; i < size; i += 7){
+            assertEquals(expected.get(i), actual.get(i));
+        }
+    }
+
+    @Test
+    public void runsAreCompressed()
+    {
+        WahBitVector v = new WahBitVector();
+        v.appendRun(false, 31 * 1000);
+        v.appendRun(true, 31 * 1000);
+        v.appendBit(true);
+        assertEquals(31 * 2000 + 1, v.size());
+        assertEquals(31 * 1000 + 1, v.cardinality());
+        // One fill word for each run, and the active word
+        assertEquals(2, v.nwords);
+        assertFalse(v.get(31 * 1000 - 1));
+        assertTrue(v.get(31 * 1000));
+        assertTrue(v.get(31 * 2000));
+    }
+
+    @Test
+    public void constantVectors()
+    {
+        assertEquals(0, new WahBitVector(1000, false).cardinality());
+        assertEquals(1000, new WahBitVector(1000, true).cardinality());
+        assertEquals(new WahBitVector(1000, true), new WahBitVector(1000, false).not());
+    }
+
+    @Test
+    public void setMatchesBitSet()
+    {
+        for(int trial = 0; trial < 50; trial++){
+            int size = random.nextInt(3000);
+            BitSet bits = randomBits(size);
+            assertBits(bits, size, fromBits(bits, size));
+            assertBits(bits, size, WahBitVector.fromPositions(fromBits(bits, size).toArray(), size));
+        }
+    }
+
+    @Test
+    public void logicalOperationsMatchBitSet()
+    {
+        for(int trial = 0; trial < 200; trial++){
+            int size = random.nextInt(5000);
+            BitSet a = randomBits(size);
+            BitSet b = randomBits(size);
+            WahBitVector va = fromBits(a, size);
+            WahBitVector vb = fromBits(b, size);
+
+            BitSet and = (BitSet) a.clone();
+            and.and(b);
+            assertBits(and, size, va.and(vb));
+            BitSet or = (BitSet) a.clone();
+            or.or(b);
+            assertBits(or, size, va.or(vb));
+            BitSet xor = (BitSet) a.clone();
+            xor.xor(b);
+            assertBits(xor, size, va.xor(vb));
+            BitSet andNot = (BitSet) a.clone();
+            andNot.andNot(b);
+            assertBits(andNot, size, va.andNot(vb));
+            BitSet not = (BitSet) a.clone();
+            not.flip(0, size);
+            assertBits(not, size, va.not());
+            // The operands are unchanged
+            assertBits(a, size, va);
+            assertBits(b, size, vb);
+        }
+    }
+
+    @Test
+    public void appendAndConcat()
+    {
+        for(int trial = 0; trial < 100; trial++){
+            int sizeA = random.nextInt(2000);
+            int sizeB = random.nextInt(2000);
+            BitSet a = randomBits(sizeA);
+            BitSet b = randomBits(sizeB);
+            BitSet joined = (BitSet) a.clone();
+            for(int i = b.nextSetBit(0); i >= 0; i = b.nextSetBit(i + 1)){
+                joined.set(sizeA + i);
+            }
+            WahBitVector va = fromBits(a, sizeA);
+            WahBitVector vb = fromBits(b, sizeB);
+
+            WahBitVector concat = va.concat(vb);
+            assertBits(joined, sizeA + sizeB, concat);
+            assertBits(a, sizeA, va);
+            // A second concat on the same vector must not disturb the first
+            WahBitVector again = va.concat(new WahBitVector(sizeB, true));
+            assertBits(joined, sizeA + sizeB, concat);
+            assertEquals(a.cardinality() + sizeB, again.cardinality());
+            // Appending to the concatenation must not disturb the original either
+            concat.appendRun(true, 100);
+            assertBits(a, sizeA, va);
+
+            WahBitVector appended = va.copy();
+            appended.append(vb);
+            assertBits(joined, sizeA + sizeB, appended);
+            assertEquals(appended, va.concat(vb));
+            assertEquals(appended.hashCode(), va.concat(vb).hashCode());
+        }
+    }
+
+    @Test
+    public void writeAndRead() throws IOException
+    {
+        int size = 10000;
+        BitSet bits = randomBits(size);
+        WahBitVector v = fromBits(bits, size);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        v.write(new DataOutputStream(bytes));
+        WahBitVector read = WahBitVector.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(v, read);
+        assertBits(bits, size, read);
+    }
+}
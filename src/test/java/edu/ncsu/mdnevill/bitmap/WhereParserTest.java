@@ -0,0 +1,163 @@
+package edu.ncsu.mdnevill.bitmap;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Mitchell Neville
+ * Checks the WHERE clauses WhereParser accepts and rejects, and binding the
+ * parameters of prepared clauses.
+ */
+public class WhereParserTest {
+
+    private static Predicate.Range range(String where) throws WhereClauseException
+    {
+        Predicate p = WhereParser.parse(where);
+        assertTrue(where + " gave " + p, p instanceof Predicate.Range);
+        return (Predicate.Range) p;
+    }
+
+    private static void assertRange(Predicate.Range r, String column, double low, boolean lowInc,
+                                    double high, boolean highInc)
+    {
+        assertEquals(column, r.getColumn());
+        assertEquals(low, r.getLow(), 0);
+        assertEquals(lowInc, r.isLowInclusive());
+        assertEquals(high, r.getHigh(), 0);
+        assertEquals(highInc, r.isHighInclusive());
+    }
+
+    private static void assertRejected(String where)
+    {
+        try{
+            Predicate p = WhereParser.parse(where);
+            fail(where + " was parsed as " + p);
+        }
+        catch(WhereClauseException e){
+            // Expected
+        }
+    }
+
+    @Test
+    public void comparisons() throws WhereClauseException
+    {
+        double inf = Double.POSITIVE_INFINITY;
+        assertRange(range("year = 2000"), "year", 2000, true, 2000, true);
+        assertRange(range("year == 2000"), "year", 2000, true, 2000, true);
+        assertRange(range("price < 10.5"), "price", -inf, true, 10.5, false);
+        assertRange(range("price <= 10.5"), "price", -inf, true, 10.5, true);
+        assertRange(range("price > -1e3"), "price", -1000, false, inf, true);
+        assertRange(range("price>=0"), "price", 0, true, inf, true);
+        assertTrue(range("year = 2000").isPoint());
+        assertFalse(range("year >= 2000").isPoint());
+    }
+
+    @Test
+    public void numberFirst() throws WhereClauseException
+    {
+        double inf = Double.POSITIVE_INFINITY;
+        assertRange(range("2000 < year"), "year", 2000, false, inf, true);
+        assertRange(range("2000 >= year"), "year", -inf, true, 2000, true);
+        assertRange(range("2000 <= year < 2010"), "year", 2000, true, 2010, false);
+        assertRange(range("year between 1990 and 2000"), "year", 1990, true, 2000, true);
+    }
+
+    @Test
+    public void notEqual() throws WhereClauseException
+    {
+        for(String where : new String[]{"year != 2000", "year <> 2000", "not year = 2000", "!(year = 2000)"}){
+            Predicate p = WhereParser.parse(where);
+            assertTrue(where, p instanceof Predicate.Not);
+            assertRange((Predicate.Range) ((Predicate.Not) p).getChild(), "year", 2000, true, 2000, true);
+        }
+    }
+
+    @Test
+    public void andBindsTighterThanOr() throws WhereClauseException
+    {
+        Predicate p = WhereParser.parse("year = 2000 or year = 2001 and price < 5");
+        assertTrue(p instanceof Predicate.Or);
+        Predicate right = ((Predicate.Or) p).getRight();
+        assertTrue(right instanceof Predicate.And);
+        assertEquals("(year = 2000 or (year = 2001 and price < 5))", p.toString());
+
+        p = WhereParser.parse("(year = 2000 || year = 2001) && price < 5");
+        assertTrue(p instanceof Predicate.And);
+        assertTrue(((Predicate.And) p).getLeft() instanceof Predicate.Or);
+    }
+
+    @Test
+    public void rejectsBadClauses()
+    {
+        assertRejected("");
+        assertRejected("   ");
+        assertRejected("year =");
+        assertRejected("year = 2000 and");
+        assertRejected("(year = 2000");
+        assertRejected("year = 2000)");
+        assertRejected("year ~ 2000");
+        assertRejected("2000 = 2001");
+        assertRejected("year = ?");
+    }
+
+    @Test
+    public void bindParameters() throws WhereClauseException
+    {
+        Predicate p = WhereParser.parsePrepared("year = ? and ? <= price < ?");
+        assertEquals(3, p.parameters());
+        Predicate bound = p.bind(new double[]{2000, 10, 20});
+        assertEquals(0, bound.parameters());
+        Predicate.And and = (Predicate.And) bound;
+        assertRange((Predicate.Range) and.getLeft(), "year", 2000, true, 2000, true);
+        assertRange((Predicate.Range) and.getRight(), "price", 10, true, 20, false);
+
+        // Binding again gives a new predicate; the prepared one is unchanged
+        Predicate other = p.bind(new double[]{1990, 1, 2});
+        assertRange((Predicate.Range) ((Predicate.And) other).getLeft(), "year", 1990, true, 1990, true);
+        assertRange((Predicate.Range) ((Predicate.And) bound).getLeft(), "year", 2000, true, 2000, true);
+        assertEquals(3, p.parameters());
+    }
+
+    @Test
+    public void bindBetweenAndNot() throws WhereClauseException
+    {
+        Predicate p = WhereParser.parsePrepared("year between ? and ? and price != ?");
+        assertEquals(3, p.parameters());
+        Predicate.And bound = (Predicate.And) p.bind(new double[]{1990, 2000, 9.99});
+        assertRange((Predicate.Range) bound.getLeft(), "year", 1990, true, 2000, true);
+        Predicate.Not not = (Predicate.Not) bound.getRight();
+        assertRange((Predicate.Range) not.getChild(), "price", 9.99, true, 9.99, true);
+    }
+
+    @Test
+    public void clauseWithoutParametersBindsToItself() throws WhereClauseException
+    {
+        Predicate p = WhereParser.parsePrepared("year = 2000");
+        assertEquals(0, p.parameters());
+        assertSame(p, p.bind(new double[0]));
+    }
+
+    @Test
+    public void errorsSerializeWithAFixedVersion() throws IOException, ClassNotFoundException
+    {
+        assertEquals(1L, ObjectStreamClass.lookup(WhereClauseException.class).getSerialVersionUID());
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(new WhereClauseException("Unexpected end of where clause"));
+        out.close();
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        assertEquals("Unexpected end of where clause", ((WhereClauseException) in.readObject()).getMessage());
+    }
+}
@@ -0,0 +1,138 @@
+package gov.lbl.fastbit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that dictionaries read back from .dic files give every value
+ * the code it was written with.
+ *
+ * @author Mitchell Neville
+ */
+public class FastBitDictionaryTest {
+    private static final String CHARSET = "UTF-8";
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final Random random = new Random(17);
+
+    private String randomValue() {
+	int n = random.nextInt(40);
+	StringBuilder sb = new StringBuilder();
+	for (int i=0; i<n; i++) {
+	    sb.append(random.nextInt(10) == 0 ? '\u00e9' : (char) ('a' + random.nextInt(4)));
+	}
+	return sb.toString();
+    }
+
+    private static void write(FastBitDictionary dic, File file, int from)
+	throws IOException {
+	RandomAccessFile raf = new RandomAccessFile(file, "rw");
+	try {
+	    FileChannel fc = raf.getChannel();
+	    fc.position(fc.size());
+	    // Smaller than some values, so the buffer grows
+	    dic.write(fc, from, 16);
+	}
+	finally {
+	    raf.close();
+	}
+    }
+
+    private static void check(List<String> values, FastBitDictionary dic) {
+	assertEquals(values.size(), dic.size());
+	for (int code=0; code<values.size(); code++) {
+	    assertEquals(values.get(code), dic.value(code));
+	    assertEquals(code, dic.code(values.get(code)));
+	}
+    }
+
+    @Test
+    public void codesArePositions() throws IOException {
+	File file = new File(folder.getRoot(), "col.dic");
+	FastBitDictionary dic = new FastBitDictionary(CHARSET);
+	List<String> values = new ArrayList<String>();
+	String[] rows = new String[5000];
+	for (int i=0; i<rows.length; i++) {
+	    rows[i] = randomValue();
+	}
+	int[] codes = dic.encode(rows);
+	for (int i=0; i<rows.length; i++) {
+	    if (codes[i] == values.size()) {
+		values.add(rows[i]);
+	    }
+	    assertEquals(rows[i], values.get(codes[i]));
+	}
+	check(values, dic);
+	assertEquals(-1, dic.code("not a value"));
+	write(dic, file, 0);
+	check(values, FastBitDictionary.read(file, CHARSET));
+
+	// Appending writes only the new values, after the old ones
+	int old = dic.size();
+	for (int i=0; i<1000; i++) {
+	    String v = randomValue() + "x";
+	    if (dic.add(v) == values.size()) {
+		values.add(v);
+	    }
+	}
+	write(dic, file, old);
+	check(values, FastBitDictionary.read(file, CHARSET));
+    }
+
+    @Test
+    public void lastValueWithoutItsNul() throws IOException {
+	File file = folder.newFile("col.dic");
+	FileOutputStream out = new FileOutputStream(file);
+	try {
+	    out.write("b\0\0a".getBytes(CHARSET));
+	}
+	finally {
+	    out.close();
+	}
+	List<String> values = new ArrayList<String>();
+	values.add("b");
+	values.add("");
+	values.add("a");
+	check(values, FastBitDictionary.read(file, CHARSET));
+    }
+
+    @Test
+    public void missingFileIsEmpty() throws IOException {
+	File file = new File(folder.getRoot(), "none.dic");
+	assertEquals(0, FastBitDictionary.read(file, CHARSET).size());
+	assertEquals(0, FastBitDictionary.read(folder.newFile("empty.dic"), CHARSET).size());
+    }
+
+    @Test
+    public void duplicateValuesAreRejected() throws IOException {
+	File file = folder.newFile("col.dic");
+	FileOutputStream out = new FileOutputStream(file);
+	try {
+	    out.write("a\0b\0a\0c\0".getBytes(CHARSET));
+	}
+	finally {
+	    out.close();
+	}
+	try {
+	    FastBitDictionary.read(file, CHARSET);
+	    fail("\"a\" is in the file twice");
+	}
+	catch (IOException expected) {
+	}
+    }
+}